@@ -0,0 +1,149 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.ajp;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+import org.eclipse.jetty.http.HttpSchemes;
+import org.eclipse.jetty.io.Connection;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.nio.SelectChannelEndPoint;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.thread.Timeout.Task;
+
+/* ------------------------------------------------------------ */
+/**
+ * Selecting NIO AJP13 connector.
+ * <p>
+ * This connector runs the {@link Ajp13Parser} and {@link Ajp13Generator} over
+ * {@link SelectChannelEndPoint}s managed by a {@link org.eclipse.jetty.io.nio.SelectorManager},
+ * so that idle AJP connections from mod_jk or mod_proxy_ajp do not hold a thread.
+ * Threads are only allocated to connections with a forwarded request in progress.
+ * </p>
+ * <p>
+ * The shutdown and secret word settings are shared with {@link Ajp13SocketConnector}.
+ * </p>
+ *
+ * @org.apache.xbean.XBean element="ajp13NioConnector" description="Creates an NIO based AJP13 connector"
+ */
+public class Ajp13SelectChannelConnector extends SelectChannelConnector
+{
+    /* ------------------------------------------------------------ */
+    public Ajp13SelectChannelConnector()
+    {
+        super.setRequestHeaderSize(Ajp13Packet.MAX_DATA_SIZE);
+        super.setResponseHeaderSize(Ajp13Packet.MAX_DATA_SIZE);
+        super.setRequestBufferSize(Ajp13Packet.MAX_DATA_SIZE);
+        super.setResponseBufferSize(Ajp13Packet.MAX_DATA_SIZE);
+        // IN AJP protocol the socket stay open, so
+        // by default the time out is set to 0 seconds
+        super.setMaxIdleTime(0);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    protected void doStart() throws Exception
+    {
+        super.doStart();
+        Log.info("AJP13 is not a secure protocol. Please protect port {}",Integer.toString(getLocalPort()));
+    }
+
+    /* ------------------------------------------------------------ */
+    /* (non-Javadoc)
+     * @see org.eclipse.jetty.server.nio.SelectChannelConnector#customize(org.eclipse.io.EndPoint, org.eclipse.jetty.server.Request)
+     */
+    @Override
+    public void customize(EndPoint endpoint, Request request) throws IOException
+    {
+        super.customize(endpoint,request);
+        if (request.isSecure())
+            request.setScheme(HttpSchemes.HTTPS);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    protected Connection newConnection(SocketChannel channel, final SelectChannelEndPoint endpoint)
+    {
+        return new Ajp13Connection(this,endpoint,getServer())
+        {
+            /* ------------------------------------------------------------ */
+            @Override
+            public void cancelTimeout(Task task)
+            {
+                endpoint.getSelectSet().cancelTimeout(task);
+            }
+
+            /* ------------------------------------------------------------ */
+            @Override
+            public void scheduleTimeout(Task task, long timeoutMs)
+            {
+                endpoint.getSelectSet().scheduleTimeout(task,timeoutMs);
+            }
+        };
+    }
+
+    /* ------------------------------------------------------------ */
+    // Secured on a packet by packet bases not by connection
+    @Override
+    public boolean isConfidential(Request request)
+    {
+        return ((Ajp13Request) request).isSslSecure();
+    }
+
+    /* ------------------------------------------------------------ */
+    // Secured on a packet by packet bases not by connection
+    @Override
+    public boolean isIntegral(Request request)
+    {
+        return ((Ajp13Request) request).isSslSecure();
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void setHeaderBufferSize(int headerBufferSize)
+    {
+        Log.debug(Log.IGNORED);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void setRequestBufferSize(int requestBufferSize)
+    {
+        Log.debug(Log.IGNORED);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void setResponseBufferSize(int responseBufferSize)
+    {
+        Log.debug(Log.IGNORED);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void setAllowShutdown(boolean allowShutdown)
+    {
+        Log.warn("AJP13: Shutdown Request is: " + allowShutdown);
+        Ajp13SocketConnector.__allowShutdown = allowShutdown;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void setSecretWord(String secretWord)
+    {
+        Log.warn("AJP13: Shutdown Request secret word is : " + secretWord);
+        Ajp13SocketConnector.__secretWord = secretWord;
+    }
+}
@@ -0,0 +1,139 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.ajp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.TypeUtil;
+import org.eclipse.jetty.util.log.Log;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+public class Ajp13SelectChannelConnectionTest
+{
+    private static Server _server;
+    private static Ajp13SelectChannelConnector _connector;
+    private Socket _client;
+
+    @BeforeClass
+    public static void startServer() throws Exception
+    {
+        _server=new Server();
+        _connector=new Ajp13SelectChannelConnector();
+
+        _connector.setPort(0);
+        _server.setConnectors(new Connector[] { _connector });
+        _server.setHandler(new Ajp13ConnectionTest.Handler());
+        _server.start();
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception
+    {
+        _connector.close();
+        _server.stop();
+    }
+
+    @Before
+    public void openSocket() throws Exception
+    {
+        _client=new Socket("localhost",_connector.getLocalPort());
+        _client.setSoTimeout(500);
+    }
+
+    @After
+    public void closeSocket() throws Exception
+    {
+        _client.close();
+    }
+
+    @Test
+    public void testPacket() throws Exception
+    {
+        OutputStream os=_client.getOutputStream();
+
+        String packet="123401070202000f77696474683d20485454502f312e300000122f636f6e74726f6c2f70726f647563742f2200000e3230382e32372e3230332e31323800ffff000c7777772e756c74612e636f6d000050000005a006000a6b6565702d616c69766500a00b000c7777772e756c74612e636f6d00a00e002b4d6f7a696c6c612f342e302028636f6d70617469626c653b20426f726465724d616e6167657220332e302900a0010043696d6167652f6769662c20696d6167652f782d786269746d61702c20696d6167652f6a7065672c20696d6167652f706a7065672c20696d6167652f706d672c202a2f2a00a008000130000600067570726f64310008000a4145533235362d53484100ff";
+        os.write(TypeUtil.fromHexString(packet));
+        os.flush();
+
+        assertTrue(readResponse(_client).contains("success"));
+    }
+
+    @Test
+    public void testSplitPacket() throws Exception
+    {
+        OutputStream os=_client.getOutputStream();
+
+        String packet="123401070202000f77696474683d20485454502f312e300000122f636f6e74726f6c2f70726f647563742f2200000e3230382e32372e3230332e31323800ffff000c7777772e756c74612e636f6d000050000005a006000a6b6565702d616c69766500a00b000c7777772e756c74612e636f6d00a00e002b4d6f7a696c6c612f342e302028636f6d70617469626c653b20426f726465724d616e6167657220332e302900a0010043696d6167652f6769662c20696d6167652f782d786269746d61702c20696d6167652f6a7065672c20696d6167652f706a7065672c20696d6167652f706d672c202a2f2a00a008000130000600067570726f64310008000a4145533235362d53484100ff";
+        byte[] bytes=TypeUtil.fromHexString(packet);
+
+        // Send the packet in two parts so that the selector must wait for the rest
+        os.write(bytes,0,100);
+        os.flush();
+        Thread.sleep(100);
+        os.write(bytes,100,bytes.length-100);
+        os.flush();
+
+        assertTrue(readResponse(_client).contains("success"));
+    }
+
+    @Test
+    public void testPacketWithChunkedBody() throws Exception
+    {
+        OutputStream os=_client.getOutputStream();
+
+        String packet="123400ff02040008485454502f312e3100000f2f746573742f64756d702f696e666f0000093132372e302e302e3100ffff00096c6f63616c686f7374000050000007a00e000d4a6176612f312e352e305f313100a00b00096c6f63616c686f737400a0010034746578742f68746d6c2c20696d6167652f6769662c20696d6167652f6a7065672c202a3b20713d2e322c202a2f2a3b20713d2e3200a006000a6b6565702d616c69766500a00700216170706c69636174696f6e2f782d7777772d666f726d2d75726c656e636f6465640000115472616e736665722d456e636f64696e670000076368756e6b656400000c4d61782d466f727761726473000002313000ff";
+
+        os.write(TypeUtil.fromHexString(packet));
+        os.flush();
+
+        os.write(TypeUtil.fromHexString("1234007e007c7468656e616d653d746865253230717569636b25323062726f776e253230666f782532306a756d70732532306f766572253230746f2532307468652532306c617a79253230646f67253230544845253230515549434b25323042524f574e253230464f582532304a554d50532532304f564552253230544f25323054"));
+        os.flush();
+
+        os.write(TypeUtil.fromHexString("12340042004048452532304c415a59253230444f472532302676616c75656f66323d6162636465666768696a6b6c6d6e6f707172737475767778797a31323334353637383930"));
+        os.flush();
+
+        os.write(TypeUtil.fromHexString("123400020000"));
+        os.flush();
+
+        assertTrue(readResponse(_client).contains("success"));
+    }
+
+    private String readResponse(Socket _client) throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+
+        try
+        {
+            IO.copy(_client.getInputStream(),bout);
+        }
+        catch(SocketTimeoutException e)
+        {
+            Log.ignore(e);
+        }
+        return bout.toString("utf-8");
+    }
+}
@@ -0,0 +1,143 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.benchmarks;
+
+import java.io.UnsupportedEncodingException;
+
+/* ------------------------------------------------------------ */
+/**
+ * Requests, URIs and forms typical of the traffic seen by a server,
+ * used as the input of the benchmarks.
+ */
+public class Corpus
+{
+    /** A browser fetching a page */
+    public static final String BROWSER_GET=
+        "GET /context/path/index.html?lang=en HTTP/1.1\r\n"+
+        "Host: www.example.com\r\n"+
+        "User-Agent: Mozilla/5.0 (Windows; U; Windows NT 6.1; en-US; rv:1.9.2.8) Gecko/20100722 Firefox/3.6.8\r\n"+
+        "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"+
+        "Accept-Language: en-us,en;q=0.5\r\n"+
+        "Accept-Encoding: gzip,deflate\r\n"+
+        "Accept-Charset: ISO-8859-1,utf-8;q=0.7,*;q=0.7\r\n"+
+        "Keep-Alive: 115\r\n"+
+        "Connection: keep-alive\r\n"+
+        "Referer: http://www.example.com/context/path/\r\n"+
+        "Cookie: JSESSIONID=1w8d5bvd3ypqk1k6dkq7vsmb6z; __utma=111872281.1234567890.1281532423.1281532423.1281532423.1\r\n"+
+        "If-Modified-Since: Wed, 11 Aug 2010 12:00:00 GMT\r\n"+
+        "Cache-Control: max-age=0\r\n"+
+        "\r\n";
+
+    /** A minimal request from a command line or API client */
+    public static final String CLIENT_GET=
+        "GET /api/v1/users/1234 HTTP/1.1\r\n"+
+        "Host: localhost:8080\r\n"+
+        "User-Agent: curl/7.21.0\r\n"+
+        "Accept: */*\r\n"+
+        "X-Request-Id: 4f1b2c3d\r\n"+
+        "\r\n";
+
+    /** The content of a form submitted by a browser */
+    public static final String FORM_CONTENT=
+        "username=j.smith%40example.com&password=s3cr%C3%A9t&remember=on&redirect=%2Fhome%3F";
+
+    /** A form submitted by a browser */
+    public static final String FORM_POST=
+        "POST /context/login HTTP/1.1\r\n"+
+        "Host: www.example.com\r\n"+
+        "User-Agent: Mozilla/5.0 (Windows; U; Windows NT 6.1; en-US; rv:1.9.2.8) Gecko/20100722 Firefox/3.6.8\r\n"+
+        "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"+
+        "Accept-Encoding: gzip,deflate\r\n"+
+        "Connection: keep-alive\r\n"+
+        "Content-Type: application/x-www-form-urlencoded\r\n"+
+        "Content-Length: "+FORM_CONTENT.length()+"\r\n"+
+        "\r\n"+
+        FORM_CONTENT;
+
+    /** Three requests for the resources of a page, pipelined on one connection */
+    public static final String PIPELINED_GETS=
+        "GET /static/css/site.css HTTP/1.1\r\nHost: www.example.com\r\nAccept: text/css,*/*;q=0.1\r\nAccept-Encoding: gzip,deflate\r\n\r\n"+
+        "GET /static/js/site.js HTTP/1.1\r\nHost: www.example.com\r\nAccept: */*\r\nAccept-Encoding: gzip,deflate\r\n\r\n"+
+        "GET /static/img/logo.png HTTP/1.1\r\nHost: www.example.com\r\nAccept: image/png,image/*;q=0.8,*/*;q=0.5\r\nAccept-Encoding: gzip,deflate\r\n\r\n";
+
+    /** URIs as received in requests, some encoded or not canonical */
+    public static final String[] URIS=
+    {
+        "/",
+        "/index.html",
+        "/context/path/index.html?lang=en",
+        "/static/js/jquery-1.4.2.min.js?v=20100811",
+        "/api/v1/users/1234/orders?status=open&page=2&size=50",
+        "/context/documents/Annual%20Report%202010.pdf",
+        "/context/%E2%82%AC/price%3F/list",
+        "/context/app/../static/./img/logo.png",
+        "http://www.example.com:8080/proxy/path;jsessionid=1w8d5bvd3ypqk1k6dkq7vsmb6z?x=y"
+    };
+
+    /** Paths matched against the servlet mappings of a typical webapp */
+    public static final String[] PATHS=
+    {
+        "/",
+        "/index.jsp",
+        "/favicon.ico",
+        "/static/css/site.css",
+        "/static/img/logo.png",
+        "/api/v1/users/1234",
+        "/api/v1/users/1234/orders",
+        "/admin/console",
+        "/servlet/org.example.Hello",
+        "/docs/guide/intro.html"
+    };
+
+    /** Query strings and form content */
+    public static final String[] FORMS=
+    {
+        "lang=en",
+        "status=open&page=2&size=50&sort=created&order=desc",
+        FORM_CONTENT,
+        "q=jetty+http+server&hl=en&client=firefox-a&rls=org.mozilla%3Aen-US%3Aofficial&start=10",
+        "name=%E5%BC%A0%E4%BC%9F&city=%E5%8C%97%E4%BA%AC&note=a+b+c&tags=x&tags=y&tags=z"
+    };
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param name The name of a request: browser, client, form or pipelined
+     * @return The bytes of the request
+     */
+    public static byte[] request(String name)
+    {
+        if ("browser".equals(name))
+            return bytes(BROWSER_GET);
+        if ("client".equals(name))
+            return bytes(CLIENT_GET);
+        if ("form".equals(name))
+            return bytes(FORM_POST);
+        if ("pipelined".equals(name))
+            return bytes(PIPELINED_GETS);
+        throw new IllegalArgumentException(name);
+    }
+
+    /* ------------------------------------------------------------ */
+    public static byte[] bytes(String s)
+    {
+        try
+        {
+            return s.getBytes("ISO-8859-1");
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeaderValues;
+import org.eclipse.jetty.http.HttpHeaders;
+import org.eclipse.jetty.http.HttpParser;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.View;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* ------------------------------------------------------------ */
+/**
+ * Header lookup: resolving parsed names and values against the
+ * {@link HttpHeaders} and {@link HttpHeaderValues} caches, and adding
+ * and getting the fields of a request as a servlet would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class HttpFieldsBenchmark
+{
+    private Buffer[] _names;
+    private Buffer[] _values;
+    private HttpFields _fields;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp() throws Exception
+    {
+        // Capture the headers of a browser request as the parser delivers them,
+        // as views of the connection buffer
+        final Buffer buffer=new ByteArrayBuffer(Corpus.request("browser"));
+        final List<Buffer> names=new ArrayList<Buffer>();
+        final List<Buffer> values=new ArrayList<Buffer>();
+        HttpParser parser=new HttpParser(buffer,new HttpParser.EventHandler()
+        {
+            @Override
+            public void parsedHeader(Buffer name, Buffer value)
+            {
+                names.add(name instanceof View?new View.CaseInsensitive(buffer,-1,name.getIndex(),name.putIndex(),Buffer.READONLY):name);
+                values.add(new View.CaseInsensitive(buffer,-1,value.getIndex(),value.putIndex(),Buffer.READONLY));
+            }
+
+            @Override
+            public void startRequest(Buffer method, Buffer url, Buffer version)
+            {
+            }
+
+            @Override
+            public void startResponse(Buffer version, int status, Buffer reason)
+            {
+            }
+
+            @Override
+            public void content(Buffer ref)
+            {
+            }
+        });
+        parser.parse();
+        _names=names.toArray(new Buffer[names.size()]);
+        _values=values.toArray(new Buffer[values.size()]);
+        _fields=new HttpFields();
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public void lookup(Blackhole bh)
+    {
+        for (int i=0;i<_names.length;i++)
+        {
+            bh.consume(HttpHeaders.CACHE.getOrdinal(_names[i]));
+            bh.consume(HttpHeaderValues.CACHE.lookup(_values[i]));
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public void addAndGet(Blackhole bh)
+    {
+        _fields.clear();
+        for (int i=0;i<_names.length;i++)
+            _fields.add(_names[i],_values[i]);
+
+        bh.consume(_fields.getStringField(HttpHeaders.HOST_BUFFER));
+        bh.consume(_fields.getStringField("Accept-Encoding"));
+        bh.consume(_fields.getStringField("Connection"));
+        bh.consume(_fields.getStringField("Cookie"));
+        bh.consume(_fields.getDateField("If-Modified-Since"));
+        bh.consume(_fields.getStringField("X-Forwarded-For"));
+    }
+}
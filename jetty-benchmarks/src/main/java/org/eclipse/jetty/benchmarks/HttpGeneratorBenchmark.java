@@ -0,0 +1,104 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpGenerator;
+import org.eclipse.jetty.http.HttpHeaders;
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.ByteArrayEndPoint;
+import org.eclipse.jetty.io.SimpleBuffers;
+import org.eclipse.jetty.io.View;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* ------------------------------------------------------------ */
+/**
+ * Generation of keep-alive responses, with a known content length or
+ * chunked, into an endpoint that discards the output.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class HttpGeneratorBenchmark
+{
+    @Param({"0","1024","16384"})
+    public int size;
+
+    @Param({"true","false"})
+    public boolean chunked;
+
+    private final Buffer _server=new ByteArrayBuffer("Jetty(7.x.y-SNAPSHOT)");
+    private final Buffer _lastModified=new ByteArrayBuffer("Wed, 11 Aug 2010 12:00:00 GMT");
+    private Buffer _content;
+    private View _view;
+    private HttpFields _fields;
+    private ByteArrayEndPoint _endp;
+    private HttpGenerator _generator;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp()
+    {
+        byte[] content=new byte[size];
+        for (int i=0;i<size;i++)
+            content[i]=(byte)('a'+i%26);
+        _content=new ByteArrayBuffer(content,0,size,Buffer.IMMUTABLE);
+        _view=new View(_content);
+        _fields=new HttpFields();
+        _endp=new ByteArrayEndPoint(new byte[0],2*size+8192);
+        _generator=new HttpGenerator(new SimpleBuffers(new ByteArrayBuffer(6*1024),new ByteArrayBuffer(32*1024)),_endp);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public int generate() throws IOException
+    {
+        _endp.reset();
+        _generator.reset(false);
+        _fields.clear();
+
+        _fields.put(HttpHeaders.CONTENT_TYPE_BUFFER,MimeTypes.TEXT_HTML_UTF_8_BUFFER);
+        _fields.put(HttpHeaders.SERVER_BUFFER,_server);
+        _fields.put(HttpHeaders.LAST_MODIFIED_BUFFER,_lastModified);
+        _fields.putDateField(HttpHeaders.DATE_BUFFER,System.currentTimeMillis());
+        if (!chunked)
+            _fields.putLongField(HttpHeaders.CONTENT_LENGTH_BUFFER,size);
+
+        _generator.setResponse(200,null);
+        _generator.setPersistent(true);
+        _generator.completeHeader(_fields,false);
+        _view.update(_content);
+        _generator.addContent(_view,true);
+        _generator.complete();
+        return _endp.getOut().length();
+    }
+}
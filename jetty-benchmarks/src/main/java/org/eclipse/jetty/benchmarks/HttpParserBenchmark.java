@@ -0,0 +1,119 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpParser;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* ------------------------------------------------------------ */
+/**
+ * Parsing of requests from a connection buffer, with the headers
+ * added to recycled {@link HttpFields} as a connection does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class HttpParserBenchmark
+{
+    @Param({"browser","client","form","pipelined"})
+    public String request;
+
+    private byte[] _request;
+    private Buffer _buffer;
+    private Handler _handler;
+    private HttpParser _parser;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp()
+    {
+        _request=Corpus.request(request);
+        _buffer=new ByteArrayBuffer(8192);
+        _handler=new Handler();
+        _parser=new HttpParser(_buffer,_handler);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public int parse() throws IOException
+    {
+        _buffer.clear();
+        _buffer.put(_request,0,_request.length);
+        _parser.reset(false);
+        _handler._messages=0;
+        do
+        {
+            _parser.parse();
+        }
+        while (_buffer.length()>0);
+        return _handler._messages;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static class Handler extends HttpParser.EventHandler
+    {
+        private final HttpFields _fields=new HttpFields();
+        private int _messages;
+        private int _content;
+
+        @Override
+        public void startRequest(Buffer method, Buffer url, Buffer version) throws IOException
+        {
+            _fields.clear();
+        }
+
+        @Override
+        public void startResponse(Buffer version, int status, Buffer reason) throws IOException
+        {
+            _fields.clear();
+        }
+
+        @Override
+        public void parsedHeader(Buffer name, Buffer value) throws IOException
+        {
+            _fields.add(name,value);
+        }
+
+        @Override
+        public void content(Buffer ref) throws IOException
+        {
+            _content+=ref.length();
+        }
+
+        @Override
+        public void messageComplete(long contentLength) throws IOException
+        {
+            _messages++;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.http.PathMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* ------------------------------------------------------------ */
+/**
+ * Matching of request paths against the servlet mappings of a typical webapp.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class PathMapBenchmark
+{
+    private PathMap _map;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp()
+    {
+        _map=new PathMap();
+        _map.put("/","default");
+        _map.put("*.jsp","jsp");
+        _map.put("*.jspx","jsp");
+        _map.put("/favicon.ico","favicon");
+        _map.put("/static/*","static");
+        _map.put("/api/v1/*","api");
+        _map.put("/api/v1/users/*","users");
+        _map.put("/admin/*","admin");
+        _map.put("/servlet/*","invoker");
+        _map.put("/docs/*","docs");
+        _map.put("*.do","action");
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public void getMatch(Blackhole bh)
+    {
+        for (int i=0;i<Corpus.PATHS.length;i++)
+            bh.consume(_map.getMatch(Corpus.PATHS[i]));
+    }
+}
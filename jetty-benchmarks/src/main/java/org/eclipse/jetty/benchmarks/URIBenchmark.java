@@ -0,0 +1,92 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.util.URIUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/* ------------------------------------------------------------ */
+/**
+ * Parsing and decoding of request URIs with {@link HttpURI} and {@link URIUtil}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class URIBenchmark
+{
+    private byte[][] _uris;
+    private String[] _paths;
+    private HttpURI _uri;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp()
+    {
+        _uris=new byte[Corpus.URIS.length][];
+        for (int i=0;i<_uris.length;i++)
+            _uris[i]=Corpus.bytes(Corpus.URIS[i]);
+        _uri=new HttpURI();
+        _paths=new String[Corpus.URIS.length];
+        for (int i=0;i<_paths.length;i++)
+        {
+            _uri.parse(Corpus.URIS[i]);
+            _paths[i]=_uri.getPath();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Parse and decode URIs as a request does.
+     */
+    @Benchmark
+    public void parse(Blackhole bh)
+    {
+        for (int i=0;i<_uris.length;i++)
+        {
+            _uri.parse(_uris[i],0,_uris[i].length);
+            bh.consume(_uri.getDecodedPath());
+            bh.consume(_uri.getQuery());
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Decode and canonicalize paths as the context and resource lookups do.
+     */
+    @Benchmark
+    public void decodePath(Blackhole bh)
+    {
+        for (int i=0;i<_paths.length;i++)
+        {
+            String path=URIUtil.decodePath(_paths[i]);
+            bh.consume(URIUtil.canonicalPath(path));
+        }
+    }
+}
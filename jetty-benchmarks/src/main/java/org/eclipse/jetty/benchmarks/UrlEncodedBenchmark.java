@@ -0,0 +1,90 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.util.MultiMap;
+import org.eclipse.jetty.util.StringUtil;
+import org.eclipse.jetty.util.UrlEncoded;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* ------------------------------------------------------------ */
+/**
+ * Decoding of query strings and form content into parameters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5,time=1)
+@Measurement(iterations=5,time=1)
+@Fork(1)
+public class UrlEncodedBenchmark
+{
+    private byte[][] _forms;
+    private MultiMap<String> _parameters;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp()
+    {
+        _forms=new byte[Corpus.FORMS.length][];
+        for (int i=0;i<_forms.length;i++)
+            _forms[i]=Corpus.bytes(Corpus.FORMS[i]);
+        _parameters=new MultiMap<String>();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Decode query strings, as {@link org.eclipse.jetty.http.HttpURI#decodeQueryTo(MultiMap)} does.
+     */
+    @Benchmark
+    public int decodeString()
+    {
+        int size=0;
+        for (int i=0;i<Corpus.FORMS.length;i++)
+        {
+            _parameters.clear();
+            UrlEncoded.decodeTo(Corpus.FORMS[i],_parameters,StringUtil.__UTF8);
+            size+=_parameters.size();
+        }
+        return size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Decode form content from bytes.
+     */
+    @Benchmark
+    public int decodeUtf8()
+    {
+        int size=0;
+        for (int i=0;i<_forms.length;i++)
+        {
+            _parameters.clear();
+            UrlEncoded.decodeUtf8To(_forms[i],0,_forms[i].length,_parameters);
+            size+=_parameters.size();
+        }
+        return size;
+    }
+}
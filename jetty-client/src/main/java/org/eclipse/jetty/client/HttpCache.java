@@ -0,0 +1,896 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeaderValues;
+import org.eclipse.jetty.http.HttpHeaders;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.http.HttpVersions;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.StringUtil;
+import org.eclipse.jetty.util.log.Log;
+
+
+/* ------------------------------------------------------------ */
+/** HTTP response cache for the {@link HttpClient}.
+ * <p>
+ * A private cache of the responses to GET requests, which is used by all
+ * the destinations of a HttpClient when set with {@link HttpClient#setCache(HttpCache)}.
+ * <p>
+ * A response is cached if it has a 200 status, is not marked no-store and
+ * has either an explicit or heuristic freshness lifetime (from the Cache-Control
+ * max-age directive, the Expires header or the Last-Modified header) or a
+ * validator (an ETag or Last-Modified header).  A fresh cached response is
+ * replayed to the exchange without contacting the server.  A stale cached
+ * response with a validator is revalidated with a conditional request, and
+ * replayed if the server responds with 304 Not Modified.
+ * <p>
+ * The cache holds at most {@link #getMaxSize()} bytes of content and evicts the
+ * least recently used responses.  If a directory is set, the content is kept
+ * in files in that directory rather than in memory.  The files are deleted when
+ * their responses are evicted and when the cache is cleared, which is done when
+ * the client is stopped.
+ */
+public class HttpCache
+{
+    private static final long HEURISTIC_MAX_MS=24*3600*1000L;
+    private static final String FILE_PREFIX="cache";
+    private static final String FILE_SUFFIX=".bin";
+
+    private final Map<String,Entry> _entries=new LinkedHashMap<String,Entry>(64,0.75f,true);
+    private long _size;
+    private long _maxSize=16*1024*1024;
+    private int _maxEntrySize=1024*1024;
+    private File _directory;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _revalidations = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of bytes of content held by the cache.
+     */
+    public long getMaxSize()
+    {
+        return _maxSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param maxSize The maximum number of bytes of content held by the cache.
+     */
+    public void setMaxSize(long maxSize)
+    {
+        synchronized (this)
+        {
+            _maxSize=maxSize;
+            evict();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum size in bytes of the content of a cached response.
+     */
+    public int getMaxEntrySize()
+    {
+        return _maxEntrySize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param maxEntrySize The maximum size in bytes of the content of a cached response.
+     */
+    public void setMaxEntrySize(int maxEntrySize)
+    {
+        _maxEntrySize=maxEntrySize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The directory in which cached content is kept, or null if content is kept in memory.
+     */
+    public File getDirectory()
+    {
+        return _directory;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param directory The directory in which cached content is kept, or null to keep content in memory.
+     */
+    public void setDirectory(File directory)
+    {
+        if (directory!=null && !directory.isDirectory() && !directory.mkdirs())
+            throw new IllegalArgumentException("Not a directory: "+directory);
+        _directory=directory;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of cached responses.
+     */
+    public int getEntries()
+    {
+        synchronized (this)
+        {
+            return _entries.size();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of bytes of content held by the cache.
+     */
+    public long getSize()
+    {
+        synchronized (this)
+        {
+            return _size;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of exchanges served from the cache without contacting the server.
+     */
+    public long getHits()
+    {
+        return _hits.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of cacheable exchanges that were sent to the server, including revalidations.
+     */
+    public long getMisses()
+    {
+        return _misses.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of exchanges served from the cache after the server responded 304 Not Modified.
+     */
+    public long getRevalidations()
+    {
+        return _revalidations.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of responses evicted to keep the cache within its maximum size.
+     */
+    public long getEvictions()
+    {
+        return _evictions.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The ratio of exchanges served from the cache, with or without revalidation, to cacheable exchanges.
+     */
+    public double getHitRatio()
+    {
+        long hits=_hits.get();
+        long total=hits+_misses.get();
+        return total==0?0.0:(double)(hits+_revalidations.get())/total;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Reset the hit, miss, revalidation and eviction counters.
+     */
+    public void statsReset()
+    {
+        _hits.set(0);
+        _misses.set(0);
+        _revalidations.set(0);
+        _evictions.set(0);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Remove all cached responses and delete any content files left in the directory.
+     */
+    public void clear()
+    {
+        synchronized (this)
+        {
+            for (Entry entry : _entries.values())
+                entry.destroy();
+            _entries.clear();
+            _size=0;
+
+            File directory=_directory;
+            File[] files=directory==null?null:directory.listFiles();
+            for (int i=0;files!=null && i<files.length;i++)
+            {
+                String name=files[i].getName();
+                if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX))
+                    files[i].delete();
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Send an exchange from the cache.
+     * If the exchange is cacheable and a fresh response is cached, the response
+     * is replayed to the exchange by a thread of the client. Otherwise a
+     * listener is added to the exchange to cache or revalidate the response.
+     * @param destination the destination of the exchange
+     * @param exchange the exchange
+     * @return True if the exchange is being served from the cache and should not be sent to the server.
+     */
+    protected boolean send(HttpDestination destination, HttpExchange exchange)
+    {
+        if (!isCacheable(exchange))
+            return false;
+
+        String key=getKey(exchange);
+        Entry entry;
+        synchronized (this)
+        {
+            entry=_entries.get(key);
+        }
+
+        if (entry!=null && !entry.matches(exchange))
+            entry=null;
+
+        if (entry!=null && entry.isFresh(System.currentTimeMillis()) && !isNoCache(exchange.getRequestFields()))
+        {
+            if (destination.getHttpClient().getThreadPool().dispatch(new Replay(exchange,entry)))
+            {
+                _hits.incrementAndGet();
+                return true;
+            }
+        }
+
+        _misses.incrementAndGet();
+
+        // Revalidate the cached response unless the request is already conditional.
+        // The validators are added to the request as it is sent, not to the headers of the exchange.
+        HttpFields fields=exchange.getRequestFields();
+        HttpFields conditional=null;
+        if (entry!=null && !fields.containsKey(HttpHeaders.IF_NONE_MATCH_BUFFER) && !fields.containsKey(HttpHeaders.IF_MODIFIED_SINCE_BUFFER))
+        {
+            if (entry._etag!=null || entry._lastModified!=null)
+                conditional=new HttpFields();
+            if (entry._etag!=null)
+                conditional.put(HttpHeaders.IF_NONE_MATCH_BUFFER,entry._etag);
+            if (entry._lastModified!=null)
+                conditional.put(HttpHeaders.IF_MODIFIED_SINCE_BUFFER,entry._lastModified);
+        }
+        exchange.setAddedRequestFields(conditional);
+
+        // An exchange that is sent again, for example when redirected to another 
+        // destination, keeps its cache listener rather than being wrapped by another
+        Listener listener=getListener(exchange);
+        if (listener==null)
+            exchange.setEventListener(new Listener(exchange,conditional==null?null:entry));
+        else
+            listener.reset(conditional==null?null:entry);
+        return false;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The cache listener of the exchange, or null if it has none
+     */
+    private Listener getListener(HttpExchange exchange)
+    {
+        HttpEventListener listener=exchange.getEventListener();
+        while (listener instanceof HttpEventListenerWrapper)
+        {
+            if (listener instanceof Listener && ((Listener)listener)._exchange==exchange)
+                return (Listener)listener;
+            listener=((HttpEventListenerWrapper)listener).getEventListener();
+        }
+        return null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param exchange the exchange
+     * @return True if the response to the exchange may be cached or served from the cache.
+     */
+    protected boolean isCacheable(HttpExchange exchange)
+    {
+        if (!HttpMethods.GET.equals(exchange.getMethod()))
+            return false;
+        if (exchange.getRequestContent()!=null || exchange.getRequestContentSource()!=null)
+            return false;
+        return !hasDirective(exchange.getRequestFields(),"no-store");
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param exchange the exchange
+     * @return The key of the response to the exchange, which is the absolute URI of the request
+     */
+    protected String getKey(HttpExchange exchange)
+    {
+        return exchange.getScheme()+"://"+exchange.getAddress()+exchange.getURI();
+    }
+
+    /* ------------------------------------------------------------ */
+    private boolean isNoCache(HttpFields fields)
+    {
+        if (hasDirective(fields,"no-cache") || getMaxAge(fields)==0)
+            return true;
+        String pragma=fields.getStringField(HttpHeaders.PRAGMA_BUFFER);
+        return pragma!=null && pragma.indexOf(HttpHeaderValues.NO_CACHE)>=0;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if the Cache-Control header has the directive
+     */
+    private static boolean hasDirective(HttpFields fields, String directive)
+    {
+        Enumeration<String> e=fields.getValues(HttpHeaders.CACHE_CONTROL_BUFFER);
+        while (e!=null && e.hasMoreElements())
+        {
+            String value=StringUtil.asciiToLowerCase(e.nextElement());
+            int i=value.indexOf(directive);
+            while (i>=0)
+            {
+                int end=i+directive.length();
+                if ((i==0 || value.charAt(i-1)==',' || value.charAt(i-1)==' ') &&
+                    (end==value.length() || value.charAt(end)==',' || value.charAt(end)==' ' || value.charAt(end)=='='))
+                    return true;
+                i=value.indexOf(directive,end);
+            }
+        }
+        return false;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The max-age in seconds of the Cache-Control header or -1 if there is none
+     */
+    private static long getMaxAge(HttpFields fields)
+    {
+        Enumeration<String> e=fields.getValues(HttpHeaders.CACHE_CONTROL_BUFFER);
+        while (e!=null && e.hasMoreElements())
+        {
+            String value=StringUtil.asciiToLowerCase(e.nextElement());
+            int i=value.indexOf("max-age=");
+            if (i>=0 && (i==0 || value.charAt(i-1)==',' || value.charAt(i-1)==' '))
+            {
+                int start=i+8;
+                int end=start;
+                while (end<value.length() && Character.isDigit(value.charAt(end)))
+                    end++;
+                try
+                {
+                    return end>start?Long.parseLong(value.substring(start,end)):0;
+                }
+                catch (NumberFormatException x)
+                {
+                    return 0;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static long getDate(HttpFields fields, Buffer name)
+    {
+        String value=fields.getStringField(name);
+        if (value==null)
+            return -1;
+        return HttpFields.parseDate(value);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Calculate the time until which a response is fresh, from the Cache-Control max-age
+     * directive, or the Expires header, or 10% of the time since the Last-Modified header.
+     * @param fields the response headers
+     * @param now the time the response was received
+     * @return The time until which the response is fresh
+     */
+    private static long getExpires(HttpFields fields, long now)
+    {
+        if (hasDirective(fields,"no-cache"))
+            return 0;
+
+        long age=0;
+        String ageValue=fields.getStringField(HttpHeaders.AGE_BUFFER);
+        if (ageValue!=null)
+        {
+            try
+            {
+                age=Long.parseLong(ageValue.trim())*1000;
+            }
+            catch (NumberFormatException x)
+            {
+                Log.ignore(x);
+            }
+        }
+
+        long maxAge=getMaxAge(fields);
+        if (maxAge>=0)
+            return now-age+maxAge*1000;
+
+        long date=getDate(fields,HttpHeaders.DATE_BUFFER);
+        if (date<0)
+            date=now;
+
+        if (fields.containsKey(HttpHeaders.EXPIRES_BUFFER))
+        {
+            long expires=getDate(fields,HttpHeaders.EXPIRES_BUFFER);
+            return expires<0?0:now-age+expires-date;
+        }
+
+        long lastModified=getDate(fields,HttpHeaders.LAST_MODIFIED_BUFFER);
+        if (lastModified>=0 && lastModified<date)
+            return now-age+Math.min((date-lastModified)/10,HEURISTIC_MAX_MS);
+
+        return 0;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Cache a response.
+     * @return The cached response, or null if the response cannot be cached
+     */
+    private Entry store(HttpExchange exchange, int status, String reason, HttpFields fields, byte[] content)
+    {
+        String key=getKey(exchange);
+        if (hasDirective(fields,"no-store"))
+        {
+            remove(key);
+            return null;
+        }
+
+        long now=System.currentTimeMillis();
+        long expires=getExpires(fields,now);
+        String etag=fields.getStringField(HttpHeaders.ETAG_BUFFER);
+        String lastModified=fields.getStringField(HttpHeaders.LAST_MODIFIED_BUFFER);
+        if (expires<=now && etag==null && lastModified==null)
+        {
+            remove(key);
+            return null;
+        }
+
+        // Remember the request headers that select this response
+        Map<String,String> vary=null;
+        Enumeration<String> e=fields.getValues(HttpHeaders.VARY,",");
+        while (e!=null && e.hasMoreElements())
+        {
+            String name=e.nextElement().trim();
+            if ("*".equals(name))
+            {
+                remove(key);
+                return null;
+            }
+            if (vary==null)
+                vary=new HashMap<String,String>();
+            vary.put(name,exchange.getRequestFields().getStringField(name));
+        }
+
+        // Hop by hop headers are not replayed, and the content is no longer chunked
+        List<String> headers=new ArrayList<String>();
+        for (int i=0;i<fields.size();i++)
+        {
+            HttpFields.Field field=fields.getField(i);
+            if (field==null)
+                continue;
+            switch (field.getNameOrdinal())
+            {
+                case HttpHeaders.CONNECTION_ORDINAL:
+                case HttpHeaders.KEEP_ALIVE_ORDINAL:
+                case HttpHeaders.TRANSFER_ENCODING_ORDINAL:
+                case HttpHeaders.CONTENT_LENGTH_ORDINAL:
+                    continue;
+            }
+            headers.add(field.getName());
+            headers.add(field.getValue());
+        }
+        headers.add(HttpHeaders.CONTENT_LENGTH);
+        headers.add(String.valueOf(content.length));
+
+        Entry entry=new Entry(status,reason,headers,vary,expires,etag,lastModified);
+        try
+        {
+            entry.setContent(content);
+        }
+        catch (IOException x)
+        {
+            Log.warn(x);
+            remove(key);
+            return null;
+        }
+
+        synchronized (this)
+        {
+            Entry old=_entries.put(key,entry);
+            if (old!=null)
+            {
+                _size-=old._length;
+                old.destroy();
+            }
+            _size+=entry._length;
+            evict();
+        }
+        return entry;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Update a cached response after it has been revalidated.
+     * @param entry the cached response
+     * @param fields the headers of the 304 response
+     * @return The updated cached response
+     */
+    private Entry revalidated(HttpExchange exchange, Entry entry, HttpFields fields)
+    {
+        HttpFields merged=new HttpFields();
+        for (int i=0;i<entry._headers.length;i+=2)
+            merged.add(entry._headers[i],entry._headers[i+1]);
+        for (int i=0;i<fields.size();i++)
+        {
+            HttpFields.Field field=fields.getField(i);
+            if (field!=null && field.getNameOrdinal()!=HttpHeaders.CONTENT_LENGTH_ORDINAL)
+                merged.put(field.getName(),field.getValue());
+        }
+
+        try
+        {
+            Entry updated=store(exchange,entry._status,entry._reason,merged,entry.getContent());
+            return updated==null?entry:updated;
+        }
+        catch (IOException x)
+        {
+            Log.warn(x);
+            return entry;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private void remove(String key)
+    {
+        synchronized (this)
+        {
+            Entry entry=_entries.remove(key);
+            if (entry!=null)
+            {
+                _size-=entry._length;
+                entry.destroy();
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Evict the least recently used responses until the cache is within its maximum size.
+     * Called while holding the lock.
+     */
+    private void evict()
+    {
+        Iterator<Entry> iter=_entries.values().iterator();
+        while (_size>_maxSize && iter.hasNext())
+        {
+            Entry entry=iter.next();
+            iter.remove();
+            _size-=entry._length;
+            entry.destroy();
+            _evictions.incrementAndGet();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public String toString()
+    {
+        return "HttpCache@"+hashCode()+"{"+getEntries()+","+getSize()+"/"+_maxSize+"}";
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Replay the status and headers of a cached response to the listener of an exchange.
+     */
+    private static void replayHeaders(HttpEventListener listener, Entry entry) throws IOException
+    {
+        listener.onResponseStatus(HttpVersions.HTTP_1_1_BUFFER,entry._status,new ByteArrayBuffer(entry._reason));
+        for (int i=0;i<entry._headers.length;i+=2)
+            listener.onResponseHeader(HttpHeaders.CACHE.lookup(entry._headers[i]),new ByteArrayBuffer(entry._headers[i+1]));
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A cached response.
+     */
+    private class Entry
+    {
+        final int _status;
+        final String _reason;
+        final String[] _headers;
+        final Map<String,String> _vary;
+        final long _expires;
+        final String _etag;
+        final String _lastModified;
+        volatile byte[] _content;
+        volatile File _file;
+        long _length;
+
+        Entry(int status, String reason, List<String> headers, Map<String,String> vary, long expires, String etag, String lastModified)
+        {
+            _status=status;
+            _reason=reason==null?HttpStatus.getMessage(status):reason;
+            _headers=headers.toArray(new String[headers.size()]);
+            _vary=vary;
+            _expires=expires;
+            _etag=etag;
+            _lastModified=lastModified;
+        }
+
+        boolean isFresh(long now)
+        {
+            return _expires>now;
+        }
+
+        boolean matches(HttpExchange exchange)
+        {
+            if (_vary==null)
+                return true;
+            for (Map.Entry<String,String> header : _vary.entrySet())
+            {
+                String value=exchange.getRequestFields().getStringField(header.getKey());
+                if (value==null?header.getValue()!=null:!value.equals(header.getValue()))
+                    return false;
+            }
+            return true;
+        }
+
+        void setContent(byte[] content) throws IOException
+        {
+            _length=content.length;
+            File directory=_directory;
+            if (directory==null)
+                _content=content;
+            else
+            {
+                File file=File.createTempFile(FILE_PREFIX,FILE_SUFFIX,directory);
+                OutputStream out=new FileOutputStream(file);
+                try
+                {
+                    out.write(content);
+                }
+                finally
+                {
+                    IO.close(out);
+                }
+                _file=file;
+            }
+        }
+
+        byte[] getContent() throws IOException
+        {
+            byte[] content=_content;
+            if (content!=null)
+                return content;
+            File file=_file;
+            if (file==null)
+                throw new IOException("evicted");
+            InputStream in=new FileInputStream(file);
+            try
+            {
+                return IO.readBytes(in);
+            }
+            finally
+            {
+                IO.close(in);
+            }
+        }
+
+        void destroy()
+        {
+            // Memory content is left for any exchange that is replaying it
+            File file=_file;
+            _file=null;
+            if (file!=null)
+                file.delete();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Replay a fresh cached response to an exchange, without sending the request.
+     */
+    private class Replay implements Runnable
+    {
+        private final HttpExchange _exchange;
+        private final Entry _entry;
+
+        Replay(HttpExchange exchange, Entry entry)
+        {
+            _exchange=exchange;
+            _entry=entry;
+        }
+
+        public void run()
+        {
+            HttpEventListener listener=_exchange.getEventListener();
+            try
+            {
+                byte[] content=_entry.getContent();
+
+                _exchange.setStatus(HttpExchange.STATUS_WAITING_FOR_COMMIT);
+                _exchange.setStatus(HttpExchange.STATUS_SENDING_REQUEST);
+                _exchange.setStatus(HttpExchange.STATUS_WAITING_FOR_RESPONSE);
+                listener.onRequestComplete();
+
+                replayHeaders(listener,_entry);
+                _exchange.setStatus(HttpExchange.STATUS_PARSING_HEADERS);
+                _exchange.setStatus(HttpExchange.STATUS_PARSING_CONTENT);
+                if (content.length>0)
+                    listener.onResponseContent(new ByteArrayBuffer(content));
+                _exchange.setStatus(HttpExchange.STATUS_COMPLETED);
+            }
+            catch (IOException x)
+            {
+                Log.debug(x);
+                _exchange.setStatus(HttpExchange.STATUS_EXCEPTED);
+                listener.onException(x);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Listener that caches responses and replays revalidated responses.
+     */
+    private class Listener extends HttpEventListenerWrapper
+    {
+        private final HttpExchange _exchange;
+        private Entry _entry;
+        private boolean _notModified;
+        private boolean _cacheable;
+        private int _status;
+        private String _reason;
+        private HttpFields _fields;
+        private ByteArrayOutputStream _content;
+
+        Listener(HttpExchange exchange, Entry entry)
+        {
+            super(exchange.getEventListener(),true);
+            _exchange=exchange;
+            _entry=entry;
+        }
+
+        void reset(Entry entry)
+        {
+            _entry=entry;
+            _notModified=false;
+            _cacheable=false;
+            _content=null;
+            setDelegatingResponses(true);
+        }
+
+        @Override
+        public void onResponseStatus(Buffer version, int status, Buffer reason) throws IOException
+        {
+            _notModified=_entry!=null && status==HttpStatus.NOT_MODIFIED_304;
+            _cacheable=status==HttpStatus.OK_200;
+            _status=status;
+            _reason=reason==null?null:reason.toString();
+            _fields=new HttpFields();
+            _content=null;
+
+            if (_notModified)
+                setDelegatingResponses(false);
+            else
+                super.onResponseStatus(version,status,reason);
+        }
+
+        @Override
+        public void onResponseHeader(Buffer name, Buffer value) throws IOException
+        {
+            if (_cacheable || _notModified)
+                _fields.add(name.toString(),value.toString());
+            super.onResponseHeader(name,value);
+        }
+
+        @Override
+        public void onResponseContent(Buffer content) throws IOException
+        {
+            if (_cacheable)
+            {
+                if (_content==null)
+                    _content=new ByteArrayOutputStream();
+                if (_content.size()+content.length()>_maxEntrySize)
+                {
+                    _cacheable=false;
+                    _content=null;
+                }
+                else
+                    _content.write(content.asArray());
+            }
+            super.onResponseContent(content);
+        }
+
+        @Override
+        public void onResponseComplete() throws IOException
+        {
+            if (_notModified)
+            {
+                Entry entry=revalidated(_exchange,_entry,_fields);
+                HttpEventListener listener=getEventListener();
+                byte[] content;
+                try
+                {
+                    content=entry.getContent();
+                }
+                catch (IOException x)
+                {
+                    // The content file was evicted while revalidating
+                    Log.warn(x);
+                    remove(getKey(_exchange));
+                    listener.onException(x);
+                    return;
+                }
+                _revalidations.incrementAndGet();
+                replayHeaders(listener,entry);
+                listener.onResponseHeaderComplete();
+                if (content.length>0)
+                    listener.onResponseContent(new ByteArrayBuffer(content));
+                listener.onResponseComplete();
+                return;
+            }
+
+            if (_cacheable)
+                store(_exchange,_status,_reason,_fields,_content==null?new byte[0]:_content.toByteArray());
+            else if (_status!=HttpStatus.NOT_MODIFIED_304 && _status<HttpStatus.INTERNAL_SERVER_ERROR_500)
+                remove(getKey(_exchange));
+            super.onResponseComplete();
+        }
+
+        @Override
+        public void onRetry()
+        {
+            // The exchange may be redirected or authenticated, so do not revalidate
+            if (_entry!=null)
+                _exchange.setAddedRequestFields(null);
+            reset(null);
+            super.onRetry();
+        }
+    }
+}
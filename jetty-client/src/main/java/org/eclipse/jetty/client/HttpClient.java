@@ -52,6 +52,7 @@ import org.eclipse.jetty.util.resource.Resource;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.util.thread.ThreadPool;
 import org.eclipse.jetty.util.thread.Timeout;
+import org.eclipse.jetty.util.thread.TimingWheelTimeout;
 
 /**
  * Http Client.
@@ -86,6 +87,7 @@ public class HttpClient extends HttpBuffers implements Attributes
     private int _connectorType = CONNECTOR_SELECT_CHANNEL;
     private boolean _useDirectBuffers = true;
     private int _maxConnectionsPerAddress = Integer.MAX_VALUE;
+    private int _pipelineDepth = 1;
     private ConcurrentMap<Address, HttpDestination> _destinations = new ConcurrentHashMap<Address, HttpDestination>();
     ThreadPool _threadPool;
     Connector _connector;
@@ -94,6 +96,7 @@ public class HttpClient extends HttpBuffers implements Attributes
     private int _connectTimeout = 75000;
     private Timeout _timeoutQ = new Timeout();
     private Timeout _idleTimeoutQ = new Timeout();
+    private boolean _timingWheel;
     private Address _proxy;
     private Authentication _proxyAuthentication;
     private Set<String> _noProxy;
@@ -119,6 +122,7 @@ public class HttpClient extends HttpBuffers implements Attributes
     private String _secureRandomAlgorithm;
 
     private RealmResolver _realmResolver;
+    private HttpCache _cache;
 
     private AttributesMap _attributes=new AttributesMap();
 
@@ -260,6 +264,26 @@ public class HttpClient extends HttpBuffers implements Attributes
         task.cancel();
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if exchange and idle timeouts are scheduled with a {@link TimingWheelTimeout}
+     */
+    public boolean isTimingWheel()
+    {
+        return _timingWheel;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param timingWheel If true, exchange and idle timeouts are scheduled with a 
+     * {@link TimingWheelTimeout}, which has O(1) schedule and cancel, rather than a 
+     * sorted {@link Timeout} list. Takes effect when the client is started.
+     */
+    public void setTimingWheel(boolean timingWheel)
+    {
+        _timingWheel = timingWheel;
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * Get whether the connector can use direct NIO buffers.
@@ -292,6 +316,27 @@ public class HttpClient extends HttpBuffers implements Attributes
         return _realmResolver;
     }
 
+    /* ------------------------------------------------------------ */
+    /** Set a cache for the responses to GET requests.
+     * If a cache is set, then the HttpDestinations created by this client
+     * will serve fresh cached responses and revalidate stale cached responses.
+     * The cache is cleared when the client is stopped.
+     * @param cache the cache or null for no caching
+     */
+    public void setCache(HttpCache cache)
+    {
+        _cache = cache;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the cache of responses to GET requests, or null if responses are not cached
+     */
+    public HttpCache getCache()
+    {
+        return _cache;
+    }
+
     /* ------------------------------------------------------------ */
     public boolean hasRealms()
     {
@@ -433,12 +478,49 @@ public class HttpClient extends HttpBuffers implements Attributes
         _maxConnectionsPerAddress = maxConnectionsPerAddress;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of exchanges that may be in flight on a connection
+     * @see #setPipelineDepth(int)
+     */
+    public int getPipelineDepth()
+    {
+        return _pipelineDepth;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the depth of HTTP/1.1 request pipelining.
+     * <p>
+     * If the depth is greater than 1, then exchanges with idempotent methods and
+     * no streamed content may be sent on a connection that is waiting for the
+     * responses to earlier exchanges, rather than waiting for a connection to
+     * become idle or opening a new connection.  Responses are matched to the
+     * exchanges in the order the requests were sent.
+     * <p>
+     * If a server closes a connection with pipelined requests outstanding, or
+     * responds to them with Connection: close, then the outstanding exchanges are
+     * sent again and pipelining is no longer used for that destination.
+     *
+     * @param depth The maximum number of exchanges in flight on a connection,
+     * or 1 (the default) for no pipelining.
+     */
+    public void setPipelineDepth(int depth)
+    {
+        _pipelineDepth = depth<1?1:depth;
+    }
+
     /* ------------------------------------------------------------ */
     @Override
     protected void doStart() throws Exception
     {
         super.doStart();
 
+        if (_timingWheel != (_timeoutQ instanceof TimingWheelTimeout))
+        {
+            _timeoutQ = _timingWheel?new TimingWheelTimeout():new Timeout();
+            _idleTimeoutQ = _timingWheel?new TimingWheelTimeout():new Timeout();
+        }
         _timeoutQ.setDuration(_timeout);
         _timeoutQ.setNow();
         _idleTimeoutQ.setDuration(_idleTimeout);
@@ -514,6 +596,9 @@ public class HttpClient extends HttpBuffers implements Attributes
 
         _timeoutQ.cancelAll();
         _idleTimeoutQ.cancelAll();
+
+        if (_cache != null)
+            _cache.clear();
         super.doStop();
     }
 
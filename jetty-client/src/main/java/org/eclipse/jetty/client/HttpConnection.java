@@ -17,6 +17,9 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jetty.client.security.Authentication;
@@ -41,6 +44,13 @@ import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.thread.Timeout;
 
 /**
+ * A client HTTP connection.
+ * <p>
+ * A connection has a current exchange, whose response is being parsed, and
+ * may have a pipeline of exchanges waiting behind it.  If the {@link HttpClient#getPipelineDepth()
+ * pipeline depth} allows, the requests of waiting exchanges with idempotent methods are
+ * sent before the response to the current exchange is received, and the responses are
+ * matched to the exchanges in order.
  *
  * @version $Revision: 879 $ $Date: 2009-09-11 16:13:28 +0200 (Fri, 11 Sep 2009) $
  */
@@ -58,7 +68,10 @@ public class HttpConnection implements Connection
     private boolean _reserved;
     // The current exchange waiting for a response
     private volatile HttpExchange _exchange;
-    private HttpExchange _pipeline;
+    // The exchanges waiting behind the current exchange, in the order their responses are expected
+    private final LinkedList<HttpExchange> _pipeline = new LinkedList<HttpExchange>();
+    // The number of exchanges in the pipeline whose requests have been started
+    private int _pipelineSent;
     private final Timeout.Task _timeout = new TimeoutTask();
     private AtomicBoolean _idle = new AtomicBoolean(false);
 
@@ -110,9 +123,11 @@ public class HttpConnection implements Connection
         {
             if (_exchange != null)
             {
-                if (_pipeline != null)
-                    throw new IllegalStateException(this + " PIPELINED!!!  _exchange=" + _exchange);
-                _pipeline = ex;
+                // Wait behind the current exchange, and any already waiting.
+                _pipeline.add(ex);
+                ex.setStatus(HttpExchange.STATUS_WAITING_FOR_COMMIT);
+                if (canSendNext())
+                    scheduleWrite();
                 return true;
             }
 
@@ -122,30 +137,157 @@ public class HttpConnection implements Connection
             _exchange = ex;
             _exchange.setStatus(HttpExchange.STATUS_WAITING_FOR_COMMIT);
 
-            if (_endp.isBlocking())
-            {
-                this.notify();
-            }
-            else
-            {
-                AsyncEndPoint scep = (AsyncEndPoint)_endp;
-                scep.scheduleWrite();
-            }
+            scheduleWrite();
+            scheduleTimeout(_exchange);
 
-            long exchTimeout = _exchange.getTimeout();
-            if (exchTimeout > 0)
-            {
-                _destination.getHttpClient().schedule(_timeout, exchTimeout);
-            }
-            else
-            {
-                _destination.getHttpClient().schedule(_timeout);
-            }
+            return true;
+        }
+    }
 
+    /**
+     * Send an exchange on this connection while it is waiting for the responses
+     * to earlier exchanges.
+     * @param ex the exchange to pipeline
+     * @return true if the exchange was pipelined, false if the connection cannot pipeline it
+     * @throws IOException
+     */
+    public boolean pipeline(HttpExchange ex) throws IOException
+    {
+        synchronized (this)
+        {
+            if (_exchange == null || _reserved || !_endp.isOpen())
+                return false;
+            if (1 + _pipeline.size() >= _destination.getHttpClient().getPipelineDepth())
+                return false;
+            if (!isPipelinable(ex) || !isPipelinable(_pipeline.isEmpty()?_exchange:_pipeline.getLast()))
+                return false;
+            if (!_destination.isPipelining() || shouldClose())
+                return false;
+
+            return send(ex);
+        }
+    }
+
+    /**
+     * @return The number of exchanges in flight on this connection.
+     */
+    public int getExchanges()
+    {
+        synchronized (this)
+        {
+            return _exchange == null ? 0 : 1 + _pipeline.size();
+        }
+    }
+
+    /**
+     * An exchange is pipelinable if it has an idempotent method and its
+     * request can be retried on another connection without being seen
+     * by the server twice.
+     * @param ex the exchange
+     * @return True if the exchange may be pipelined and may have exchanges pipelined behind it.
+     */
+    public static boolean isPipelinable(HttpExchange ex)
+    {
+        String method = ex.getMethod();
+        if (!(HttpMethods.GET.equals(method) ||
+              HttpMethods.HEAD.equals(method) ||
+              HttpMethods.PUT.equals(method) ||
+              HttpMethods.DELETE.equals(method) ||
+              HttpMethods.OPTIONS.equals(method) ||
+              HttpMethods.TRACE.equals(method)))
+            return false;
+        if (ex.getRequestContentSource() != null)
+            return false;
+        if (ex.getVersion() < HttpVersions.HTTP_1_1_ORDINAL)
+            return false;
+        return !ex.getRequestFields().containsKey(HttpHeaders.UPGRADE_BUFFER);
+    }
+
+    /**
+     * @return The exchange whose request is being generated.
+     * Called while holding the lock.
+     */
+    private HttpExchange getSending()
+    {
+        if (_exchange == null)
+            return null;
+        return _pipelineSent == 0 ? _exchange : _pipeline.get(_pipelineSent - 1);
+    }
+
+    /**
+     * @return True if the request of the next exchange in the pipeline may be
+     * sent once the request being generated is complete.
+     * Called while holding the lock.
+     */
+    private boolean canSendNext()
+    {
+        if (_pipelineSent >= _pipeline.size())
+            return false;
+        return isPipelinable(getSending()) &&
+            isPipelinable(_pipeline.get(_pipelineSent)) &&
+            _destination.isPipelining() &&
+            !shouldClose();
+    }
+
+    /**
+     * Start generating the request of the next exchange in the pipeline.
+     * Called when the request being generated is complete.
+     * @return True if there is a next request to send.
+     */
+    private boolean nextRequest() throws IOException
+    {
+        synchronized (this)
+        {
+            if (_exchange == null || !canSendNext())
+                return false;
+
+            _generator.reset(true);
+            _requestComplete = false;
+            _requestContentChunk = null;
+            _pipelineSent++;
             return true;
         }
     }
 
+    private void scheduleWrite()
+    {
+        if (_endp.isBlocking())
+        {
+            this.notify();
+        }
+        else
+        {
+            AsyncEndPoint scep = (AsyncEndPoint)_endp;
+            scep.scheduleWrite();
+        }
+    }
+
+    private void scheduleTimeout(HttpExchange ex)
+    {
+        long exchTimeout = ex.getTimeout();
+        if (exchTimeout > 0)
+        {
+            _destination.getHttpClient().schedule(_timeout, exchTimeout);
+        }
+        else
+        {
+            _destination.getHttpClient().schedule(_timeout);
+        }
+    }
+
+    /**
+     * Remove the exchanges waiting in the pipeline.
+     * Called while holding the lock.
+     * @return the exchanges removed, in order
+     */
+    private List<HttpExchange> drainPipeline()
+    {
+        List<HttpExchange> pipeline = new ArrayList<HttpExchange>(_pipeline);
+        _pipeline.clear();
+        _pipelineSent = 0;
+        return pipeline;
+    }
+
     public Connection handle() throws IOException
     {
         if (_exchange != null)
@@ -158,6 +300,7 @@ public class HttpConnection implements Connection
             boolean failed = false;
             while (_endp.isBufferingInput() || _endp.isOpen())
             {
+                HttpExchange sending;
                 synchronized (this)
                 {
                     while (_exchange == null)
@@ -188,14 +331,15 @@ public class HttpConnection implements Connection
                     }
                     if (!_exchange.isAssociated())
                         _exchange.associate(this);
+                    sending = getSending();
                 }
 
                 try
                 {
-                    if (_exchange.getStatus() == HttpExchange.STATUS_WAITING_FOR_COMMIT)
+                    if (sending.getStatus() == HttpExchange.STATUS_WAITING_FOR_COMMIT)
                     {
                         no_progress = 0;
-                        commitRequest();
+                        commitRequest(sending);
                     }
                     
                     long io = 0;
@@ -206,7 +350,7 @@ public class HttpConnection implements Connection
                         if (!_requestComplete)
                         {
                             _requestComplete = true;
-                            _exchange.getEventListener().onRequestComplete();
+                            sending.getEventListener().onRequestComplete();
                         }
                     }
                     else
@@ -225,12 +369,12 @@ public class HttpConnection implements Connection
                         {
                             if (_exchange!=null)
                             {
-                                InputStream in = _exchange.getRequestContentSource();
+                                InputStream in = sending.getRequestContentSource();
                                 if (in != null)
                                 {
                                     if (_requestContentChunk == null || _requestContentChunk.length() == 0)
                                     {
-                                        _requestContentChunk = _exchange.getRequestContentChunk();
+                                        _requestContentChunk = sending.getRequestContentChunk();
                                         _destination.getHttpClient().schedule(_timeout);
 
                                         if (_requestContentChunk != null)
@@ -253,14 +397,52 @@ public class HttpConnection implements Connection
                     if (_generator.isComplete() && !_requestComplete)
                     {
                         _requestComplete = true;
-                        _exchange.getEventListener().onRequestComplete();
+                        sending.getEventListener().onRequestComplete();
+                    }
+
+                    // Start the request of the next pipelined exchange
+                    if (_requestComplete && nextRequest())
+                    {
+                        no_progress = 0;
+                        continue;
                     }
 
                     // If we are not ended then parse available
-                    if (!_parser.isComplete() && (_generator.isComplete() || _generator.isCommitted() && !_endp.isBlocking()))
+                    boolean sent = sending != _exchange || _generator.isComplete();
+                    if (!_parser.isComplete() && (sent || _generator.isCommitted() && !_endp.isBlocking()))
                     {
-                        long filled = _parser.parseAvailable();
-                        io += filled;
+                        // Stop reading while the exchange cannot take more content
+                        if (isSuspended())
+                        {
+                            if (!_endp.isBlocking())
+                                return this;
+                            synchronized (this)
+                            {
+                                while (isSuspended() && _endp.isOpen())
+                                {
+                                    try
+                                    {
+                                        this.wait();
+                                    }
+                                    catch (InterruptedException e)
+                                    {
+                                        throw new InterruptedIOException();
+                                    }
+                                }
+                            }
+                            continue;
+                        }
+
+                        // Parse one event at a time so that content stops when the exchange is suspended
+                        long filled = _parser.parseNext();
+                        if (filled > 0)
+                            io += filled;
+                        while (!_parser.isComplete() && _parser.isMoreInBuffer() && !isSuspended())
+                        {
+                            filled = _parser.parseNext();
+                            if (filled > 0)
+                                io += filled;
+                        }
                     }
 
                     if (io > 0)
@@ -319,18 +501,24 @@ public class HttpConnection implements Connection
                     boolean close = failed; // always close the connection on error
                     if (!failed)
                     {
+                        synchronized (this)
+                        {
+                            sending = getSending();
+                        }
+
                         // are we complete?
-                        if (_generator.isComplete())
+                        if (sending != null)
                         {
-                            if (!_requestComplete)
+                            if (_generator.isComplete() && !_requestComplete)
                             {
                                 _requestComplete = true;
-                                _exchange.getEventListener().onRequestComplete();
+                                sending.getEventListener().onRequestComplete();
                             }
 
                             // we need to return the HttpConnection to a state that
-                            // it can be reused or closed out
-                            if (_parser.isComplete())
+                            // it can be reused or closed out once the request of the 
+                            // current exchange is sent and its response is parsed
+                            if ((sending != _exchange || _requestComplete) && _parser.isComplete())
                             {
                                 _destination.getHttpClient().cancel(_timeout);
                                 complete = true;
@@ -345,7 +533,11 @@ public class HttpConnection implements Connection
                             if (!close)
                                 close = shouldClose();
 
-                            reset(true);
+                            // keep the generator if it is sending a pipelined request
+                            if (_pipelineSent > 0 && !close)
+                                resetResponse();
+                            else
+                                reset(true);
 
                             no_progress = 0;
                             if (_exchange != null)
@@ -360,39 +552,39 @@ public class HttpConnection implements Connection
                                     if (switched!=null)
                                     {
                                         // switched protocol!
-                                        exchange = _pipeline;
-                                        _pipeline = null;
-                                        if (exchange!=null)
-                                            _destination.send(exchange);
-
+                                        requeue(drainPipeline());
                                         return switched;
                                     }
                                 }
 
-                                if (_pipeline == null)
+                                if (_pipeline.isEmpty())
                                 {
                                     if (!isReserved())
                                         _destination.returnConnection(this, close);
                                 }
-                                else
+                                else if (close)
                                 {
-                                    if (close)
-                                    {
-                                        if (!isReserved())
-                                            _destination.returnConnection(this,close);
+                                    // The server will not respond to the waiting exchanges, so
+                                    // send them again, without pipelining if any were pipelined.
+                                    if (_pipelineSent > 0)
+                                        _destination.setPipelining(false);
+                                    List<HttpExchange> pipeline = drainPipeline();
 
-                                        exchange = _pipeline;
-                                        _pipeline = null;
-                                        _destination.send(exchange);
-                                    }
-                                    else
-                                    {
-                                        exchange = _pipeline;
-                                        _pipeline = null;
-                                        send(exchange);
-                                    }
-                                }
+                                    if (!isReserved())
+                                        _destination.returnConnection(this,close);
 
+                                    requeue(pipeline);
+                                }
+                                else
+                                {
+                                    // The next exchange in the pipeline is now the current exchange
+                                    _exchange = _pipeline.removeFirst();
+                                    if (_pipelineSent > 0)
+                                        _pipelineSent--;
+                                    _parser.setHeadResponse(HttpMethods.HEAD.equalsIgnoreCase(_exchange.getMethod()));
+                                    _status = 0;
+                                    scheduleTimeout(_exchange);
+                                }
                             }
                         }
                     }
@@ -401,7 +593,8 @@ public class HttpConnection implements Connection
         }
         finally
         {
-            if (_exchange != null && _exchange.isAssociated())
+            // A suspended exchange stays associated so that it can resume the connection
+            if (_exchange != null && _exchange.isAssociated() && !isSuspended())
             {
                 _exchange.disassociate();
             }
@@ -415,6 +608,24 @@ public class HttpConnection implements Connection
         return this;
     }
 
+    /**
+     * Send exchanges again on another connection of the destination.
+     * @param exchanges the exchanges, in order
+     */
+    private void requeue(List<HttpExchange> exchanges) throws IOException
+    {
+        for (HttpExchange ex : exchanges)
+        {
+            if (ex.getStatus() == HttpExchange.STATUS_CANCELLING)
+                ex.disassociate();
+            else
+            {
+                ex.disassociate();
+                _destination.requeue(ex);
+            }
+        }
+    }
+
     public boolean isIdle()
     {
         synchronized (this)
@@ -428,7 +639,19 @@ public class HttpConnection implements Connection
      */
     public boolean isSuspended()
     {
-        return false;
+        HttpExchange exchange = _exchange;
+        return exchange != null && exchange.isResponseSuspended();
+    }
+
+    /**
+     * Resume reading after the exchange was suspended.
+     */
+    void resume()
+    {
+        synchronized (this)
+        {
+            scheduleWrite();
+        }
     }
 
     public EndPoint getEndPoint()
@@ -436,19 +659,20 @@ public class HttpConnection implements Connection
         return _endp;
     }
 
-    private void commitRequest() throws IOException
+    private void commitRequest(HttpExchange exchange) throws IOException
     {
         synchronized (this)
         {
-            _status=0;
-            if (_exchange.getStatus() != HttpExchange.STATUS_WAITING_FOR_COMMIT)
+            if (exchange == _exchange)
+                _status=0;
+            if (exchange.getStatus() != HttpExchange.STATUS_WAITING_FOR_COMMIT)
                 throw new IllegalStateException();
 
-            _exchange.setStatus(HttpExchange.STATUS_SENDING_REQUEST);
-            _generator.setVersion(_exchange.getVersion());
+            exchange.setStatus(HttpExchange.STATUS_SENDING_REQUEST);
+            _generator.setVersion(exchange.getVersion());
 
-            String method=_exchange.getMethod();
-            String uri = _exchange.getURI();
+            String method=exchange.getMethod();
+            String uri = exchange.getURI();
             if (_destination.isProxied() && !HttpMethods.CONNECT.equals(method) && uri.startsWith("/"))
             {
                 boolean secure = _destination.isSecure();
@@ -465,20 +689,41 @@ public class HttpConnection implements Connection
                 uri = absoluteURI.toString();
                 Authentication auth = _destination.getProxyAuthentication();
                 if (auth != null)
-                    auth.setCredentials(_exchange);
+                    auth.setCredentials(exchange);
             }
 
             _generator.setRequest(method, uri);
-            _parser.setHeadResponse(HttpMethods.HEAD.equalsIgnoreCase(method));
+            if (exchange == _exchange)
+                _parser.setHeadResponse(HttpMethods.HEAD.equalsIgnoreCase(method));
 
-            HttpFields requestHeaders = _exchange.getRequestFields();
-            if (_exchange.getVersion() >= HttpVersions.HTTP_1_1_ORDINAL)
+            HttpFields requestHeaders = exchange.getRequestFields();
+            if (exchange.getVersion() >= HttpVersions.HTTP_1_1_ORDINAL)
             {
                 if (!requestHeaders.containsKey(HttpHeaders.HOST_BUFFER))
                     requestHeaders.add(HttpHeaders.HOST_BUFFER,_destination.getHostHeader());
             }
 
-            Buffer requestContent = _exchange.getRequestContent();
+            HttpFields addedHeaders = exchange.getAddedRequestFields();
+            if (addedHeaders != null)
+            {
+                // Send a copy, so that the request headers of the exchange are not changed
+                HttpFields headers = new HttpFields();
+                for (int i = 0; i < requestHeaders.size(); i++)
+                {
+                    HttpFields.Field field = requestHeaders.getField(i);
+                    if (field != null)
+                        headers.add(field.getName(), field.getValue());
+                }
+                for (int i = 0; i < addedHeaders.size(); i++)
+                {
+                    HttpFields.Field field = addedHeaders.getField(i);
+                    if (field != null)
+                        headers.add(field.getName(), field.getValue());
+                }
+                requestHeaders = headers;
+            }
+
+            Buffer requestContent = exchange.getRequestContent();
             if (requestContent != null)
             {
                 requestHeaders.putLongField(HttpHeaders.CONTENT_LENGTH, requestContent.length());
@@ -487,7 +732,7 @@ public class HttpConnection implements Connection
             }
             else
             {
-                InputStream requestContentStream = _exchange.getRequestContentSource();
+                InputStream requestContentStream = exchange.getRequestContentSource();
                 if (requestContentStream != null)
                 {
                     _generator.completeHeader(requestHeaders, false);
@@ -508,7 +753,7 @@ public class HttpConnection implements Connection
                 }
             }
 
-            _exchange.setStatus(HttpExchange.STATUS_WAITING_FOR_RESPONSE);
+            exchange.setStatus(HttpExchange.STATUS_WAITING_FOR_RESPONSE);
         }
     }
 
@@ -521,6 +766,17 @@ public class HttpConnection implements Connection
         _http11 = true;
     }
 
+    /**
+     * Reset the parser for the response to the next pipelined exchange,
+     * leaving the generator sending its request.
+     */
+    private void resetResponse() throws IOException
+    {
+        _connectionHeader = null;
+        _parser.reset(true);
+        _http11 = true;
+    }
+
     private boolean shouldClose()
     {
         if (_connectionHeader!=null)
@@ -634,6 +890,12 @@ public class HttpConnection implements Connection
         }
 
         _endp.close();
+
+        // Wake a blocked connection waiting for a suspended exchange
+        synchronized (this)
+        {
+            this.notifyAll();
+        }
     }
 
     public void setIdleTimeout()
@@ -676,7 +938,13 @@ public class HttpConnection implements Connection
                     if (ex != null)
                     {
                         ex.disassociate();
+                        // A server that stalls on pipelined requests may not support
+                        // pipelining, so send the waiting exchanges again without it.
+                        if (_pipelineSent > 0)
+                            _destination.setPipelining(false);
+                        List<HttpExchange> pipeline = drainPipeline();
                         _destination.returnConnection(HttpConnection.this, true);
+                        requeue(pipeline);
                     }
                     else if (_idle.compareAndSet(true,false))
                     {
@@ -19,6 +19,9 @@ import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jetty.client.HttpClient.Connector;
 import org.eclipse.jetty.client.security.Authentication;
@@ -32,8 +35,18 @@ import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.io.EndPoint;
 import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.statistic.SampleStatistic;
 
 /**
+ * The connections and queued exchanges for an address.
+ * <p>
+ * The connection pool and the exchange queue are lock free, so that
+ * sending an exchange or returning a connection does not contend with
+ * other threads using the same destination.  Exchanges that are sent
+ * again (for example because a pipelined connection was closed) are kept in a
+ * separate retry queue that is served before the exchange queue.
+ * The number of connections is limited to the maxConnectionsPerAddress of
+ * the {@link HttpClient} by reserving a connection before it is started.
  *
  * @version $Revision: 879 $ $Date: 2009-09-11 16:13:28 +0200 (Fri, 11 Sep 2009) $
  */
@@ -41,37 +54,43 @@ public class HttpDestination
 {
     private final ByteArrayBuffer _hostHeader;
     private final Address _address;
-    private final LinkedList<HttpConnection> _connections = new LinkedList<HttpConnection>();
-    private final ArrayList<HttpConnection> _idle = new ArrayList<HttpConnection>();
+    private final List<HttpConnection> _connections = new CopyOnWriteArrayList<HttpConnection>();
+    private final ConcurrentLinkedQueue<HttpConnection> _idle = new ConcurrentLinkedQueue<HttpConnection>();
     private final HttpClient _client;
     private final boolean _ssl;
     private final int _maxConnections;
-    private int _pendingConnections = 0;
+    // The open and pending connections, which is never more than _maxConnections
+    private final AtomicInteger _connectionCount = new AtomicInteger();
+    private final AtomicInteger _pendingConnections = new AtomicInteger();
     private ArrayBlockingQueue<Object> _newQueue = new ArrayBlockingQueue<Object>(10, true);
-    private int _newConnection = 0;
+    private final AtomicInteger _newConnection = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Long> _connectStarts = new ConcurrentLinkedQueue<Long>();
+    private final SampleStatistic _connectionWaitStats = new SampleStatistic();
+    private final SampleStatistic _connectLatencyStats = new SampleStatistic();
     private Address _proxy;
     private Authentication _proxyAuthentication;
     private PathMap _authorizations;
     private List<HttpCookie> _cookies;
+    private volatile boolean _pipelining = true;
 
     public void dump() throws IOException
     {
-        synchronized (this)
+        Log.info(this.toString());
+        Log.info("connections=" + _connections.size());
+        Log.info("idle=" + _idle.size());
+        Log.info("pending=" + _pendingConnections.get());
+        for (HttpConnection c : _connections)
         {
-            Log.info(this.toString());
-            Log.info("connections=" + _connections.size());
-            Log.info("idle=" + _idle.size());
-            Log.info("pending=" + _pendingConnections);
-            for (HttpConnection c : _connections)
-            {
-                if (!c.isIdle())
-                    c.dump();
-            }
+            if (!c.isIdle())
+                c.dump();
         }
     }
 
     /* The queue of exchanged for this destination if connections are limited */
-    private LinkedList<HttpExchange> _queue = new LinkedList<HttpExchange>();
+    private final ConcurrentLinkedQueue<HttpExchange> _queue = new ConcurrentLinkedQueue<HttpExchange>();
+    /* The exchanges to be sent again, which are sent before the queued exchanges */
+    private final ConcurrentLinkedQueue<HttpExchange> _retries = new ConcurrentLinkedQueue<HttpExchange>();
+    private final AtomicInteger _queueSize = new AtomicInteger();
 
     HttpDestination(HttpClient client, Address address, boolean ssl, int maxConnections)
     {
@@ -106,18 +125,105 @@ public class HttpDestination
 
     public int getConnections()
     {
-        synchronized (this)
-        {
-            return _connections.size();
-        }
+        return _connections.size();
     }
 
     public int getIdleConnections()
     {
-        synchronized (this)
-        {
-            return _idle.size();
-        }
+        return _idle.size();
+    }
+
+    /**
+     * @return The number of connections that have been started but are not yet connected.
+     */
+    public int getPendingConnections()
+    {
+        return _pendingConnections.get();
+    }
+
+    /**
+     * @return The number of exchanges waiting for a connection.
+     */
+    public int getQueueDepth()
+    {
+        return _queueSize.get();
+    }
+
+    /**
+     * @return The maximum time in ms that an exchange has waited for a connection.
+     */
+    public long getConnectionWaitMax()
+    {
+        return _connectionWaitStats.getMax();
+    }
+
+    /**
+     * @return The mean time in ms that exchanges have waited for a connection.
+     */
+    public double getConnectionWaitMean()
+    {
+        return _connectionWaitStats.getMean();
+    }
+
+    /**
+     * @return The standard deviation of the time in ms that exchanges have waited for a connection.
+     */
+    public double getConnectionWaitStdDev()
+    {
+        return _connectionWaitStats.getStdDev();
+    }
+
+    /**
+     * @return The maximum time in ms taken to open a connection.
+     */
+    public long getConnectLatencyMax()
+    {
+        return _connectLatencyStats.getMax();
+    }
+
+    /**
+     * @return The mean time in ms taken to open a connection.
+     */
+    public double getConnectLatencyMean()
+    {
+        return _connectLatencyStats.getMean();
+    }
+
+    /**
+     * @return The number of connections that have been opened.
+     */
+    public long getConnectsOpened()
+    {
+        return _connectLatencyStats.getCount();
+    }
+
+    /**
+     * Reset the connection wait and connect latency statistics.
+     */
+    public void statsReset()
+    {
+        _connectionWaitStats.reset();
+        _connectLatencyStats.reset();
+    }
+
+    /**
+     * @return True if exchanges may be pipelined on the connections of this destination.
+     * @see HttpClient#setPipelineDepth(int)
+     */
+    public boolean isPipelining()
+    {
+        return _pipelining && _client.getPipelineDepth() > 1;
+    }
+
+    /**
+     * @param pipelining False if exchanges should not be pipelined on the connections
+     * of this destination, for example because the server has failed to respond to pipelined requests.
+     */
+    public void setPipelining(boolean pipelining)
+    {
+        if (_pipelining && !pipelining)
+            Log.debug("No pipelining for {}",this);
+        _pipelining = pipelining;
     }
 
     public void addAuthorization(String pathSpec, Authentication authorization)
@@ -159,15 +265,11 @@ public class HttpDestination
         while ((connection == null) && (connection = getIdleConnection()) == null && timeout>0)
         {
             boolean starting = false;
-            synchronized (this)
+            if (reserveNewConnection())
             {
-                int totalConnections = _connections.size() + _pendingConnections;
-                if (totalConnections < _maxConnections)
-                {
-                    _newConnection++;
-                    startNewConnection();
-                    starting = true;
-                }
+                _newConnection.incrementAndGet();
+                connect();
+                starting = true;
             }
 
             if (!starting)
@@ -214,21 +316,9 @@ public class HttpDestination
 
     public HttpConnection getIdleConnection() throws IOException
     {
-        HttpConnection connection = null;
         while (true)
         {
-            synchronized (this)
-            {
-                if (connection!=null)
-                {
-                    _connections.remove(connection);
-                    connection.close();
-                    connection=null;
-                }
-                if (_idle.size() > 0)
-                    connection = _idle.remove(_idle.size()-1);
-            }
-
+            HttpConnection connection = _idle.poll();
             if (connection==null)
                 return null;
 
@@ -236,17 +326,95 @@ public class HttpDestination
             // but it expired just a moment ago
             if (connection.cancelIdleTimeout())
                 return connection;
+
+            if (removeConnection(connection))
+                connection.close();
         }
     }
 
-    protected void startNewConnection()
+    /**
+     * Make a connection idle.  If an exchange has been queued since the
+     * connection was last checked, the connection is used to send it instead.
+     * @param connection the connection
+     * @throws IOException
+     */
+    private void idle(HttpConnection connection) throws IOException
     {
-        try
+        while (true)
         {
-            synchronized (this)
+            connection.setIdleTimeout();
+            _idle.add(connection);
+
+            // A thread that queued an exchange before the connection was added
+            // may not have seen it, so take the connection back to send the exchange.
+            if (peek() == null || !_idle.remove(connection) || !connection.cancelIdleTimeout())
+                return;
+
+            HttpExchange ex = poll();
+            if (ex != null)
             {
-                _pendingConnections++;
+                send(connection, ex);
+                pipelineQueue(connection);
+                return;
             }
+        }
+    }
+
+    /**
+     * @param connection the connection to remove from the pool
+     * @return True if the connection was in the pool
+     */
+    private boolean removeConnection(HttpConnection connection)
+    {
+        _idle.remove(connection);
+        if (_connections.remove(connection))
+        {
+            _connectionCount.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reserve one of the maxConnections for a new connection.
+     * @return True if the connection may be started
+     */
+    private boolean reserveNewConnection()
+    {
+        while (true)
+        {
+            int count = _connectionCount.get();
+            if (count >= _maxConnections)
+                return false;
+            if (_connectionCount.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Start a new connection if maxConnections has not been reached.
+     * @return True if a connection was started
+     */
+    private boolean startNewConnectionIfAllowed()
+    {
+        if (!reserveNewConnection())
+            return false;
+        connect();
+        return true;
+    }
+
+    protected void startNewConnection()
+    {
+        _connectionCount.incrementAndGet();
+        connect();
+    }
+
+    private void connect()
+    {
+        try
+        {
+            _pendingConnections.incrementAndGet();
+            _connectStarts.add(System.currentTimeMillis());
             final Connector connector=_client._connector;
             if (connector!=null)
                 connector.startConnection(this);
@@ -258,28 +426,45 @@ public class HttpDestination
         }
     }
 
+    /**
+     * Decrement a counter if it is positive.
+     * @return True if the counter was decremented
+     */
+    private static boolean decrementIfPositive(AtomicInteger counter)
+    {
+        while (true)
+        {
+            int count = counter.get();
+            if (count <= 0)
+                return false;
+            if (counter.compareAndSet(count, count - 1))
+                return true;
+        }
+    }
+
     public void onConnectionFailed(Throwable throwable)
     {
         Throwable connect_failure = null;
 
-        synchronized (this)
+        _pendingConnections.decrementAndGet();
+        _connectionCount.decrementAndGet();
+        _connectStarts.poll();
+        if (decrementIfPositive(_newConnection))
         {
-            _pendingConnections--;
-            if (_newConnection > 0)
-            {
-                connect_failure = throwable;
-                _newConnection--;
-            }
-            else if (_queue.size() > 0)
+            connect_failure = throwable;
+        }
+        else
+        {
+            HttpExchange ex = poll();
+            if (ex != null)
             {
-                HttpExchange ex = _queue.removeFirst();
                 ex.setStatus(HttpExchange.STATUS_EXCEPTED);
                 ex.getEventListener().onConnectionFailed(throwable);
 
                 // Since an existing connection had failed, we need to create a
                 // connection if the  queue is not empty and client is running.
-                if (!_queue.isEmpty() && _client.isStarted())
-                    startNewConnection();
+                if (peek() != null && _client.isStarted())
+                    startNewConnectionIfAllowed();
             }
         }
 
@@ -298,65 +483,58 @@ public class HttpDestination
 
     public void onException(Throwable throwable)
     {
-        synchronized (this)
+        HttpExchange ex = poll();
+        if (ex != null)
         {
-            _pendingConnections--;
-            if (_queue.size() > 0)
-            {
-                HttpExchange ex = _queue.removeFirst();
-                ex.setStatus(HttpExchange.STATUS_EXCEPTED);
-                ex.getEventListener().onException(throwable);
-            }
+            ex.setStatus(HttpExchange.STATUS_EXCEPTED);
+            ex.getEventListener().onException(throwable);
         }
     }
 
     public void onNewConnection(final HttpConnection connection) throws IOException
     {
-        HttpConnection q_connection = null;
+        _pendingConnections.decrementAndGet();
+        Long started = _connectStarts.poll();
+        if (started != null)
+            _connectLatencyStats.set(System.currentTimeMillis() - started);
+        _connections.add(connection);
 
-        synchronized (this)
+        if (decrementIfPositive(_newConnection))
         {
-            _pendingConnections--;
-            _connections.add(connection);
-
-            if (_newConnection > 0)
-            {
-                q_connection = connection;
-                _newConnection--;
-            }
-            else if (_queue.size() == 0)
+            try
             {
-                connection.setIdleTimeout();
-                _idle.add(connection);
+                _newQueue.put(connection);
             }
-            else
+            catch (InterruptedException e)
             {
-                EndPoint endPoint = connection.getEndPoint();
-                if (isProxied() && endPoint instanceof SelectConnector.ProxySelectChannelEndPoint)
-                {
-                    SelectConnector.ProxySelectChannelEndPoint proxyEndPoint = (SelectConnector.ProxySelectChannelEndPoint)endPoint;
-                    HttpExchange exchange = _queue.peekFirst();
-                    ConnectExchange connect = new ConnectExchange(getAddress(), proxyEndPoint, exchange);
-                    connect.setAddress(getProxy());
-                    send(connection, connect);
-                }
-                else
-                {
-                    HttpExchange exchange = _queue.removeFirst();
-                    send(connection, exchange);
-                }
+                Log.ignore(e);
             }
+            return;
         }
 
-        if (q_connection != null)
+        EndPoint endPoint = connection.getEndPoint();
+        if (isProxied() && endPoint instanceof SelectConnector.ProxySelectChannelEndPoint)
         {
-            try
+            HttpExchange exchange = peek();
+            if (exchange == null)
             {
-                _newQueue.put(q_connection);
+                idle(connection);
+                return;
             }
-            catch (InterruptedException e)
+            SelectConnector.ProxySelectChannelEndPoint proxyEndPoint = (SelectConnector.ProxySelectChannelEndPoint)endPoint;
+            ConnectExchange connect = new ConnectExchange(getAddress(), proxyEndPoint, exchange);
+            connect.setAddress(getProxy());
+            send(connection, connect);
+        }
+        else
+        {
+            HttpExchange exchange = poll();
+            if (exchange == null)
+                idle(connection);
+            else
             {
-                Log.ignore(e);
+                send(connection, exchange);
+                pipelineQueue(connection);
             }
         }
     }
@@ -383,29 +561,20 @@ public class HttpDestination
 
         if (!close && connection.getEndPoint().isOpen())
         {
-            synchronized (this)
+            HttpExchange ex = poll();
+            if (ex == null)
+                idle(connection);
+            else
             {
-                if (_queue.size() == 0)
-                {
-                    connection.setIdleTimeout();
-                    _idle.add(connection);
-                }
-                else
-                {
-                    HttpExchange ex = _queue.removeFirst();
-                    send(connection, ex);
-                }
-                this.notifyAll();
+                send(connection, ex);
+                pipelineQueue(connection);
             }
         }
         else
         {
-            synchronized (this)
-            {
-                _connections.remove(connection);
-                if (!_queue.isEmpty())
-                    startNewConnection();
-            }
+            removeConnection(connection);
+            if (peek() != null)
+                startNewConnectionIfAllowed();
         }
     }
 
@@ -420,18 +589,19 @@ public class HttpDestination
             Log.ignore(e);
         }
 
-        synchronized (this)
-        {
-            _idle.remove(connection);
-            _connections.remove(connection);
+        removeConnection(connection);
 
-            if (!_queue.isEmpty() && _client.isStarted())
-                startNewConnection();
-        }
+        if (peek() != null && _client.isStarted())
+            startNewConnectionIfAllowed();
     }
 
     public void send(HttpExchange ex) throws IOException
     {
+        // The cache listener is the first, so that it sees the response after redirection and authentication
+        HttpCache cache = _client.getCache();
+        if (cache != null && cache.send(this, ex))
+            return;
+
         LinkedList<String> listeners = _client.getRegisteredListeners();
 
         if (listeners != null)
@@ -501,58 +671,187 @@ public class HttpDestination
                 (auth).setCredentials(ex);
         }
 
+        ex._queuedTime = System.currentTimeMillis();
         HttpConnection connection = getIdleConnection();
         if (connection != null)
         {
             send(connection, ex);
         }
-        else
+        else if (!pipeline(ex))
         {
-            synchronized (this)
+            offer(ex, _queue);
+
+            // A connection may have become idle while the exchange was queued
+            connection = getIdleConnection();
+            if (connection != null)
             {
-                _queue.add(ex);
-                if (_connections.size() + _pendingConnections < _maxConnections)
+                HttpExchange next = poll();
+                if (next == null)
+                    idle(connection);
+                else
                 {
-                    startNewConnection();
+                    send(connection, next);
+                    pipelineQueue(connection);
                 }
             }
+            // If pipelining, only start a connection if the pending connections cannot take the queue
+            else if (!isPipelining() || _queueSize.get() > _pendingConnections.get() * _client.getPipelineDepth())
+                startNewConnectionIfAllowed();
         }
     }
 
-    protected void send(HttpConnection connection, HttpExchange exchange) throws IOException
+    /**
+     * Pipeline an exchange on the busy connection with the fewest exchanges in flight.
+     * @param ex the exchange
+     * @return True if the exchange was pipelined
+     * @throws IOException
+     */
+    protected boolean pipeline(HttpExchange ex) throws IOException
     {
-        synchronized (this)
+        if (!isPipelining() || !HttpConnection.isPipelinable(ex))
+            return false;
+
+        if (peek() != null)
+            return false;
+
+        HttpConnection best = null;
+        int fewest = Integer.MAX_VALUE;
+        for (HttpConnection connection : _connections)
         {
-            // If server closes the connection, put the exchange back
-            // to the exchange queue and recycle the connection
-            if(!connection.send(exchange))
+            int exchanges = connection.getExchanges();
+            if (exchanges > 0 && exchanges < fewest && !connection.isReserved())
             {
-                _queue.addFirst(exchange);
-                returnIdleConnection(connection);
+                best = connection;
+                fewest = exchanges;
             }
         }
+        if (best == null || !best.pipeline(ex))
+            return false;
+        sent(ex);
+        return true;
+    }
+
+    /**
+     * Pipeline queued exchanges on a connection that has just been sent an exchange.
+     * @param connection the connection
+     * @throws IOException
+     */
+    private void pipelineQueue(HttpConnection connection) throws IOException
+    {
+        while (isPipelining())
+        {
+            HttpExchange ex = peek();
+            if (ex == null || !HttpConnection.isPipelinable(ex))
+                return;
+            ex = poll();
+            if (ex == null)
+                return;
+
+            if (!HttpConnection.isPipelinable(ex) || !connection.pipeline(ex))
+            {
+                offer(ex, _retries);
+                return;
+            }
+            sent(ex);
+        }
+    }
+
+    /**
+     * Queue an exchange to be sent again, ahead of other queued exchanges, for 
+     * example because it was pipelined on a connection that has been closed.
+     * @param ex the exchange
+     * @throws IOException
+     */
+    protected void requeue(HttpExchange ex) throws IOException
+    {
+        ex.getEventListener().onRetry();
+        ex.reset();
+        ex._queuedTime = System.currentTimeMillis();
+        offer(ex, _retries);
+        if (_client.isStarted())
+        {
+            if (!isPipelining() || _queueSize.get() > _pendingConnections.get() * _client.getPipelineDepth())
+                startNewConnectionIfAllowed();
+        }
+    }
+
+    protected void send(HttpConnection connection, HttpExchange exchange) throws IOException
+    {
+        // If server closes the connection, put the exchange back
+        // to the exchange queue and recycle the connection
+        if(!connection.send(exchange))
+        {
+            offer(exchange, _retries);
+            returnIdleConnection(connection);
+        }
+        else
+            sent(exchange);
+    }
+
+    /**
+     * Record the time that a sent exchange waited for a connection.
+     * @param ex the exchange
+     */
+    private void sent(HttpExchange ex)
+    {
+        long queued = ex._queuedTime;
+        if (queued > 0)
+        {
+            ex._queuedTime = 0;
+            _connectionWaitStats.set(System.currentTimeMillis() - queued);
+        }
+    }
+
+    /**
+     * @param ex the exchange to queue
+     * @param queue either the exchange queue or the retry queue
+     */
+    private void offer(HttpExchange ex, ConcurrentLinkedQueue<HttpExchange> queue)
+    {
+        // The size is incremented first, so that it is never less than the queued exchanges
+        _queueSize.incrementAndGet();
+        queue.add(ex);
+    }
+
+    /**
+     * @return The next exchange to send, which is removed from the queue, or null if none are queued.
+     */
+    private HttpExchange poll()
+    {
+        HttpExchange ex = _retries.poll();
+        if (ex == null)
+            ex = _queue.poll();
+        if (ex != null)
+            _queueSize.decrementAndGet();
+        return ex;
+    }
+
+    /**
+     * @return The next exchange to send, or null if none are queued.
+     */
+    private HttpExchange peek()
+    {
+        HttpExchange ex = _retries.peek();
+        return ex == null ? _queue.peek() : ex;
     }
 
     @Override
-    public synchronized String toString()
+    public String toString()
     {
-        return "HttpDestination@" + hashCode() + "//" + _address.getHost() + ":" + _address.getPort() + "(" + _connections.size() + "," + _idle.size() + "," + _queue.size() + ")";
+        return "HttpDestination@" + hashCode() + "//" + _address.getHost() + ":" + _address.getPort() + "(" + _connections.size() + "," + _idle.size() + "," + _queueSize.get() + ")";
     }
 
-    public synchronized String toDetailString()
+    public String toDetailString()
     {
         StringBuilder b = new StringBuilder();
         b.append(toString());
         b.append('\n');
-        synchronized (this)
+        for (HttpConnection connection : _connections)
         {
-            for (HttpConnection connection : _connections)
-            {
-                b.append(connection.toDetailString());
-                if (_idle.contains(connection))
-                    b.append(" IDLE");
-                b.append('\n');
-            }
+            b.append(connection.toDetailString());
+            if (_idle.contains(connection))
+                b.append(" IDLE");
+            b.append('\n');
         }
         b.append("--");
         b.append('\n');
@@ -587,12 +886,9 @@ public class HttpDestination
 
     public void close() throws IOException
     {
-        synchronized (this)
+        for (HttpConnection connection : _connections)
         {
-            for (HttpConnection connection : _connections)
-            {
-                connection.close();
-            }
+            connection.close();
         }
     }
 
@@ -86,6 +86,7 @@ public class HttpExchange
     private int _version = HttpVersions.HTTP_1_1_ORDINAL;
     private Address _address;
     private final HttpFields _requestFields = new HttpFields();
+    private volatile HttpFields _addedRequestFields;
     private Buffer _requestContent;
     private InputStream _requestContentSource;
 
@@ -100,6 +101,9 @@ public class HttpExchange
     // a timeout for this exchange
     private long _timeout = -1;
 
+    // the time in ms at which the destination started to look for a connection for this exchange
+    volatile long _queuedTime;
+
     boolean _onRequestCompleteDone;
     boolean _onResponseCompleteDone;
     boolean _onDone; // == onConnectionFail || onException || onExpired || onCancelled || onResponseCompleted && onRequestCompleted
@@ -155,6 +159,7 @@ public class HttpExchange
             _onRequestCompleteDone=false;
             _onResponseCompleteDone=false;
             _onDone=false;
+            _addedRequestFields=null;
             setStatus(STATUS_START);
         }
     }
@@ -194,6 +199,7 @@ public class HttpExchange
                 case STATUS_WAITING_FOR_COMMIT:
                     switch (newStatus)
                     {
+                        case STATUS_START: // retried after waiting on a closed connection
                         case STATUS_SENDING_REQUEST:
                         case STATUS_CANCELLING:
                         case STATUS_EXCEPTED:
@@ -212,6 +218,7 @@ public class HttpExchange
                             if (set=_status.compareAndSet(oldStatus,newStatus))
                                 getEventListener().onRequestCommitted();
                             break;
+                        case STATUS_START: // retried after being pipelined on a closed connection
                         case STATUS_CANCELLING:
                         case STATUS_EXCEPTED:
                             set=_status.compareAndSet(oldStatus,newStatus);
@@ -225,6 +232,7 @@ public class HttpExchange
                 case STATUS_WAITING_FOR_RESPONSE:
                     switch (newStatus)
                     {
+                        case STATUS_START: // retried after being pipelined on a closed connection
                         case STATUS_PARSING_HEADERS:
                         case STATUS_CANCELLING:
                         case STATUS_EXCEPTED:
@@ -541,6 +549,24 @@ public class HttpExchange
         return _requestFields;
     }
 
+    /**
+     * @return headers that are added to the request when it is sent, but that are not
+     * in the request headers of the exchange, or null if there are none.
+     */
+    HttpFields getAddedRequestFields()
+    {
+        return _addedRequestFields;
+    }
+
+    /**
+     * @param fields headers to add to the request when it is sent, without changing the
+     * request headers of the exchange, or null for none.
+     */
+    void setAddedRequestFields(HttpFields fields)
+    {
+        _addedRequestFields = fields;
+    }
+
     /**
      * @param requestContent the request content
      */
@@ -658,6 +684,25 @@ public class HttpExchange
         }
     }
 
+    /**
+     * @return True if the connection should stop reading the response content
+     * until {@link #resumeResponse()} is called.
+     */
+    boolean isResponseSuspended()
+    {
+        return false;
+    }
+
+    /**
+     * Resume reading the response content after it was suspended.
+     */
+    void resumeResponse()
+    {
+        HttpConnection httpConnection = _connection;
+        if (httpConnection != null)
+            httpConnection.resume();
+    }
+
     void associate(HttpConnection connection)
     {
         _connection = connection;
@@ -0,0 +1,386 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.nio.NIOBuffer;
+
+/**
+ * An exchange that streams the response content to the caller with bounded memory.
+ * <p>
+ * The response content is either read from the {@link InputStream} returned by
+ * {@link #getInputStream()}, which may be done as soon as the exchange is sent, or
+ * it is written to a {@link FileChannel} set with {@link #setResponseChannel(FileChannel)}.
+ * <p>
+ * Content is passed to the caller as the connection parses it. When streaming,
+ * at most {@link #getMaxBufferedBytes()} of content not yet read by the caller is
+ * held, after which the connection stops reading from the server, without holding
+ * a thread, until the caller has read more, so that a slow caller applies
+ * back-pressure to the server rather than using memory.  Content delivered to
+ * the caller cannot be taken back, so if the exchange is retried after the
+ * caller has read content, the stream fails.  The exchange still expires if the caller does not read the
+ * content within the timeout of the exchange.
+ */
+public class StreamingExchange extends CachedExchange
+{
+    private final Object _lock = new Object();
+    private final LinkedList<byte[]> _chunks = new LinkedList<byte[]>();
+    private int _maxBufferedBytes = 64 * 1024;
+    private int _bufferedBytes;
+    private boolean _complete;
+    private boolean _closed;
+    private boolean _delivered;
+    private Throwable _failure;
+    private FileChannel _channel;
+    private long _channelStart;
+    private long _contentBytes;
+    private InputStream _in;
+
+    public StreamingExchange()
+    {
+        super(false);
+    }
+
+    public StreamingExchange(boolean cacheHeaders)
+    {
+        super(cacheHeaders);
+    }
+
+    /**
+     * @return The maximum number of bytes of content that are held before the connection stops reading.
+     */
+    public int getMaxBufferedBytes()
+    {
+        return _maxBufferedBytes;
+    }
+
+    /**
+     * @param maxBufferedBytes The maximum number of bytes of content that are held before the connection stops reading.
+     */
+    public void setMaxBufferedBytes(int maxBufferedBytes)
+    {
+        _maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * @return The channel that the response content is written to, or null if the content is streamed.
+     */
+    public FileChannel getResponseChannel()
+    {
+        return _channel;
+    }
+
+    /**
+     * Write the response content to a channel rather than streaming it.
+     * The content is written from the current position of the channel, which
+     * is not closed when the exchange completes.
+     * @param channel The channel that the response content is written to
+     * @throws IOException if the position of the channel cannot be obtained
+     */
+    public void setResponseChannel(FileChannel channel) throws IOException
+    {
+        if (getStatus() != STATUS_START)
+            throw new IllegalStateException("Exchange sent");
+        _channel = channel;
+        _channelStart = channel == null ? 0 : channel.position();
+    }
+
+    /**
+     * @return The number of bytes of response content received.
+     */
+    public long getResponseContentBytes()
+    {
+        synchronized (_lock)
+        {
+            return _contentBytes;
+        }
+    }
+
+    /**
+     * Get the stream of the response content.
+     * Reads block until content is received, and return -1 when the response is complete.
+     * Closing the stream before the response is complete cancels the exchange.
+     * @return the stream of the response content
+     * @throws IllegalStateException if the content is written to a channel
+     */
+    public InputStream getInputStream()
+    {
+        if (_channel != null)
+            throw new IllegalStateException("Content written to channel");
+        synchronized (_lock)
+        {
+            if (_in == null)
+                _in = new ContentInputStream();
+            return _in;
+        }
+    }
+
+    @Override
+    protected void onResponseContent(Buffer content) throws IOException
+    {
+        super.onResponseContent(content);
+
+        if (_channel != null)
+        {
+            write(content);
+            return;
+        }
+
+        // The buffer is reused by the connection once this method returns
+        byte[] chunk = content.asArray();
+        synchronized (_lock)
+        {
+            _contentBytes += chunk.length;
+            if (_closed || _failure != null)
+                return;
+
+            // The connection stops reading once the buffer is full, see isResponseSuspended()
+            _chunks.add(chunk);
+            _bufferedBytes += chunk.length;
+            _lock.notifyAll();
+        }
+    }
+
+    @Override
+    boolean isResponseSuspended()
+    {
+        synchronized (_lock)
+        {
+            return _bufferedBytes >= _maxBufferedBytes && !_closed && _failure == null;
+        }
+    }
+
+    /**
+     * Write content to the response channel.
+     */
+    private void write(Buffer content) throws IOException
+    {
+        ByteBuffer bytes;
+        Buffer buffer = content.buffer();
+        if (buffer instanceof NIOBuffer)
+        {
+            bytes = ((NIOBuffer)buffer).getByteBuffer().duplicate();
+            bytes.limit(content.putIndex());
+            bytes.position(content.getIndex());
+        }
+        else if (content.array() != null)
+            bytes = ByteBuffer.wrap(content.array(), content.getIndex(), content.length());
+        else
+            bytes = ByteBuffer.wrap(content.asArray());
+
+        int length = bytes.remaining();
+        while (bytes.hasRemaining())
+            _channel.write(bytes);
+
+        synchronized (_lock)
+        {
+            _contentBytes += length;
+        }
+    }
+
+    @Override
+    protected void onResponseComplete() throws IOException
+    {
+        synchronized (_lock)
+        {
+            _complete = true;
+            _lock.notifyAll();
+        }
+        super.onResponseComplete();
+    }
+
+    @Override
+    protected void onConnectionFailed(Throwable x)
+    {
+        fail(x);
+        super.onConnectionFailed(x);
+    }
+
+    @Override
+    protected void onException(Throwable x)
+    {
+        fail(x);
+        super.onException(x);
+    }
+
+    @Override
+    protected void onExpire()
+    {
+        fail(new SocketTimeoutException("expired"));
+        super.onExpire();
+    }
+
+    @Override
+    public void cancel()
+    {
+        fail(new EOFException("cancelled"));
+        super.cancel();
+    }
+
+    @Override
+    protected void onRetry() throws IOException
+    {
+        boolean delivered;
+        synchronized (_lock)
+        {
+            delivered = _delivered;
+            _chunks.clear();
+            _bufferedBytes = 0;
+            if (delivered)
+            {
+                // Content already read by the caller cannot be taken back
+                if (_failure == null)
+                    _failure = new IOException("Content delivered before retry");
+                _lock.notifyAll();
+            }
+            else
+            {
+                // Discard any content from the previous attempt
+                _contentBytes = 0;
+                _complete = false;
+                _failure = null;
+            }
+        }
+        if (_channel != null && !delivered)
+        {
+            if (_channel.size() > _channelStart)
+                _channel.truncate(_channelStart);
+            _channel.position(_channelStart);
+        }
+        super.onRetry();
+    }
+
+    private void fail(Throwable x)
+    {
+        synchronized (_lock)
+        {
+            if (_failure == null && !_complete)
+                _failure = x;
+            _lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return The next chunk of content, or null if the response is complete
+     * @throws IOException if the exchange failed
+     */
+    private byte[] nextChunk() throws IOException
+    {
+        byte[] chunk = null;
+        boolean resume;
+        synchronized (_lock)
+        {
+            try
+            {
+                while (_chunks.isEmpty() && !_complete && _failure == null && !_closed)
+                    _lock.wait();
+            }
+            catch (InterruptedException x)
+            {
+                throw new InterruptedIOException();
+            }
+
+            if (_chunks.isEmpty())
+            {
+                if (_failure != null && !_closed)
+                {
+                    IOException failure = new IOException(_failure.toString());
+                    failure.initCause(_failure);
+                    throw failure;
+                }
+                return null;
+            }
+
+            resume = _bufferedBytes >= _maxBufferedBytes;
+            chunk = _chunks.removeFirst();
+            _bufferedBytes -= chunk.length;
+            _delivered = true;
+            resume &= _bufferedBytes < _maxBufferedBytes;
+        }
+
+        // Let the connection read again now that there is room
+        if (resume)
+            resumeResponse();
+        return chunk;
+    }
+
+    private class ContentInputStream extends InputStream
+    {
+        private byte[] _chunk;
+        private int _offset;
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            int len = read(b, 0, 1);
+            return len < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0)
+                return 0;
+            if (_chunk == null || _offset == _chunk.length)
+            {
+                _chunk = nextChunk();
+                _offset = 0;
+                if (_chunk == null)
+                    return -1;
+            }
+            int l = Math.min(len, _chunk.length - _offset);
+            System.arraycopy(_chunk, _offset, b, off, l);
+            _offset += l;
+            return l;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            synchronized (_lock)
+            {
+                return _bufferedBytes + (_chunk == null ? 0 : _chunk.length - _offset);
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            boolean cancel;
+            _chunk = null;
+            synchronized (_lock)
+            {
+                cancel = !_complete && _failure == null && !_closed;
+                _closed = true;
+                _chunks.clear();
+                _bufferedBytes = 0;
+                _lock.notifyAll();
+            }
+            if (cancel)
+                StreamingExchange.this.cancel();
+            else
+                resumeResponse();
+        }
+    }
+}
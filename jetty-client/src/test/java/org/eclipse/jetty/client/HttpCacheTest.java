@@ -0,0 +1,230 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.IO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HttpCacheTest
+{
+    private Server _server;
+    private HttpClient _httpClient;
+    private HttpCache _cache;
+    private final AtomicInteger _requests = new AtomicInteger();
+    private int _port;
+
+    @Before
+    public void init() throws Exception
+    {
+        _server = new Server();
+        Connector connector = new SelectChannelConnector();
+        _server.addConnector(connector);
+        _server.setHandler(new CacheHandler());
+        _server.start();
+        _port = connector.getLocalPort();
+
+        _cache = new HttpCache();
+        _httpClient = new HttpClient();
+        _httpClient.setCache(_cache);
+        _httpClient.start();
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _httpClient.stop();
+        _server.stop();
+        _server.join();
+    }
+
+    @Test
+    public void testFresh() throws Exception
+    {
+        ContentExchange exchange = get("/max-age");
+        assertEquals("/max-age 1", exchange.getResponseContent());
+        assertEquals(1, _cache.getEntries());
+
+        exchange = get("/max-age");
+        assertEquals("/max-age 1", exchange.getResponseContent());
+        assertEquals(1, _requests.get());
+        assertEquals(1, _cache.getHits());
+        assertEquals(1, _cache.getMisses());
+    }
+
+    @Test
+    public void testRevalidate() throws Exception
+    {
+        ContentExchange exchange = get("/etag");
+        assertEquals("/etag 1", exchange.getResponseContent());
+
+        exchange = get("/etag");
+        assertEquals(HttpStatus.OK_200, exchange.getResponseStatus());
+        assertEquals("/etag 1", exchange.getResponseContent());
+        assertEquals("\"v1\"", exchange.getResponseFields().getStringField("ETag"));
+        assertEquals(2, _requests.get());
+        assertEquals(0, _cache.getHits());
+        assertEquals(1, _cache.getRevalidations());
+
+        // The validators are sent without being added to the headers of the exchange
+        assertFalse(exchange.getRequestFields().containsKey("If-None-Match"));
+    }
+
+    @Test
+    public void testNoStore() throws Exception
+    {
+        get("/no-store");
+        ContentExchange exchange = get("/no-store");
+        assertEquals("/no-store 2", exchange.getResponseContent());
+        assertEquals(0, _cache.getEntries());
+    }
+
+    @Test
+    public void testRequestNoCache() throws Exception
+    {
+        get("/max-age");
+        ContentExchange exchange = new ContentExchange(true);
+        exchange.setURL("http://localhost:" + _port + "/max-age");
+        exchange.setRequestHeader("Cache-Control", "no-cache");
+        _httpClient.send(exchange);
+        assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+        assertEquals("/max-age 2", exchange.getResponseContent());
+    }
+
+    @Test
+    public void testEviction() throws Exception
+    {
+        _cache.setMaxSize(25);
+        get("/max-age/a");
+        get("/max-age/b");
+        get("/max-age/c");
+        assertEquals(2, _cache.getEntries());
+        assertEquals(1, _cache.getEvictions());
+        assertTrue(_cache.getSize() <= 25);
+
+        // the least recently used response was evicted
+        get("/max-age/a");
+        assertEquals(4, _requests.get());
+    }
+
+    @Test
+    public void testDirectory() throws Exception
+    {
+        File directory = new File("target/test-output/cache");
+        IO.delete(directory);
+        _cache.setDirectory(directory);
+
+        get("/max-age");
+        assertEquals(1, directory.list().length);
+        ContentExchange exchange = get("/max-age");
+        assertEquals("/max-age 1", exchange.getResponseContent());
+        assertEquals(1, _cache.getHits());
+
+        _cache.clear();
+        assertEquals(0, directory.list().length);
+
+        // The files are deleted when the client is stopped
+        get("/max-age");
+        assertEquals(1, directory.list().length);
+        _httpClient.stop();
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void testRedirectToOtherDestination() throws Exception
+    {
+        _httpClient.registerListener(RedirectListener.class.getName());
+
+        ContentExchange exchange = get("/redirect");
+        assertEquals("/max-age 2", exchange.getResponseContent());
+
+        // The exchange is wrapped by one cache listener only
+        int listeners = 0;
+        HttpEventListener listener = exchange.getEventListener();
+        while (listener instanceof HttpEventListenerWrapper)
+        {
+            if (listener.getClass().getName().startsWith(HttpCache.class.getName()))
+                listeners++;
+            listener = ((HttpEventListenerWrapper)listener).getEventListener();
+        }
+        assertEquals(1, listeners);
+
+        // The redirected response is cached for the other destination
+        exchange = new ContentExchange(true);
+        exchange.setURL("http://127.0.0.1:" + _port + "/max-age");
+        _httpClient.send(exchange);
+        assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+        assertEquals("/max-age 2", exchange.getResponseContent());
+        assertEquals(1, _cache.getHits());
+    }
+
+    private ContentExchange get(String uri) throws Exception
+    {
+        ContentExchange exchange = new ContentExchange(true);
+        exchange.setURL("http://localhost:" + _port + uri);
+        _httpClient.send(exchange);
+        assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+        return exchange;
+    }
+
+    private class CacheHandler extends AbstractHandler
+    {
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+        {
+            baseRequest.setHandled(true);
+            int count = _requests.incrementAndGet();
+
+            if (target.startsWith("/redirect"))
+            {
+                response.sendRedirect("http://127.0.0.1:" + _port + "/max-age");
+                return;
+            }
+            else if (target.startsWith("/max-age"))
+                response.setHeader("Cache-Control", "max-age=60");
+            else if (target.startsWith("/no-store"))
+                response.setHeader("Cache-Control", "no-store");
+            else if (target.startsWith("/etag"))
+            {
+                response.setHeader("Cache-Control", "no-cache");
+                response.setHeader("ETag", "\"v1\"");
+                if ("\"v1\"".equals(request.getHeader("If-None-Match")))
+                {
+                    response.setStatus(HttpStatus.NOT_MODIFIED_304);
+                    return;
+                }
+            }
+
+            response.setContentType("text/plain");
+            response.getWriter().print(target + " " + count);
+        }
+    }
+}
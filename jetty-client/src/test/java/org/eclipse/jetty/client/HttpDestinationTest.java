@@ -0,0 +1,253 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.client;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpDestinationTest
+{
+    private ServerSocket _serverSocket;
+    private HttpClient _httpClient;
+    private Address _address;
+
+    @Before
+    public void init() throws Exception
+    {
+        _serverSocket = new ServerSocket();
+        _serverSocket.bind(null);
+        _serverSocket.setSoTimeout(5000);
+        _address = new Address("localhost", _serverSocket.getLocalPort());
+
+        _httpClient = new HttpClient();
+        _httpClient.setMaxConnectionsPerAddress(1);
+        _httpClient.start();
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _httpClient.stop();
+        _serverSocket.close();
+    }
+
+    @Test
+    public void testQueuedExchanges() throws Exception
+    {
+        ContentExchange[] exchanges = new ContentExchange[3];
+        for (int i = 0; i < exchanges.length; i++)
+        {
+            exchanges[i] = new ContentExchange();
+            exchanges[i].setAddress(_address);
+            exchanges[i].setURI("/" + i);
+            _httpClient.send(exchanges[i]);
+        }
+
+        HttpDestination destination = _httpClient.getDestination(_address, false);
+        Socket remote = _serverSocket.accept();
+        remote.setSoTimeout(5000);
+        InputStream input = remote.getInputStream();
+        OutputStream output = remote.getOutputStream();
+
+        for (int i = 0; i < exchanges.length; i++)
+        {
+            readRequest(input);
+            assertEquals(exchanges.length - 1 - i, destination.getQueueDepth());
+            Thread.sleep(10);
+            output.write(("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\n" + i).getBytes("UTF-8"));
+            output.flush();
+            assertEquals(HttpExchange.STATUS_COMPLETED, exchanges[i].waitForDone());
+            assertEquals(String.valueOf(i), exchanges[i].getResponseContent());
+        }
+
+        assertEquals(1, destination.getConnections());
+        assertEquals(0, destination.getPendingConnections());
+        assertEquals(1, destination.getConnectsOpened());
+        assertTrue(destination.getConnectLatencyMax() >= 0);
+        // the last exchange waited for both of the others to complete
+        assertTrue(destination.getConnectionWaitMax() >= 20);
+        remote.close();
+    }
+
+    @Test
+    public void testConcurrentSends() throws Exception
+    {
+        final int threads = 4;
+        final int exchanges = 50;
+        _serverSocket.close();
+
+        Server server = new Server();
+        server.start();
+        _address = new Address("localhost", server.getLocalPort());
+        _httpClient.stop();
+        _httpClient.setMaxConnectionsPerAddress(2);
+        _httpClient.start();
+
+        final AtomicInteger completed = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(threads * exchanges);
+        for (int t = 0; t < threads; t++)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < exchanges; i++)
+                    {
+                        ContentExchange exchange = new ContentExchange()
+                        {
+                            @Override
+                            protected void onResponseComplete()
+                            {
+                                completed.incrementAndGet();
+                                latch.countDown();
+                            }
+
+                            @Override
+                            protected void onConnectionFailed(Throwable x)
+                            {
+                                latch.countDown();
+                            }
+
+                            @Override
+                            protected void onException(Throwable x)
+                            {
+                                latch.countDown();
+                            }
+
+                            @Override
+                            protected void onExpire()
+                            {
+                                latch.countDown();
+                            }
+                        };
+                        exchange.setAddress(_address);
+                        exchange.setURI("/");
+                        try
+                        {
+                            _httpClient.send(exchange);
+                        }
+                        catch (Exception e)
+                        {
+                            latch.countDown();
+                        }
+                    }
+                }
+            }.start();
+        }
+
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertEquals(threads * exchanges, completed.get());
+
+        HttpDestination destination = _httpClient.getDestination(_address, false);
+        assertEquals(0, destination.getQueueDepth());
+        assertTrue(destination.getConnections() <= 2);
+        // the connections are returned after the last responses complete
+        for (int i = 0; i < 100 && destination.getIdleConnections() < destination.getConnections(); i++)
+            Thread.sleep(10);
+        assertEquals(destination.getConnections(), destination.getIdleConnections());
+        server.stopServer();
+    }
+
+    private void readRequest(InputStream input) throws Exception
+    {
+        int state = 0;
+        while (state < 4)
+        {
+            int b = input.read();
+            assertTrue(b >= 0);
+            state = (b == (state % 2 == 0 ? '\r' : '\n')) ? state + 1 : (b == '\r' ? 1 : 0);
+        }
+    }
+
+    /**
+     * A minimal keep-alive HTTP server with a thread per connection.
+     */
+    private static class Server extends Thread
+    {
+        private final ServerSocket _server = new ServerSocket(0);
+
+        Server() throws Exception
+        {
+            setDaemon(true);
+        }
+
+        int getLocalPort()
+        {
+            return _server.getLocalPort();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    final Socket socket = _server.accept();
+                    new Thread()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            try
+                            {
+                                InputStream input = socket.getInputStream();
+                                OutputStream output = socket.getOutputStream();
+                                int state = 0;
+                                int b;
+                                while ((b = input.read()) >= 0)
+                                {
+                                    state = (b == (state % 2 == 0 ? '\r' : '\n')) ? state + 1 : (b == '\r' ? 1 : 0);
+                                    if (state == 4)
+                                    {
+                                        output.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK".getBytes("UTF-8"));
+                                        output.flush();
+                                        state = 0;
+                                    }
+                                }
+                                socket.close();
+                            }
+                            catch (Exception e)
+                            {
+                                // the client has closed the connection
+                            }
+                        }
+                    }.start();
+                }
+            }
+            catch (Exception e)
+            {
+                // the server has been stopped
+            }
+        }
+
+        void stopServer() throws Exception
+        {
+            _server.close();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineTest
+{
+    private ServerSocket _serverSocket;
+    private HttpClient _httpClient;
+    private Address _address;
+
+    @Before
+    public void init() throws Exception
+    {
+        _serverSocket = new ServerSocket();
+        _serverSocket.bind(null);
+        _serverSocket.setSoTimeout(5000);
+        _address = new Address("localhost", _serverSocket.getLocalPort());
+
+        _httpClient = new HttpClient();
+        _httpClient.setMaxConnectionsPerAddress(1);
+        _httpClient.setPipelineDepth(4);
+        _httpClient.start();
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _httpClient.stop();
+        _serverSocket.close();
+    }
+
+    @Test
+    public void testPipelined() throws Exception
+    {
+        ContentExchange[] exchanges = send(4);
+
+        // All the requests arrive before any response is sent
+        Socket remote = _serverSocket.accept();
+        String requests = readRequests(remote, 4);
+        for (int i = 0; i < exchanges.length; i++)
+            assertTrue(requests.contains("GET /" + i + " "));
+        assertTrue(requests.indexOf("GET /0 ") < requests.indexOf("GET /3 "));
+
+        OutputStream output = remote.getOutputStream();
+        for (int i = 0; i < exchanges.length; i++)
+            output.write(("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\n" + i).getBytes("UTF-8"));
+        output.flush();
+
+        for (int i = 0; i < exchanges.length; i++)
+        {
+            assertEquals(HttpExchange.STATUS_COMPLETED, exchanges[i].waitForDone());
+            assertEquals(String.valueOf(i), exchanges[i].getResponseContent());
+        }
+
+        HttpDestination destination = _httpClient.getDestination(_address, false);
+        assertEquals(1, destination.getConnections());
+        assertTrue(destination.isPipelining());
+        remote.close();
+    }
+
+    @Test
+    public void testServerClosesPipeline() throws Exception
+    {
+        ContentExchange[] exchanges = send(2);
+
+        Socket remote = _serverSocket.accept();
+        readRequests(remote, 2);
+        OutputStream output = remote.getOutputStream();
+        output.write("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 1\r\n\r\n0".getBytes("UTF-8"));
+        output.flush();
+        remote.close();
+
+        assertEquals(HttpExchange.STATUS_COMPLETED, exchanges[0].waitForDone());
+        assertEquals("0", exchanges[0].getResponseContent());
+
+        // The unanswered request is sent again on a new connection
+        remote = _serverSocket.accept();
+        assertTrue(readRequests(remote, 1).startsWith("GET /1 "));
+        output = remote.getOutputStream();
+        output.write("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\n1".getBytes("UTF-8"));
+        output.flush();
+
+        assertEquals(HttpExchange.STATUS_COMPLETED, exchanges[1].waitForDone());
+        assertEquals("1", exchanges[1].getResponseContent());
+        assertFalse(_httpClient.getDestination(_address, false).isPipelining());
+        remote.close();
+    }
+
+    @Test
+    public void testServerStallsPipeline() throws Exception
+    {
+        _httpClient.stop();
+        _httpClient.setTimeout(500);
+        _httpClient.start();
+        ContentExchange[] exchanges = send(2);
+
+        // The server does not respond until the first exchange expires
+        Socket stalled = _serverSocket.accept();
+        readRequests(stalled, 2);
+        assertEquals(HttpExchange.STATUS_EXPIRED, exchanges[0].waitForDone());
+
+        // The waiting request is sent again on a new connection
+        Socket remote = _serverSocket.accept();
+        assertTrue(readRequests(remote, 1).startsWith("GET /1 "));
+        OutputStream output = remote.getOutputStream();
+        output.write("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\n1".getBytes("UTF-8"));
+        output.flush();
+
+        assertEquals(HttpExchange.STATUS_COMPLETED, exchanges[1].waitForDone());
+        assertEquals("1", exchanges[1].getResponseContent());
+        assertFalse(_httpClient.getDestination(_address, false).isPipelining());
+        remote.close();
+        stalled.close();
+    }
+
+    private ContentExchange[] send(int count) throws Exception
+    {
+        ContentExchange[] exchanges = new ContentExchange[count];
+        for (int i = 0; i < count; i++)
+        {
+            exchanges[i] = new ContentExchange();
+            exchanges[i].setAddress(_address);
+            exchanges[i].setURI("/" + i);
+            _httpClient.send(exchanges[i]);
+        }
+        return exchanges;
+    }
+
+    private String readRequests(Socket remote, int count) throws Exception
+    {
+        remote.setSoTimeout(5000);
+        InputStream input = remote.getInputStream();
+        ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        int ends = 0;
+        int state = 0;
+        while (ends < count)
+        {
+            int b = input.read();
+            assertTrue(b >= 0);
+            requests.write(b);
+            state = (b == (state % 2 == 0 ? '\r' : '\n')) ? state + 1 : (b == '\r' ? 1 : 0);
+            if (state == 4)
+            {
+                ends++;
+                state = 0;
+            }
+        }
+        return requests.toString("UTF-8");
+    }
+}
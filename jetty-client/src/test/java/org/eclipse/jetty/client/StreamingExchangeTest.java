@@ -0,0 +1,197 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamingExchangeTest
+{
+    private static final int CHUNK = 8192;
+    private static final int CHUNKS = 2048;
+
+    private Server _server;
+    private HttpClient _httpClient;
+    private final AtomicLong _written = new AtomicLong();
+    private int _port;
+
+    @Before
+    public void init() throws Exception
+    {
+        _server = new Server();
+        Connector connector = new SelectChannelConnector();
+        _server.addConnector(connector);
+        _server.setHandler(new DownloadHandler());
+        _server.start();
+        _port = connector.getLocalPort();
+
+        _httpClient = new HttpClient();
+        _httpClient.setTimeout(30000);
+        _httpClient.start();
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _httpClient.stop();
+        _server.stop();
+        _server.join();
+    }
+
+    @Test
+    public void testStreamWithBackPressure() throws Exception
+    {
+        StreamingExchange exchange = new StreamingExchange();
+        exchange.setMaxBufferedBytes(16 * 1024);
+        exchange.setURL("http://localhost:" + _port + "/");
+        _httpClient.send(exchange);
+
+        InputStream in = exchange.getInputStream();
+        assertEquals(0, in.read());
+
+        // The server is stopped by the client not reading
+        Thread.sleep(500);
+        long written = _written.get();
+        assertTrue(written < (long)CHUNK * CHUNKS);
+        assertTrue(in.available() <= 16 * 1024 + CHUNK);
+
+        // No thread is held by the suspended connection
+        for (StackTraceElement[] stack : Thread.getAllStackTraces().values())
+            for (StackTraceElement frame : stack)
+                assertTrue(!(HttpConnection.class.getName().equals(frame.getClassName()) && "handle".equals(frame.getMethodName())));
+
+        long total = 1;
+        byte[] buffer = new byte[4096];
+        int len;
+        while ((len = in.read(buffer)) >= 0)
+        {
+            for (int i = 0; i < len; i++)
+                assertEquals((byte)((total + i) % CHUNK), buffer[i]);
+            total += len;
+        }
+        assertEquals((long)CHUNK * CHUNKS, total);
+        assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+        assertEquals(total, exchange.getResponseContentBytes());
+    }
+
+    @Test
+    public void testCloseCancels() throws Exception
+    {
+        StreamingExchange exchange = new StreamingExchange();
+        exchange.setMaxBufferedBytes(16 * 1024);
+        exchange.setURL("http://localhost:" + _port + "/");
+        _httpClient.send(exchange);
+
+        InputStream in = exchange.getInputStream();
+        assertEquals(0, in.read());
+        in.close();
+
+        assertEquals(HttpExchange.STATUS_CANCELLED, exchange.waitForDone());
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testRetryAfterReadFails() throws Exception
+    {
+        StreamingExchange exchange = new StreamingExchange();
+        exchange.setMaxBufferedBytes(16 * 1024);
+        exchange.setURL("http://localhost:" + _port + "/");
+        _httpClient.send(exchange);
+
+        InputStream in = exchange.getInputStream();
+        assertEquals(0, in.read());
+
+        // Content the caller has read cannot be replaced by that of a retry
+        exchange.onRetry();
+        try
+        {
+            // Drain the chunk already taken by the stream
+            byte[] buffer = new byte[CHUNK];
+            while (in.read(buffer) >= 0)
+                continue;
+            fail();
+        }
+        catch (IOException x)
+        {
+            // expected
+        }
+        exchange.cancel();
+        exchange.waitForDone();
+    }
+
+    @Test
+    public void testChannel() throws Exception
+    {
+        File file = File.createTempFile("download", ".bin", new File("target"));
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            StreamingExchange exchange = new StreamingExchange();
+            exchange.setResponseChannel(raf.getChannel());
+            exchange.setURL("http://localhost:" + _port + "/");
+            _httpClient.send(exchange);
+
+            assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+            assertEquals((long)CHUNK * CHUNKS, exchange.getResponseContentBytes());
+            assertEquals((long)CHUNK * CHUNKS, raf.length());
+            raf.seek(CHUNK + 7);
+            assertEquals(7, raf.read());
+        }
+        finally
+        {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    private class DownloadHandler extends AbstractHandler
+    {
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+        {
+            baseRequest.setHandled(true);
+            response.setContentLength(CHUNK * CHUNKS);
+            byte[] chunk = new byte[CHUNK];
+            for (int i = 0; i < CHUNK; i++)
+                chunk[i] = (byte)i;
+
+            OutputStream out = response.getOutputStream();
+            for (int i = 0; i < CHUNKS; i++)
+            {
+                out.write(chunk);
+                _written.addAndGet(CHUNK);
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+
+package org.eclipse.jetty.http;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/* ------------------------------------------------------------ */
+/** Immutable compiled form of a {@link PathMap}.
+ * <p>
+ * The exact and prefix path specifications of the map are compiled into a trie
+ * that is walked forwards over the characters of the path, and the suffix 
+ * specifications into a trie of reversed suffixes that is walked backwards.
+ * A match is found in a single pass over the path for exact and prefix 
+ * matches, plus a pass over the end of the path for suffix matches, without
+ * the substrings and repeated lookups of {@link PathMap#getMatch(String)} and
+ * without allocating.
+ * <p>
+ * Matches are the same as those of the map at the time it was compiled. The
+ * compiled map is not changed by later changes to the map, so a user of a map
+ * that changes should compile a new instance and replace the reference to the
+ * old one, which makes the change visible to concurrent lookups atomically.
+ * 
+ */
+public class CompiledPathMap
+{
+    private final Node _paths=new Node();
+    private final Node _suffixes=new Node();
+    private final PathMap.Entry _prefixDefault;
+    private final PathMap.Entry _default;
+    private final int _size;
+
+    /* --------------------------------------------------------------- */
+    /** Compile a PathMap.
+     * @param map The map to compile
+     */
+    public CompiledPathMap(PathMap map)
+    {
+        for (Object o : map._exactMap.entrySet())
+        {
+            Map.Entry entry=(Map.Entry)o;
+            _paths.add((String)entry.getKey(),false)._exact=(PathMap.Entry)entry.getValue();
+        }
+        for (Object o : map._prefixMap.entrySet())
+        {
+            Map.Entry entry=(Map.Entry)o;
+            _paths.add((String)entry.getKey(),false)._prefix=(PathMap.Entry)entry.getValue();
+        }
+        for (Object o : map._suffixMap.entrySet())
+        {
+            Map.Entry entry=(Map.Entry)o;
+            _suffixes.add((String)entry.getKey(),true)._suffix=(PathMap.Entry)entry.getValue();
+        }
+        _prefixDefault=map._prefixDefault;
+        _default=map._default;
+        _size=map.size();
+    }
+
+    /* --------------------------------------------------------------- */
+    /**
+     * @return The number of path specifications compiled
+     */
+    public int size()
+    {
+        return _size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get object matched by the path.
+     * @param path the path.
+     * @return Best matched object or null.
+     */
+    public Object match(String path)
+    {
+        PathMap.Entry entry = getMatch(path);
+        if (entry!=null)
+            return entry.getValue();
+        return null;
+    }
+
+    /* --------------------------------------------------------------- */
+    /** Get the entry mapped by the best specification.
+     * @param path the path.
+     * @return Map.Entry of the best matched  or null.
+     * @see PathMap#getMatch(String)
+     */
+    public PathMap.Entry getMatch(String path)
+    {
+        if (path==null)
+            return null;
+
+        int l=path.length();
+
+        // Walk the paths for an exact match, remembering the longest 
+        // prefix that is followed by a '/'
+        PathMap.Entry prefix=null;
+        Node node=_paths;
+        for (int i=0;i<l && node!=null;i++)
+        {
+            char c=path.charAt(i);
+            if (c=='/' && node._prefix!=null)
+                prefix=node._prefix;
+            node=node.next(c);
+        }
+        if (node!=null && node._exact!=null)
+            return node._exact;
+        if (prefix!=null)
+            return prefix;
+
+        // Prefix Default
+        if (_prefixDefault!=null)
+            return _prefixDefault;
+
+        // Walk the suffixes back from the end, remembering the longest
+        // suffix that is preceded by a '.' which is not the first character
+        PathMap.Entry suffix=null;
+        node=_suffixes;
+        for (int i=l;i>1 && node!=null;i--)
+        {
+            char c=path.charAt(i-1);
+            if (c=='.' && node._suffix!=null)
+                suffix=node._suffix;
+            node=node.next(c);
+        }
+        if (suffix!=null)
+            return suffix;
+
+        // Default
+        return _default;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A trie node, which is only changed while the map is compiled.
+     * The children are sorted by character for a binary search.
+     */
+    private static class Node
+    {
+        private char[] _chars=new char[0];
+        private Node[] _next=new Node[0];
+        private PathMap.Entry _exact;
+        private PathMap.Entry _prefix;
+        private PathMap.Entry _suffix;
+
+        /* ------------------------------------------------------------ */
+        Node next(char c)
+        {
+            int i=Arrays.binarySearch(_chars,c);
+            return i<0?null:_next[i];
+        }
+
+        /* ------------------------------------------------------------ */
+        Node add(String key, boolean reverse)
+        {
+            Node node=this;
+            int l=key.length();
+            for (int i=0;i<l;i++)
+            {
+                char c=key.charAt(reverse?l-1-i:i);
+                int index=Arrays.binarySearch(node._chars,c);
+                if (index>=0)
+                    node=node._next[index];
+                else
+                {
+                    index=-index-1;
+                    char[] chars=new char[node._chars.length+1];
+                    Node[] next=new Node[chars.length];
+                    System.arraycopy(node._chars,0,chars,0,index);
+                    System.arraycopy(node._next,0,next,0,index);
+                    System.arraycopy(node._chars,index,chars,index+1,node._chars.length-index);
+                    System.arraycopy(node._next,index,next,index+1,node._next.length-index);
+                    chars[index]=c;
+                    next[index]=new Node();
+                    node._chars=chars;
+                    node._next=next;
+                    node=next[index];
+                }
+            }
+            return node;
+        }
+    }
+}
@@ -15,12 +15,16 @@ package org.eclipse.jetty.http;
 
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.Buffers;
+import org.eclipse.jetty.io.PooledBuffers;
 import org.eclipse.jetty.io.ThreadLocalBuffers;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
 
 /* ------------------------------------------------------------ */
 /** Abstract Buffer pool.
  * simple unbounded pool of buffers for header, request and response sizes.
+ * By default buffers are held per thread by {@link ThreadLocalBuffers}. If
+ * {@link #setPooledBuffers(boolean)} is true, buffers are instead held in
+ * {@link PooledBuffers} that are shared by all threads.
  *
  */
 public abstract class HttpBuffers extends AbstractLifeCycle
@@ -66,6 +70,48 @@ public abstract class HttpBuffers extends AbstractLifeCycle
         }
     };
     
+    private final PooledBuffers _requestPool = new PooledBuffers()
+    {
+        @Override
+        protected Buffer newBuffer(int size)
+        {
+            return newRequestBuffer(size);
+        }
+
+        @Override
+        protected Buffer newHeader(int size)
+        {
+            return newRequestHeader(size);
+        }
+        @Override
+        protected boolean isHeader(Buffer buffer)
+        {
+            return isRequestHeader(buffer);
+        }
+    };
+    
+    private final PooledBuffers _responsePool = new PooledBuffers()
+    {
+        @Override
+        protected Buffer newBuffer(int size)
+        {
+            return newResponseBuffer(size);
+        }
+
+        @Override
+        protected Buffer newHeader(int size)
+        {
+            return newResponseHeader(size);
+        }
+        @Override
+        protected boolean isHeader(Buffer buffer)
+        {
+            return isResponseHeader(buffer);
+        }
+    };
+    
+    private boolean _pooledBuffers;
+    
     public HttpBuffers()
     {
         super();
@@ -73,6 +119,10 @@ public abstract class HttpBuffers extends AbstractLifeCycle
         _requestBuffers.setHeaderSize(6*1024);
         _responseBuffers.setBufferSize(12*1024);
         _responseBuffers.setHeaderSize(6*1024);
+        _requestPool.setBufferSize(8*1024);
+        _requestPool.setHeaderSize(6*1024);
+        _responsePool.setBufferSize(12*1024);
+        _responsePool.setHeaderSize(6*1024);
     }
 
     @Override
@@ -94,7 +144,7 @@ public abstract class HttpBuffers extends AbstractLifeCycle
 
     public Buffers getRequestBuffers()
     {
-        return _requestBuffers;
+        return _pooledBuffers?_requestPool:_requestBuffers;
     }
     
     /**
@@ -115,7 +165,7 @@ public abstract class HttpBuffers extends AbstractLifeCycle
 
     public Buffers getResponseBuffers()
     {
-        return _responseBuffers;
+        return _pooledBuffers?_responsePool:_responseBuffers;
     }
     
     /**
@@ -134,6 +184,26 @@ public abstract class HttpBuffers extends AbstractLifeCycle
         return _responseBuffers.getHeaderSize();
     }
 
+    /**
+     * @return True if buffers are held in {@link PooledBuffers} shared by all threads, 
+     * false if they are held per thread by {@link ThreadLocalBuffers}.
+     */
+    public boolean isPooledBuffers()
+    {
+        return _pooledBuffers;
+    }
+    
+    /**
+     * @param pooled True if buffers are to be held in {@link PooledBuffers} shared by 
+     * all threads, false (the default) if they are to be held per thread.
+     */
+    public void setPooledBuffers(boolean pooled)
+    {
+        if (isStarted())
+            throw new IllegalStateException();
+        _pooledBuffers=pooled;
+    }
+
     protected abstract Buffer newRequestBuffer(int size);
 
     protected abstract Buffer newRequestHeader(int size);
@@ -177,6 +247,7 @@ public abstract class HttpBuffers extends AbstractLifeCycle
         if (isStarted())
           throw new IllegalStateException();
         _requestBuffers.setBufferSize(size);
+        _requestPool.setBufferSize(size);
     }
     /**
      * @param size 
@@ -186,6 +257,7 @@ public abstract class HttpBuffers extends AbstractLifeCycle
         if (isStarted())
             throw new IllegalStateException();
         _requestBuffers.setHeaderSize(size);
+        _requestPool.setHeaderSize(size);
     }
     
     /**
@@ -196,6 +268,7 @@ public abstract class HttpBuffers extends AbstractLifeCycle
         if (isStarted())
           throw new IllegalStateException();
         _responseBuffers.setBufferSize(size);
+        _responsePool.setBufferSize(size);
     }
     /**
      * @param size 
@@ -205,6 +278,7 @@ public abstract class HttpBuffers extends AbstractLifeCycle
         if (isStarted())
             throw new IllegalStateException();
         _responseBuffers.setHeaderSize(size);
+        _responsePool.setHeaderSize(size);
     }
     
 }
@@ -34,4 +34,18 @@ public interface HttpContent
     long getContentLength();
     InputStream getInputStream() throws IOException;
     void release();
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The content coding (eg gzip) of this content, or null if it is not encoded.
+     */
+    Buffer getContentEncoding();
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param encoding A content coding (eg "gzip" or "deflate")
+     * @return A variant of this content encoded with the content coding,
+     * or null if no such variant is available.
+     */
+    HttpContent getEncodedContent(String encoding);
 }
@@ -377,7 +377,18 @@ public class HttpFields
     /* ------------------------------------------------------------ */
     private Field getField(String name)
     {
-        return _bufferMap.get(HttpHeaders.CACHE.lookup(name));
+        CachedBuffer cached = HttpHeaders.CACHE.get(name);
+        if (cached != null)
+            return _bufferMap.get(cached);
+
+        // Look for an unknown name without creating a buffer for it
+        for (int i = 0; i < _fields.size(); i++)
+        {
+            Field field = _fields.get(i);
+            if (field != null && field._prev == null && field.isName(name))
+                return field;
+        }
+        return null;
     }
 
     /* ------------------------------------------------------------ */
@@ -1336,6 +1347,7 @@ public class HttpFields
     {
         private Buffer _name;
         private Buffer _value;
+        private View _view;
         private String _stringValue;
         private long _numValue;
         private Field _next;
@@ -1346,7 +1358,10 @@ public class HttpFields
         private Field(Buffer name, Buffer value, long numValue, int revision)
         {
             _name = name.asImmutableBuffer();
-            _value = value.isImmutable() ? value : new View(value);
+            if (value.isImmutable())
+                _value = value;
+            else
+                _value = _view = new View(value);
             _next = null;
             _prev = null;
             _revision = revision;
@@ -1365,6 +1380,7 @@ public class HttpFields
         {
             _name = null;
             _value = null;
+            _view = null;
             _next = null;
             _prev = null;
             _stringValue=null;
@@ -1373,29 +1389,28 @@ public class HttpFields
         /* ------------------------------------------------------------ */
         /**
          * Reassign a value to this field. Checks if the string value is the same as that in the char
-         * array, if so then just reuse existing value.
+         * array, if so then just reuse existing value.  The view of a mutable value is kept even
+         * while the field holds a cached value, so that a recycled field does not allocate.
          */
         private void reset(Buffer value, long numValue, int revision)
         {
             _revision = revision;
-            if (_value == null)
-            {
-                _value = value.isImmutable() ? value : new View(value);
-                _numValue = numValue;
-                _stringValue=null;
-            }
-            else if (value.isImmutable())
+            if (value.isImmutable())
             {
+                if (_value != value)
+                    _stringValue=null;
                 _value = value;
                 _numValue = numValue;
-                _stringValue=null;
             }
             else
             {
-                if (_value instanceof View)
-                    ((View) _value).update(value);
+                if (_view == null)
+                    _view = new View(value);
                 else
-                    _value = new View(value);
+                    _view.update(value);
+                if (_value != _view)
+                    _stringValue=null;
+                _value = _view;
                 _numValue = numValue;
                 
                 // check to see if string value is still valid.
@@ -1478,6 +1493,25 @@ public class HttpFields
             return BufferUtil.to8859_1_String(_name);
         }
 
+        /* ------------------------------------------------------------ */
+        /**
+         * @return true if the name of this field is the passed name, ignoring case
+         */
+        private boolean isName(String name)
+        {
+            if (_name.length() != name.length())
+                return false;
+            int index = _name.getIndex();
+            for (int i = name.length(); i-- > 0;)
+            {
+                char a = (char)(0xff & _name.peek(index + i));
+                char b = name.charAt(i);
+                if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b))
+                    return false;
+            }
+            return true;
+        }
+
         /* ------------------------------------------------------------ */
         Buffer getNameBuffer()
         {
@@ -15,6 +15,8 @@ package org.eclipse.jetty.http;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.BufferCache.CachedBuffer;
@@ -23,6 +25,7 @@ import org.eclipse.jetty.io.Buffers;
 import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.io.EndPoint;
 import org.eclipse.jetty.io.EofException;
+import org.eclipse.jetty.io.nio.ChannelEndPoint;
 import org.eclipse.jetty.util.StringUtil;
 import org.eclipse.jetty.util.log.Log;
 
@@ -106,6 +109,9 @@ public class HttpGenerator extends AbstractGenerator
     private boolean _needCRLF = false;
     private boolean _needEOC = false;
     private boolean _bufferChunked = false;
+    private boolean _pipelined = false;
+    private Buffer _held; // Complete responses held back to be written with the next pipelined response
+    private final ArrayList<Buffer> _queue = new ArrayList<Buffer>(); // Content to be written directly after _content
 
 
     /* ------------------------------------------------------------------------------- */
@@ -129,9 +135,94 @@ public class HttpGenerator extends AbstractGenerator
         _needCRLF = false;
         _needEOC = false;
         _bufferChunked=false;
+        _pipelined=false;
+        _queue.clear();
         _method=null;
         _uri=null;
         _noContent=false;
+
+        if (returnBuffers && _held!=null && _held.length()==0)
+        {
+            _buffers.returnBuffer(_held);
+            _held=null;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if the response is written with the response to the next pipelined request
+     */
+    public boolean isPipelined()
+    {
+        return _pipelined;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set if another request is pipelined behind this response.
+     * A pipelined response that is complete and small enough is held back
+     * rather than flushed, so that the responses to a batch of pipelined
+     * requests are written together with fewer gathering writes.
+     * Held responses are written ahead of the next response that is flushed,
+     * or by {@link #flushHeld()}. Cleared by {@link #reset(boolean)}.
+     * @param pipelined true if another request is pipelined behind this response
+     */
+    public void setPipelined(boolean pipelined)
+    {
+        _pipelined = pipelined;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if there are held responses that have not been written
+     */
+    public boolean isHeld()
+    {
+        return _held!=null && _held.length()>0;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Write as much of the held responses as the endpoint will take without blocking.
+     * @return the number of bytes written
+     * @throws IOException if the held responses cannot be written
+     */
+    public int flushHeld() throws IOException
+    {
+        try
+        {
+            int total=0;
+            while (isHeld() && _endp.isOpen())
+            {
+                int len=_endp.flush(_held);
+                if (len<0)
+                    throw new EofException();
+                if (len==0)
+                    break;
+                total+=len;
+            }
+            if (_held!=null && _held.length()==0)
+                _held.clear();
+            return total;
+        }
+        catch (IOException e)
+        {
+            Log.ignore(e);
+            throw (e instanceof EofException) ? e:new EofException(e);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Return the buffer of the held responses, discarding any that have
+     * not been written.  Called when the connection is closed.
+     */
+    public void releaseHeld()
+    {
+        Buffer held=_held;
+        _held=null;
+        if (held!=null)
+            _buffers.returnBuffer(held);
     }
 
 
@@ -204,6 +295,58 @@ public class HttpGenerator extends AbstractGenerator
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Add content that is written directly from the passed buffers, without
+     * being copied to the content buffer. The buffers are written in order after
+     * any content already buffered, with a single gathering write where the
+     * endpoint supports it. The buffers must not be modified until they have
+     * been consumed.
+     * <p>
+     * Content can only be added in this way once the header is complete, if the
+     * response is not chunked and if no other content is waiting to be written.
+     * </p>
+     *
+     * @param contents the buffers of content
+     * @param last true if this is the last content of the response
+     * @return true if the content was added, false if it should instead be added
+     * with {@link #addContent(Buffer, boolean)}.
+     * @throws IOException
+     */
+    public boolean addContent(Buffer[] contents, boolean last) throws IOException
+    {
+        if (_noContent)
+            throw new IllegalStateException("NO CONTENT");
+
+        if (_endp == null || _head || _last || _state != STATE_CONTENT || _contentLength == HttpTokens.CHUNKED_CONTENT ||
+            _bufferChunked || _content != null && _content.length() > 0 || !_queue.isEmpty())
+            return false;
+
+        _last = last;
+        _content = null;
+        for (int i = 0; i < contents.length; i++)
+        {
+            Buffer content = contents[i];
+            if (content == null || content.length() == 0)
+                continue;
+            _contentWritten += content.length();
+            if (_content == null)
+                _content = content;
+            else
+                _queue.add(content);
+        }
+        _bypass = _content != null;
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void resetBuffer()
+    {
+        super.resetBuffer();
+        _queue.clear();
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * send complete response.
@@ -226,6 +369,71 @@ public class HttpGenerator extends AbstractGenerator
 
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Send content directly from a file.
+     * <p>
+     * The header and any buffered content are flushed, then the content is transferred from the
+     * file to the {@link ChannelEndPoint} without being copied through the content buffers
+     * (eg with sendfile). The header must have been completed without all content added and
+     * the content must not be chunked, so the content length should be set.
+     * This method blocks until all the content is transferred.
+     *
+     * @param file The file to send content from
+     * @param position The position within the file of the first byte to send
+     * @param length The number of bytes to send
+     * @param maxIdleTime The maximum time to block waiting for the endpoint to be writable
+     * @throws IllegalStateException If content cannot be sent from a file 
+     * @throws IOException if there is a problem sending the file content.
+     */
+    public void sendFile(FileChannel file, long position, long length, long maxIdleTime) throws IOException
+    {
+        if (_noContent || _last || _state!=STATE_CONTENT || _contentLength==HttpTokens.CHUNKED_CONTENT || 
+            !(_endp instanceof ChannelEndPoint) || !((ChannelEndPoint)_endp).isTransferSupported())
+            throw new IllegalStateException();
+
+        // flush the header and any buffered content
+        flushBuffer();
+        while (!isEmpty() && _endp.isOpen())
+            blockForOutput(maxIdleTime);
+
+        if (_head)
+        {
+            _contentWritten += length;
+            return;
+        }
+
+        ChannelEndPoint endp=(ChannelEndPoint)_endp;
+        long end=position+length;
+        try
+        {
+            while (position<end)
+            {
+                if (!_endp.isOpen())
+                    throw new EofException();
+
+                long len=endp.transferFrom(file,position,end-position);
+                if (len>0)
+                {
+                    position+=len;
+                    _contentWritten+=len;
+                }
+                else if (position>=file.size())
+                    throw new EofException("truncated "+file);
+                else if (!_endp.isBlocking() && !_endp.blockWritable(maxIdleTime))
+                {
+                    _endp.close();
+                    throw new EofException("timeout");
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            Log.ignore(e);
+            throw (e instanceof EofException) ? e:new EofException(e);
+        }
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * Add content.
@@ -835,6 +1043,30 @@ public class HttpGenerator extends AbstractGenerator
 
             int total= 0;
 
+            // Hold back a small complete response behind which another request is pipelined
+            if (_pipelined)
+                total=hold();
+
+            // Write held responses ahead of this response
+            if (total==0 && isHeld())
+            {
+                int len = writeHeld();
+                if (len > 0)
+                    total+=len;
+                if (isHeld())
+                    return total;
+            }
+
+            // Gather the queued content or the content with buffered content
+            if (_bypass && (!_queue.isEmpty() || _buffer != null && _buffer.length() > 0))
+            {
+                int len = writeGathered();
+                if (len > 0)
+                    total+=len;
+                if (!isEmpty())
+                    return total;
+            }
+
             int len = -1;
             int to_flush = ((_header != null && _header.length() > 0)?4:0) | ((_buffer != null && _buffer.length() > 0)?2:0) | ((_bypass && _content != null && _content.length() > 0)?1:0);
             switch (to_flush)
@@ -913,6 +1145,97 @@ public class HttpGenerator extends AbstractGenerator
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Write the header, buffered content, content and queued content with a gathering write.
+     * @return the number of bytes written
+     */
+    private int writeGathered() throws IOException
+    {
+        Buffer[] buffers = new Buffer[3 + _queue.size()];
+        buffers[0] = _header;
+        buffers[1] = _buffer;
+        buffers[2] = _content;
+        for (int i = 0; i < _queue.size(); i++)
+            buffers[3 + i] = _queue.get(i);
+
+        int len = _endp.flush(buffers);
+
+        // Move on to the next queued content
+        while ((_content == null || _content.length() == 0) && !_queue.isEmpty())
+            _content = _queue.remove(0);
+        return len;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Copy the remainder of a complete response to the held buffer.
+     * @return the number of bytes held, or 0 if the response was not held
+     */
+    private int hold()
+    {
+        if (_state != STATE_FLUSHING || _needCRLF || _needEOC || !isPersistent() || _bufferChunked || !_queue.isEmpty())
+            return 0;
+        if (!_bypass && _content != null && _content.length() > 0)
+            return 0;
+
+        int length = (_header == null?0:_header.length()) + (_buffer == null?0:_buffer.length()) + (_bypass && _content != null?_content.length():0);
+        if (length == 0)
+            return 0;
+        if (_held == null)
+            _held = _buffers.getHeader();
+        _held.compact();
+        if (length > _held.space())
+            return 0;
+
+        if (_header != null && _header.length() > 0)
+            _held.put(_header);
+        if (_buffer != null && _buffer.length() > 0)
+            _held.put(_buffer);
+        if (_bypass && _content != null && _content.length() > 0)
+        {
+            _held.put(_content);
+            _content.skip(_content.length());
+        }
+        if (_header != null)
+            _header.clear();
+        if (_buffer != null)
+            _buffer.clear();
+        return length;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Write the held responses together with the start of this response.
+     * @return the number of bytes written
+     */
+    private int writeHeld() throws IOException
+    {
+        // Move a small header to the held buffer so that the content can be gathered with it
+        if (_header != null && _header.length() > 0)
+        {
+            _held.compact();
+            if (_header.length() <= _held.space())
+            {
+                _held.put(_header);
+                _header.clear();
+            }
+        }
+
+        Buffer next = null;
+        if (_header != null && _header.length() > 0)
+            next = _header;
+        else if (_buffer != null && _buffer.length() > 0)
+            next = _buffer;
+        else if (_bypass && _content != null && _content.length() > 0)
+            next = _content;
+
+        int len = _endp.flush(_held, next, null);
+        if (_held.length() == 0)
+            _held.clear();
+        return len;
+    }
+
     /* ------------------------------------------------------------ */
     private void prepareBuffers()
     {
@@ -920,7 +1243,7 @@ public class HttpGenerator extends AbstractGenerator
         if (!_bufferChunked)
         {
             // Refill buffer if possible
-            if (_content != null && _content.length() > 0 && _buffer != null && _buffer.space() > 0)
+            if (!_bypass && _content != null && _content.length() > 0 && _buffer != null && _buffer.space() > 0)
             {
                 int len = _buffer.put(_content);
                 _content.skip(len);
@@ -1022,16 +1345,21 @@ public class HttpGenerator extends AbstractGenerator
 
     public int getBytesBuffered()
     {
+        int queued=0;
+        for (int i=0;i<_queue.size();i++)
+            queued+=_queue.get(i).length();
         return(_header==null?0:_header.length())+
         (_buffer==null?0:_buffer.length())+
-        (_content==null?0:_content.length());
+        (_content==null?0:_content.length())+
+        queued;
     }
 
     public boolean isEmpty()
     {
         return (_header==null||_header.length()==0) &&
         (_buffer==null||_buffer.length()==0) &&
-        (_content==null||_content.length()==0);
+        (_content==null||_content.length()==0) &&
+        _queue.isEmpty();
     }
 
     @Override
@@ -26,7 +26,8 @@ import org.eclipse.jetty.util.log.Log;
  * Cached HTTP Header values.
  * This class caches the conversion of common HTTP Header values to and from {@link ByteArrayBuffer} instances.
  * The resource "/org/eclipse/jetty/useragents" is checked for a list of common user agents, so that repeated
- * creation of strings for these agents can be avoided.
+ * creation of strings for these agents can be avoided.  Common values of the Accept headers sent by
+ * browsers are also cached, so that parsing them does not allocate.
  * 
  * 
  */
@@ -79,6 +80,25 @@ public class HttpHeaderValues extends BufferCache
         CACHE.add("gzip",index++);
         CACHE.add("gzip,deflate",index++);
         CACHE.add("deflate",index++);
+        CACHE.add("gzip, deflate",index++);
+        CACHE.add("gzip,deflate,sdch",index++);
+        CACHE.add("gzip, deflate, sdch",index++);
+        CACHE.add("gzip, deflate, br",index++);
+        CACHE.add("deflate, gzip",index++);
+        CACHE.add("*/*",index++);
+        CACHE.add("text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",index++);
+        CACHE.add("text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8",index++);
+        CACHE.add("image/png,image/*;q=0.8,*/*;q=0.5",index++);
+        CACHE.add("text/css,*/*;q=0.1",index++);
+        CACHE.add("application/json",index++);
+        CACHE.add("ISO-8859-1,utf-8;q=0.7,*;q=0.7",index++);
+        CACHE.add("ISO-8859-1,utf-8;q=0.7,*;q=0.3",index++);
+        CACHE.add("en-us,en;q=0.5",index++);
+        CACHE.add("en-US,en;q=0.8",index++);
+        CACHE.add("en-US,en;q=0.9",index++);
+        CACHE.add("en-us",index++);
+        CACHE.add("en",index++);
+        CACHE.add("max-age=0",index++);
 
         InputStream ua = HttpHeaderValues.class.getResourceAsStream("/org/eclipse/jetty/http/useragents");
         try
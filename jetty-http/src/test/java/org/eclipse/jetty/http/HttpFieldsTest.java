@@ -27,6 +27,7 @@ import org.junit.Test;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -269,6 +270,37 @@ public class HttpFieldsTest
         assertEquals(false, e.hasMoreElements());
     }
 
+    @Test
+    public void testRecycle() throws Exception
+    {
+        HttpFields fields = new HttpFields();
+        ByteArrayBuffer buf = new ByteArrayBuffer(512);
+        buf.put("X-Request-Id1234keep-alive5678".getBytes());
+        View name = new View.CaseInsensitive(buf);
+        View value = new View.CaseInsensitive(buf);
+
+        // Each request is parsed into the same views over the connection buffer
+        String id = null;
+        for (int r=0;r<4;r++)
+        {
+            fields.clear();
+            name.update(0,12);
+            value.update(r<2?12:26,r<2?16:30);
+            fields.add(name,value);
+            fields.add(HttpHeaders.CONNECTION_BUFFER,r==2?HttpHeaderValues.KEEP_ALIVE_BUFFER:(Buffer)new View.CaseInsensitive(buf,-1,16,26,Buffer.READONLY));
+
+            assertEquals(2,fields.size());
+            assertEquals(r<2?"1234":"5678",fields.getStringField("x-request-id"));
+            assertEquals("keep-alive",fields.getStringField(HttpHeaders.CONNECTION));
+            if (r==1)
+                assertSame(id,fields.getStringField("X-REQUEST-ID"));
+            if (r==0)
+                id=fields.getStringField("X-Request-Id");
+        }
+        assertNull(fields.getStringField("X-Request"));
+        assertNull(fields.getStringField("X-Request-Ids"));
+    }
+
     @Test
     public void testDestroy() throws Exception
     {
@@ -353,6 +385,8 @@ public class HttpFieldsTest
         assertTrue(((CachedBuffer)HttpHeaderValues.CACHE.lookup("unknown value")).getOrdinal()<0);
         assertTrue(((CachedBuffer)HttpHeaderValues.CACHE.lookup("close")).getOrdinal()>=0);
         assertTrue(((CachedBuffer)HttpHeaderValues.CACHE.lookup("Mozilla/4.0 (compatible; MSIE 7.0; Windows NT 5.1)")).getOrdinal()>=0);
+        assertTrue(HttpHeaderValues.CACHE.getOrdinal(new ByteArrayBuffer("Gzip, Deflate"))>=0);
+        assertTrue(HttpHeaderValues.CACHE.getOrdinal(new ByteArrayBuffer("unknown value"))<0);
     }
 
     @Test
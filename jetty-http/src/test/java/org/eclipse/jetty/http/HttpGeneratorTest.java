@@ -14,6 +14,8 @@
 package org.eclipse.jetty.http;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.ByteArrayBuffer;
@@ -58,6 +60,126 @@ public class HttpGeneratorTest
         assertTrue(endp.getOut().toString().indexOf("Content-Length")==-1);
     }
 
+    @Test
+    public void testPipelinedResponsesHeld() throws Exception
+    {
+        Buffer bb=new ByteArrayBuffer(8096);
+        Buffer sb=new ByteArrayBuffer(1500);
+        ByteArrayEndPoint endp = new ByteArrayEndPoint(new byte[0],4096);
+        HttpGenerator hg = new HttpGenerator(new SimpleBuffers(sb,bb),endp);
+
+        for (int i=1;i<=3;i++)
+        {
+            hg.setPipelined(i<3);
+            hg.setResponse(200,null);
+            HttpFields fields = new HttpFields();
+            fields.putLongField("Content-Length",1);
+            hg.completeHeader(fields,false);
+            hg.addContent(new ByteArrayBuffer(String.valueOf(i)),true);
+            hg.complete();
+            assertTrue(hg.isComplete());
+
+            if (i<3)
+            {
+                assertTrue(hg.isHeld());
+                assertEquals(0,endp.getOut().length());
+            }
+            hg.reset(false);
+        }
+
+        assertFalse(hg.isHeld());
+        String out = endp.getOut().toString();
+        assertTrue(out.indexOf("\r\n\r\n1HTTP/1.1 200 OK")>0);
+        assertTrue(out.indexOf("\r\n\r\n2HTTP/1.1 200 OK")>0);
+        assertTrue(out.endsWith("\r\n\r\n3"));
+    }
+
+    @Test
+    public void testPipelinedResponseFlushHeld() throws Exception
+    {
+        Buffer bb=new ByteArrayBuffer(8096);
+        Buffer sb=new ByteArrayBuffer(1500);
+        ByteArrayEndPoint endp = new ByteArrayEndPoint(new byte[0],4096);
+        HttpGenerator hg = new HttpGenerator(new SimpleBuffers(sb,bb),endp);
+
+        hg.setPipelined(true);
+        hg.setResponse(200,null);
+        hg.completeHeader(new HttpFields(),true);
+        hg.complete();
+        assertTrue(hg.isHeld());
+        assertEquals(0,endp.getOut().length());
+
+        assertTrue(hg.flushHeld()>0);
+        assertFalse(hg.isHeld());
+        assertTrue(endp.getOut().toString().startsWith("HTTP/1.1 200 OK"));
+    }
+
+    @Test
+    public void testPipelinedResponseReleaseHeld() throws Exception
+    {
+        Buffer bb=new ByteArrayBuffer(8096);
+        Buffer sb=new ByteArrayBuffer(1500);
+        ByteArrayEndPoint endp = new ByteArrayEndPoint(new byte[0],4096);
+        final List<Buffer> returned = new ArrayList<Buffer>();
+        SimpleBuffers buffers = new SimpleBuffers(sb,bb)
+        {
+            @Override
+            public void returnBuffer(Buffer buffer)
+            {
+                returned.add(buffer);
+                super.returnBuffer(buffer);
+            }
+        };
+        HttpGenerator hg = new HttpGenerator(buffers,endp);
+
+        hg.setPipelined(true);
+        hg.setResponse(200,null);
+        hg.completeHeader(new HttpFields(),true);
+        hg.complete();
+        assertTrue(hg.isHeld());
+        int before=returned.size();
+
+        // The held buffer goes back to the pool when the connection closes
+        hg.releaseHeld();
+        assertFalse(hg.isHeld());
+        assertEquals(0,endp.getOut().length());
+        assertEquals(before+1,returned.size());
+    }
+
+    @Test
+    public void testGatheredContent() throws Exception
+    {
+        Buffer bb=new ByteArrayBuffer(8096);
+        Buffer sb=new ByteArrayBuffer(1500);
+        ByteArrayEndPoint endp = new ByteArrayEndPoint(new byte[0],4096);
+        HttpGenerator hg = new HttpGenerator(new SimpleBuffers(sb,bb),endp);
+
+        Buffer content=new ByteArrayBuffer("0123456789");
+        Buffer[] parts={new ByteArrayBuffer("<"),new View(content,-1,2,5,Buffer.READONLY),null,new ByteArrayBuffer("|"),new View(content,-1,7,9,Buffer.READONLY),new ByteArrayBuffer(">")};
+
+        hg.setResponse(200,null);
+        HttpFields fields = new HttpFields();
+        fields.putLongField("Content-Length",8);
+        hg.completeHeader(fields,false);
+        assertTrue(hg.addContent(parts,true));
+        hg.complete();
+        assertTrue(hg.isComplete());
+
+        // The content was written from the parts, not copied into the buffer
+        assertEquals(0,bb.putIndex());
+        for (Buffer part : parts)
+            assertTrue(part==null || part.length()==0);
+        assertEquals(10,content.length());
+        assertTrue(endp.getOut().toString().endsWith("\r\n\r\n<234|78>"));
+
+        // Chunked content cannot be gathered
+        hg.reset(true);
+        endp.reset();
+        hg.setResponse(200,null);
+        hg.completeHeader(new HttpFields(),false);
+        assertFalse(hg.addContent(new Buffer[]{new ByteArrayBuffer("a"),new ByteArrayBuffer("b")},true));
+    }
+
     @Test
     public void testHTTP() throws Exception
     {
@@ -126,6 +126,51 @@ public class PathMapTest extends TestCase
         assertTrue("!match *.foo", !PathMap.match("*.foo", "anything.bar"));
     }
 
+    @Test
+    public void testCompiledPathMap() throws Exception
+    {
+        PathMap p = new PathMap();
+
+        p.put("/abs/path", "1");
+        p.put("/abs/path/longer", "2");
+        p.put("/animal/bird/*", "3");
+        p.put("/animal/fish/*", "4");
+        p.put("/animal/*", "5");
+        p.put("*.tar.gz", "6");
+        p.put("*.gz", "7");
+        p.put("/XXX:/YYY", "9");
+
+        String[] paths = {
+                        "/abs/path", "/abs/path/xxx", "/abs/pith", "/abs/path/longer", "/abs/path/",
+                        "/animal/bird/eagle/bald", "/animal/fish/shark/grey", "/animal/insect/bug",
+                        "/animal", "/animal/", "/animal/x", "/animal/*", "/animalx", "/animal.gz",
+                        "/suffix/path.tar.gz", "/suffix/path.gz", "/suffix/path.tar.gz/x", "/suffix.tar/gz",
+                        "/animal/path.gz", "/Other/path", "/XXX", "/YYY", "/XXX/", ".gz", "/.gz", "x.gz", "/", "", null};
+
+        // no default, default and prefix default
+        for (int i = 0; i < 3; i++)
+        {
+            if (i == 1)
+                p.put("/", "8");
+            else if (i == 2)
+                p.put("/*", "0");
+
+            CompiledPathMap compiled = new CompiledPathMap(p);
+            assertEquals(p.size(), compiled.size());
+            for (String path : paths)
+            {
+                assertSame(path, p.getMatch(path), compiled.getMatch(path));
+                assertEquals(path, p.match(path), compiled.match(path));
+            }
+        }
+
+        // a compiled map does not see later changes
+        CompiledPathMap compiled = new CompiledPathMap(p);
+        p.put("/abs/path/xxx", "10");
+        assertEquals("0", compiled.match("/abs/path/xxx"));
+        assertEquals("10", new CompiledPathMap(p).match("/abs/path/xxx"));
+    }
+
     /**
      * See JIRA issue: JETTY-88.
      */
@@ -104,9 +104,10 @@ public class BufferCache
     {
         if (buffer instanceof CachedBuffer)
             return ((CachedBuffer)buffer).getOrdinal();
-        buffer=lookup(buffer);
-        if (buffer!=null && buffer instanceof CachedBuffer)
-            return ((CachedBuffer)buffer).getOrdinal();
+        // get rather than lookup, so that a miss does not create a view
+        CachedBuffer cached=get(buffer);
+        if (cached!=null)
+            return cached.getOrdinal();
         return -1;
     }
     
@@ -246,6 +246,30 @@ public class ByteArrayEndPoint implements ConnectedEndPoint
         return flushed;
     }
 
+    /* ------------------------------------------------------------ */
+    /* 
+     * @see org.eclipse.io.EndPoint#flush(org.eclipse.io.Buffer[])
+     */
+    public int flush(Buffer[] buffers) throws IOException
+    {
+        if (_closed)
+            throw new IOException("CLOSED");
+
+        int flushed=0;
+        for (int i=0;i<buffers.length;i++)
+        {
+            Buffer buffer=buffers[i];
+            if (buffer!=null && buffer.length()>0)
+            {
+                flushed+=flush(buffer);
+                if (buffer.length()>0)
+                    break;
+            }
+        }
+
+        return flushed;
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * 
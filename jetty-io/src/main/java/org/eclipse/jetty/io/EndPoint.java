@@ -68,6 +68,16 @@ public interface EndPoint
      */
     int flush(Buffer header, Buffer buffer, Buffer trailer) throws IOException;
 
+    /**
+     * Flush the buffers in order, each from its current getIndex to its putIndex, using whatever
+     * byte sink is backing the buffers. The getIndex of each buffer is updated with the number of
+     * bytes flushed from it, and a buffer is only flushed once all the buffers before it have been
+     * flushed. This may be done as a single gather write or as several writes.
+     * @param buffers The buffers to flush. Null or empty buffers are skipped.
+     * @return the total number of bytes written.
+     */
+    int flush(Buffer[] buffers) throws IOException;
+
     
     /* ------------------------------------------------------------ */
     /**
@@ -0,0 +1,392 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/* ------------------------------------------------------------ */
+/** Shared Buffer pool.
+ * <p>
+ * A lock free pool of buffers that is shared by all threads, so that buffers
+ * held by parked connections can be reused by any other connection.
+ * Header buffers (as created by {@link #newHeader(int)}) and content buffers
+ * (as created by {@link #newBuffer(int)}, which may be direct NIO buffers) are kept
+ * in separate pools.  Requests for buffers of other sizes are rounded up to a
+ * power of two size class between {@link #getMinClassSize()} and
+ * {@link #getMaxClassSize()}, each of which is also pooled.  Larger buffers are not pooled.
+ * <p>
+ * The memory held by each pool is limited to {@link #getMaxClassBytes()}, after which
+ * returned buffers are discarded.
+ */
+public abstract class PooledBuffers implements Buffers
+{
+    private int _bufferSize=12*1024;
+    private int _headerSize=6*1024;
+    private int _minClassSize=1024;
+    private int _maxClassSize=64*1024;
+    private long _maxClassBytes=8*1024*1024;
+
+    private volatile Pool _headers;
+    private volatile Pool _buffers;
+    private volatile Pool[] _classes;
+
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _discards = new AtomicLong();
+
+    /* ------------------------------------------------------------ */
+    public PooledBuffers()
+    {
+        newPools();
+    }
+
+    /* ------------------------------------------------------------ */
+    public Buffer getBuffer()
+    {
+        Buffer b=_buffers.poll();
+        if (b!=null)
+        {
+            _hits.incrementAndGet();
+            return b;
+        }
+        _misses.incrementAndGet();
+        return newBuffer(_bufferSize);
+    }
+
+    /* ------------------------------------------------------------ */
+    public Buffer getHeader()
+    {
+        Buffer b=_headers.poll();
+        if (b!=null)
+        {
+            _hits.incrementAndGet();
+            return b;
+        }
+        _misses.incrementAndGet();
+        return newHeader(_headerSize);
+    }
+
+    /* ------------------------------------------------------------ */
+    public Buffer getBuffer(int size)
+    {
+        if (size==_bufferSize)
+            return getBuffer();
+
+        Pool pool=getClassPool(size);
+        if (pool==null)
+        {
+            _misses.incrementAndGet();
+            return newBuffer(size);
+        }
+
+        Buffer b=pool.poll();
+        if (b!=null)
+        {
+            _hits.incrementAndGet();
+            return b;
+        }
+        _misses.incrementAndGet();
+        return newBuffer(pool._capacity);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void returnBuffer(Buffer buffer)
+    {
+        buffer.clear();
+        if (buffer.isVolatile() || buffer.isImmutable())
+            return;
+
+        int size=buffer.capacity();
+
+        Pool pool;
+        if (size==_headerSize && isHeader(buffer))
+            pool=_headers;
+        else if (size==_bufferSize)
+            pool=_buffers;
+        else
+        {
+            pool=getClassPool(size);
+            if (pool!=null && pool._capacity!=size)
+                pool=null;
+        }
+
+        if (pool==null || !pool.offer(buffer))
+            _discards.incrementAndGet();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size the minimum capacity required
+     * @return the pool of the smallest size class that can hold size bytes, or null if size is too large to be pooled.
+     */
+    private Pool getClassPool(int size)
+    {
+        Pool[] classes=_classes;
+        for (int i=0;i<classes.length;i++)
+            if (classes[i]._capacity>=size)
+                return classes[i];
+        return null;
+    }
+
+    /* ------------------------------------------------------------ */
+    private void newPools()
+    {
+        _headers=new Pool(_headerSize);
+        _buffers=new Pool(_bufferSize);
+
+        int n=0;
+        for (int s=_minClassSize;s>0 && s<=_maxClassSize;s<<=1)
+            n++;
+        Pool[] classes=new Pool[n];
+        int s=_minClassSize;
+        for (int i=0;i<n;i++,s<<=1)
+            classes[i]=new Pool(s);
+        _classes=classes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return Returns the buffer size in bytes.
+     */
+    public int getBufferSize()
+    {
+        return _bufferSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return Returns the header size in bytes.
+     */
+    public int getHeaderSize()
+    {
+        return _headerSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The size in bytes of the smallest size class.
+     */
+    public int getMinClassSize()
+    {
+        return _minClassSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The size in bytes of the largest size class. Larger buffers are not pooled.
+     */
+    public int getMaxClassSize()
+    {
+        return _maxClassSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of bytes held by the pool of each size class.
+     */
+    public long getMaxClassBytes()
+    {
+        return _maxClassBytes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size The buffer size in bytes
+     */
+    public void setBufferSize( int size )
+    {
+        _bufferSize = size;
+        newPools();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size The header size in bytes
+     */
+    public void setHeaderSize( int size )
+    {
+        _headerSize = size;
+        newPools();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size The size in bytes of the smallest size class, which is rounded up to a power of 2.
+     * @throws IllegalArgumentException if the size is less than 1
+     */
+    public void setMinClassSize(int size)
+    {
+        if (size<1)
+            throw new IllegalArgumentException("size<1: "+size);
+        _minClassSize=size==1?1:Integer.highestOneBit(size-1)<<1;
+        newPools();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size The size in bytes of the largest size class.
+     */
+    public void setMaxClassSize(int size)
+    {
+        _maxClassSize=size;
+        newPools();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param bytes The maximum number of bytes held by the pool of each size class.
+     */
+    public void setMaxClassBytes(long bytes)
+    {
+        _maxClassBytes=bytes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of buffer requests satisfied from the pool
+     */
+    public long getHits()
+    {
+        return _hits.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of buffer requests that required a new buffer
+     */
+    public long getMisses()
+    {
+        return _misses.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of returned buffers that were not pooled
+     */
+    public long getDiscards()
+    {
+        return _discards.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of buffers currently held by all the pools
+     */
+    public int getBuffersHeld()
+    {
+        int held=_headers._count.get()+_buffers._count.get();
+        Pool[] classes=_classes;
+        for (int i=0;i<classes.length;i++)
+            held+=classes[i]._count.get();
+        return held;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of bytes currently held by all the pools
+     */
+    public long getBytesHeld()
+    {
+        long held=_headers.getBytesHeld()+_buffers.getBytesHeld();
+        Pool[] classes=_classes;
+        for (int i=0;i<classes.length;i++)
+            held+=classes[i].getBytesHeld();
+        return held;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Reset the hit, miss and discard counters.
+     */
+    public void statsReset()
+    {
+        _hits.set(0);
+        _misses.set(0);
+        _discards.set(0);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Create a new content Buffer
+     * @param size
+     * @return new Buffer
+     */
+    protected abstract Buffer newBuffer(int size);
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Create a new header Buffer
+     * @param size
+     * @return new Buffer
+     */
+    protected abstract Buffer newHeader(int size);
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param buffer
+     * @return True if the buffer is the correct type to be a Header buffer
+     */
+    protected abstract boolean isHeader(Buffer buffer);
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public String toString()
+    {
+        return "{{"+getHeaderSize()+","+getBufferSize()+"},"+getBuffersHeld()+"/"+getBytesHeld()+"}";
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private class Pool
+    {
+        final int _capacity;
+        final ConcurrentLinkedQueue<Buffer> _queue = new ConcurrentLinkedQueue<Buffer>();
+        final AtomicInteger _count = new AtomicInteger();
+
+        Pool(int capacity)
+        {
+            _capacity=capacity;
+        }
+
+        Buffer poll()
+        {
+            Buffer b=_queue.poll();
+            if (b!=null)
+                _count.decrementAndGet();
+            return b;
+        }
+
+        boolean offer(Buffer buffer)
+        {
+            while (true)
+            {
+                int count=_count.get();
+                if ((long)(count+1)*_capacity>_maxClassBytes)
+                    return false;
+                if (_count.compareAndSet(count,count+1))
+                    break;
+            }
+            _queue.offer(buffer);
+            return true;
+        }
+
+        long getBytesHeld()
+        {
+            return (long)_count.get()*_capacity;
+        }
+    }
+}
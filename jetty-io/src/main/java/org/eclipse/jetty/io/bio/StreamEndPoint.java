@@ -172,6 +172,31 @@ public class StreamEndPoint implements EndPoint
         return len;
     }
 
+    /* (non-Javadoc)
+     * @see org.eclipse.io.EndPoint#flush(org.eclipse.io.Buffer[])
+     */
+    public int flush(Buffer[] buffers) throws IOException
+    {
+        int len=0;
+        for (int i=0;i<buffers.length;i++)
+        {
+            Buffer buffer=buffers[i];
+            if (buffer==null)
+                continue;
+            int tw=buffer.length();
+            if (tw>0)
+            {
+                int f=flush(buffer);
+                if (f<0)
+                    return len>0?len:f;
+                len+=f;
+                if (f<tw)
+                    return len;
+            }
+        }
+        return len;
+    }
+
     /* ------------------------------------------------------------ */
     /*
      * @see org.eclipse.io.EndPoint#getLocalAddr()
@@ -18,6 +18,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SocketChannel;
@@ -216,11 +217,41 @@ public class ChannelEndPoint implements EndPoint
         return len;
     }
 
+    /* ------------------------------------------------------------ */
+    /** Transfer bytes from a file directly to the channel.
+     * The bytes are not copied through a {@link Buffer} and may not be copied through user space
+     * at all (eg with sendfile).
+     * @param file The file to transfer from
+     * @param position The position within the file of the first byte to transfer
+     * @param count The maximum number of bytes to transfer
+     * @return The number of bytes transferred, which may be 0 if the channel is not blocking.
+     * @throws IOException
+     * @see FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)
+     */
+    public long transferFrom(FileChannel file, long position, long count) throws IOException
+    {
+        return file.transferTo(position,count,_channel);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return True if {@link #transferFrom(FileChannel, long, long)} may be used to 
+     * transfer file content to the channel.
+     */
+    public boolean isTransferSupported()
+    {
+        return true;
+    }
+
     /* (non-Javadoc)
      * @see org.eclipse.io.EndPoint#flush(org.eclipse.io.Buffer, org.eclipse.io.Buffer, org.eclipse.io.Buffer)
      */
     public int flush(Buffer header, Buffer buffer, Buffer trailer) throws IOException
     {
+        // A trailer cannot be gathered with the header and buffer below
+        if (trailer!=null && trailer.length()>0)
+            return flush(new Buffer[]{header,buffer,trailer});
+
         int length=0;
 
         Buffer buf0 = header==null?null:header.buffer();
@@ -261,7 +292,7 @@ public class ChannelEndPoint implements EndPoint
                             int hl=header.length();
                             if (length>hl)
                             {
-                                header.clear();
+                                header.skip(hl);
                                 buffer.skip(length-hl);
                             }
                             else if (length>0)
@@ -322,6 +353,85 @@ public class ChannelEndPoint implements EndPoint
         return length;
     }
 
+    /* (non-Javadoc)
+     * @see org.eclipse.io.EndPoint#flush(org.eclipse.io.Buffer[])
+     */
+    public int flush(Buffer[] buffers) throws IOException
+    {
+        // Can the buffers be written with a single gathering write?
+        int count=0;
+        boolean gather=_channel instanceof GatheringByteChannel;
+        for (int i=0;i<buffers.length;i++)
+        {
+            Buffer buffer=buffers[i];
+            if (buffer!=null && buffer.length()>0)
+            {
+                count++;
+                if (!(buffer.buffer() instanceof NIOBuffer) && buffer.array()==null)
+                    gather=false;
+            }
+        }
+
+        if (!gather || count<2)
+        {
+            int length=0;
+            for (int i=0;i<buffers.length;i++)
+            {
+                Buffer buffer=buffers[i];
+                if (buffer==null)
+                    continue;
+                int tw=buffer.length();
+                if (tw>0)
+                {
+                    int f=flush(buffer);
+                    if (f<0)
+                        return length>0?length:f;
+                    length+=f;
+                    if (f<tw)
+                        break;
+                }
+            }
+            return length;
+        }
+
+        // Duplicates are used so that shared buffers (eg cached content) are not modified.
+        ByteBuffer[] gathered=new ByteBuffer[count];
+        count=0;
+        for (int i=0;i<buffers.length;i++)
+        {
+            Buffer buffer=buffers[i];
+            if (buffer==null || buffer.length()==0)
+                continue;
+            Buffer buf=buffer.buffer();
+            ByteBuffer bbuf;
+            if (buf instanceof NIOBuffer)
+            {
+                bbuf=((NIOBuffer)buf).getByteBuffer().duplicate();
+                bbuf.limit(buffer.putIndex());
+                bbuf.position(buffer.getIndex());
+            }
+            else
+                bbuf=ByteBuffer.wrap(buffer.array(),buffer.getIndex(),buffer.length());
+            gathered[count++]=bbuf;
+        }
+
+        long length=((GatheringByteChannel)_channel).write(gathered);
+
+        // Consume the written bytes from the buffers in order
+        long remaining=length;
+        for (int i=0;i<buffers.length && remaining>0;i++)
+        {
+            Buffer buffer=buffers[i];
+            if (buffer==null || buffer.length()==0)
+                continue;
+            int skip=(int)Math.min(remaining,buffer.length());
+            buffer.skip(skip);
+            remaining-=skip;
+        }
+
+        return (int)length;
+    }
+
     /**
      * @return Returns the channel.
      */
@@ -268,6 +268,24 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements AsyncEndPo
         return l;
     }
 
+    /* ------------------------------------------------------------ */
+    /*
+     */
+    @Override
+    public int flush(Buffer[] buffers) throws IOException
+    {
+        int l = super.flush(buffers);
+        if (!(_writable=l!=0))
+        {
+            synchronized (this)
+            {
+                if (!_dispatched)
+                    updateKey();
+            }
+        }
+        return l;
+    }
+
     /* ------------------------------------------------------------ */
     /*
      */
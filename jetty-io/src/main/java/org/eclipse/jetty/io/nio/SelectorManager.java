@@ -23,6 +23,8 @@ import java.nio.channels.SocketChannel;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.jetty.io.ConnectedEndPoint;
 import org.eclipse.jetty.io.Connection;
@@ -31,6 +33,7 @@ import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.thread.Timeout;
 import org.eclipse.jetty.util.thread.Timeout.Task;
+import org.eclipse.jetty.util.thread.TimingWheelTimeout;
 
 
 /* ------------------------------------------------------------ */
@@ -50,6 +53,11 @@ public abstract class SelectorManager extends AbstractLifeCycle
     private static final int __BUSY_PAUSE=Integer.getInteger("org.mortbay.io.nio.BUSY_PAUSE",50).intValue();
     private static final int __BUSY_KEY=Integer.getInteger("org.mortbay.io.nio.BUSY_KEY",-1).intValue();
     private static final int __IDLE_TICK=Integer.getInteger("org.mortbay.io.nio.IDLE_TICK",400).intValue();
+
+    /** New connections are registered with each select set in turn */
+    public static final int ROUND_ROBIN=0;
+    /** New connections are registered with the select set that has the fewest connections */
+    public static final int LEAST_LOADED=1;
     
     private int _maxIdleTime;
     private int _lowResourcesMaxIdleTime;
@@ -57,6 +65,12 @@ public abstract class SelectorManager extends AbstractLifeCycle
     private SelectSet[] _selectSet;
     private int _selectSets=1;
     private volatile int _set;
+    private boolean _timingWheel;
+    private int _spreadPolicy=ROUND_ROBIN;
+    private final AtomicLong _registered = new AtomicLong();
+    private long _rateStart=System.currentTimeMillis();
+    private long _rateRegistered;
+    private long _rate;
     
     /* ------------------------------------------------------------ */
     /**
@@ -97,6 +111,25 @@ public abstract class SelectorManager extends AbstractLifeCycle
         return _selectSets;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if the select sets schedule timeouts with a {@link TimingWheelTimeout}
+     */
+    public boolean isTimingWheel()
+    {
+        return _timingWheel;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param timingWheel If true, the select sets schedule timeouts with a {@link TimingWheelTimeout}, 
+     * which has O(1) schedule and cancel, rather than a sorted {@link Timeout} list.
+     */
+    public void setTimingWheel(boolean timingWheel)
+    {
+        _timingWheel=timingWheel;
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @param i 
@@ -107,6 +140,28 @@ public abstract class SelectorManager extends AbstractLifeCycle
         return _selectSet[i];
     }
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The policy used to spread new connections over the select sets: 
+     * {@link #ROUND_ROBIN} or {@link #LEAST_LOADED}.
+     */
+    public int getSpreadPolicy()
+    {
+        return _spreadPolicy;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param spreadPolicy The policy used to spread new connections over the select sets: 
+     * {@link #ROUND_ROBIN} or {@link #LEAST_LOADED}.
+     */
+    public void setSpreadPolicy(int spreadPolicy)
+    {
+        if (spreadPolicy!=ROUND_ROBIN && spreadPolicy!=LEAST_LOADED)
+            throw new IllegalArgumentException("spreadPolicy");
+        _spreadPolicy=spreadPolicy;
+    }
+
     /* ------------------------------------------------------------ */
     /** Register a channel
      * @param channel
@@ -114,47 +169,27 @@ public abstract class SelectorManager extends AbstractLifeCycle
      */
     public void register(SocketChannel channel, Object att)
     {
-        // The ++ increment here is not atomic, but it does not matter.
-        // so long as the value changes sometimes, then connections will
-        // be distributed over the available sets.
-        
-        int s=_set++; 
-        s=s%_selectSets;
         SelectSet[] sets=_selectSet;
         if (sets!=null)
-        {
-            SelectSet set=sets[s];
-            set.addChange(channel,att);
-            set.wakeup();
-        }
+            register(chooseSelectSet(sets,null),channel,att);
     }
 
     
     /* ------------------------------------------------------------ */
     /** Register a channel
      * @param channel
-     * @param att Attached Object
      */
     public void register(SocketChannel channel)
     {
-        // The ++ increment here is not atomic, but it does not matter.
-        // so long as the value changes sometimes, then connections will
-        // be distributed over the available sets.
-        
-        int s=_set++; 
-        s=s%_selectSets;
         SelectSet[] sets=_selectSet;
         if (sets!=null)
-        {
-            SelectSet set=sets[s];
-            set.addChange(channel);
-            set.wakeup();
-        }
+            register(chooseSelectSet(sets,null),channel,null);
     }
     
     /* ------------------------------------------------------------ */
-    /** Register a {@link ServerSocketChannel}
-     * @param acceptChannel
+    /** Register a {@link ServerSocketChannel} with a single select set.
+     * Accepted connections are spread over the select sets by the {@link #getSpreadPolicy() spread policy}.
+     * @param acceptChannel A non blocking channel
      */
     public void register(ServerSocketChannel acceptChannel)
     {
@@ -165,6 +200,126 @@ public abstract class SelectorManager extends AbstractLifeCycle
         set.wakeup();
     }
 
+    /* ------------------------------------------------------------ */
+    /** Register a {@link ServerSocketChannel} with every select set.
+     * Each select set accepts connections from the channel, so there is no single
+     * accepting thread. With the {@link #ROUND_ROBIN} policy, accepted connections are
+     * kept by the select set that accepted them. With the {@link #LEAST_LOADED} policy, 
+     * they are registered with the select set that has the fewest connections.
+     * @param acceptChannel A non blocking channel
+     */
+    public void registerWithAll(ServerSocketChannel acceptChannel)
+    {
+        for (SelectSet set : _selectSet)
+        {
+            set.addChange(acceptChannel);
+            set.wakeup();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private void register(SelectSet set, SocketChannel channel, Object att)
+    {
+        _registered.incrementAndGet();
+        if (!(att instanceof EndPoint))
+            set._registering.incrementAndGet();
+        set.addChange(channel,att);
+        set.wakeup();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param sets The select sets
+     * @param local The select set that accepted the connection or null
+     * @return The select set with which to register a new connection
+     */
+    private SelectSet chooseSelectSet(SelectSet[] sets, SelectSet local)
+    {
+        if (_spreadPolicy==LEAST_LOADED)
+        {
+            SelectSet least=local==null?sets[0]:local;
+            int load=least.getLoad();
+            for (SelectSet set : sets)
+            {
+                int l=set.getLoad();
+                if (l<load)
+                {
+                    least=set;
+                    load=l;
+                }
+            }
+            return least;
+        }
+
+        if (local!=null)
+            return local;
+
+        // The ++ increment here is not atomic, but it does not matter.
+        // so long as the value changes sometimes, then connections will
+        // be distributed over the available sets.
+        int s=_set++; 
+        s=s%sets.length;
+        return sets[s];
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Accept a connection from a {@link ServerSocketChannel} registered with 
+     * {@link #register(ServerSocketChannel)} or {@link #registerWithAll(ServerSocketChannel)}.
+     * @param key The key of the accepting channel
+     * @return A non blocking connected channel or null if no connection was pending.
+     * @throws IOException
+     */
+    protected SocketChannel acceptChannel(SelectionKey key) throws IOException
+    {
+        SocketChannel channel = ((ServerSocketChannel)key.channel()).accept();
+        if (channel!=null)
+            channel.configureBlocking(false);
+        return channel;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The total number of channels registered
+     */
+    public long getRegistered()
+    {
+        return _registered.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of channels registered per second, averaged over the 
+     * period since the rate was last calculated, which is at least 1 second.
+     */
+    public synchronized long getRegisterRate()
+    {
+        long now=System.currentTimeMillis();
+        long elapsed=now-_rateStart;
+        if (elapsed>=1000)
+        {
+            long registered=_registered.get();
+            _rate=(registered-_rateRegistered)*1000/elapsed;
+            _rateRegistered=registered;
+            _rateStart=now;
+        }
+        return _rate;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of connections of each select set, or null if not started.
+     */
+    public int[] getSelectSetConnections()
+    {
+        SelectSet[] sets=_selectSet;
+        if (sets==null)
+            return null;
+        int[] connections=new int[sets.length];
+        for (int i=0;i<sets.length;i++)
+            connections[i]=sets[i].getConnections();
+        return connections;
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @return the lowResourcesConnections
@@ -337,6 +492,7 @@ public abstract class SelectorManager extends AbstractLifeCycle
         private int _jvmFix2;
         private volatile long _idleTick;
         private ConcurrentMap<SelectChannelEndPoint,Object> _endPoints = new ConcurrentHashMap<SelectChannelEndPoint, Object>();
+        private final AtomicInteger _registering = new AtomicInteger();
         
         /* ------------------------------------------------------------ */
         SelectSet(int acceptorID) throws Exception
@@ -344,7 +500,7 @@ public abstract class SelectorManager extends AbstractLifeCycle
             _setID=acceptorID;
 
             _idleTick = System.currentTimeMillis();
-            _timeout = new Timeout(this);
+            _timeout = _timingWheel?new TimingWheelTimeout(this):new Timeout(this);
             _timeout.setDuration(0L);
 
             // create a selector;
@@ -403,6 +559,8 @@ public abstract class SelectorManager extends AbstractLifeCycle
                             final ChannelAndAttachment asc = (ChannelAndAttachment)change;
                             final SelectableChannel channel=asc._channel;
                             final Object att = asc._attachment;
+                            if (channel instanceof SocketChannel)
+                                _registering.decrementAndGet();
                             SelectionKey key = channel.register(selector,SelectionKey.OP_READ,att);
                             SelectChannelEndPoint endpoint = createEndPoint((SocketChannel)channel,key);
                             key.attach(endpoint);
@@ -412,11 +570,18 @@ public abstract class SelectorManager extends AbstractLifeCycle
                         {
                             // Newly registered channel
                             final SocketChannel channel=(SocketChannel)change;
+                            _registering.decrementAndGet();
                             SelectionKey key = channel.register(selector,SelectionKey.OP_READ,null);
                             SelectChannelEndPoint endpoint = createEndPoint(channel,key);
                             key.attach(endpoint);
                             endpoint.schedule();
                         }
+                        else if (change instanceof ServerSocketChannel)
+                        {
+                            // Newly registered accepting channel
+                            final ServerSocketChannel channel=(ServerSocketChannel)change;
+                            channel.register(selector,SelectionKey.OP_ACCEPT,null);
+                        }
                         else if (change instanceof Runnable)
                         {
                             dispatch((Runnable)change);
@@ -500,6 +665,20 @@ public abstract class SelectorManager extends AbstractLifeCycle
                         {
                             ((SelectChannelEndPoint)att).schedule();
                         }
+                        else if (key.isAcceptable())
+                        {
+                            // Accept a single connection, so that when several select sets
+                            // share the accepting channel, a storm of connections is shared.
+                            SocketChannel channel = acceptChannel(key);
+                            if (channel!=null)
+                            {
+                                SelectSet[] sets=_selectSet;
+                                if (sets!=null)
+                                    register(chooseSelectSet(sets,this),channel,null);
+                                else
+                                    channel.close();
+                            }
+                        }
                         else
                         {
                             // Wrap readable registered channel in an endpoint
@@ -648,6 +827,10 @@ public abstract class SelectorManager extends AbstractLifeCycle
                             final SelectableChannel channel = k.channel();
                             final Object attachment = k.attachment();
 
+                            // Channels that are registered again are counted as registering,
+                            // as they are when first registered, so that the load is not skewed 
+                            if (channel instanceof SocketChannel && !(attachment instanceof EndPoint))
+                                _registering.incrementAndGet();
                             if (attachment==null)
                                 addChange(channel);
                             else
@@ -744,6 +927,24 @@ public abstract class SelectorManager extends AbstractLifeCycle
             task.cancel();
         }
 
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The number of connections of this select set.
+         */
+        public int getConnections()
+        {
+            return _endPoints.size();
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The number of connections of this select set, including those waiting to be registered.
+         */
+        private int getLoad()
+        {
+            return _endPoints.size()+_registering.get();
+        }
+
         /* ------------------------------------------------------------ */
         public void wakeup()
         {
@@ -15,8 +15,11 @@ package org.eclipse.jetty.io.nio;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
@@ -29,6 +32,7 @@ import org.eclipse.jetty.io.Buffers;
 import org.eclipse.jetty.io.EofException;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.ThreadPool;
 
 /* ------------------------------------------------------------ */
 /**
@@ -37,6 +41,20 @@ import org.eclipse.jetty.util.log.Logger;
  * A SelectChannelEndPoint that uses an {@link SSLEngine} to handle an
  * SSL connection.
  * <p>
+ * Reads and writes are locked separately, so that a thread filling from an endpoint
+ * does not block a thread flushing to it, except when the {@link SSLEngine} needs to
+ * wrap while reading during a handshake. The read lock may be acquired before the
+ * write lock, but not after it.
+ * <p>
+ * The buffers of encrypted input and output are taken from the {@link Buffers} only
+ * while they hold data, and are returned when they are empty, so that an idle connection
+ * does not hold any buffers.
+ * <p>
+ * The delegated tasks of the {@link SSLEngine}, which do the expensive key exchange
+ * computations of a handshake, may be run by a {@link #setHandshakeThreadPool(ThreadPool) handshake
+ * thread pool} rather than the thread handling the connection, which then returns to 
+ * the selector until the tasks are complete and the endpoint is dispatched again.
+ * <p>
  * There is a named logger "org.eclipse.jetty.http.ssl"
  * </p>
  */
@@ -50,17 +68,25 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
     
     private final SSLEngine _engine;
     private final SSLSession _session;
-    private volatile NIOBuffer _inNIOBuffer;
-    private volatile NIOBuffer _outNIOBuffer;
+    
+    private final Object _readLock=new Object();
+    private final Object _writeLock=new Object();
+    private volatile NIOBuffer _inNIOBuffer;   // guarded by _readLock
+    private volatile NIOBuffer _outNIOBuffer;  // guarded by _writeLock
 
-    private final ByteBuffer[] _gather=new ByteBuffer[2];
+    private final ByteBuffer[] _gather=new ByteBuffer[2];  // guarded by _writeLock
 
-    private boolean _closing=false;
-    private SSLEngineResult _result;
+    private volatile boolean _closing=false;
+    private volatile SSLEngineResult _result;
 
-    private boolean _handshook=false;
+    private volatile boolean _handshook=false;
     private boolean _allowRenegotiate=false;
 
+    private volatile HandshakeListener _handshakeListener;
+    private volatile ThreadPool _handshakeThreadPool;
+    private volatile long _handshakeStarted;   // 0 if not handshaking
+    private volatile boolean _handshakeDone=false;
+
     private final boolean _debug = __log.isDebugEnabled(); // snapshot debug status for optimizer 
 
     /* ------------------------------------------------------------ */
@@ -91,55 +117,75 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
         if (_debug) __log.debug(_session+" channel="+channel);
     }
     
-    int _outCount;
-    
     /* ------------------------------------------------------------ */
-    private void needOutBuffer()
+    /** 
+     * Called with the write lock held.
+     * @return the buffer of encrypted output, which is taken from the buffers if need be.
+     */
+    private NIOBuffer needOutBuffer()
     {
-        synchronized (this)
-        {
-            _outCount++;
-            if (_outNIOBuffer==null)
-                _outNIOBuffer=(NIOBuffer)_buffers.getBuffer(_session.getPacketBufferSize());
-        }
+        NIOBuffer out=_outNIOBuffer;
+        if (out==null)
+            _outNIOBuffer=out=(NIOBuffer)_buffers.getBuffer(_session.getPacketBufferSize());
+        return out;
     }
     
     /* ------------------------------------------------------------ */
+    /** 
+     * Return the buffer of encrypted output to the buffers if it is empty.
+     * Called with the write lock held.
+     */
     private void freeOutBuffer()
     {
-        synchronized (this)
-        { 
-            if (--_outCount<=0 && _outNIOBuffer!=null && _outNIOBuffer.length()==0)
-            {    
-                _buffers.returnBuffer(_outNIOBuffer);
-                _outNIOBuffer=null;
-                _outCount=0;
-            }
+        NIOBuffer out=_outNIOBuffer;
+        if (out!=null && out.length()==0)
+        {    
+            _outNIOBuffer=null;
+            _buffers.returnBuffer(out);
         }
     }
 
-    int _inCount;
     /* ------------------------------------------------------------ */
-    private void needInBuffer()
+    /** 
+     * Called with the read lock held.
+     * @return the buffer of encrypted input, which is taken from the buffers if need be.
+     */
+    private NIOBuffer needInBuffer()
+    {
+        NIOBuffer in=_inNIOBuffer;
+        if (in==null)
+            _inNIOBuffer=in=(NIOBuffer)_buffers.getBuffer(_session.getPacketBufferSize());
+        return in;
+    }
+    
+    /* ------------------------------------------------------------ */
+    /** 
+     * Return the buffer of encrypted input to the buffers if it is empty.
+     * Called with the read lock held.
+     */
+    private void freeInBuffer()
     {
-        synchronized (this)
+        NIOBuffer in=_inNIOBuffer;
+        if (in!=null && in.length()==0)
         {
-            _inCount++;
-            if(_inNIOBuffer==null)
-                _inNIOBuffer=(NIOBuffer)_buffers.getBuffer(_session.getPacketBufferSize());
+            _inNIOBuffer=null;
+            _buffers.returnBuffer(in);
         }
     }
     
     /* ------------------------------------------------------------ */
-    private void freeInBuffer()
+    /** 
+     * Discard any encrypted output, as the connection has failed.
+     */
+    private void discardOutBuffer()
     {
-        synchronized (this)
-        { 
-            if (--_inCount<=0 &&_inNIOBuffer!=null && _inNIOBuffer.length()==0)
+        synchronized (_writeLock)
+        {
+            NIOBuffer out=_outNIOBuffer;
+            if (out!=null)
             {
-                _buffers.returnBuffer(_inNIOBuffer);
-                _inNIOBuffer=null;
-                _inCount=0;
+                out.clear();
+                freeOutBuffer();
             }
         }
     }
@@ -166,6 +212,46 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
         _allowRenegotiate = allowRenegotiate;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the listener notified of the handshakes of this endpoint, or null
+     */
+    public HandshakeListener getHandshakeListener()
+    {
+        return _handshakeListener;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param listener the listener notified of the handshakes of this endpoint, or null
+     */
+    public void setHandshakeListener(HandshakeListener listener)
+    {
+        _handshakeListener=listener;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the thread pool that runs the delegated tasks of the initial handshake, 
+     * or null if they are run by the thread handling the endpoint.
+     */
+    public ThreadPool getHandshakeThreadPool()
+    {
+        return _handshakeThreadPool;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param pool the thread pool that runs the delegated tasks of the initial handshake, 
+     * or null if they are run by the thread handling the endpoint. The tasks of a 
+     * renegotiation are always run by the thread handling the endpoint, as it may be 
+     * blocked reading or writing application data.
+     */
+    public void setHandshakeThreadPool(ThreadPool pool)
+    {
+        _handshakeThreadPool=pool;
+    }
+
     /* ------------------------------------------------------------ */
     // TODO get rid of these dumps
     public void dump()
@@ -214,7 +300,12 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
                         try
                         {
                             ByteBuffer bbuffer = ((NIOBuffer)buffer).getByteBuffer();
-                            if (!unwrap(bbuffer) && _engine.getHandshakeStatus()==HandshakeStatus.NEED_UNWRAP)
+                            boolean progress;
+                            synchronized (_readLock)
+                            {
+                                progress=unwrap(bbuffer);
+                            }
+                            if (!progress && _engine.getHandshakeStatus()==HandshakeStatus.NEED_UNWRAP)
                             {
                                 break loop;
                             }
@@ -231,34 +322,26 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
                         
                     case NEED_TASK:
                     {
-                        Runnable task;
-                        while ((task=_engine.getDelegatedTask())!=null)
-                        {
-                            task.run();
-                        }
+                        // If the tasks are running on the handshake pool, give up on a clean close
+                        if (!runDelegatedTasks(false))
+                            break loop;
                         break;
                     }
                         
                     case NEED_WRAP:
                     {
-                        needOutBuffer();
-                        ByteBuffer out_buffer=_outNIOBuffer.getByteBuffer();
-                        try
-                        {   
-                            if (_outNIOBuffer.length()>0)
-                                flush();
-                            _outNIOBuffer.compact();
-                            int put=_outNIOBuffer.putIndex();
-                            out_buffer.position(put);
-                            _result=null;
-                            _result=_engine.wrap(__NO_BUFFERS,out_buffer);
-                            if (_debug) __log.debug(_session+" close wrap "+_result);
-                            _outNIOBuffer.setPutIndex(put+_result.bytesProduced());
-                        }
-                        finally
+                        synchronized (_writeLock)
                         {
-                            out_buffer.position(0);
-                            freeOutBuffer();
+                            try
+                            {   
+                                if (isBufferingOutput())
+                                    flush();
+                                wrapHandshake("close");
+                            }
+                            finally
+                            {
+                                freeOutBuffer();
+                            }
                         }
                         
                         break;
@@ -290,6 +373,19 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
         finally
         {
             super.close();
+            handshakeFailed(null);
+            
+            // Return the buffers, as the data they hold can no longer be read or written
+            synchronized (_readLock)
+            {
+                NIOBuffer in=_inNIOBuffer;
+                if (in!=null)
+                {
+                    in.clear();
+                    freeInBuffer();
+                }
+            }
+            discardOutBuffer();
         }   
     }
 
@@ -310,10 +406,10 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
         
         // remember the original size of the unencrypted buffer
         int size=buffer.length();
+        final int start=bbuf.position();
         
         HandshakeStatus initialStatus = _engine.getHandshakeStatus();
-        //noinspection SynchronizationOnLocalVariableOrMethodParameter
-        synchronized (bbuf)
+        synchronized (_readLock)
         {
             try
             {
@@ -353,6 +449,12 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
                             if (_closing)
                                 return -1;
                             
+                            // If no data has been unwrapped, but records that did not contain
+                            // data (eg post handshake messages) were, unwrap the records that 
+                            // are buffered, as no more data may arrive to cause another fill.
+                            if (bbuf.position()==start && isBufferingInput() && unwrap(bbuf))
+                                break;
+                            
                             // otherwise we break loop with the data we have unwrapped.
                             break loop;
 
@@ -371,13 +473,10 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
 
                         case NEED_TASK:
                         {
-                            // A task needs to be run, so run it!
-                            
-                            Runnable task;
-                            while ((task=_engine.getDelegatedTask())!=null)
-                            {
-                                task.run();
-                            }
+                            // A task needs to be run, so run it, or if it is run by the
+                            // handshake pool, wait to be dispatched when it is complete.
+                            if (!runDelegatedTasks(true))
+                                break loop;
                             
                             // Detect SUN JVM Bug!!!
                             if(initialStatus==HandshakeStatus.NOT_HANDSHAKING && 
@@ -399,40 +498,23 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
                             // The SSL needs to send some handshake data to the other side,
                             // so let fill become a flush for a little bit.
                             wraps++;
-                            needOutBuffer();
-                            ByteBuffer out_buffer=_outNIOBuffer.getByteBuffer();
-                            synchronized(out_buffer)
+                            synchronized (_writeLock)
                             {
-                                try
-                                {
-                                    // call wrap with empty application buffers, so it can
-                                    // generate required handshake messages into _outNIOBuffer
-                                    _outNIOBuffer.compact();
-                                    int put=_outNIOBuffer.putIndex();
-                                    out_buffer.position();
-                                    _result=null;
-                                    _result=_engine.wrap(__NO_BUFFERS,out_buffer);
-                                    if (_debug) __log.debug(_session+" fill wrap "+_result);
-                                    switch(_result.getStatus())
-                                    {
-                                        case BUFFER_OVERFLOW:
-                                        case BUFFER_UNDERFLOW:
-                                            Log.warn("wrap {}",_result);
-                                        case CLOSED:
-                                            _closing=true;
-                                    }
-                                    
-                                    _outNIOBuffer.setPutIndex(put+_result.bytesProduced());
-                                }
-                                finally
+                                // call wrap with empty application buffers, so it can
+                                // generate required handshake messages into _outNIOBuffer
+                                SSLEngineResult result=wrapHandshake("fill");
+                                switch(result.getStatus())
                                 {
-                                    out_buffer.position(0);
+                                    case BUFFER_OVERFLOW:
+                                    case BUFFER_UNDERFLOW:
+                                        Log.warn("wrap {}",result);
+                                    case CLOSED:
+                                        _closing=true;
                                 }
-                            }
 
-                            // flush the encrypted outNIOBuffer
-                            flush();
-                            freeOutBuffer();
+                                // flush the encrypted outNIOBuffer
+                                flush();
+                            }
                             
                             break;
                         }
@@ -443,6 +525,7 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
             {
                 Log.warn(e.toString());
                 Log.debug(e);
+                handshakeFailed(e);
                 throw e;
             }
             finally
@@ -460,6 +543,50 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /** 
+     * Transfer bytes from a file by reading them into a buffer and encrypting
+     * them, as file content cannot be written directly to the channel.
+     * @see #isTransferSupported()
+     */
+    @Override
+    public long transferFrom(FileChannel file, long position, long count) throws IOException
+    {
+        Buffer buffer=_buffers.getBuffer(_session.getApplicationBufferSize());
+        try
+        {
+            buffer.clear();
+            ByteBuffer bbuf=buffer instanceof NIOBuffer?((NIOBuffer)buffer).getByteBuffer().duplicate():ByteBuffer.wrap(buffer.array());
+            bbuf.clear();
+            bbuf.limit((int)Math.min(count,buffer.capacity()));
+            int read=file.read(bbuf,position);
+            if (read<=0)
+                return 0;
+            buffer.setPutIndex(read);
+
+            // Bytes read but not flushed are read again from the position of the next transfer
+            int flushed=flush(buffer);
+            if (flushed<0)
+                throw new EofException();
+            return flushed;
+        }
+        finally
+        {
+            _buffers.returnBuffer(buffer);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return false, as file content must be encrypted, so that 
+     * {@link #transferFrom(FileChannel, long, long)} copies it through a buffer.
+     */
+    @Override
+    public boolean isTransferSupported()
+    {
+        return false;
+    }
+
     /* ------------------------------------------------------------ */
     @Override
     public int flush(Buffer buffer) throws IOException
@@ -468,6 +595,40 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
     }
 
 
+    /* ------------------------------------------------------------ */
+    /** 
+     * The buffers are wrapped a pair at a time, as the engine wraps at most two buffers.
+     */
+    @Override
+    public int flush(Buffer[] buffers) throws IOException
+    {
+        int consumed=0;
+        Buffer header=null;
+        for (int i=0;i<=buffers.length;i++)
+        {
+            Buffer buffer=i<buffers.length?buffers[i]:null;
+            if (i<buffers.length && (buffer==null || buffer.length()==0))
+                continue;
+            if (header==null)
+            {
+                if (buffer==null)
+                    break;
+                header=buffer;
+                continue;
+            }
+
+            int available=header.length()+(buffer==null?0:buffer.length());
+            int c=flush(header,buffer,null);
+            if (c<0)
+                return consumed>0?consumed:c;
+            consumed+=c;
+            if (c<available)
+                break;
+            header=null;
+        }
+        return consumed;
+    }
+
     /* ------------------------------------------------------------ */
     /*     
      */
@@ -479,11 +640,9 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
         if (buffer!=null)
             available+=buffer.length();
         
-        needOutBuffer();
-        ByteBuffer out_buffer=_outNIOBuffer.getByteBuffer();
         loop: while (true)
         {   
-            if (_outNIOBuffer.length()>0)
+            if (isBufferingOutput())
             {
                 flush();
                 if (isBufferingOutput())
@@ -534,7 +693,12 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
                     try
                     {
                         ByteBuffer bbuf = ((NIOBuffer)buf).getByteBuffer();
-                        if (!unwrap(bbuf) && _engine.getHandshakeStatus()==HandshakeStatus.NEED_UNWRAP)
+                        boolean progress;
+                        synchronized (_readLock)
+                        {
+                            progress=unwrap(bbuf);
+                        }
+                        if (!progress && _engine.getHandshakeStatus()==HandshakeStatus.NEED_UNWRAP)
                         {
                             break loop;
                         }
@@ -548,40 +712,25 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
 
                 case NEED_TASK:
                 {
-                    Runnable task;
-                    while ((task=_engine.getDelegatedTask())!=null)
-                    {
-                        task.run();
-                    }
+                    // If the tasks are running on the handshake pool, wait to be called again
+                    if (!runDelegatedTasks(false))
+                        break loop;
                     break;
                 }
 
                 case NEED_WRAP:
                 {
                     checkRenegotiate();
-                    synchronized(out_buffer)
+                    synchronized (_writeLock)
                     {
-                        try
+                        SSLEngineResult result=wrapHandshake("flush");
+                        switch(result.getStatus())
                         {
-                            _outNIOBuffer.compact();
-                            int put=_outNIOBuffer.putIndex();
-                            out_buffer.position();
-                            _result=null;
-                            _result=_engine.wrap(__NO_BUFFERS,out_buffer);
-                            if (_debug) __log.debug(_session+" flush wrap "+_result);
-                            switch(_result.getStatus())
-                            {
-                                case BUFFER_OVERFLOW:
-                                case BUFFER_UNDERFLOW:
-                                    Log.warn("unwrap {}",_result);
-                                case CLOSED:
-                                    _closing=true;
-                            }
-                            _outNIOBuffer.setPutIndex(put+_result.bytesProduced());
-                        }
-                        finally
-                        {
-                            out_buffer.position(0);
+                            case BUFFER_OVERFLOW:
+                            case BUFFER_UNDERFLOW:
+                                Log.warn("unwrap {}",result);
+                            case CLOSED:
+                                _closing=true;
                         }
                     }
 
@@ -594,7 +743,6 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
             }
         }
 
-        freeOutBuffer();
         return consumed;
     }
     
@@ -602,23 +750,166 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
     @Override
     public void flush() throws IOException
     {
-        if (_outNIOBuffer==null)
-            return;
+        synchronized (_writeLock)
+        {
+            NIOBuffer out=_outNIOBuffer;
+            if (out==null)
+                return;
+
+            int len=out.length();
+            if (out.hasContent())
+            {
+                int flushed=super.flush(out);
+                if (_debug) __log.debug(_session+" Flushed "+flushed+"/"+len);
+                if (out.hasContent())
+                {
+                    // Try again after yield.... cheaper than a reschedule.
+                    Thread.yield();
+                    flushed=super.flush(out);
+                    if (_debug) __log.debug(_session+" flushed "+flushed+"/"+len);
+                }
+            }
+            freeOutBuffer();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * Wrap handshake or close messages, with no application data, after any 
+     * encrypted output that has not been flushed.
+     * Called with the write lock held.
+     * @param context the context for debug logging
+     * @return the result of the wrap
+     */
+    private SSLEngineResult wrapHandshake(String context) throws IOException
+    {
+        NIOBuffer out=needOutBuffer();
+        ByteBuffer out_buffer=out.getByteBuffer();
+        try
+        {
+            out.compact();
+            int put=out.putIndex();
+            out_buffer.limit(out_buffer.capacity());
+            out_buffer.position(put);
+            SSLEngineResult result=_engine.wrap(__NO_BUFFERS,out_buffer);
+            _result=result;
+            if (_debug) __log.debug(_session+" "+context+" wrap "+result);
+            handshakeProgress(result);
+            out.setPutIndex(put+result.bytesProduced());
+            return result;
+        }
+        finally
+        {
+            out_buffer.position(0);
+        }
+    }
+    
+    /* ------------------------------------------------------------ */
+    /**
+     * Run the delegated tasks of the engine.
+     * @param offload true if the tasks may be run by the handshake thread pool, in which
+     * case the endpoint is dispatched again when they are complete.
+     * @return true if the tasks have been run, false if they are being run by the handshake 
+     * thread pool.
+     */
+    private boolean runDelegatedTasks(boolean offload)
+    {
+        final ThreadPool pool=_handshakeThreadPool;
+        Runnable task=_engine.getDelegatedTask();
         
-        int len=_outNIOBuffer.length();
-        if (isBufferingOutput())
+        // The engine is still waiting for the tasks given to the pool
+        if (task==null)
+            return pool==null || _engine.getHandshakeStatus()!=HandshakeStatus.NEED_TASK;
+
+        if (offload && pool!=null && !_handshakeDone)
         {
-            int flushed=super.flush(_outNIOBuffer);
-            if (_debug) __log.debug(_session+" Flushed "+flushed+"/"+len);
-            if (isBufferingOutput())
+            final List<Runnable> tasks=new ArrayList<Runnable>();
+            while (task!=null)
+            {
+                tasks.add(task);
+                task=_engine.getDelegatedTask();
+            }
+
+            if (pool.dispatch(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (Runnable task : tasks)
+                            task.run();
+                    }
+                    finally
+                    {
+                        dispatch();
+                    }
+                }
+            }))
+            {
+                if (_debug) __log.debug(_session+" dispatched "+tasks.size()+" tasks");
+                return false;
+            }
+
+            for (Runnable t : tasks)
+                t.run();
+            return true;
+        }
+        
+        while (task!=null)
+        {
+            task.run();
+            task=_engine.getDelegatedTask();
+        }
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Track the start and completion of handshakes from the result of a wrap or unwrap.
+     */
+    private void handshakeProgress(SSLEngineResult result)
+    {
+        switch(result.getHandshakeStatus())
+        {
+            case NOT_HANDSHAKING:
+                break;
+
+            case FINISHED:
             {
-                // Try again after yield.... cheaper than a reschedule.
-                Thread.yield();
-                flushed=super.flush(_outNIOBuffer);
-                if (_debug) __log.debug(_session+" flushed "+flushed+"/"+len);
+                long started=_handshakeStarted;
+                _handshakeStarted=0;
+                _handshakeDone=true;
+                
+                HandshakeListener listener=_handshakeListener;
+                if (listener!=null && started!=0)
+                {
+                    // A resumed session was created by an earlier handshake
+                    SSLSession session=_engine.getSession();
+                    listener.handshakeCompleted(this,System.currentTimeMillis()-started,session.getCreationTime()<started);
+                }
+                break;
             }
+            
+            default:
+                // A renegotiation has started, unless the engine is closing
+                if (_handshakeStarted==0 && result.getStatus()!=SSLEngineResult.Status.CLOSED)
+                    _handshakeStarted=System.currentTimeMillis();
         }
     }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Notify the listener if a handshake is in progress.
+     * @param cause the cause of the failure, or null if the endpoint was closed
+     */
+    private void handshakeFailed(Throwable cause)
+    {
+        long started=_handshakeStarted;
+        _handshakeStarted=0;
+        HandshakeListener listener=_handshakeListener;
+        if (started!=0 && listener!=null)
+            listener.handshakeFailed(this,cause);
+    }
     
     /* ------------------------------------------------------------ */
     private void checkRenegotiate() throws IOException
@@ -642,26 +933,27 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
 
     /* ------------------------------------------------------------ */
     /**
+     * Called with the read lock held.
      * @return true if progress is made
      */
     private boolean unwrap(ByteBuffer buffer) throws IOException
     {
-        needInBuffer();
-        ByteBuffer in_buffer=_inNIOBuffer.getByteBuffer();
+        NIOBuffer in=needInBuffer();
+        ByteBuffer in_buffer=in.getByteBuffer();
         
-        if (_inNIOBuffer.hasContent())
-            _inNIOBuffer.compact();
+        if (in.hasContent())
+            in.compact();
         else 
-            _inNIOBuffer.clear();
+            in.clear();
 
         int total_filled=0;
         
         // loop filling as much encrypted data as we can into the buffer
-        while (_inNIOBuffer.space()>0 && super.isOpen())
+        while (in.space()>0 && super.isOpen())
         {
             try
             {
-                int filled=super.fill(_inNIOBuffer);
+                int filled=super.fill(in);
                 if (_debug) __log.debug(_session+" unwrap filled "+filled);
                 // break the loop if no progress is made (we have read everything
                 // there is to read).
@@ -671,13 +963,10 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
             }
             catch(IOException e)
             {
-                if (_inNIOBuffer.length()==0)
+                if (in.length()==0)
                 {
-                    if (_outNIOBuffer!=null)
-                    {
-                        _outNIOBuffer.clear();
-                        freeOutBuffer();
-                    }
+                    freeInBuffer();
+                    discardOutBuffer();
                     throw e;
                 }
                 break;
@@ -685,227 +974,217 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
         }
         
         // If we have no progress and no data
-        if (total_filled==0 && _inNIOBuffer.length()==0)
+        if (total_filled==0 && in.length()==0)
         {
+            freeInBuffer();
             if(!isOpen())
-            {
-                freeOutBuffer();
                 throw new EofException();
-            }
             return false;
         }
 
         // We have some in data, so try to unwrap it.
+        SSLEngineResult result;
         try
         {
             // inBuffer is the NIO buffer inside the _inNIOBuffer,
             // so update its position and limit from the inNIOBuffer.
-            in_buffer.position(_inNIOBuffer.getIndex());
-            in_buffer.limit(_inNIOBuffer.putIndex());
-            _result=null;
+            in_buffer.position(in.getIndex());
+            in_buffer.limit(in.putIndex());
             
+            // The initial handshake starts when the first data is received
+            if (!_handshakeDone && _handshakeStarted==0)
+                _handshakeStarted=System.currentTimeMillis();
+
             // Do the unwrap
-            _result=_engine.unwrap(in_buffer,buffer);
-            if (_debug) __log.debug(_session+" unwrap unwrap "+_result);
+            result=_engine.unwrap(in_buffer,buffer);
+            _result=result;
+            if (_debug) __log.debug(_session+" unwrap unwrap "+result);
+            handshakeProgress(result);
             
             // skip the bytes consumed
-            _inNIOBuffer.skip(_result.bytesConsumed());
+            in.skip(result.bytesConsumed());
         }
         finally
         {
             // reset the buffer so it can be managed by the _inNIOBuffer again.
             in_buffer.position(0);
             in_buffer.limit(in_buffer.capacity());
-            freeInBuffer();
         }
 
         // handle the unwrap results
-        switch(_result.getStatus())
+        switch(result.getStatus())
         {
             case BUFFER_OVERFLOW:
-                throw new IllegalStateException(_result.toString()+" "+buffer.position()+" "+buffer.limit());
+                freeInBuffer();
+                throw new IllegalStateException(result.toString()+" "+buffer.position()+" "+buffer.limit());
                 
             case BUFFER_UNDERFLOW:
                 // Not enough data, 
                 // If we are closed, we will never get more, so EOF
                 // else return and we will be tried again
                 // later when more data arriving causes another dispatch.
-                if (Log.isDebugEnabled()) Log.debug("unwrap {}",_result);
+                if (Log.isDebugEnabled()) Log.debug("unwrap {}",result);
                 if(!isOpen())
                 {
-                    _inNIOBuffer.clear();
-                    if (_outNIOBuffer!=null)
-                        _outNIOBuffer.clear();
+                    in.clear();
+                    freeInBuffer();
+                    discardOutBuffer();
                     throw new EofException();
                 }
+                freeInBuffer();
                 return (total_filled > 0);
                 
             case CLOSED:
                 _closing=true;
+                freeInBuffer();
                 // return true is some bytes somewhere were moved about.
-                return total_filled>0 ||_result.bytesConsumed()>0 || _result.bytesProduced()>0;
+                return total_filled>0 ||result.bytesConsumed()>0 || result.bytesProduced()>0;
             case OK:
+                freeInBuffer();
                 // return true is some bytes somewhere were moved about.
-                return total_filled>0 ||_result.bytesConsumed()>0 || _result.bytesProduced()>0;
+                return total_filled>0 ||result.bytesConsumed()>0 || result.bytesProduced()>0;
             default:
-                Log.warn("unwrap "+_result);
-                throw new IOException(_result.toString());
+                freeInBuffer();
+                Log.warn("unwrap "+result);
+                throw new IOException(result.toString());
         }
     }
 
     
     /* ------------------------------------------------------------ */
+    /**
+     * @return a ByteBuffer of the content of the buffer. The NIO buffer of the
+     * buffer is duplicated, as it may be shared with other connections.
+     */
     private ByteBuffer extractOutputBuffer(Buffer buffer)
     {
+        ByteBuffer bbuf;
         if (buffer.buffer() instanceof NIOBuffer)
-            return ((NIOBuffer)buffer.buffer()).getByteBuffer();
-        
-        return ByteBuffer.wrap(buffer.array());
+            bbuf=((NIOBuffer)buffer.buffer()).getByteBuffer().duplicate();
+        else
+            bbuf=ByteBuffer.wrap(buffer.array());
+        bbuf.limit(buffer.putIndex());
+        bbuf.position(buffer.getIndex());
+        return bbuf;
     }
 
     /* ------------------------------------------------------------ */
     private int wrap(final Buffer header, final Buffer buffer) throws IOException
     {
-        _gather[0]=extractOutputBuffer(header);
-        
-        synchronized(_gather[0])
+        SSLEngineResult result;
+        synchronized (_writeLock)
         {
-            _gather[0].position(header.getIndex());
-            _gather[0].limit(header.putIndex());
-
+            _gather[0]=extractOutputBuffer(header);
             _gather[1]=extractOutputBuffer(buffer);
-
-            synchronized(_gather[1])
+            try
             {
-                _gather[1].position(buffer.getIndex());
-                _gather[1].limit(buffer.putIndex());
-
-                needOutBuffer();
-                ByteBuffer out_buffer=_outNIOBuffer.getByteBuffer();
-                synchronized(out_buffer)
-                {
-                    int consumed=0;
-                    try
-                    {
-                        _outNIOBuffer.clear();
-                        out_buffer.position(0);
-                        out_buffer.limit(out_buffer.capacity());
-
-                        _result=null;
-                        _result=_engine.wrap(_gather,out_buffer);
-                        if (_debug) __log.debug(_session+" wrap wrap "+_result);
-                        _outNIOBuffer.setGetIndex(0);
-                        _outNIOBuffer.setPutIndex(_result.bytesProduced());
-                        consumed=_result.bytesConsumed();
-                    }
-                    finally
-                    {
-                        out_buffer.position(0);
-
-                        if (consumed>0)
-                        {
-                            int len=consumed<header.length()?consumed:header.length();
-                            header.skip(len);
-                            consumed-=len;
-                            _gather[0].position(0);
-                            _gather[0].limit(_gather[0].capacity());
-                        }
-                        if (consumed>0)
-                        {
-                            int len=consumed<buffer.length()?consumed:buffer.length();
-                            buffer.skip(len);
-                            consumed-=len;
-                            _gather[1].position(0);
-                            _gather[1].limit(_gather[1].capacity());
-                        }
-                        assert consumed==0;
-                        
-                        freeOutBuffer();
-                    }
-                }
+                result=wrap(_gather);
+            }
+            finally
+            {
+                _gather[0]=null;
+                _gather[1]=null;
             }
         }
         
-
-        switch(_result.getStatus())
+        int consumed=result.bytesConsumed();
+        if (consumed>0)
         {
-            case BUFFER_OVERFLOW:
-            case BUFFER_UNDERFLOW:
-                Log.warn("unwrap {}",_result);
-                
-            case OK:
-                return _result.bytesConsumed();
-            case CLOSED:
-                _closing=true;
-                return _result.bytesConsumed()>0?_result.bytesConsumed():-1;
-
-            default:
-                Log.warn("wrap "+_result);
-            throw new IOException(_result.toString());
+            int len=consumed<header.length()?consumed:header.length();
+            header.skip(len);
+            consumed-=len;
         }
+        if (consumed>0)
+        {
+            int len=consumed<buffer.length()?consumed:buffer.length();
+            buffer.skip(len);
+            consumed-=len;
+        }
+        assert consumed==0;
+        
+        return wrapped(result);
     }
 
     /* ------------------------------------------------------------ */
     private int wrap(final Buffer buffer) throws IOException
     {
-        _gather[0]=extractOutputBuffer(buffer);
-        synchronized(_gather[0])
+        SSLEngineResult result;
+        synchronized (_writeLock)
         {
-            ByteBuffer bb;
-            
-            _gather[0].position(buffer.getIndex());
-            _gather[0].limit(buffer.putIndex());
-
-            int consumed=0;
-            needOutBuffer();
-            ByteBuffer out_buffer=_outNIOBuffer.getByteBuffer();
-            synchronized(out_buffer)
+            _gather[0]=extractOutputBuffer(buffer);
+            _gather[1]=null;
+            try
             {
-                try
-                {
-                    _outNIOBuffer.clear();
-                    out_buffer.position(0);
-                    out_buffer.limit(out_buffer.capacity());
-                    _result=null;
-                    _result=_engine.wrap(_gather[0],out_buffer);
-                    if (_debug) __log.debug(_session+" wrap wrap "+_result);
-                    _outNIOBuffer.setGetIndex(0);
-                    _outNIOBuffer.setPutIndex(_result.bytesProduced());
-                    consumed=_result.bytesConsumed();
-                }
-                finally
-                {
-                    out_buffer.position(0);
-
-                    if (consumed>0)
-                    {
-                        int len=consumed<buffer.length()?consumed:buffer.length();
-                        buffer.skip(len);
-                        consumed-=len;
-                        _gather[0].position(0);
-                        _gather[0].limit(_gather[0].capacity());
-                    }
-                    assert consumed==0;
-                    
-                    freeOutBuffer();
-                }
+                result=wrap(_gather);
             }
+            finally
+            {
+                _gather[0]=null;
+            }
+        }
+        
+        buffer.skip(result.bytesConsumed());
+        return wrapped(result);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * Wrap application data into the buffer of encrypted output, after any
+     * encrypted output that has not been flushed.
+     * Called with the write lock held.
+     * @param gather the application data, with a null terminating element if there is only one buffer
+     * @return the result of the wrap
+     */
+    private SSLEngineResult wrap(ByteBuffer[] gather) throws IOException
+    {
+        // A fill may have wrapped handshake messages since the caller last flushed
+        if (isBufferingOutput())
+            flush();
+
+        NIOBuffer out=needOutBuffer();
+        ByteBuffer out_buffer=out.getByteBuffer();
+        try
+        {
+            out.compact();
+            int put=out.putIndex();
+            out_buffer.limit(out_buffer.capacity());
+            out_buffer.position(put);
+            
+            SSLEngineResult result=gather[1]==null?_engine.wrap(gather[0],out_buffer):_engine.wrap(gather,out_buffer);
+            _result=result;
+            if (_debug) __log.debug(_session+" wrap wrap "+result);
+            handshakeProgress(result);
+            out.setPutIndex(put+result.bytesProduced());
+            return result;
         }
-        switch(_result.getStatus())
+        finally
+        {
+            out_buffer.position(0);
+            freeOutBuffer();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return the number of bytes of application data consumed, or -1 if the engine is closed.
+     */
+    private int wrapped(SSLEngineResult result) throws IOException
+    {
+        switch(result.getStatus())
         {
             case BUFFER_OVERFLOW:
             case BUFFER_UNDERFLOW:
-                Log.warn("unwrap {}",_result);
+                Log.warn("unwrap {}",result);
                 
             case OK:
-                return _result.bytesConsumed();
+                return result.bytesConsumed();
             case CLOSED:
                 _closing=true;
-                return _result.bytesConsumed()>0?_result.bytesConsumed():-1;
+                return result.bytesConsumed()>0?result.bytesConsumed():-1;
 
             default:
-                Log.warn("wrap "+_result);
-            throw new IOException(_result.toString());
+                Log.warn("wrap "+result);
+            throw new IOException(result.toString());
         }
     }
 
@@ -913,16 +1192,23 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
     @Override
     public boolean isBufferingInput()
     {
-        final Buffer in = _inNIOBuffer;
-        return in==null?false:_inNIOBuffer.hasContent();
+        // Checked with the lock held, as the buffer may be returned to the buffers when empty
+        synchronized (_readLock)
+        {
+            final NIOBuffer in=_inNIOBuffer;
+            return in==null?false:in.hasContent();
+        }
     }
 
     /* ------------------------------------------------------------ */
     @Override
     public boolean isBufferingOutput()
     {
-        final NIOBuffer b=_outNIOBuffer;
-        return b==null?false:b.hasContent();
+        synchronized (_writeLock)
+        {
+            final NIOBuffer out=_outNIOBuffer;
+            return out==null?false:out.hasContent();
+        }
     }
 
     /* ------------------------------------------------------------ */
@@ -945,6 +1231,31 @@ public class SslSelectChannelEndPoint extends SelectChannelEndPoint
         final NIOBuffer i=_inNIOBuffer;
         final NIOBuffer o=_outNIOBuffer;
         return super.toString()+","+_engine.getHandshakeStatus()+", in/out="+
-        (i==null?0:_inNIOBuffer.length())+"/"+(o==null?0:o.length())+" "+_result;
+        (i==null?0:i.length())+"/"+(o==null?0:o.length())+" "+_result;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * A listener notified of the handshakes of an endpoint.
+     */
+    public interface HandshakeListener
+    {
+        /* ------------------------------------------------------------ */
+        /**
+         * @param endpoint the endpoint
+         * @param duration the time in ms from the first handshake message being 
+         * received to the handshake completing.
+         * @param resumed true if the session of an earlier handshake was resumed, false
+         * if it was a full handshake.
+         */
+        void handshakeCompleted(SslSelectChannelEndPoint endpoint, long duration, boolean resumed);
+        
+        /* ------------------------------------------------------------ */
+        /**
+         * @param endpoint the endpoint
+         * @param cause the cause of the failure, or null if the connection was closed
+         * during the handshake.
+         */
+        void handshakeFailed(SslSelectChannelEndPoint endpoint, Throwable cause);
     }
 }
@@ -15,6 +15,7 @@ import java.util.concurrent.atomic.AtomicReference;
 import javax.net.ServerSocketFactory;
 
 import org.eclipse.jetty.io.bio.SocketEndPoint;
+import org.eclipse.jetty.io.nio.ChannelEndPoint;
 import org.eclipse.jetty.io.nio.IndirectNIOBuffer;
 import org.eclipse.jetty.io.nio.SelectChannelEndPoint;
 import org.eclipse.jetty.io.nio.SelectorManager;
@@ -54,6 +55,38 @@ public class EndPointTest
         
         check(in,out);
     }
+
+    @Test
+    public void testChannelEndPointGather() throws Exception
+    {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(null);
+        SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+        SocketChannel accepted = server.accept();
+
+        EndPoint out = new ChannelEndPoint(client);
+        EndPoint in = new ChannelEndPoint(accepted);
+
+        Buffer shared = new ByteArrayBuffer("Now is the time");
+        Buffer nio = new IndirectNIOBuffer(64);
+        nio.put(new ByteArrayBuffer(" for all good men"));
+        Buffer[] buffers = {new ByteArrayBuffer(">"),new View(shared),null,nio,new ByteArrayBuffer(0),new ByteArrayBuffer("<")};
+
+        int lo=out.flush(buffers);
+        Assert.assertEquals(34,lo);
+        for (Buffer buffer : buffers)
+            Assert.assertTrue(buffer==null || buffer.length()==0);
+        Assert.assertEquals(15,shared.length());
+
+        Buffer receive = new IndirectNIOBuffer(4096);
+        while (receive.length()<lo)
+            in.fill(receive);
+        Assert.assertEquals(">Now is the time for all good men<",receive.toString());
+
+        in.close();
+        out.close();
+        server.close();
+    }
     
     
     private void check(EndPoint in, EndPoint out) throws Exception
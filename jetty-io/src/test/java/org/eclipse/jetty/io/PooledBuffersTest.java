@@ -0,0 +1,170 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.io;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PooledBuffersTest
+{
+    private InnerBuffers _buffers;
+
+    @Before
+    public void init()
+    {
+        _buffers = new InnerBuffers();
+        _buffers.setHeaderSize(1024);
+        _buffers.setBufferSize(4096);
+    }
+
+    @Test
+    public void testHeaderAndBuffer() throws Exception
+    {
+        Buffer header=_buffers.getHeader();
+        Buffer buffer=_buffers.getBuffer();
+        assertTrue(header instanceof HeaderBuffer);
+        assertFalse(buffer instanceof HeaderBuffer);
+        assertEquals(1024,header.capacity());
+        assertEquals(4096,buffer.capacity());
+        assertEquals(0,_buffers.getHits());
+        assertEquals(2,_buffers.getMisses());
+
+        _buffers.returnBuffer(header);
+        _buffers.returnBuffer(buffer);
+        assertEquals(2,_buffers.getBuffersHeld());
+        assertEquals(1024+4096,_buffers.getBytesHeld());
+
+        assertSame(header,_buffers.getHeader());
+        assertSame(buffer,_buffers.getBuffer());
+        assertEquals(2,_buffers.getHits());
+        assertEquals(0,_buffers.getBuffersHeld());
+    }
+
+    @Test
+    public void testSharedBetweenThreads() throws Exception
+    {
+        final Buffer[] buffer=new Buffer[1];
+        Thread thread = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                buffer[0]=_buffers.getBuffer();
+                _buffers.returnBuffer(buffer[0]);
+            }
+        };
+        thread.start();
+        thread.join();
+
+        assertSame(buffer[0],_buffers.getBuffer());
+    }
+
+    @Test
+    public void testMinClassSize() throws Exception
+    {
+        _buffers.setMinClassSize(1);
+        assertEquals(1,_buffers.getMinClassSize());
+        _buffers.setMinClassSize(1000);
+        assertEquals(1024,_buffers.getMinClassSize());
+        _buffers.setMinClassSize(1024);
+        assertEquals(1024,_buffers.getMinClassSize());
+        try
+        {
+            _buffers.setMinClassSize(0);
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSizeClasses() throws Exception
+    {
+        Buffer small=_buffers.getBuffer(100);
+        assertEquals(1024,small.capacity());
+        Buffer medium=_buffers.getBuffer(5000);
+        assertEquals(8192,medium.capacity());
+        Buffer large=_buffers.getBuffer(1024*1024);
+        assertEquals(1024*1024,large.capacity());
+
+        _buffers.returnBuffer(small);
+        _buffers.returnBuffer(medium);
+        _buffers.returnBuffer(large);
+        assertEquals(2,_buffers.getBuffersHeld());
+        assertEquals(1,_buffers.getDiscards());
+
+        assertSame(small,_buffers.getBuffer(1000));
+        assertSame(medium,_buffers.getBuffer(8000));
+    }
+
+    @Test
+    public void testMaxClassBytes() throws Exception
+    {
+        _buffers.setMaxClassBytes(8192);
+
+        Buffer[] buffers=new Buffer[3];
+        for (int i=0;i<buffers.length;i++)
+            buffers[i]=_buffers.getBuffer();
+        for (int i=0;i<buffers.length;i++)
+            _buffers.returnBuffer(buffers[i]);
+
+        assertEquals(2,_buffers.getBuffersHeld());
+        assertEquals(8192,_buffers.getBytesHeld());
+        assertEquals(1,_buffers.getDiscards());
+    }
+
+    @Test
+    public void testReturnedBufferCleared() throws Exception
+    {
+        Buffer buffer=_buffers.getBuffer();
+        buffer.put((byte)'x');
+        _buffers.returnBuffer(buffer);
+        assertEquals(0,_buffers.getBuffer().length());
+    }
+
+    private static class HeaderBuffer extends ByteArrayBuffer
+    {
+        public HeaderBuffer(int size)
+        {
+            super(size);
+        }
+    }
+
+    private static class InnerBuffers extends PooledBuffers
+    {
+        @Override
+        protected Buffer newBuffer(int size)
+        {
+            return new ByteArrayBuffer( size );
+        }
+        @Override
+        protected Buffer newHeader(int size)
+        {
+            return new HeaderBuffer( size );
+        }
+        @Override
+        protected boolean isHeader(Buffer buffer)
+        {
+            return buffer instanceof HeaderBuffer;
+        }
+    }
+}
@@ -43,6 +43,7 @@ public abstract class PatternRule extends Rule
     public void setPattern(String pattern)
     {
         _pattern = pattern;
+        __patternChanges.incrementAndGet();
     }
 
     /* ------------------------------------------------------------ */
@@ -58,6 +59,23 @@ public abstract class PatternRule extends Rule
         return null;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * The literal part of a prefix or exact pattern, or the empty string for
+     * a suffix or default pattern, or if a subclass matches in another way.
+     */
+    @Override
+    String getLiteralPrefix()
+    {
+        if (_pattern==null || !_pattern.startsWith("/") || !isMatchInherited(getClass(),PatternRule.class))
+            return "";
+        if (_pattern.endsWith("/*"))
+            return _pattern.substring(0,_pattern.length()-2);
+        if (_pattern.length()==1)
+            return "";
+        return _pattern;
+    }
+
     /* ------------------------------------------------------------ */
     /** Apply the rule to the request
      * @param target field to attempt match
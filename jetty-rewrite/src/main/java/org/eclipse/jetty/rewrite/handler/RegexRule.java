@@ -36,6 +36,7 @@ public abstract class RegexRule extends Rule
     public void setRegex(String regex)
     {
         _regex=Pattern.compile(regex);
+        __patternChanges.incrementAndGet();
     }
 
     /* ------------------------------------------------------------ */
@@ -58,6 +59,47 @@ public abstract class RegexRule extends Rule
         return null;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * The literal characters at the start of the regular expression, up to the first
+     * character that is not a literal or is followed by an optional quantifier. 
+     * The empty string if the expression has flags or any alternation, or if 
+     * a subclass matches in another way.
+     */
+    @Override
+    String getLiteralPrefix()
+    {
+        if (_regex==null || _regex.flags()!=0 || !isMatchInherited(getClass(),RegexRule.class))
+            return "";
+        String regex=_regex.pattern();
+        if (regex.indexOf('|')>=0)
+            return "";
+        
+        StringBuilder prefix=new StringBuilder();
+        int i=regex.startsWith("^")?1:0;
+        while (i<regex.length())
+        {
+            char c=regex.charAt(i);
+            if (c=='\\')
+            {
+                if (i+1==regex.length() || Character.isLetterOrDigit(regex.charAt(i+1)))
+                    break;
+                c=regex.charAt(i+1);
+                i+=2;
+            }
+            else if ("[](){}.*+?^$".indexOf(c)>=0)
+                break;
+            else
+                i++;
+            
+            // A literal that may be repeated zero times is not part of the prefix
+            if (i<regex.length() && "?*{".indexOf(regex.charAt(i))>=0)
+                break;
+            prefix.append(c);
+        }
+        return prefix.toString();
+    }
+    
     /* ------------------------------------------------------------ */
     /** 
      * Apply this rule to the request/response pair.
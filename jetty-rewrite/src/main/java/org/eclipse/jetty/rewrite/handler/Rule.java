@@ -13,6 +13,8 @@
 package org.eclipse.jetty.rewrite.handler;
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -22,8 +24,12 @@ import javax.servlet.http.HttpServletResponse;
  */
 public abstract class Rule
 {   
+    /** Count of changes to the patterns of rules, so that compiled rules are recompiled. */
+    static final AtomicInteger __patternChanges = new AtomicInteger();
+
     protected boolean _terminating;
     protected boolean _handling;
+    private final AtomicLong _hits = new AtomicLong();
     
     /**
      * This method calls tests the rule against the request/response pair and if the Rule 
@@ -78,6 +84,58 @@ public abstract class Rule
         _handling=handling;
     }
     
+    /**
+     * Returns the number of times the rule has been applied by a {@link RuleContainer}.
+     * 
+     * @return the number of times the rule has matched and been applied.
+     */
+    public long getHits()
+    {
+        return _hits.get();
+    }
+    
+    /**
+     * Resets the number of times the rule has been applied.
+     */
+    public void resetHits()
+    {
+        _hits.set(0);
+    }
+    
+    /**
+     * Count that the rule has been applied.
+     */
+    void hit()
+    {
+        _hits.incrementAndGet();
+    }
+    
+    /**
+     * Returns a literal prefix of every target that the rule can match, so that
+     * a {@link RuleContainer} need only try the rule for targets with that prefix.
+     * 
+     * @return the literal prefix, or the empty string if the rule may match any target.
+     */
+    String getLiteralPrefix()
+    {
+        return "";
+    }
+    
+    /**
+     * @return true if the type matches targets with the matchAndApply method of the base type.
+     */
+    static boolean isMatchInherited(Class<?> type, Class<?> base)
+    {
+        try
+        {
+            return type.getMethod("matchAndApply",String.class,HttpServletRequest.class,HttpServletResponse.class).getDeclaringClass()==base;
+        }
+        catch(NoSuchMethodException e)
+        {
+            return false;
+        }
+    }
+    
     /**
      * Returns the handling and terminating flag values.
      */
@@ -14,6 +14,7 @@
 package org.eclipse.jetty.rewrite.handler;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -27,7 +28,11 @@ import org.eclipse.jetty.util.log.Log;
 /**
  * Base container to group rules. Can be extended so that the contained rules
  * will only be applied under certain conditions
- * 
+ * <p>
+ * The rules are compiled into a trie of the literal prefixes of their patterns
+ * (see {@link PatternRule} and {@link RegexRule}), so that only the rules that
+ * may match a target are tried, in the order in which they were added. The rules 
+ * are recompiled when the rules are set or the pattern of any rule is changed.
  * 
  */
 
@@ -40,6 +45,8 @@ public class RuleContainer extends Rule
     protected boolean _rewritePathInfo=true;
     
     protected LegacyRule _legacy;
+    
+    private volatile CompiledRules _compiled;
 
     /* ------------------------------------------------------------ */
     @Deprecated
@@ -188,13 +195,20 @@ public class RuleContainer extends Rule
     protected String apply(String target, HttpServletRequest request, HttpServletResponse response) throws IOException
     {
         boolean original_set=_originalPathAttribute==null;
-                
-        for (Rule rule : _rules)
+        
+        CompiledRules compiled=compile();
+        if (compiled==null)
+            return target;
+        
+        long[] candidates=compiled.candidates(target);
+        for (int i=compiled.next(candidates,0);i>=0;i=compiled.next(candidates,i+1))
         {
+            Rule rule=compiled._rules[i];
             String applied=rule.matchAndApply(target,request, response);
             if (applied!=null)
             {       
                 Log.debug("applied {}",rule);
+                rule.hit();
                 if (!target.equals(applied))
                 { 
                     Log.debug("rewrote {} to {}",target,applied);
@@ -211,6 +225,7 @@ public class RuleContainer extends Rule
                         ((Request)request).setPathInfo(applied);
 
                     target=applied;
+                    candidates=compiled.candidates(target);
                 }
                 
                 if (rule.isHandling())
@@ -229,4 +244,141 @@ public class RuleContainer extends Rule
 
         return target;
     }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the compiled rules, which are compiled again if the rules or their patterns have changed.
+     */
+    private CompiledRules compile()
+    {
+        Rule[] rules=_rules;
+        if (rules==null)
+            return null;
+        
+        int changes=Rule.__patternChanges.get();
+        CompiledRules compiled=_compiled;
+        if (compiled==null || compiled._rules!=rules || compiled._changes!=changes)
+        {
+            compiled=new CompiledRules(rules,changes);
+            _compiled=compiled;
+        }
+        return compiled;
+    }
+    
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /**
+     * Rules compiled into a trie of their literal prefixes. Each node of the
+     * trie has a bit set of the rules with the prefix that ends at the node, 
+     * so the rules that may match a target are the union of the sets of the
+     * nodes on its path.
+     */
+    private static class CompiledRules
+    {
+        final Rule[] _rules;
+        final int _changes;
+        final int _words;
+        final Node _root=new Node();
+        
+        /* ------------------------------------------------------------ */
+        CompiledRules(Rule[] rules, int changes)
+        {
+            _rules=rules;
+            _changes=changes;
+            _words=(rules.length+63)>>6;
+            for (int i=0;i<rules.length;i++)
+            {
+                Node node=_root.add(rules[i].getLiteralPrefix());
+                if (node._rules==null)
+                    node._rules=new long[_words];
+                node._rules[i>>6]|=1L<<i;
+            }
+        }
+        
+        /* ------------------------------------------------------------ */
+        /**
+         * @return the set of the indexes of the rules that may match the target
+         */
+        long[] candidates(String target)
+        {
+            long[] candidates=new long[_words];
+            int l=target.length();
+            Node node=_root;
+            for (int i=0;node!=null;i++)
+            {
+                if (node._rules!=null)
+                    for (int w=0;w<_words;w++)
+                        candidates[w]|=node._rules[w];
+                if (i==l)
+                    break;
+                node=node.next(target.charAt(i));
+            }
+            return candidates;
+        }
+        
+        /* ------------------------------------------------------------ */
+        /**
+         * @return the index of the next rule in the set from the given index, or -1
+         */
+        int next(long[] candidates, int from)
+        {
+            for (int w=from>>6;w<_words;w++)
+            {
+                long bits=candidates[w];
+                if (w==from>>6)
+                    bits&=-1L<<(from&63);
+                if (bits!=0)
+                    return (w<<6)+Long.numberOfTrailingZeros(bits);
+            }
+            return -1;
+        }
+    }
+    
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A node of the trie, which is only changed while the rules are compiled.
+     * The children are sorted by character for a binary search.
+     */
+    private static class Node
+    {
+        private char[] _chars=new char[0];
+        private Node[] _next=new Node[0];
+        private long[] _rules;
+        
+        /* ------------------------------------------------------------ */
+        Node next(char c)
+        {
+            int i=Arrays.binarySearch(_chars,c);
+            return i<0?null:_next[i];
+        }
+        
+        /* ------------------------------------------------------------ */
+        Node add(String prefix)
+        {
+            Node node=this;
+            for (int i=0;i<prefix.length();i++)
+            {
+                char c=prefix.charAt(i);
+                int index=Arrays.binarySearch(node._chars,c);
+                if (index>=0)
+                    node=node._next[index];
+                else
+                {
+                    index=-index-1;
+                    char[] chars=new char[node._chars.length+1];
+                    Node[] next=new Node[chars.length];
+                    System.arraycopy(node._chars,0,chars,0,index);
+                    System.arraycopy(node._next,0,next,0,index);
+                    System.arraycopy(node._chars,index,chars,index+1,node._chars.length-index);
+                    System.arraycopy(node._next,index,next,index+1,node._next.length-index);
+                    chars[index]=c;
+                    next[index]=new Node();
+                    node._chars=chars;
+                    node._next=next;
+                    node=next[index];
+                }
+            }
+            return node;
+        }
+    }
 }
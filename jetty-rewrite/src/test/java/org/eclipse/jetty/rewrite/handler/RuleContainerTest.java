@@ -0,0 +1,158 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+
+package org.eclipse.jetty.rewrite.handler;
+
+import java.io.IOException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class RuleContainerTest extends AbstractRuleTestCase
+{
+    private RuleContainer _container;
+
+    @Before
+    public void init() throws Exception
+    {
+        start(false);
+        _container = new RuleContainer();
+        _container.setRewriteRequestURI(false);
+        _container.setRewritePathInfo(false);
+    }
+
+    @Test
+    public void testLiteralPrefix() throws Exception
+    {
+        String[][] patterns = {
+                {"/foo/*", "/foo"},
+                {"/foo/bar", "/foo/bar"},
+                {"/*", ""},
+                {"/", ""},
+                {"*.txt", ""}};
+        for (String[] pattern : patterns)
+        {
+            RewritePatternRule rule = new RewritePatternRule();
+            rule.setPattern(pattern[0]);
+            assertEquals(pattern[0], pattern[1], rule.getLiteralPrefix());
+        }
+
+        String[][] regexes = {
+                {"/foo/(.*)", "/foo/"},
+                {"^/foo/bar$", "/foo/bar"},
+                {"/foo\\.bar/.*", "/foo.bar/"},
+                {"/foos?/.*", "/foo"},
+                {"/foo+/.*", "/foo"},
+                {"/fo{2}/.*", "/f"},
+                {"/foo\\d+", "/foo"},
+                {"/foo|/bar", ""},
+                {"(?i)/foo", ""},
+                {".*\\.jsp", ""}};
+        for (String[] regex : regexes)
+        {
+            RewriteRegexRule rule = new RewriteRegexRule();
+            rule.setRegex(regex[0]);
+            assertEquals(regex[0], regex[1], rule.getLiteralPrefix());
+        }
+
+        // a rule that matches in its own way may match any target
+        PatternRule rule = new RewritePatternRule()
+        {
+            @Override
+            public String matchAndApply(String target, HttpServletRequest request, HttpServletResponse response) throws IOException
+            {
+                return target;
+            }
+        };
+        rule.setPattern("/foo/*");
+        assertEquals("", rule.getLiteralPrefix());
+    }
+
+    @Test
+    public void testCandidateRules() throws Exception
+    {
+        CountingRule counter = new CountingRule();
+        _container.addRule(counter);
+        RewritePatternRule[] rules = new RewritePatternRule[200];
+        for (int i = 0; i < rules.length; i++)
+        {
+            rules[i] = new RewritePatternRule();
+            rules[i].setPattern("/old/" + i + "/*");
+            rules[i].setReplacement("/new/" + i);
+            _container.addRule(rules[i]);
+        }
+        RewriteRegexRule regex = new RewriteRegexRule();
+        regex.setRegex("/new/(1[0-9])/(.*)");
+        regex.setReplacement("/newer/$1/$2");
+        _container.addRule(regex);
+        _container.addRule(counter);
+
+        assertEquals("/newer/17/page", _container.matchAndApply("/old/17/page", _request, _response));
+        assertEquals("/new/170/page", _container.matchAndApply("/new/170/page", _request, _response));
+        assertEquals("/new/2/page", _container.matchAndApply("/old/2/page", _request, _response));
+        assertEquals("/other", _container.matchAndApply("/other", _request, _response));
+
+        assertEquals(1, rules[17].getHits());
+        assertEquals(1, rules[2].getHits());
+        assertEquals(0, rules[1].getHits());
+        assertEquals(0, rules[170].getHits());
+        assertEquals(1, regex.getHits());
+        // both places of the rule that may match any target are tried
+        assertEquals(8, counter._calls);
+        assertEquals(0, counter.getHits());
+    }
+
+    @Test
+    public void testRulesInOrder() throws Exception
+    {
+        RewritePatternRule c = new RewritePatternRule();
+        c.setPattern("/c/*");
+        c.setReplacement("/z");
+        RewritePatternRule a = new RewritePatternRule();
+        a.setPattern("/a/*");
+        a.setReplacement("/b");
+        RewritePatternRule b = new RewritePatternRule();
+        b.setPattern("/b/*");
+        b.setReplacement("/c");
+        _container.setRules(new Rule[]{c, a, b});
+
+        // a rule before the rule that rewrote the target is not tried again
+        assertEquals("/c/x", _container.matchAndApply("/a/x", _request, _response));
+        assertEquals("/z/x", _container.matchAndApply("/c/x", _request, _response));
+
+        // the rules are compiled again when a pattern changes
+        a.setPattern("/d/*");
+        assertEquals("/a/x", _container.matchAndApply("/a/x", _request, _response));
+        assertEquals("/c/x", _container.matchAndApply("/d/x", _request, _response));
+        assertEquals(2, a.getHits());
+        a.resetHits();
+        assertEquals(0, a.getHits());
+    }
+
+    private static class CountingRule extends Rule
+    {
+        private int _calls;
+
+        @Override
+        public String matchAndApply(String target, HttpServletRequest request, HttpServletResponse response) throws IOException
+        {
+            _calls++;
+            return null;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 
+import org.eclipse.jetty.http.CompiledPathMap;
 import org.eclipse.jetty.http.PathMap;
 import org.eclipse.jetty.http.security.Constraint;
 import org.eclipse.jetty.server.Connector;
@@ -44,6 +45,7 @@ public class ConstraintSecurityHandler extends SecurityHandler implements Constr
     private final List<ConstraintMapping> _constraintMappings= new CopyOnWriteArrayList<ConstraintMapping>();
     private final Set<String> _roles = new CopyOnWriteArraySet<String>();
     private final PathMap _constraintMap = new PathMap();
+    private volatile CompiledPathMap _constraintMatcher;
     private boolean _strict = true;
 
     
@@ -187,6 +189,7 @@ public class ConstraintSecurityHandler extends SecurityHandler implements Constr
         if (isStarted())
         {
             processContraintMapping(mapping);
+            _constraintMatcher=new CompiledPathMap(_constraintMap);
         }
     }
 
@@ -226,6 +229,7 @@ public class ConstraintSecurityHandler extends SecurityHandler implements Constr
                 processContraintMapping(mapping);
             }
         }
+        _constraintMatcher=new CompiledPathMap(_constraintMap);
         super.doStart();
     }
 
@@ -314,7 +318,8 @@ public class ConstraintSecurityHandler extends SecurityHandler implements Constr
     
     protected Object prepareConstraintInfo(String pathInContext, Request request)
     {
-        Map<String, RoleInfo> mappings = (Map<String, RoleInfo>)_constraintMap.match(pathInContext);
+        CompiledPathMap matcher=_constraintMatcher;
+        Map<String, RoleInfo> mappings = matcher==null?null:(Map<String, RoleInfo>)matcher.match(pathInContext);
 
         if (mappings != null)
         {
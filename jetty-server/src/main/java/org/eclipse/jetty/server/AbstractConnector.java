@@ -359,6 +359,12 @@ public abstract class AbstractConnector extends HttpBuffers implements Connector
 
         super.doStart();
 
+        if (isPooledBuffers())
+        {
+            _server.getContainer().update(this,null,getRequestBuffers(),"requestBuffers",true);
+            _server.getContainer().update(this,null,getResponseBuffers(),"responseBuffers",true);
+        }
+
         if (_threadPool == null)
             _threadPool = _server.getThreadPool();
         if (_threadPool != _server.getThreadPool() && (_threadPool instanceof LifeCycle))
@@ -398,6 +404,12 @@ public abstract class AbstractConnector extends HttpBuffers implements Connector
         if (_threadPool != _server.getThreadPool() && _threadPool instanceof LifeCycle)
             ((LifeCycle)_threadPool).stop();
 
+        if (isPooledBuffers())
+        {
+            _server.getContainer().update(this,getRequestBuffers(),null,"requestBuffers",true);
+            _server.getContainer().update(this,getResponseBuffers(),null,"responseBuffers",true);
+        }
+
         super.doStop();
 
         Thread[] acceptors = null;
@@ -1026,6 +1038,9 @@ public abstract class AbstractConnector extends HttpBuffers implements Connector
     /* ------------------------------------------------------------ */
     protected void connectionClosed(Connection connection)
     {
+        if (connection instanceof HttpConnection)
+            ((HttpConnection)connection).onClose();
+
         if (_statsStartedAt.get() == -1)
             return;
 
@@ -13,9 +13,11 @@
 
 package org.eclipse.jetty.server;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
@@ -46,6 +48,7 @@ import org.eclipse.jetty.io.EndPoint;
 import org.eclipse.jetty.io.EofException;
 import org.eclipse.jetty.io.RuntimeIOException;
 import org.eclipse.jetty.io.UncheckedPrintWriter;
+import org.eclipse.jetty.io.nio.ChannelEndPoint;
 import org.eclipse.jetty.server.nio.NIOConnector;
 import org.eclipse.jetty.server.ssl.SslConnector;
 import org.eclipse.jetty.util.QuotedStringTokenizer;
@@ -448,7 +451,10 @@ public class HttpConnection implements Connection
                         }
 
                         if (!progress)
+                        {
+                            flushHeld();
                             return this;
+                        }
                     }
                     progress=false;
                 }
@@ -513,6 +519,7 @@ public class HttpConnection implements Connection
                         ((AsyncEndPoint)_endp).setWritable(false);
                 }
             }
+            flushHeld();
         }
         finally
         {
@@ -522,6 +529,57 @@ public class HttpConnection implements Connection
         return connection;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Write any pipelined responses held by the generator before the
+     * connection waits for more input.  A response that is committed but
+     * not complete writes the held responses ahead of itself when the
+     * endpoint is next writable.  Held responses that cannot be written
+     * without blocking are written when the endpoint is next writable.
+     */
+    private void flushHeld() throws IOException
+    {
+        if (_generator instanceof HttpGenerator && ((HttpGenerator)_generator).isHeld() &&
+            (!_generator.isCommitted() || _generator.isComplete()))
+        {
+            ((HttpGenerator)_generator).flushHeld();
+            if (((HttpGenerator)_generator).isHeld() && _endp instanceof AsyncEndPoint)
+                ((AsyncEndPoint)_endp).setWritable(false);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Write any pipelined responses held by the generator before the next
+     * request is handled, blocking if need be, so that they are not delayed
+     * by a handler that blocks before it commits its response.
+     */
+    private void writeHeld() throws IOException
+    {
+        if (!(_generator instanceof HttpGenerator))
+            return;
+        HttpGenerator generator=(HttpGenerator)_generator;
+        while (generator.isHeld() && _endp.isOpen())
+        {
+            if (generator.flushHeld()==0 && generator.isHeld() && !_endp.isBlocking() && !_endp.blockWritable(_connector.getMaxIdleTime()))
+            {
+                _endp.close();
+                throw new EofException("timeout");
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Called when the endpoint of the connection has been closed.
+     * Returns the buffer of any held responses, which can no longer be written.
+     */
+    public void onClose()
+    {
+        if (_generator instanceof HttpGenerator)
+            ((HttpGenerator)_generator).releaseHeld();
+    }
+
     /* ------------------------------------------------------------ */
     public void scheduleTimeout(Timeout.Task task, long timeoutMs)
     {
@@ -593,6 +651,7 @@ public class HttpConnection implements Connection
                     {
                         _request.setDispatcherType(DispatcherType.REQUEST);
                         _connector.customize(_endp, _request);
+                        writeHeld();
                         server.handle(this);
                     }
                     else
@@ -747,6 +806,11 @@ public class HttpConnection implements Connection
             }
         }
 
+        // If the next request is already buffered, a small response may be
+        // held back and written together with the response to that request.
+        if (_generator instanceof HttpGenerator && !_endp.isBlocking() && _parser.isComplete() && _parser.isMoreInBuffer())
+            ((HttpGenerator)_generator).setPipelined(true);
+
         _generator.complete();
     }
 
@@ -882,6 +946,17 @@ public class HttpConnection implements Connection
             }
         }
 
+        /* ------------------------------------------------------------ */
+        /**
+         * @return the cached buffer of a known header value, or the value itself,
+         * so that a value that is not cached does not allocate a view.
+         */
+        private Buffer cachedValue(Buffer value)
+        {
+            CachedBuffer cached = HttpHeaderValues.CACHE.get(value);
+            return cached==null?value:cached;
+        }
+
         /*
          * @see org.eclipse.jetty.server.server.HttpParser.EventHandler#parsedHeaderValue(org.eclipse.io.Buffer)
          */
@@ -897,7 +972,7 @@ public class HttpConnection implements Connection
                     break;
 
                 case HttpHeaders.EXPECT_ORDINAL:
-                    value = HttpHeaderValues.CACHE.lookup(value);
+                    value = cachedValue(value);
                     switch(HttpHeaderValues.CACHE.getOrdinal(value))
                     {
                         case HttpHeaderValues.CONTINUE_ORDINAL:
@@ -933,9 +1008,15 @@ public class HttpConnection implements Connection
                     }
                     break;
 
+                case HttpHeaders.ACCEPT_ORDINAL:
+                case HttpHeaders.ACCEPT_CHARSET_ORDINAL:
                 case HttpHeaders.ACCEPT_ENCODING_ORDINAL:
+                case HttpHeaders.ACCEPT_LANGUAGE_ORDINAL:
+                case HttpHeaders.CACHE_CONTROL_ORDINAL:
+                case HttpHeaders.PRAGMA_ORDINAL:
                 case HttpHeaders.USER_AGENT_ORDINAL:
-                    value = HttpHeaderValues.CACHE.lookup(value);
+                    // Common values are held as cached buffers, so the field does not need a view or string
+                    value = cachedValue(value);
                     break;
 
                 case HttpHeaders.CONTENT_TYPE_ORDINAL:
@@ -945,6 +1026,7 @@ public class HttpConnection implements Connection
 
                 case HttpHeaders.CONNECTION_ORDINAL:
                     //looks rather clumsy, but the idea is to optimize for a single valued header
+                    value = cachedValue(value);
                     switch(HttpHeaderValues.CACHE.getOrdinal(value))
                     {
                         case -1:
@@ -1148,6 +1230,54 @@ public class HttpConnection implements Connection
             writer.print(s);
         }
 
+        /* ------------------------------------------------------------ */
+        /** Write buffers of content.
+         * <p>
+         * If the response is not chunked, the buffers are written directly and together
+         * (eg with a gathering write), without being copied through the content buffer.
+         * Otherwise they are written as if by {@link #write(byte[])}.
+         * The call blocks until the buffers have been written, and only their indexes are modified.
+         * </p>
+         * @param buffers The buffers of content to write
+         * @throws IOException
+         */
+        public void write(Buffer[] buffers) throws IOException
+        {
+            if (_closed)
+                throw new IOException("Closed");
+
+            if (super._generator instanceof HttpGenerator)
+            {
+                if (!super._generator.isCommitted())
+                    commitResponse(Generator.MORE);
+
+                if (((HttpGenerator)super._generator).addContent(buffers,Generator.MORE))
+                {
+                    super._generator.flushBuffer();
+                    for (int i=0;i<buffers.length;i++)
+                    {
+                        while (buffers[i]!=null && buffers[i].length()>0)
+                        {
+                            if (!super._generator.isOpen())
+                                throw new EofException();
+                            super._generator.blockForOutput(_maxIdleTime);
+                        }
+                    }
+
+                    if (super._generator.isContentWritten())
+                    {
+                        flush();
+                        close();
+                    }
+                    return;
+                }
+            }
+
+            for (int i=0;i<buffers.length;i++)
+                if (buffers[i]!=null && buffers[i].length()>0)
+                    write(buffers[i]);
+        }
+
         /* ------------------------------------------------------------ */
         public void sendResponse(Buffer response) throws IOException
         {
@@ -1197,6 +1327,9 @@ public class HttpConnection implements Connection
                 }
                 if (httpContent.getContentLength() > 0)
                     _responseFields.putLongField(HttpHeaders.CONTENT_LENGTH_BUFFER, httpContent.getContentLength());
+                Buffer encoding = httpContent.getContentEncoding();
+                if (encoding != null)
+                    _responseFields.put(HttpHeaders.CONTENT_ENCODING_BUFFER, encoding);
                 Buffer lm = httpContent.getLastModified();
                 long lml=httpContent.getResource().lastModified();
                 if (lm != null)
@@ -1210,7 +1343,14 @@ public class HttpConnection implements Connection
                 boolean direct=_connector instanceof NIOConnector && ((NIOConnector)_connector).getUseDirectBuffers() && !(_connector instanceof SslConnector);
                 content = direct?httpContent.getDirectBuffer():httpContent.getIndirectBuffer();
                 if (content==null)
+                {
+                    // Uncached content may be transferred directly from the file
+                    File file=httpContent.getResource().getFile();
+                    long length=httpContent.getContentLength();
+                    if (file!=null && length>0 && sendFile(file,0,length))
+                        return;
                     content=httpContent.getInputStream();
+                }
             }
             else if (content instanceof Resource)
             {
@@ -1262,6 +1402,47 @@ public class HttpConnection implements Connection
 
 
         }
+
+        /* ------------------------------------------------------------ */
+        /** Send part of a file as the content of the response.
+         * <p>
+         * If the connector supports file transfers and the response is not committed,
+         * the Content-Length is set, the response committed and the content transferred 
+         * directly from the file to the connection (eg with sendfile), without being 
+         * copied through the content buffers.
+         * </p>
+         * @param file The file to send
+         * @param position The position within the file of the first byte to send
+         * @param length The number of bytes to send
+         * @return True if the content was sent, false if the content was not sent
+         * because a file transfer is not possible.
+         * @throws IOException
+         */
+        public boolean sendFile(File file, long position, long length) throws IOException
+        {
+            if (_closed)
+                throw new IOException("Closed");
+
+            if (!(_connector instanceof NIOConnector) || !((NIOConnector)_connector).getUseFileTransfer() ||
+                !(_endp instanceof ChannelEndPoint) || !((ChannelEndPoint)_endp).isTransferSupported() || !(super._generator instanceof HttpGenerator) || 
+                isIncluding() || super._generator.isCommitted() || super._generator.getContentWritten() > 0)
+                return false;
+
+            _responseFields.putLongField(HttpHeaders.CONTENT_LENGTH_BUFFER, length);
+            commitResponse(Generator.MORE);
+
+            RandomAccessFile raf = new RandomAccessFile(file,"r");
+            try
+            {
+                ((HttpGenerator)super._generator).sendFile(raf.getChannel(),position,length,_maxIdleTime);
+            }
+            finally
+            {
+                raf.close();
+            }
+            commitResponse(Generator.LAST);
+            return true;
+        }
     }
 
     /* ------------------------------------------------------------ */
@@ -134,7 +134,7 @@ public class HttpOutput extends ServletOutputStream
     }
 
     /* ------------------------------------------------------------ */
-    private void write(Buffer buffer) throws IOException
+    protected void write(Buffer buffer) throws IOException
     {
         if (_closed)
             throw new IOException("Closed");
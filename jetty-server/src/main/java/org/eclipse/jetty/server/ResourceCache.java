@@ -16,22 +16,29 @@ package org.eclipse.jetty.server;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Comparator;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.eclipse.jetty.http.HttpContent;
 import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeaderValues;
 import org.eclipse.jetty.http.MimeTypes;
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.io.View;
 import org.eclipse.jetty.io.nio.DirectNIOBuffer;
 import org.eclipse.jetty.io.nio.IndirectNIOBuffer;
+import org.eclipse.jetty.util.ByteArrayOutputStream2;
+import org.eclipse.jetty.util.IO;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.resource.Resource;
 import org.eclipse.jetty.util.resource.ResourceFactory;
@@ -39,13 +46,30 @@ import org.eclipse.jetty.util.resource.ResourceFactory;
 
 /* ------------------------------------------------------------ */
 /** 
- * 
+ * Cache of context Resources and their content.
+ * <p>
+ * The size of the cache is limited by {@link #getMaxCacheSize()} and {@link #getMaxCachedFiles()}.
+ * When content is added to a full cache, an {@link EvictionPolicy} selects the content to evict
+ * and may refuse to admit the new content.  The default {@link LRUEvictionPolicy} evicts
+ * approximately the least recently used content, while the {@link TinyLFUEvictionPolicy} 
+ * also refuses to admit content that is less frequently used than the content it would evict.
+ * <p>
+ * Cached content may also have gzip and deflate encoded variants (see {@link Content#getEncodedContent(String)}),
+ * which are built once and cached with the content, so that static content need not be 
+ * compressed on every request.  A gzip variant is loaded from a sibling resource with a ".gz"
+ * extension if one exists, otherwise variants are only built if {@link #isCompressContent()} is true.
  */
 public class ResourceCache
 {
     private final ConcurrentMap<String,Content> _cache;
     private final AtomicInteger _cachedSize;
     private final AtomicInteger _cachedFiles;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+    private final AtomicLong _rejections = new AtomicLong();
+    private final AtomicBoolean _shrinking = new AtomicBoolean();
+    private volatile EvictionPolicy _policy = new LRUEvictionPolicy();
     private final boolean  _useFileMappedBuffer;
     private final ResourceFactory _factory;
     
@@ -53,6 +77,7 @@ public class ResourceCache
     private int _maxCachedFileSize =4*1024*1024;
     private int _maxCachedFiles=2048;
     private int _maxCacheSize =32*1024*1024;
+    private boolean _compressContent;
 
     /* ------------------------------------------------------------ */
     /** Constructor.
@@ -126,6 +151,99 @@ public class ResourceCache
         shrinkCache();
     }
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if encoded variants of cached content are built by compressing the content.
+     */
+    public boolean isCompressContent()
+    {
+        return _compressContent;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param compress True if encoded variants of cached content are built by compressing 
+     * the content, false if only variants loaded from ".gz" siblings of the content are cached.
+     */
+    public void setCompressContent(boolean compress)
+    {
+        _compressContent=compress;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The policy used to select content to evict from the cache
+     */
+    public EvictionPolicy getEvictionPolicy()
+    {
+        return _policy;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the policy used to select content to evict from the cache.
+     * The cache is flushed if the policy is changed.
+     * @param policy The eviction policy
+     */
+    public void setEvictionPolicy(EvictionPolicy policy)
+    {
+        if (policy==null)
+            throw new IllegalArgumentException();
+        if (_policy!=policy)
+        {
+            flushCache();
+            _policy=policy;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of lookups that found valid cached content
+     */
+    public long getHits()
+    {
+        return _hits.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of lookups that did not find valid cached content
+     */
+    public long getMisses()
+    {
+        return _misses.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of cached contents evicted to keep the cache within its limits
+     */
+    public long getEvictions()
+    {
+        return _evictions.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of contents not cached because the {@link EvictionPolicy} refused to admit them
+     */
+    public long getRejections()
+    {
+        return _rejections.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Reset the hit, miss, eviction and rejection counters.
+     */
+    public void statsReset()
+    {
+        _hits.set(0);
+        _misses.set(0);
+        _evictions.set(0);
+        _rejections.set(0);
+    }
+    
     /* ------------------------------------------------------------ */
     public void flushCache()
     {
@@ -137,7 +255,10 @@ public class ResourceCache
                 {
                     Content content = _cache.remove(path);
                     if (content!=null)
+                    {
+                        _policy.removed(content);
                         content.invalidate();
+                    }
                 }
             }
         }
@@ -160,7 +281,13 @@ public class ResourceCache
         content = _cache.get(pathInContext);
         
         if (content!=null && content.isValid())
+        {
+            _hits.incrementAndGet();
+            _policy.accessed(pathInContext,content);
             return content;
+        }
+        _misses.incrementAndGet();
+        _policy.accessed(pathInContext,null);
        
         Resource resource=_factory.getResource(pathInContext);
         Content loaded = load(pathInContext,resource);
@@ -183,6 +310,14 @@ public class ResourceCache
                 // Create the Content (to increment the cache sizes before adding the content 
                 content = new Content(pathInContext,resource);
                 
+                // Is there room for the content or will the policy admit it?
+                if (isFull() && !_policy.admit(content))
+                {
+                    _rejections.incrementAndGet();
+                    content.invalidate();
+                    return null;
+                }
+
                 // reduce the cache to an acceptable size.
                 shrinkCache();
                 
@@ -193,6 +328,8 @@ public class ResourceCache
                     content.invalidate();
                     content=added;
                 }
+                else
+                    _policy.added(content);
                 
                 return content;
             }
@@ -200,41 +337,44 @@ public class ResourceCache
 
         return null; 
     }
+
+    /* ------------------------------------------------------------ */
+    private boolean isFull()
+    {
+        return _cachedFiles.get()>_maxCachedFiles || _cachedSize.get()>_maxCacheSize;
+    }
     
     /* ------------------------------------------------------------ */
+    /** Evict content selected by the {@link EvictionPolicy} until the cache is within its limits.
+     * Only one thread evicts at a time, so other threads adding content to a full cache
+     * do not wait for it, but leave the cache to be shrunk by the evicting thread.
+     */
     private void shrinkCache()
     {
-        // While we need to shrink
-        while (_cache.size()>0 && (_cachedFiles.get()>_maxCachedFiles || _cachedSize.get()>_maxCacheSize))
+        // Shrink again if content was added while shrinking, unless nothing can be evicted
+        boolean evicted=true;
+        while (evicted && isFull() && _shrinking.compareAndSet(false,true))
         {
-            // Scan the entire cache and generate an ordered list by last accessed time.
-            SortedSet<Content> sorted= new TreeSet<Content>(
-                    new Comparator<Content>()
+            evicted=false;
+            try
+            {
+                // While we need to shrink
+                while (_cache.size()>0 && isFull())
+                {
+                    Content content=_policy.evict();
+                    if (content==null)
+                        break;
+                    if (_cache.remove(content.getKey(),content))
                     {
-                        public int compare(Content c1, Content c2)
-                        {
-                            if (c1._lastAccessed<c2._lastAccessed)
-                                return -1;
-                            
-                            if (c1._lastAccessed>c2._lastAccessed)
-                                return 1;
-
-                            if (c1._length<c2._length)
-                                return -1;
-                            
-                            return c1._key.compareTo(c2._key);
-                        }
-                    });
-            for (Content content : _cache.values())
-                sorted.add(content);
-            
-            // Invalidate least recently used first
-            for (Content content : sorted)
+                        _evictions.incrementAndGet();
+                        content.invalidate();
+                        evicted=true;
+                    }
+                }
+            }
+            finally
             {
-                if (_cachedFiles.get()<=_maxCachedFiles && _cachedSize.get()<=_maxCacheSize)
-                    break;
-                if (content==_cache.remove(content.getKey()))
-                    content.invalidate();
+                _shrinking.set(false);
             }
         }
     }
@@ -253,6 +393,8 @@ public class ResourceCache
         Miss miss = new Miss(pathInContext,resource);
         if (_cache.putIfAbsent(pathInContext,miss)!=null)
             miss.invalidate();
+        else
+            _policy.added(miss);
     }
     
     /* ------------------------------------------------------------ */
@@ -296,6 +438,113 @@ public class ResourceCache
         }
     }
     
+    /* ------------------------------------------------------------ */
+    /** Check if an encoded variant of content may be available, without building it.
+     * @param content The content to encode
+     * @param encoding The content coding, either "gzip" or "deflate"
+     * @return True if {@link #getEncodedBuffer(Content, String)} may return a variant.
+     * The check does not compress the content, so a variant that would not be smaller 
+     * than the content is still reported as available.
+     */
+    protected boolean isEncodable(Content content, String encoding)
+    {
+        boolean gzip=HttpHeaderValues.GZIP.equals(encoding);
+        if (!gzip && !"deflate".equals(encoding))
+            return false;
+        if (_compressContent)
+            return true;
+        if (!gzip)
+            return false;
+        
+        Resource gz=getGzipResource(content);
+        if (gz==null)
+            return false;
+        gz.release();
+        return true;
+    }
+    
+    /* ------------------------------------------------------------ */
+    /** 
+     * @param content The content 
+     * @return The sibling ".gz" resource of the content if it exists and is not older than the content, else null.
+     */
+    private Resource getGzipResource(Content content)
+    {
+        try
+        {
+            Resource gz=_factory.getResource(content.getKey()+".gz");
+            if (gz!=null && gz.exists() && !gz.isDirectory() && gz.lastModified()>=content._lastModified && gz.length()>0)
+                return gz;
+            if (gz!=null)
+                gz.release();
+        }
+        catch(Exception e)
+        {
+            Log.ignore(e);
+        }
+        return null;
+    }
+    
+    /* ------------------------------------------------------------ */
+    /** Get the bytes of an encoded variant of content.
+     * A gzip variant is loaded from a sibling resource with a ".gz" extension, if it
+     * exists and is not older than the content.  Otherwise, if {@link #isCompressContent()}, 
+     * the content is compressed and the result kept if it is smaller than the content.
+     * @param content The content to encode
+     * @param encoding The content coding, either "gzip" or "deflate"
+     * @return The encoded bytes of the content or null if no variant is available.
+     */
+    protected Buffer getEncodedBuffer(Content content, String encoding)
+    {
+        boolean gzip=HttpHeaderValues.GZIP.equals(encoding);
+        if (!gzip && !"deflate".equals(encoding))
+            return null;
+
+        try
+        {
+            if (gzip)
+            {
+                Resource gz=getGzipResource(content);
+                if (gz!=null)
+                {
+                    try
+                    {
+                        return getIndirectBuffer(gz);
+                    }
+                    finally
+                    {
+                        gz.release();
+                    }
+                }
+            }
+
+            if (!_compressContent)
+                return null;
+
+            ByteArrayOutputStream2 bout = new ByteArrayOutputStream2(content._length/2+64);
+            DeflaterOutputStream out = gzip?new GZIPOutputStream(bout):new DeflaterOutputStream(bout);
+            InputStream in = content.getInputStream();
+            try
+            {
+                IO.copy(in,out);
+            }
+            finally
+            {
+                in.close();
+            }
+            out.close();
+
+            if (bout.getCount()>=content._length)
+                return null;
+            return new IndirectNIOBuffer(ByteBuffer.wrap(bout.getBuf(),0,bout.getCount()),true);
+        }
+        catch(IOException e)
+        {
+            Log.warn(e);
+            return null;
+        }
+    }
+    
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
     /** MetaData associated with a context Resource.
@@ -310,8 +559,11 @@ public class ResourceCache
         final Buffer _contentType;
         
         volatile long _lastAccessed;
+        volatile boolean _referenced;
         AtomicReference<Buffer> _indirectBuffer=new AtomicReference<Buffer>();
         AtomicReference<Buffer> _directBuffer=new AtomicReference<Buffer>();
+        final ConcurrentMap<String,EncodedContent> _encoded=new ConcurrentHashMap<String,EncodedContent>(4);
+        boolean _invalidated; // guarded by _encoded
 
         /* ------------------------------------------------------------ */
         Content(String pathInContext,Resource resource)
@@ -358,8 +610,11 @@ public class ResourceCache
                 return true;
             }
 
-            if (this==_cache.remove(_key))
+            if (_cache.remove(_key,this))
+            {
+                _policy.removed(this);
                 invalidate();
+            }
             return false;
         }
 
@@ -370,6 +625,61 @@ public class ResourceCache
             _cachedSize.addAndGet(-_length);
             _cachedFiles.decrementAndGet();
             _resource.release(); 
+            
+            synchronized (_encoded)
+            {
+                _invalidated=true;
+                for (EncodedContent encoded : _encoded.values())
+                    _cachedSize.addAndGet(-encoded._length);
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        public Buffer getContentEncoding()
+        {
+            return null;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Get an encoded variant of the content.
+         * The variant is built by {@link ResourceCache#getEncodedBuffer(Content, String)} on 
+         * the first request for it, and its size is included in the size of the cache.
+         * @see org.eclipse.jetty.http.HttpContent#getEncodedContent(java.lang.String)
+         */
+        public HttpContent getEncodedContent(String encoding)
+        {
+            EncodedContent encoded=_encoded.get(encoding);
+            if (encoded==null)
+            {
+                synchronized (_encoded)
+                {
+                    encoded=_encoded.get(encoding);
+                    if (encoded==null)
+                    {
+                        encoded=new EncodedContent(this,encoding,getEncodedBuffer(this,encoding));
+                        _encoded.put(encoding,encoded);
+                        if (!_invalidated)
+                            _cachedSize.addAndGet(encoded._length);
+                    }
+                }
+                
+                // The variant may have taken the cache over its limits
+                shrinkCache();
+            }
+            return encoded._buffer==null?null:encoded;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Check for an encoded variant of the content without building it.
+         * @param encoding The content coding
+         * @return True if the variant is cached or may be built by {@link #getEncodedContent(String)}.
+         */
+        public boolean hasEncodedContent(String encoding)
+        {
+            EncodedContent encoded=_encoded.get(encoding);
+            if (encoded!=null)
+                return encoded._buffer!=null;
+            return isEncodable(this,encoding);
         }
 
         /* ------------------------------------------------------------ */
@@ -476,11 +786,375 @@ public class ResourceCache
         {
             if (_resource.exists())
             {
-                if (this==_cache.remove(_key))
+                if (_cache.remove(_key,this))
+                {
+                    _policy.removed(this);
                     invalidate();
+                }
                 return false;
             }
             return true;
         }
+
+        /* ------------------------------------------------------------ */
+        @Override
+        public HttpContent getEncodedContent(String encoding)
+        {
+            return null;
+        }
+
+        /* ------------------------------------------------------------ */
+        @Override
+        public boolean hasEncodedContent(String encoding)
+        {
+            return false;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** An encoded variant of cached Content.
+     * The meta data is that of the content, but the content length and
+     * buffers are those of the encoded bytes.
+     */
+    public class EncodedContent implements HttpContent
+    {
+        final Content _content;
+        final Buffer _encoding;
+        final Buffer _buffer;
+        final int _length;
+        AtomicReference<Buffer> _directBuffer=new AtomicReference<Buffer>();
+
+        /* ------------------------------------------------------------ */
+        EncodedContent(Content content, String encoding, Buffer buffer)
+        {
+            _content=content;
+            _encoding=HttpHeaderValues.CACHE.lookup(encoding);
+            _buffer=buffer;
+            _length=buffer==null?0:buffer.length();
+        }
+
+        /* ------------------------------------------------------------ */
+        public Buffer getContentEncoding()
+        {
+            return _encoding;
+        }
+
+        /* ------------------------------------------------------------ */
+        public HttpContent getEncodedContent(String encoding)
+        {
+            return null;
+        }
+
+        /* ------------------------------------------------------------ */
+        public Buffer getContentType()
+        {
+            return _content.getContentType();
+        }
+
+        /* ------------------------------------------------------------ */
+        public Buffer getLastModified()
+        {
+            return _content.getLastModified();
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The resource of the identity content.
+         */
+        public Resource getResource()
+        {
+            return _content.getResource();
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getContentLength()
+        {
+            return _length;
+        }
+
+        /* ------------------------------------------------------------ */
+        public Buffer getIndirectBuffer()
+        {
+            return new View(_buffer);
+        }
+
+        /* ------------------------------------------------------------ */
+        public Buffer getDirectBuffer()
+        {
+            Buffer buffer = _directBuffer.get();
+            if (buffer==null)
+            {
+                buffer=new DirectNIOBuffer(_length);
+                buffer.put(new View(_buffer));
+                if (!_directBuffer.compareAndSet(null,buffer))
+                    buffer=_directBuffer.get();
+            }
+            return new View(buffer);
+        }
+
+        /* ------------------------------------------------------------ */
+        public InputStream getInputStream() throws IOException
+        {
+            return new ByteArrayInputStream(_buffer.array(),_buffer.getIndex(),_buffer.length());
+        }
+
+        /* ------------------------------------------------------------ */
+        public void release()
+        {
+            // don't release while cached. Release when invalidated.
+        }
+
+        /* ------------------------------------------------------------ */
+        @Override
+        public String toString()
+        {
+            return "{"+_content+","+_encoding+"}";
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Eviction Policy.
+     * <p>
+     * Selects the cached content to evict when the cache is full and decides
+     * whether new content is admitted to a full cache.
+     * Implementations must be thread safe, as they are called concurrently
+     * by the threads that lookup content.
+     */
+    public interface EvictionPolicy
+    {
+        /* ------------------------------------------------------------ */
+        /**
+         * Called for every lookup of the cache.
+         * @param pathInContext The path looked up
+         * @param content The valid cached content or null if the lookup missed
+         */
+        void accessed(String pathInContext, Content content);
+
+        /* ------------------------------------------------------------ */
+        /**
+         * Called when content is added to the cache.
+         * @param content The added content
+         */
+        void added(Content content);
+
+        /* ------------------------------------------------------------ */
+        /**
+         * Called when content is removed from the cache other than by {@link #evict()}.
+         * @param content The removed content
+         */
+        void removed(Content content);
+
+        /* ------------------------------------------------------------ */
+        /**
+         * Called when the cache is full, before content is evicted to make room for new content.
+         * @param content The new content
+         * @return True if content may be evicted to make room for the new content. 
+         */
+        boolean admit(Content content);
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The next content to evict, which is no longer tracked by this policy, 
+         * or null if there is no content to evict.
+         */
+        Content evict();
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Approximately Least Recently Used Eviction Policy.
+     * <p>
+     * Cached content is kept in a linked set in the order it was added, so that it is 
+     * added and removed in constant time. Content that has been accessed since it was 
+     * added is given a second chance and moved to the tail of the set, otherwise it 
+     * is evicted (the CLOCK algorithm). This approximates LRU without sorting the cache 
+     * or locking on access.
+     */
+    public static class LRUEvictionPolicy implements EvictionPolicy
+    {
+        private final LinkedHashSet<Content> _queue = new LinkedHashSet<Content>();
+
+        /* ------------------------------------------------------------ */
+        public void accessed(String pathInContext, Content content)
+        {
+            if (content!=null)
+                content._referenced=true;
+        }
+
+        /* ------------------------------------------------------------ */
+        public void added(Content content)
+        {
+            content._referenced=false;
+            synchronized (_queue)
+            {
+                _queue.add(content);
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        public void removed(Content content)
+        {
+            synchronized (_queue)
+            {
+                _queue.remove(content);
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean admit(Content content)
+        {
+            return true;
+        }
+
+        /* ------------------------------------------------------------ */
+        public Content evict()
+        {
+            synchronized (_queue)
+            {
+                // Every content gets at most one second chance, so this is bounded 
+                // even if content is concurrently accessed.
+                int chances=_queue.size();
+                while (!_queue.isEmpty())
+                {
+                    Iterator<Content> iterator=_queue.iterator();
+                    Content content=iterator.next();
+                    iterator.remove();
+                    if (!content._referenced || chances--<=0)
+                        return content;
+                    content._referenced=false;
+                    _queue.add(content);
+                }
+                return null;
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The content that would be evicted next if it is not accessed.
+         */
+        protected Content peek()
+        {
+            synchronized (_queue)
+            {
+                return _queue.isEmpty()?null:_queue.iterator().next();
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** TinyLFU Eviction Policy.
+     * <p>
+     * An {@link LRUEvictionPolicy} with a TinyLFU admission policy: the approximate frequency
+     * of lookups of every path (cached or not) is recorded in a count-min sketch of 4 bit 
+     * counters, which are halved periodically so that old lookups are forgotten.
+     * New content is only admitted to a full cache if its path has been looked up more 
+     * frequently than the path of the content that would be evicted, so that a scan 
+     * of rarely used resources does not flush frequently used content from the cache.
+     */
+    public static class TinyLFUEvictionPolicy extends LRUEvictionPolicy
+    {
+        private static final int[] SEEDS = { 0x97cb3127, 0xb3a4a2b7, 0x3c6ef372, 0x5d588b65 };
+        private final byte[][] _counters;
+        private final int _mask;
+        private final int _sampleSize;
+        private final AtomicInteger _samples = new AtomicInteger();
+
+        /* ------------------------------------------------------------ */
+        public TinyLFUEvictionPolicy()
+        {
+            this(2048);
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @param entries The expected number of cached entries, which sizes the frequency sketch.
+         */
+        public TinyLFUEvictionPolicy(int entries)
+        {
+            int width=Integer.highestOneBit(Math.max(16,entries*4)-1)<<1;
+            _counters=new byte[SEEDS.length][width];
+            _mask=width-1;
+            _sampleSize=Math.max(16,entries*10);
+        }
+
+        /* ------------------------------------------------------------ */
+        @Override
+        public void accessed(String pathInContext, Content content)
+        {
+            super.accessed(pathInContext,content);
+            increment(pathInContext);
+        }
+
+        /* ------------------------------------------------------------ */
+        @Override
+        public boolean admit(Content content)
+        {
+            Content victim=peek();
+            if (victim==null)
+                return true;
+            return frequency(content.getKey())>frequency(victim.getKey());
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @param pathInContext The path 
+         * @return The approximate number of recent lookups of the path (at most 15).
+         */
+        public int frequency(String pathInContext)
+        {
+            int hash=spread(pathInContext.hashCode());
+            int frequency=Integer.MAX_VALUE;
+            for (int i=0;i<SEEDS.length;i++)
+                frequency=Math.min(frequency,_counters[i][index(hash,i)]);
+            return frequency;
+        }
+
+        /* ------------------------------------------------------------ */
+        private void increment(String pathInContext)
+        {
+            // Updates are not atomic, which at worst loses a count.
+            int hash=spread(pathInContext.hashCode());
+            for (int i=0;i<SEEDS.length;i++)
+            {
+                byte[] row=_counters[i];
+                int index=index(hash,i);
+                if (row[index]<15)
+                    row[index]++;
+            }
+
+            if (_samples.incrementAndGet()>=_sampleSize)
+                age();
+        }
+
+        /* ------------------------------------------------------------ */
+        private void age()
+        {
+            synchronized (this)
+            {
+                if (_samples.get()<_sampleSize)
+                    return;
+                _samples.set(0);
+                for (byte[] row : _counters)
+                    for (int i=0;i<row.length;i++)
+                        row[i]>>=1;
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        private int index(int hash, int i)
+        {
+            int h=hash*SEEDS[i];
+            return (h^(h>>>16))&_mask;
+        }
+
+        /* ------------------------------------------------------------ */
+        private static int spread(int hash)
+        {
+            hash^=(hash>>>20)^(hash>>>12);
+            return hash^(hash>>>7)^(hash>>>4);
+        }
     }
 }
@@ -13,6 +13,7 @@
 
 package org.eclipse.jetty.server.handler;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
@@ -409,8 +410,10 @@ public class ResourceHandler extends AbstractHandler
         // See if a short direct method can be used?
         if (out instanceof HttpConnection.Output)
         {
-            // TODO file mapped buffers
-            ((HttpConnection.Output)out).sendContent(resource.getInputStream());
+            HttpConnection.Output connection_out=(HttpConnection.Output)out;
+            File file=resource.getFile();
+            if (file==null || !connection_out.sendFile(file,0,resource.length()))
+                connection_out.sendContent(resource.getInputStream());
         }
         else
         {
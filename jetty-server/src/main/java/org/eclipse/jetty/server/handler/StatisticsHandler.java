@@ -26,18 +26,22 @@ import org.eclipse.jetty.continuation.ContinuationListener;
 import org.eclipse.jetty.server.AsyncContinuation;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Response;
-import org.eclipse.jetty.util.statistic.SampleStatistic;
 import org.eclipse.jetty.util.statistic.CounterStatistic;
+import org.eclipse.jetty.util.statistic.HistogramStatistic;
 
 public class StatisticsHandler extends HandlerWrapper
 {
+    /* The request attribute holding the time that a request was suspended */
+    private static final String __SUSPENDED = StatisticsHandler.class.getName()+".suspended";
+
     private final AtomicLong _statsStartedAt = new AtomicLong();
     
     private final CounterStatistic _requestStats = new CounterStatistic();
-    private final SampleStatistic _requestTimeStats = new SampleStatistic();
+    private final HistogramStatistic _requestTimeStats = new HistogramStatistic();
     private final CounterStatistic _dispatchedStats = new CounterStatistic();
-    private final SampleStatistic _dispatchedTimeStats = new SampleStatistic();
+    private final HistogramStatistic _dispatchedTimeStats = new HistogramStatistic();
     private final CounterStatistic _suspendStats = new CounterStatistic();
+    private final HistogramStatistic _suspendTimeStats = new HistogramStatistic();
 
     private final AtomicInteger _resumes = new AtomicInteger();
     private final AtomicInteger _expires = new AtomicInteger();
@@ -54,7 +58,8 @@ public class StatisticsHandler extends HandlerWrapper
         public void onComplete(Continuation continuation)
         {
             final Request request = ((AsyncContinuation)continuation).getBaseRequest();
-            final long elapsed = System.currentTimeMillis()-request.getTimeStamp();
+            final long now = System.currentTimeMillis();
+            final long elapsed = now-request.getTimeStamp();
             
             _requestStats.decrement();
             _requestTimeStats.set(elapsed);
@@ -62,7 +67,11 @@ public class StatisticsHandler extends HandlerWrapper
             updateResponse(request);
             
             if (!continuation.isResumed())
+            {
+                // completed while suspended
                 _suspendStats.decrement();
+                suspended(request,now);
+            }
         }
 
         public void onTimeout(Continuation continuation)
@@ -83,6 +92,7 @@ public class StatisticsHandler extends HandlerWrapper
         _dispatchedStats.reset();
         _dispatchedTimeStats.reset();
         _suspendStats.reset();
+        _suspendTimeStats.reset();
 
         _resumes.set(0);
         _expires.set(0);
@@ -112,6 +122,7 @@ public class StatisticsHandler extends HandlerWrapper
             // resumed request
             start = System.currentTimeMillis();
             _suspendStats.decrement();
+            suspended(request,start);
             if (continuation.isResumed())
                 _resumes.incrementAndGet();
         }
@@ -133,6 +144,7 @@ public class StatisticsHandler extends HandlerWrapper
                 if (continuation.isInitial())
                     continuation.addContinuationListener(_onCompletion);
                 _suspendStats.increment();
+                request.setAttribute(__SUSPENDED,now);
             }
             else if (continuation.isInitial())
             {
@@ -144,6 +156,21 @@ public class StatisticsHandler extends HandlerWrapper
         }
     }
 
+    /**
+     * Record the time that a request was suspended for.
+     * @param request the request that is no longer suspended
+     * @param now the time that the request was redispatched or completed
+     */
+    private void suspended(Request request, long now)
+    {
+        Long suspended = (Long)request.getAttribute(__SUSPENDED);
+        if (suspended != null)
+        {
+            request.removeAttribute(__SUSPENDED);
+            _suspendTimeStats.set(now-suspended);
+        }
+    }
+
     private void updateResponse(Request request)
     {
         Response response = request.getResponse();
@@ -246,6 +273,52 @@ public class StatisticsHandler extends HandlerWrapper
         return _requestTimeStats.getStdDev();
     }
 
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the time (in milliseconds) that the given percentage of requests
+     * were handled within, since {@link #statsReset()} was last called.
+     */
+    public long getRequestTimePercentile(double percentile)
+    {
+        return _requestTimeStats.getPercentile(percentile);
+    }
+
+    /**
+     * @return the median time (in milliseconds) of request handling
+     * since {@link #statsReset()} was last called.
+     */
+    public long getRequestTimeP50()
+    {
+        return _requestTimeStats.getPercentile(50);
+    }
+
+    /**
+     * @return the 90th percentile time (in milliseconds) of request handling
+     * since {@link #statsReset()} was last called.
+     */
+    public long getRequestTimeP90()
+    {
+        return _requestTimeStats.getPercentile(90);
+    }
+
+    /**
+     * @return the 99th percentile time (in milliseconds) of request handling
+     * since {@link #statsReset()} was last called.
+     */
+    public long getRequestTimeP99()
+    {
+        return _requestTimeStats.getPercentile(99);
+    }
+
+    /**
+     * @return the 99.9th percentile time (in milliseconds) of request handling
+     * since {@link #statsReset()} was last called.
+     */
+    public long getRequestTimeP999()
+    {
+        return _requestTimeStats.getPercentile(99.9);
+    }
+
     /**
      * @return the number of dispatches seen by this handler
      * since {@link #statsReset()} was last called, excluding
@@ -315,6 +388,52 @@ public class StatisticsHandler extends HandlerWrapper
     {
         return _dispatchedTimeStats.getStdDev();
     }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the time (in milliseconds) that the given percentage of dispatches
+     * were handled within, since {@link #statsReset()} was last called.
+     */
+    public long getDispatchedTimePercentile(double percentile)
+    {
+        return _dispatchedTimeStats.getPercentile(percentile);
+    }
+
+    /**
+     * @return the median time (in milliseconds) of dispatch handling
+     * since {@link #statsReset()} was last called.
+     */
+    public long getDispatchedTimeP50()
+    {
+        return _dispatchedTimeStats.getPercentile(50);
+    }
+
+    /**
+     * @return the 90th percentile time (in milliseconds) of dispatch handling
+     * since {@link #statsReset()} was last called.
+     */
+    public long getDispatchedTimeP90()
+    {
+        return _dispatchedTimeStats.getPercentile(90);
+    }
+
+    /**
+     * @return the 99th percentile time (in milliseconds) of dispatch handling
+     * since {@link #statsReset()} was last called.
+     */
+    public long getDispatchedTimeP99()
+    {
+        return _dispatchedTimeStats.getPercentile(99);
+    }
+
+    /**
+     * @return the 99.9th percentile time (in milliseconds) of dispatch handling
+     * since {@link #statsReset()} was last called.
+     */
+    public long getDispatchedTimeP999()
+    {
+        return _dispatchedTimeStats.getPercentile(99.9);
+    }
     
     /**
      * @return the number of requests handled by this handler
@@ -344,6 +463,88 @@ public class StatisticsHandler extends HandlerWrapper
     {
         return (int)_suspendStats.getMax();
     }
+
+    /**
+     * @return the maximum time (in milliseconds) that requests were suspended
+     * since {@link #statsReset()} was last called.
+     */
+    public long getSuspendTimeMax()
+    {
+        return _suspendTimeStats.getMax();
+    }
+
+    /**
+     * @return the total time (in milliseconds) that requests were suspended
+     * since {@link #statsReset()} was last called.
+     */
+    public long getSuspendTimeTotal()
+    {
+        return _suspendTimeStats.getTotal();
+    }
+
+    /**
+     * @return the mean time (in milliseconds) that requests were suspended
+     * since {@link #statsReset()} was last called.
+     */
+    public double getSuspendTimeMean()
+    {
+        return _suspendTimeStats.getMean();
+    }
+
+    /**
+     * @return the standard deviation of time (in milliseconds) that requests were suspended
+     * since {@link #statsReset()} was last called.
+     */
+    public double getSuspendTimeStdDev()
+    {
+        return _suspendTimeStats.getStdDev();
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the time (in milliseconds) that the given percentage of suspended requests
+     * were resumed, expired or completed within, since {@link #statsReset()} was last called.
+     */
+    public long getSuspendTimePercentile(double percentile)
+    {
+        return _suspendTimeStats.getPercentile(percentile);
+    }
+
+    /**
+     * @return the median time (in milliseconds) that requests were suspended
+     * since {@link #statsReset()} was last called.
+     */
+    public long getSuspendTimeP50()
+    {
+        return _suspendTimeStats.getPercentile(50);
+    }
+
+    /**
+     * @return the 90th percentile time (in milliseconds) that requests were suspended
+     * since {@link #statsReset()} was last called.
+     */
+    public long getSuspendTimeP90()
+    {
+        return _suspendTimeStats.getPercentile(90);
+    }
+
+    /**
+     * @return the 99th percentile time (in milliseconds) that requests were suspended
+     * since {@link #statsReset()} was last called.
+     */
+    public long getSuspendTimeP99()
+    {
+        return _suspendTimeStats.getPercentile(99);
+    }
+
+    /**
+     * @return the 99.9th percentile time (in milliseconds) that requests were suspended
+     * since {@link #statsReset()} was last called.
+     */
+    public long getSuspendTimeP999()
+    {
+        return _suspendTimeStats.getPercentile(99.9);
+    }
     
     /**
      * @return the number of requests that have been resumed
@@ -439,6 +640,7 @@ public class StatisticsHandler extends HandlerWrapper
         sb.append("Mean request time: ").append(getRequestTimeMean()).append("<br />\n");
         sb.append("Max request time: ").append(getRequestTimeMax()).append("<br />\n");
         sb.append("Request time standard deviation: ").append(getRequestTimeStdDev()).append("<br />\n");
+        sb.append("Request time percentiles 50/90/99/99.9: ").append(getRequestTimeP50()).append('/').append(getRequestTimeP90()).append('/').append(getRequestTimeP99()).append('/').append(getRequestTimeP999()).append("<br />\n");
         
 
         sb.append("<h2>Dispatches:</h2>\n");
@@ -449,11 +651,15 @@ public class StatisticsHandler extends HandlerWrapper
         sb.append("Mean dispatched time: ").append(getDispatchedTimeMean()).append("<br />\n");
         sb.append("Max dispatched time: ").append(getDispatchedTimeMax()).append("<br />\n");
         sb.append("Dispatched time standard deviation: ").append(getDispatchedTimeStdDev()).append("<br />\n");
+        sb.append("Dispatched time percentiles 50/90/99/99.9: ").append(getDispatchedTimeP50()).append('/').append(getDispatchedTimeP90()).append('/').append(getDispatchedTimeP99()).append('/').append(getDispatchedTimeP999()).append("<br />\n");
 
 
         sb.append("Total requests suspended: ").append(getSuspends()).append("<br />\n");
         sb.append("Total requests expired: ").append(getExpires()).append("<br />\n");
         sb.append("Total requests resumed: ").append(getResumes()).append("<br />\n");
+        sb.append("Mean suspend time: ").append(getSuspendTimeMean()).append("<br />\n");
+        sb.append("Max suspend time: ").append(getSuspendTimeMax()).append("<br />\n");
+        sb.append("Suspend time percentiles 50/90/99/99.9: ").append(getSuspendTimeP50()).append('/').append(getSuspendTimeP90()).append('/').append(getSuspendTimeP99()).append('/').append(getSuspendTimeP999()).append("<br />\n");
         
         sb.append("<h2>Responses:</h2>\n");
         sb.append("1xx responses: ").append(getResponses1xx()).append("<br />\n");
@@ -29,6 +29,7 @@ import org.eclipse.jetty.server.AbstractConnector;
 public abstract class AbstractNIOConnector extends AbstractConnector implements NIOConnector
 {
     private boolean _useDirectBuffers=true;
+    private boolean _useFileTransfer=true;
  
     /* ------------------------------------------------------------------------------- */
     public boolean getUseDirectBuffers()
@@ -46,6 +47,23 @@ public abstract class AbstractNIOConnector extends AbstractConnector implements
         _useDirectBuffers=direct;
     }
 
+    /* ------------------------------------------------------------------------------- */
+    public boolean getUseFileTransfer()
+    {
+        return _useFileTransfer;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /**
+     * @param transfer If True (the default), uncached file content may be transferred directly 
+     * from the file to the connection (eg with sendfile) rather than copied through buffers. 
+     * File transfers are not used by SSL connectors.
+     */
+    public void setUseFileTransfer(boolean transfer)
+    {
+        _useFileTransfer=transfer;
+    }
+
     /* ------------------------------------------------------------------------------- */
     @Override
     public Buffer newRequestBuffer(int size)
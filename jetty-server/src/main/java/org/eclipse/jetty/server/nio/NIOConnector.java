@@ -23,4 +23,6 @@ package org.eclipse.jetty.server.nio;
 public interface NIOConnector
 {
     boolean getUseDirectBuffers();
+    
+    boolean getUseFileTransfer();
 }
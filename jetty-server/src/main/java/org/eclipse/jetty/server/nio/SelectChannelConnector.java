@@ -64,6 +64,9 @@ public class SelectChannelConnector extends AbstractNIOConnector
     private int _lowResourcesConnections;
     private int _lowResourcesMaxIdleTime;
     private int _localPort=-1;
+    private boolean _timingWheel;
+    private boolean _acceptorsShared;
+    private int _spreadPolicy=SelectorManager.ROUND_ROBIN;
 
     private final SelectorManager _manager = new SelectorManager()
     {
@@ -103,6 +106,15 @@ public class SelectChannelConnector extends AbstractNIOConnector
         {
             return SelectChannelConnector.this.newEndPoint(channel,selectSet,sKey);
         }
+
+        @Override
+        protected SocketChannel acceptChannel(SelectionKey key) throws IOException
+        {
+            SocketChannel channel = super.acceptChannel(key);
+            if (channel!=null)
+                configure(channel.socket());
+            return channel;
+        }
     };
 
     /* ------------------------------------------------------------------------------- */
@@ -258,6 +270,105 @@ public class SelectChannelConnector extends AbstractNIOConnector
     }
 
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if timeouts are scheduled with a {@link org.eclipse.jetty.util.thread.TimingWheelTimeout}
+     */
+    public boolean isTimingWheel()
+    {
+        return _timingWheel;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set whether the select sets schedule timeouts (eg for suspended requests) with a 
+     * {@link org.eclipse.jetty.util.thread.TimingWheelTimeout}, which has O(1) schedule and cancel,
+     * rather than a sorted list.
+     * @param timingWheel True if a timing wheel is used.
+     */
+    public void setTimingWheel(boolean timingWheel)
+    {
+        _timingWheel=timingWheel;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if each select set accepts connections, rather than a single accepting thread.
+     */
+    public boolean isAcceptorsShared()
+    {
+        return _acceptorsShared;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set whether the accepting channel is registered with every select set, so that 
+     * each of the {@link #getAcceptors()} threads accepts connections, rather than a single
+     * thread blocking in accept and handing connections to the select sets. 
+     * This avoids a single accept bottleneck when many connections arrive at once.
+     * @param shared True if each select set accepts connections.
+     * @see #setSpreadPolicy(int)
+     */
+    public void setAcceptorsShared(boolean shared)
+    {
+        if (isStarted())
+            throw new IllegalStateException("started");
+        _acceptorsShared=shared;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The policy used to spread new connections over the select sets
+     * @see #setSpreadPolicy(int)
+     */
+    public int getSpreadPolicy()
+    {
+        return _spreadPolicy;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the policy used to spread new connections over the select sets.
+     * With {@link SelectorManager#ROUND_ROBIN}, connections are registered with each select set in 
+     * turn or, if {@link #isAcceptorsShared()}, kept by the select set that accepted them. 
+     * With {@link SelectorManager#LEAST_LOADED}, connections are registered with the select 
+     * set that has the fewest connections.
+     * @param spreadPolicy {@link SelectorManager#ROUND_ROBIN} or {@link SelectorManager#LEAST_LOADED}
+     */
+    public void setSpreadPolicy(int spreadPolicy)
+    {
+        _manager.setSpreadPolicy(spreadPolicy);
+        _spreadPolicy=spreadPolicy;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The total number of connections accepted
+     */
+    public long getAccepted()
+    {
+        return _manager.getRegistered();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of connections accepted per second, averaged over the 
+     * period since the rate was last calculated, which is at least 1 second.
+     */
+    public long getAcceptRate()
+    {
+        return _manager.getRegisterRate();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of connections of each select set, or null if not started.
+     */
+    public int[] getSelectSetConnections()
+    {
+        return _manager.getSelectSetConnections();
+    }
+
     /* ------------------------------------------------------------ */
     /*
      * @see org.eclipse.jetty.server.server.AbstractConnector#doStart()
@@ -269,9 +380,19 @@ public class SelectChannelConnector extends AbstractNIOConnector
         _manager.setMaxIdleTime(getMaxIdleTime());
         _manager.setLowResourcesConnections(getLowResourcesConnections());
         _manager.setLowResourcesMaxIdleTime(getLowResourcesMaxIdleTime());
+        _manager.setTimingWheel(isTimingWheel());
+        _manager.setSpreadPolicy(getSpreadPolicy());
         _manager.start();
         open();
         super.doStart();
+
+        if (_acceptorsShared)
+        {
+            // every select set accepts new connections
+            _acceptChannel.configureBlocking(false);
+            _manager.registerWithAll(_acceptChannel);
+            return;
+        }
         
         // start a thread to accept new connections
         _manager.dispatch(new Runnable()
@@ -15,14 +15,26 @@ package org.eclipse.jetty.server.session;
 
 import static java.lang.Math.round;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.EventListener;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
@@ -62,6 +74,10 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
     /* ------------------------------------------------------------ */
     public final static int __distantFuture=60*60*24*7*52*20;
 
+    /* ------------------------------------------------------------ */
+    /** The int that starts attributes written by {@link Session#saveAttributes(DataOutputStream)} */
+    public final static int __attributesMagic=0x4A534101;
+
     private static final HttpSessionContext __nullSessionContext=new NullSessionContext();
 
     private boolean _usingCookies=true;
@@ -91,6 +107,9 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
 
     protected final CounterStatistic _sessionsStats = new CounterStatistic();
     protected final SampleStatistic _sessionTimeStats = new SampleStatistic();
+    private final AtomicLong _attributesSerialized = new AtomicLong();
+    private final AtomicLong _attributesReused = new AtomicLong();
+    private boolean _reuseSerializedAttributes=true;
     
     /* ------------------------------------------------------------ */
     public AbstractSessionManager()
@@ -227,14 +246,10 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
     {
         String cluster_id = getIdManager().getClusterId(nodeId);
 
-        synchronized (this)
-        {
-            Session session = getSession(cluster_id);
-
-            if (session!=null && !session.getNodeId().equals(nodeId))
-                session.setIdChanged(true);
-            return session;
-        }
+        Session session = getSession(cluster_id);
+        if (session!=null && !session.getNodeId().equals(nodeId))
+            session.setIdChanged(true);
+        return session;
     }
 
     /* ------------------------------------------------------------ */
@@ -467,6 +482,55 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
     {
         _sessionsStats.reset(getSessions());
         _sessionTimeStats.reset();
+        _attributesSerialized.set(0);
+        _attributesReused.set(0);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of attribute values serialized by {@link Session#saveAttributes(DataOutputStream)}
+     * since statsReset() was called
+     */
+    public long getAttributesSerialized()
+    {
+        return _attributesSerialized.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of unchanged attribute values saved by {@link Session#saveAttributes(DataOutputStream)}
+     * without being serialized again since statsReset() was called
+     */
+    public long getAttributesReused()
+    {
+        return _attributesReused.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if the serialized bytes of any attribute value are reused until the attribute is set again.
+     * @see #setReuseSerializedAttributes(boolean)
+     */
+    public boolean isReuseSerializedAttributes()
+    {
+        return _reuseSerializedAttributes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set if the serialized bytes of attribute values are reused when sessions are saved.
+     * <p>
+     * The bytes of immutable values such as Strings, boxed primitives and enums are always
+     * reused until the attribute is set again. If this is true (the default), the bytes of 
+     * all other values are also reused, so only the attributes that have been set or removed
+     * are saved, and an application that modifies a value in place must set the attribute 
+     * again for the modification to be saved. If false, mutable values are serialized and 
+     * saved every time the session is saved.
+     * @param reuse True if the serialized bytes of any attribute value are reused
+     */
+    public void setReuseSerializedAttributes(boolean reuse)
+    {
+        _reuseSerializedAttributes=reuse;
     }
 
     /* ------------------------------------------------------------ */
@@ -577,7 +641,11 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
         _usingCookies=usingCookies;
     }
 
-
+    /* ------------------------------------------------------------ */
+    /**
+     * Add a session to the sessions of this manager.
+     * Implementations must be thread safe, as this is not called while holding a lock on the manager.
+     */
     protected abstract void addSession(Session session);
 
     /* ------------------------------------------------------------ */
@@ -591,10 +659,7 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
         synchronized (_sessionIdManager)
         {
             _sessionIdManager.addSession(session);
-            synchronized (this)
-            {
-                addSession(session);
-            }
+            addSession(session);
         }
 
         if (created)
@@ -669,17 +734,7 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
     public void removeSession(Session session, boolean invalidate)
     {
         // Remove session from context and global maps
-        boolean removed = false;
-        
-        synchronized (this)
-        {
-            //take this session out of the map of sessions for this context
-            if (getSession(session.getClusterId()) != null)
-            {
-                removed = true;
-                removeSession(session.getClusterId());
-            }
-        }
+        boolean removed = removeSessionIfPresent(session.getClusterId());
         
         if (removed)
         {
@@ -701,6 +756,31 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
     }
 
     /* ------------------------------------------------------------ */
+    /**
+     * Remove a session from the sessions of this manager, if it is known to this manager.
+     * The default implementation checks for and removes the session while holding a lock on 
+     * the manager. Implementations that are thread safe may override this to avoid that lock.
+     * @param idInCluster The session ID in the cluster
+     * @return True if the session was removed, false if it was not known to this manager
+     */
+    protected boolean removeSessionIfPresent(String idInCluster)
+    {
+        synchronized (this)
+        {
+            if (getSession(idInCluster)==null)
+                return false;
+            removeSession(idInCluster);
+            return true;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Remove a session from the sessions of this manager.
+     * @param idInCluster The session ID in the cluster
+     * @deprecated use {@link #removeSessionIfPresent(String)}, which reports if the session was removed
+     */
+    @Deprecated
     protected abstract void removeSession(String idInCluster);
     
     /* ------------------------------------------------------------ */
@@ -791,6 +871,129 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Read attributes written by {@link Session#saveAttributes(DataOutputStream)}.
+     * The caller must have already read the {@link #__attributesMagic} int.
+     *
+     * @param in the stream to read from
+     * @param values map to put the attribute values in
+     * @param serialized map to put the {@link SerializedAttribute}s in, which may be passed 
+     * to {@link Session#setSerializedAttributes(Map)}, or null.
+     */
+    public static void readAttributes(DataInputStream in, Map values, Map serialized) throws IOException, ClassNotFoundException
+    {
+        int size=in.readInt();
+        for (int i=0;i<size;i++)
+        {
+            String name=in.readUTF();
+            byte[] bytes=new byte[in.readInt()];
+            in.readFully(bytes);
+            Object value=deserializeAttribute(bytes);
+            values.put(name,value);
+            if (serialized!=null)
+                serialized.put(name,new SerializedAttribute(value,bytes));
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param value
+     * @return the value serialized with its own ObjectOutputStream
+     */
+    public static byte[] serializeAttribute(Object value) throws IOException
+    {
+        ByteArrayOutputStream bout=new ByteArrayOutputStream();
+        ObjectOutputStream out=new ObjectOutputStream(bout);
+        out.writeObject(value);
+        out.close();
+        return bout.toByteArray();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param bytes
+     * @return the value deserialized with classes loaded from the thread context classloader
+     */
+    public static Object deserializeAttribute(byte[] bytes) throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream in=new ClassLoadingObjectInputStream(new ByteArrayInputStream(bytes));
+        try
+        {
+            return in.readObject();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param value
+     * @return True if the value is of a class whose instances cannot be modified, so 
+     * that its serialized bytes may be reused until the attribute is set again.
+     */
+    public static boolean isImmutable(Object value)
+    {
+        if (value==null || value instanceof Enum)
+            return true;
+        Class type=value.getClass();
+        return type==String.class || type==Boolean.class || type==Character.class || 
+            type==Byte.class || type==Short.class || type==Integer.class || type==Long.class || 
+            type==Float.class || type==Double.class;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * An attribute value and the bytes it was serialized to.
+     */
+    public static class SerializedAttribute
+    {
+        final Object _value;
+        final byte[] _bytes;
+
+        /* ------------------------------------------------------------ */
+        public SerializedAttribute(Object value, byte[] bytes)
+        {
+            _value=value;
+            _bytes=bytes;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** An ObjectInputStream that loads classes from the thread context classloader.
+     */
+    protected static class ClassLoadingObjectInputStream extends ObjectInputStream
+    {
+        /* ------------------------------------------------------------ */
+        public ClassLoadingObjectInputStream(java.io.InputStream in) throws IOException
+        {
+            super(in);
+        }
+
+        /* ------------------------------------------------------------ */
+        public ClassLoadingObjectInputStream () throws IOException
+        {
+            super();
+        }
+
+        /* ------------------------------------------------------------ */
+        @Override
+        public Class resolveClass (java.io.ObjectStreamClass cl) throws IOException, ClassNotFoundException
+        {
+            try
+            {
+                return Class.forName(cl.getName(), false, Thread.currentThread().getContextClassLoader());
+            }
+            catch (ClassNotFoundException e)
+            {
+                return super.resolveClass(cl);
+            }
+        }
+    }
+
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
@@ -828,6 +1031,9 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
         protected boolean _newSession;
         protected Map _values;
         protected int _requests;
+        private transient Map _serialized; // name to SerializedAttribute of values not set since serialized, guarded by this
+        private transient int _attributesVersion; // incremented when any attribute is set or removed, guarded by this
+        private transient Set _dirtyAttributes; // names of attributes set or removed since last saved, guarded by this
 
         /* ------------------------------------------------------------- */
         protected Session(HttpServletRequest request)
@@ -1121,6 +1327,7 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
                     return;
 
                 old=_values.remove(name);
+                attributeChanged(name);
             }
 
             if (old!=null)
@@ -1165,6 +1372,7 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
                 if (_values==null)
                     _values=newAttributeMap();
                 old_value=_values.put(name,value);
+                attributeChanged(name);
             }
 
             if (old_value==null || !value.equals(old_value))
@@ -1189,6 +1397,236 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
             }
         }
 
+        /* ------------------------------------------------------------- */
+        /** Mark an attribute that has been set or removed as dirty and forget its serialized form.
+         * Called while synchronized on the session.
+         */
+        private void attributeChanged(String name)
+        {
+            _attributesVersion++;
+            if (_serialized!=null)
+                _serialized.remove(name);
+            if (_dirtyAttributes==null)
+                _dirtyAttributes=new HashSet();
+            _dirtyAttributes.add(name);
+        }
+
+        /* ------------------------------------------------------------- */
+        /**
+         * @param name
+         * @return True if the attribute has been set or removed since the attributes were last saved 
+         * or loaded, or if its value will be serialized again regardless.
+         */
+        public boolean isAttributeDirty(String name)
+        {
+            synchronized (this)
+            {
+                if (_dirtyAttributes!=null && _dirtyAttributes.contains(name))
+                    return true;
+                return _values!=null && _values.containsKey(name) && (_serialized==null || !_serialized.containsKey(name));
+            }
+        }
+
+        /* ------------------------------------------------------------- */
+        /**
+         * Mark attributes as dirty, so that they are saved by the next call to 
+         * {@link #saveChangedAttributes()}. This may be used to save attributes
+         * whose values have been modified in place, or to retry a failed save.
+         * @param names the names of the attributes
+         */
+        protected void setAttributesDirty(Collection names)
+        {
+            synchronized (this)
+            {
+                if (_dirtyAttributes==null)
+                    _dirtyAttributes=new HashSet();
+                _dirtyAttributes.addAll(names);
+            }
+        }
+
+        /* ------------------------------------------------------------- */
+        /** 
+         * @return True if the serialized bytes of the value may be kept until the attribute is set again.
+         */
+        private boolean isReusable(Object value)
+        {
+            return _reuseSerializedAttributes || isImmutable(value);
+        }
+
+        /* ------------------------------------------------------------- */
+        /**
+         * Save the attributes in a compact binary format.
+         * <p>
+         * The format is {@link AbstractSessionManager#__attributesMagic}, the number of 
+         * attributes and then the name, length and serialized bytes of each value.
+         * Each value is serialized separately. The bytes of immutable values, or of all
+         * values if {@link AbstractSessionManager#isReuseSerializedAttributes()}, are kept
+         * until the attribute is set again, so that those attributes are only serialized 
+         * if they have been set since the last save or load.
+         * <p>
+         * Because each value has its own object stream, an object that is referenced by 
+         * more than one attribute is restored as a separate copy for each attribute.
+         *
+         * @param out the stream to write to
+         * @see AbstractSessionManager#readAttributes(DataInputStream, Map, Map)
+         */
+        protected void saveAttributes(DataOutputStream out) throws IOException
+        {
+            String[] names;
+            Object[] values;
+            int version;
+            synchronized (this)
+            {
+                int size=_values==null?0:_values.size();
+                names=new String[size];
+                values=new Object[size];
+                if (size>0)
+                {
+                    Iterator iter=_values.entrySet().iterator();
+                    for (int i=0;i<size;i++)
+                    {
+                        Map.Entry entry=(Map.Entry)iter.next();
+                        names[i]=(String)entry.getKey();
+                        values[i]=entry.getValue();
+                    }
+                }
+                version=_attributesVersion;
+            }
+
+            out.writeInt(__attributesMagic);
+            out.writeInt(names.length);
+            for (int i=0;i<names.length;i++)
+            {
+                byte[] bytes=getSerializedAttribute(names[i],values[i],version);
+                out.writeUTF(names[i]);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            synchronized (this)
+            {
+                // all attributes have been saved unless one has been set since the snapshot
+                if (version==_attributesVersion)
+                    _dirtyAttributes=null;
+            }
+        }
+
+        /* ------------------------------------------------------------- */
+        /**
+         * Serialize the attributes that have changed since they were last saved or loaded.
+         * <p>
+         * An attribute has changed if it has been set or removed, or if its value is 
+         * serialized on every save because it is not reusable (see 
+         * {@link AbstractSessionManager#isReuseSerializedAttributes()}).
+         * The changed attributes are no longer dirty once returned, so if they cannot be
+         * stored, the caller should pass the names to {@link #setAttributesDirty(Collection)}.
+         *
+         * @return map of the name of each changed attribute to the serialized bytes of 
+         * its value, or to null if the attribute has been removed.
+         */
+        protected Map saveChangedAttributes() throws IOException
+        {
+            Map changed=new HashMap();
+            int version;
+            synchronized (this)
+            {
+                if (_dirtyAttributes!=null)
+                {
+                    for (Iterator iter=_dirtyAttributes.iterator(); iter.hasNext();)
+                    {
+                        String name=(String)iter.next();
+                        changed.put(name,_values==null?null:_values.get(name));
+                    }
+                }
+                if (_values!=null)
+                {
+                    for (Iterator iter=_values.entrySet().iterator(); iter.hasNext();)
+                    {
+                        Map.Entry entry=(Map.Entry)iter.next();
+                        if (_serialized==null || !_serialized.containsKey(entry.getKey()))
+                            changed.put(entry.getKey(),entry.getValue());
+                    }
+                }
+                _dirtyAttributes=null;
+                version=_attributesVersion;
+            }
+
+            try
+            {
+                for (Iterator iter=changed.entrySet().iterator(); iter.hasNext();)
+                {
+                    Map.Entry entry=(Map.Entry)iter.next();
+                    if (entry.getValue()!=null)
+                        entry.setValue(getSerializedAttribute((String)entry.getKey(),entry.getValue(),version));
+                }
+            }
+            catch (IOException e)
+            {
+                setAttributesDirty(changed.keySet());
+                throw e;
+            }
+            return changed;
+        }
+
+        /* ------------------------------------------------------------- */
+        /**
+         * @return the kept serialized bytes of the value, or the value newly serialized
+         */
+        private byte[] getSerializedAttribute(String name, Object value, int version) throws IOException
+        {
+            SerializedAttribute serialized;
+            synchronized (this)
+            {
+                serialized=_serialized==null?null:(SerializedAttribute)_serialized.get(name);
+            }
+
+            if (serialized!=null && serialized._value==value && isReusable(value))
+            {
+                _attributesReused.incrementAndGet();
+                return serialized._bytes;
+            }
+
+            byte[] bytes=serializeAttribute(value);
+            _attributesSerialized.incrementAndGet();
+            synchronized (this)
+            {
+                // only keep the bytes if no attribute has been set since the snapshot
+                if (version==_attributesVersion && isReusable(value))
+                {
+                    if (_serialized==null)
+                        _serialized=new HashMap();
+                    _serialized.put(name,new SerializedAttribute(value,bytes));
+                }
+            }
+            return bytes;
+        }
+
+        /* ------------------------------------------------------------- */
+        /**
+         * Set the serialized form of attributes that have been loaded, so that they
+         * need not be serialized again unless they are set. The attributes are not dirty.
+         *
+         * @param serialized map of name to {@link SerializedAttribute} as read by
+         * {@link AbstractSessionManager#readAttributes(DataInputStream, Map, Map)}
+         */
+        protected void setSerializedAttributes(Map serialized)
+        {
+            synchronized (this)
+            {
+                _dirtyAttributes=null;
+                _serialized=new HashMap();
+                if (_values==null)
+                    return;
+                for (Iterator iter=serialized.entrySet().iterator(); iter.hasNext();)
+                {
+                    Map.Entry entry=(Map.Entry)iter.next();
+                    SerializedAttribute attribute=(SerializedAttribute)entry.getValue();
+                    if (_values.get(entry.getKey())==attribute._value && isReusable(attribute._value))
+                        _serialized.put(entry.getKey(),attribute);
+                }
+            }
+        }
+
         /* ------------------------------------------------------------- */
         public void setIdChanged(boolean changed)
         {
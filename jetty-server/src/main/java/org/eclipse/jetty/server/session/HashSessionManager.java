@@ -20,41 +20,63 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.servlet.http.HttpServletRequest;
 
-import org.eclipse.jetty.util.LazyList;
 import org.eclipse.jetty.util.log.Log;
 
 
 /* ------------------------------------------------------------ */
 /** An in-memory implementation of SessionManager.
- *
- * 
+ * <p>
+ * The sessions are held in {@link #getShards()} shards, each guarded by its own lock,
+ * so that requests creating, finding and removing sessions in different shards do not 
+ * contend with each other or with the scavenger.
+ * <p>
+ * Each shard also keeps its sessions in buckets by the second in which they will expire
+ * if they are not accessed again. The scavenger only visits the sessions in buckets
+ * that are due: sessions that have been accessed since they were bucketed are moved to
+ * the bucket for their new expiry time, and the others are timed out.
  */
 public class HashSessionManager extends AbstractSessionManager
 {
+    private static final long BUCKET_MS=1000;
     private static int __id;
     private Timer _timer;
     private TimerTask _task;
     private int _scavengePeriodMs=30000;
     private int _savePeriodMs=0; //don't do period saves by default
     private TimerTask _saveTask;
-    protected Map _sessions;
+    private int _shardCount=16;
+    private volatile Shard[] _shards;
+    private final AtomicLong _scavengeVisits=new AtomicLong();
     private File _storeDir;
     private boolean _lazyLoad=false;
     private boolean _sessionsLoaded=false;
+
+    /**
+     * @deprecated The sessions are held in shards. This is a view of the shards for 
+     * subclasses that used the map of sessions, use {@link #getSessionMap()} for a snapshot.
+     */
+    @Deprecated
+    protected Map _sessions=new SessionMap();
     
     /* ------------------------------------------------------------ */
     public HashSessionManager()
@@ -69,7 +91,10 @@ public class HashSessionManager extends AbstractSessionManager
     @Override
     public void doStart() throws Exception
     {
-        _sessions=new ConcurrentHashMap(); // TODO: use syncronizedMap for JDK 1.4
+        Shard[] shards=new Shard[_shardCount];
+        for (int i=0;i<shards.length;i++)
+            shards[i]=new Shard();
+        _shards=shards;
         super.doStart();
 
         _timer=new Timer("HashSessionScavenger-"+__id++, true);
@@ -100,8 +125,8 @@ public class HashSessionManager extends AbstractSessionManager
         
         super.doStop();
  
-        _sessions.clear();
-        _sessions=null;
+        clearShards();
+        _shards=null;
 
         // stop the scavenger
         synchronized(this)
@@ -127,10 +152,30 @@ public class HashSessionManager extends AbstractSessionManager
 
     
     /* ------------------------------------------------------------ */
+    /**
+     * @return A snapshot of the sessions
+     */
     @Override
     public Map getSessionMap()
     {
-        return Collections.unmodifiableMap(_sessions);
+        Map<String,Session> sessions=new HashMap<String,Session>();
+        Shard[] shards=_shards;
+        if (shards!=null)
+        {
+            for (Shard shard : shards)
+            {
+                shard.lock();
+                try
+                {
+                    sessions.putAll(shard._sessions);
+                }
+                finally
+                {
+                    shard.unlock();
+                }
+            }
+        }
+        return Collections.unmodifiableMap(sessions);
     }
 
 
@@ -141,12 +186,108 @@ public class HashSessionManager extends AbstractSessionManager
         int sessions=super.getSessions();
         if (Log.isDebugEnabled())
         {
-            if (_sessions.size()!=sessions)
-                Log.warn("sessions: "+_sessions.size()+"!="+sessions);
+            int size=getSessionMap().size();
+            if (size!=sessions)
+                Log.warn("sessions: "+size+"!="+sessions);
+        }
+        return sessions;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of shards that the sessions are held in.
+     */
+    public int getShards()
+    {
+        return _shardCount;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param shards The number of shards that the sessions are held in, which is rounded up to a power of 2.
+     */
+    public void setShards(int shards)
+    {
+        if (isRunning())
+            throw new IllegalStateException("running");
+        if (shards<=0)
+            throw new IllegalArgumentException("shards");
+        _shardCount=shards==1?1:Integer.highestOneBit(shards-1)<<1;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of sessions held in each shard.
+     */
+    public int[] getShardSessions()
+    {
+        Shard[] shards=_shards;
+        if (shards==null)
+            return new int[0];
+        int[] sessions=new int[shards.length];
+        for (int i=0;i<shards.length;i++)
+        {
+            shards[i].lock();
+            try
+            {
+                sessions[i]=shards[i]._sessions.size();
+            }
+            finally
+            {
+                shards[i].unlock();
+            }
         }
         return sessions;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of times the lock of each shard has been contended since {@link #statsReset()} was called.
+     */
+    public long[] getShardContention()
+    {
+        Shard[] shards=_shards;
+        if (shards==null)
+            return new long[0];
+        long[] contention=new long[shards.length];
+        for (int i=0;i<shards.length;i++)
+            contention[i]=shards[i]._contended.get();
+        return contention;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of times the lock of any shard has been contended since {@link #statsReset()} was called.
+     */
+    public long getContention()
+    {
+        long contention=0;
+        for (long c : getShardContention())
+            contention+=c;
+        return contention;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of sessions visited by the scavenger since {@link #statsReset()} was called.
+     */
+    public long getScavengeVisits()
+    {
+        return _scavengeVisits.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void statsReset()
+    {
+        super.statsReset();
+        _scavengeVisits.set(0);
+        Shard[] shards=_shards;
+        if (shards!=null)
+            for (Shard shard : shards)
+                shard._contended.set(0);
+    }
+
 
     /* ------------------------------------------------------------ */
     @Override
@@ -270,35 +411,61 @@ public class HashSessionManager extends AbstractSessionManager
                 Log.debug(e);
             }
             
-            // Since Hashtable enumeration is not safe over deletes,
-            // we build a list of stale sessions, then go back and invalidate
-            // them
-            Object stale=null;
+            Shard[] shards=_shards;
+            if (shards==null)
+                return;
 
-            synchronized (HashSessionManager.this)
+            // Take the due buckets from each shard, rebucketing the sessions that have
+            // been accessed and building a list of the stale sessions to invalidate
+            long due=now/BUCKET_MS;
+            List<Session> stale=new ArrayList<Session>();
+            for (Shard shard : shards)
             {
-                // For each session
-                for (Iterator i=_sessions.values().iterator(); i.hasNext();)
+                shard.lock();
+                try
                 {
-                    Session session=(Session)i.next();
-                    long idleTime=session._maxIdleMs;
-                    if (idleTime>0&&session._accessed+idleTime<now)
+                    SortedMap<Long,Set<Session>> buckets=shard._buckets.headMap(due+1);
+                    while (!buckets.isEmpty())
                     {
-                        // Found a stale session, add it to the list
-                        stale=LazyList.add(stale,session);
+                        Set<Session> bucket=shard._buckets.remove(buckets.firstKey());
+                        for (Session session : bucket)
+                        {
+                            _scavengeVisits.incrementAndGet();
+                            session._expiryBucket=0;
+                            long idleTime=session._maxIdleMs;
+                            if (idleTime>0&&session._accessed+idleTime<now)
+                                stale.add(session);
+                            else
+                                schedule(shard,session);
+                        }
                     }
                 }
+                finally
+                {
+                    shard.unlock();
+                }
             }
 
             // Remove the stale sessions
-            for (int i=LazyList.size(stale); i-->0;)
+            for (Session session : stale)
             {
                 // check it has not been accessed in the meantime
-                Session session=(Session)LazyList.get(stale,i);
                 long idleTime=session._maxIdleMs;
                 if (idleTime>0&&session._accessed+idleTime<System.currentTimeMillis())
-                {
                     session.timeout();
+                else
+                {
+                    Shard shard=getShard(shards,session.getClusterId());
+                    shard.lock();
+                    try
+                    {
+                        if (shard._sessions.get(session.getClusterId())==session)
+                            schedule(shard,session);
+                    }
+                    finally
+                    {
+                        shard.unlock();
+                    }
                 }
             }
         }
@@ -315,11 +482,99 @@ public class HashSessionManager extends AbstractSessionManager
         }
     }
     
+    /* ------------------------------------------------------------ */
+    private Shard getShard(Shard[] shards, String clusterId)
+    {
+        int hash=clusterId.hashCode();
+        hash^=(hash>>>16);
+        return shards[hash&(shards.length-1)];
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Put a session in the bucket for the time it will expire if not accessed.
+     * Called while holding the shard lock.
+     */
+    private void schedule(Shard shard, Session session)
+    {
+        unschedule(shard,session);
+
+        long idleTime=session._maxIdleMs;
+        if (idleTime<=0)
+            return;
+
+        long expiry_bucket=(session._accessed+idleTime)/BUCKET_MS+1;
+        Set<Session> bucket=shard._buckets.get(expiry_bucket);
+        if (bucket==null)
+        {
+            bucket=new HashSet<Session>();
+            shard._buckets.put(expiry_bucket,bucket);
+        }
+        bucket.add(session);
+        session._expiryBucket=expiry_bucket;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Remove a session from its expiry bucket.
+     * Called while holding the shard lock.
+     */
+    private void unschedule(Shard shard, Session session)
+    {
+        if (session._expiryBucket!=0)
+        {
+            Set<Session> bucket=shard._buckets.get(session._expiryBucket);
+            if (bucket!=null && bucket.remove(session) && bucket.isEmpty())
+                shard._buckets.remove(session._expiryBucket);
+            session._expiryBucket=0;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private void clearShards()
+    {
+        Shard[] shards=_shards;
+        if (shards==null)
+            return;
+        for (Shard shard : shards)
+        {
+            shard.lock();
+            try
+            {
+                for (Session session : shard._sessions.values())
+                    session._expiryBucket=0;
+                shard._sessions.clear();
+                shard._buckets.clear();
+            }
+            finally
+            {
+                shard.unlock();
+            }
+        }
+    }
+
     /* ------------------------------------------------------------ */
     @Override
     protected void addSession(AbstractSessionManager.Session session)
     {
-        _sessions.put(session.getClusterId(),session);
+        putSession((Session)session);
+    }
+
+    /* ------------------------------------------------------------ */
+    private Session putSession(Session session)
+    {
+        Shard shard=getShard(_shards,session.getClusterId());
+        shard.lock();
+        try
+        {
+            Session old=shard._sessions.put(session.getClusterId(),session);
+            if (old!=null && old!=session)
+                unschedule(shard,old);
+            schedule(shard,session);
+            return old;
+        }
+        finally
+        {
+            shard.unlock();
+        }
     }
     
     /* ------------------------------------------------------------ */
@@ -336,10 +591,20 @@ public class HashSessionManager extends AbstractSessionManager
             Log.warn(e);
         }
         
-        if (_sessions==null)
+        Shard[] shards=_shards;
+        if (shards==null)
             return null;
 
-        return (Session)_sessions.get(idInCluster);
+        Shard shard=getShard(shards,idInCluster);
+        shard.lock();
+        try
+        {
+            return shard._sessions.get(idInCluster);
+        }
+        finally
+        {
+            shard.unlock();
+        }
     }
 
     /* ------------------------------------------------------------ */
@@ -347,14 +612,14 @@ public class HashSessionManager extends AbstractSessionManager
     protected void invalidateSessions()
     {
         // Invalidate all sessions to cause unbind events
-        ArrayList sessions=new ArrayList(_sessions.values());
+        ArrayList sessions=new ArrayList(getSessionMap().values());
         for (Iterator i=sessions.iterator(); i.hasNext();)
         {
             Session session=(Session)i.next();
             session.invalidate();
         }
-        _sessions.clear();
-        
+        clearShards();
+
     }
 
     /* ------------------------------------------------------------ */
@@ -372,9 +637,39 @@ public class HashSessionManager extends AbstractSessionManager
     
     /* ------------------------------------------------------------ */
     @Override
+    protected boolean removeSessionIfPresent(String clusterId)
+    {
+        return takeSession(clusterId)!=null;
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    @Deprecated
     protected void removeSession(String clusterId)
     {
-        _sessions.remove(clusterId);
+        takeSession(clusterId);
+    }
+
+    /* ------------------------------------------------------------ */
+    private Session takeSession(String clusterId)
+    {
+        Shard[] shards=_shards;
+        if (shards==null)
+            return null;
+
+        Shard shard=getShard(shards,clusterId);
+        shard.lock();
+        try
+        {
+            Session session=shard._sessions.remove(clusterId);
+            if (session!=null)
+                unschedule(shard,session);
+            return session;
+        }
+        finally
+        {
+            shard.unlock();
+        }
     }
     
 
@@ -453,7 +748,7 @@ public class HashSessionManager extends AbstractSessionManager
  
         synchronized (this)
         {
-            Iterator itor = _sessions.entrySet().iterator();
+            Iterator itor = getSessionMap().entrySet().iterator();
             while (itor.hasNext())
             {
                 Map.Entry entry = (Map.Entry)itor.next();
@@ -505,8 +800,22 @@ public class HashSessionManager extends AbstractSessionManager
         session._lastAccessed = lastAccessed;
         
         int size = in.readInt();
-        if (size > 0)
+        if (size == __attributesMagic)
         {
+            Map values = new HashMap();
+            Map serialized = new HashMap();
+            readAttributes(in, values, serialized);
+            session.initValues();
+            for (Iterator iter = values.entrySet().iterator(); iter.hasNext();)
+            {
+                Map.Entry entry = (Map.Entry)iter.next();
+                session.setAttribute((String)entry.getKey(),entry.getValue());
+            }
+            session.setSerializedAttributes(serialized);
+        }
+        else if (size > 0)
+        {
+            // attributes saved in the previous format
             ArrayList keys = new ArrayList();
             for (int i=0; i<size; i++)
             {
@@ -536,6 +845,8 @@ public class HashSessionManager extends AbstractSessionManager
         /* ------------------------------------------------------------ */
         private static final long serialVersionUID=-2134521374206116367L;
         
+        private transient long _expiryBucket; // guarded by the shard lock, 0 if not in a bucket
+        
         /* ------------------------------------------------------------- */
         protected Session(HttpServletRequest request)
         {
@@ -555,6 +866,23 @@ public class HashSessionManager extends AbstractSessionManager
             super.setMaxInactiveInterval(secs);
             if (_maxIdleMs>0&&(_maxIdleMs/10)<_scavengePeriodMs)
                 HashSessionManager.this.setScavengePeriod((secs+9)/10);
+
+            // move a scheduled session to the bucket of its new expiry time
+            Shard[] shards=_shards;
+            if (shards!=null)
+            {
+                Shard shard=getShard(shards,getClusterId());
+                shard.lock();
+                try
+                {
+                    if (_expiryBucket!=0)
+                        schedule(shard,this);
+                }
+                finally
+                {
+                    shard.unlock();
+                }
+            }
         }
         
         /* ------------------------------------------------------------ */
@@ -616,25 +944,7 @@ public class HashSessionManager extends AbstractSessionManager
             //out.writeLong(_maxIdleMs);
             //out.writeBoolean( _newSession);
             out.writeInt(_requests);
-            if (_values != null)
-            {
-                out.writeInt(_values.size());
-                Iterator itor = _values.keySet().iterator();
-                while (itor.hasNext())
-                {
-                    String key = (String)itor.next();
-                    out.writeUTF(key);
-                }
-                itor = _values.values().iterator();
-                ObjectOutputStream oos = new ObjectOutputStream(out);
-                while (itor.hasNext())
-                {
-                    oos.writeObject(itor.next());
-                }
-                oos.close();
-            }
-            else
-                out.writeInt(0);
+            saveAttributes(out);
             out.close();
         }
         
@@ -642,34 +952,116 @@ public class HashSessionManager extends AbstractSessionManager
 
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
-    protected class ClassLoadingObjectInputStream extends ObjectInputStream
+    /** A view of the sessions in the shards.
+     */
+    private class SessionMap extends AbstractMap<String,Session>
     {
-        /* ------------------------------------------------------------ */
-        public ClassLoadingObjectInputStream(java.io.InputStream in) throws IOException
+        @Override
+        public Session get(Object key)
         {
-            super(in);
+            return key instanceof String?(Session)getSession((String)key):null;
         }
 
-        /* ------------------------------------------------------------ */
-        public ClassLoadingObjectInputStream () throws IOException
+        @Override
+        public boolean containsKey(Object key)
         {
-            super();
+            return get(key)!=null;
         }
 
-        /* ------------------------------------------------------------ */
         @Override
-        public Class resolveClass (java.io.ObjectStreamClass cl) throws IOException, ClassNotFoundException
+        public Session put(String key, Session session)
         {
-            try
+            return putSession(session);
+        }
+
+        @Override
+        public Session remove(Object key)
+        {
+            return key instanceof String?takeSession((String)key):null;
+        }
+
+        @Override
+        public void clear()
+        {
+            clearShards();
+        }
+
+        @Override
+        public int size()
+        {
+            int size=0;
+            for (int sessions : getShardSessions())
+                size+=sessions;
+            return size;
+        }
+
+        @Override
+        public Set<Map.Entry<String,Session>> entrySet()
+        {
+            return new AbstractSet<Map.Entry<String,Session>>()
             {
-                return Class.forName(cl.getName(), false, Thread.currentThread().getContextClassLoader());
-            }
-            catch (ClassNotFoundException e)
+                @Override
+                public Iterator<Map.Entry<String,Session>> iterator()
+                {
+                    final Iterator<Map.Entry<String,Session>> snapshot=((Map<String,Session>)getSessionMap()).entrySet().iterator();
+                    return new Iterator<Map.Entry<String,Session>>()
+                    {
+                        Map.Entry<String,Session> _last;
+
+                        public boolean hasNext()
+                        {
+                            return snapshot.hasNext();
+                        }
+
+                        public Map.Entry<String,Session> next()
+                        {
+                            _last=snapshot.next();
+                            return _last;
+                        }
+
+                        public void remove()
+                        {
+                            if (_last==null)
+                                throw new IllegalStateException();
+                            takeSession(_last.getKey());
+                            _last=null;
+                        }
+                    };
+                }
+
+                @Override
+                public int size()
+                {
+                    return SessionMap.this.size();
+                }
+            };
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A shard of the sessions.
+     * The sessions and expiry buckets of a shard are guarded by the shard lock. 
+     */
+    private static class Shard
+    {
+        final ReentrantLock _lock = new ReentrantLock();
+        final AtomicLong _contended = new AtomicLong();
+        final Map<String,Session> _sessions = new HashMap<String,Session>();
+        final TreeMap<Long,Set<Session>> _buckets = new TreeMap<Long,Set<Session>>();
+
+        void lock()
+        {
+            if (!_lock.tryLock())
             {
-                return super.resolveClass(cl);
+                _contended.incrementAndGet();
+                _lock.lock();
             }
         }
-    }
 
-    
+        void unlock()
+        {
+            _lock.unlock();
+        }
+    }
 }
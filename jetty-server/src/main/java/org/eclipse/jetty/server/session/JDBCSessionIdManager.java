@@ -60,6 +60,7 @@ public class JDBCSessionIdManager extends AbstractSessionIdManager
     protected String _jndiName;
     protected String _sessionIdTable = "JettySessionIds";
     protected String _sessionTable = "JettySessions";
+    protected String _sessionAttributeTable = "JettySessionAttributes";
     protected Timer _timer; //scavenge timer
     protected TimerTask _task; //scavenge task
     protected long _lastScavengeTime;
@@ -68,9 +69,11 @@ public class JDBCSessionIdManager extends AbstractSessionIdManager
     
     protected String _createSessionIdTable;
     protected String _createSessionTable;
+    protected String _createSessionAttributeTable;
                                             
     protected String _selectExpiredSessions;
     protected String _deleteOldExpiredSessions;
+    protected String _deleteOldExpiredSessionAttributes;
 
     protected String _insertId;
     protected String _deleteId;
@@ -468,6 +471,8 @@ public class JDBCSessionIdManager extends AbstractSessionIdManager
         _createSessionIdTable = "create table "+_sessionIdTable+" (id varchar(120), primary key(id))";
         _selectExpiredSessions = "select * from "+_sessionTable+" where expiryTime >= ? and expiryTime <= ?";
         _deleteOldExpiredSessions = "delete from "+_sessionTable+" where expiryTime >0 and expiryTime <= ?";
+        _deleteOldExpiredSessionAttributes = "delete from "+_sessionAttributeTable+" where rowId in "+
+                                             "(select rowId from "+_sessionTable+" where expiryTime >0 and expiryTime <= ?)";
 
         _insertId = "insert into "+_sessionIdTable+" (id)  values (?)";
         _deleteId = "delete from "+_sessionIdTable+" where id = ?";
@@ -528,6 +533,18 @@ public class JDBCSessionIdManager extends AbstractSessionIdManager
                 if (!index2Exists)
                     statement.executeUpdate("create index "+index2+" on "+_sessionTable+" (sessionId, contextPath)");
             }
+            
+            //make the session attribute table if necessary
+            tableName = _dbAdaptor.convertIdentifier(_sessionAttributeTable);
+            result = metaData.getTables(null, null, tableName, null);
+            if (!result.next())
+            {
+                //table does not exist, so create it
+                String blobType = _dbAdaptor.getBlobType();
+                _createSessionAttributeTable = "create table "+_sessionAttributeTable+" (rowId varchar(120), attributeName varchar(250), "+
+                                                    " attributeValue "+blobType+", primary key(rowId, attributeName))";
+                connection.createStatement().executeUpdate(_createSessionAttributeTable);
+            }
         }
         finally
         {
@@ -676,6 +693,9 @@ public class JDBCSessionIdManager extends AbstractSessionIdManager
                 if (upperBound > 0)
                 {
                     if (Log.isDebugEnabled()) Log.debug("Deleting old expired sessions expired before "+upperBound);
+                    statement = connection.prepareStatement(_deleteOldExpiredSessionAttributes);
+                    statement.setLong(1, upperBound);
+                    statement.executeUpdate();
                     statement = connection.prepareStatement(_deleteOldExpiredSessions);
                     statement.setLong(1, upperBound);
                     statement.executeUpdate();
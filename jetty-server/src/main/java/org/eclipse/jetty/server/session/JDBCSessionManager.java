@@ -14,21 +14,29 @@
 
 package org.eclipse.jetty.server.session;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSessionEvent;
@@ -36,6 +44,7 @@ import javax.servlet.http.HttpSessionListener;
 
 import org.eclipse.jetty.server.SessionIdManager;
 import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.util.IO;
 import org.eclipse.jetty.util.LazyList;
 import org.eclipse.jetty.util.log.Log;
 
@@ -62,6 +71,29 @@ import org.eclipse.jetty.util.log.Log;
  * the accessTime and lastAccessTime every time the session is accessed. Rather,
  * we write it out every so often. The frequency is controlled by the saveIntervalSec
  * field.
+ * 
+ * If a write behind period is set, then changes are not written as each request
+ * exits the session. Instead the changed sessions are queued and written by a
+ * timer in JDBC batches, so that many requests to a session result in a single
+ * update. Sessions whose attributes have not changed are written without 
+ * re-serializing the attribute map. The max staleness bounds how long a queued
+ * session may wait to be written.
+ * 
+ * Session attributes are persisted to the JettySessionAttributes table, one row
+ * per attribute:
+ * 
+ * rowId (of the session in the JettySessions table)
+ * attributeName (the name of the attribute)
+ * attributeValue (the attribute value serialized on its own)
+ * 
+ * Only the rows of attributes that have been set or removed since the session was
+ * last written or loaded are written, so unchanged attributes are neither serialized 
+ * nor written again. Because each value is serialized on its own, an object that is 
+ * referenced by more than one attribute is loaded as a separate copy for each.
+ * 
+ * The map column is written empty. Attribute maps written to it by previous 
+ * versions are still read, and are moved to the attribute table when the 
+ * attributes of the session next change.
  */
 public class JDBCSessionManager extends AbstractSessionManager
 {  
@@ -71,9 +103,30 @@ public class JDBCSessionManager extends AbstractSessionManager
     protected  String __updateSession;  
     protected  String __updateSessionNode; 
     protected  String __updateSessionAccessTime;
+    protected  String __insertAttribute;
+    protected  String __deleteAttribute;
+    protected  String __deleteAttributes;
+    protected  String __selectAttributes;
+    
+    /** The map column of sessions whose attributes are in the attribute table */
+    private static final byte[] __noAttributes = new byte[] 
+    {
+        (byte)(__attributesMagic>>>24),(byte)(__attributesMagic>>>16),(byte)(__attributesMagic>>>8),(byte)__attributesMagic,0,0,0,0
+    };
     
     private ConcurrentHashMap _sessions;
     protected long _saveIntervalSec = 60; //only persist changes to session access times every 60 secs
+    
+    private static int __id;
+    private final ConcurrentMap _pending = new ConcurrentHashMap();
+    private volatile long _writeBehindPeriodMs = 0; //write synchronously by default
+    private volatile long _maxStalenessMs = 0;
+    private final ReentrantLock _writeLock = new ReentrantLock();
+    private Timer _timer;
+    private TimerTask _writeBehindTask;
+    private final AtomicLong _batches = new AtomicLong();
+    private final AtomicLong _batchedUpdates = new AtomicLong();
+    private final AtomicLong _batchedTouches = new AtomicLong();
   
     /**
      * SessionData
@@ -83,18 +136,21 @@ public class JDBCSessionManager extends AbstractSessionManager
     public class SessionData
     {
         private final String _id;
-        private String _rowId;
-        private long _accessed;
-        private long _lastAccessed;
-        private long _maxIdleMs;
-        private long _cookieSet;
-        private long _created;
-        private Map _attributes;
-        private String _lastNode;
-        private String _canonicalContext;
-        private long _lastSaved;
-        private long _expiryTime;
-        private String _virtualHost;
+        private volatile String _rowId;
+        private volatile long _accessed;
+        private volatile long _lastAccessed;
+        private volatile long _maxIdleMs;
+        private volatile long _cookieSet;
+        private volatile long _created;
+        private volatile Map _attributes;
+        private volatile String _lastNode;
+        private volatile String _canonicalContext;
+        private volatile long _lastSaved;
+        private volatile long _expiryTime;
+        private volatile String _virtualHost;
+        private volatile Session _session;
+        private Map _serialized;
+        private boolean _mapAttributes; //attributes were loaded from the map column
 
         public SessionData (String sessionId)
         {
@@ -105,48 +161,48 @@ public class JDBCSessionManager extends AbstractSessionManager
             _lastNode = getIdManager().getWorkerName();
         }
 
-        public synchronized String getId ()
+        public String getId ()
         {
             return _id;
         }
 
-        public synchronized long getCreated ()
+        public long getCreated ()
         {
             return _created;
         }
         
-        protected synchronized void setCreated (long ms)
+        protected void setCreated (long ms)
         {
             _created = ms;
         }
         
-        public synchronized long getAccessed ()
+        public long getAccessed ()
         {
             return _accessed;
         }
         
-        protected synchronized void setAccessed (long ms)
+        protected void setAccessed (long ms)
         {
             _accessed = ms;
         }
         
         
-        public synchronized void setMaxIdleMs (long ms)
+        public void setMaxIdleMs (long ms)
         {
             _maxIdleMs = ms;
         }
 
-        public synchronized long getMaxIdleMs()
+        public long getMaxIdleMs()
         {
             return _maxIdleMs;
         }
 
-        public synchronized void setLastAccessed (long ms)
+        public void setLastAccessed (long ms)
         {
             _lastAccessed = ms;
         }
 
-        public synchronized long getLastAccessed()
+        public long getLastAccessed()
         {
             return _lastAccessed;
         }
@@ -156,77 +212,77 @@ public class JDBCSessionManager extends AbstractSessionManager
             _cookieSet = ms;
         }
 
-        public synchronized long getCookieSet ()
+        public long getCookieSet ()
         {
             return _cookieSet;
         }
         
-        public synchronized void setRowId (String rowId)
+        public void setRowId (String rowId)
         {
             _rowId=rowId;
         }
         
-        protected synchronized String getRowId()
+        protected String getRowId()
         {
             return _rowId;
         }
         
-        protected synchronized Map getAttributeMap ()
+        protected Map getAttributeMap ()
         {
             return _attributes;
         }
         
-        protected synchronized void setAttributeMap (ConcurrentHashMap map)
+        protected void setAttributeMap (ConcurrentHashMap map)
         {
             _attributes = map;
         } 
         
-        public synchronized void setLastNode (String node)
+        public void setLastNode (String node)
         {
             _lastNode=node;
         }
         
-        public synchronized String getLastNode ()
+        public String getLastNode ()
         {
             return _lastNode;
         }
         
-        public synchronized void setCanonicalContext(String str)
+        public void setCanonicalContext(String str)
         {
             _canonicalContext=str;
         }
         
-        public synchronized String getCanonicalContext ()
+        public String getCanonicalContext ()
         {
             return _canonicalContext;
         }
         
-        public synchronized long getLastSaved ()
+        public long getLastSaved ()
         {
             return _lastSaved;
         }
         
-        public synchronized void setLastSaved (long time)
+        public void setLastSaved (long time)
         {
             _lastSaved=time;
         }
         
-        public synchronized void setExpiryTime (long time)
+        public void setExpiryTime (long time)
         {
             _expiryTime=time;      
         }
         
-        public synchronized long getExpiryTime ()
+        public long getExpiryTime ()
         {
             return _expiryTime;
         }
         
-        public synchronized void setVirtualHost (String vhost)
+        public void setVirtualHost (String vhost)
         {
             _virtualHost=vhost;
         }
         
-        public synchronized String getVirtualHost ()
+        public String getVirtualHost ()
         {
             return _virtualHost;
         }
@@ -252,6 +308,8 @@ public class JDBCSessionManager extends AbstractSessionManager
     {
         private final SessionData _data;
         private boolean _dirty=false;
+        private boolean _pendingAttributes; // guarded by this
+        private long _pendingSince; // guarded by this
 
         /**
          * Session from a request.
@@ -263,6 +321,7 @@ public class JDBCSessionManager extends AbstractSessionManager
          
             super(request);   
             _data = new SessionData(_clusterId);
+            _data._session = this;
             _data.setMaxIdleMs(_dftMaxIdleSecs*1000);
             _data.setCanonicalContext(canonicalize(_context.getContextPath()));
             _data.setVirtualHost(getVirtualHost(_context));
@@ -279,7 +338,15 @@ public class JDBCSessionManager extends AbstractSessionManager
              super(data.getCreated(), data.getId());
              _data=data;
              _data.setMaxIdleMs(_dftMaxIdleSecs*1000);
+             _data._session=this;
              _values=data.getAttributeMap();
+             if (data._serialized!=null)
+                 setSerializedAttributes(data._serialized);
+             data._serialized=null;
+             //attributes from the map column are all written to the attribute table by the next update
+             if (data._mapAttributes)
+                 setAttributesDirty(_values.keySet());
+             data._mapAttributes=false;
          }
         
          @Override
@@ -333,7 +400,13 @@ public class JDBCSessionManager extends AbstractSessionManager
             super.complete();
             try
             {
-                if (_dirty)
+                if (_writeBehindPeriodMs>0)
+                {
+                    //queue the session to be written by the next batch
+                    if (_dirty || (_data._accessed - _data._lastSaved) >= (getSaveInterval() * 1000))
+                        queueSession(this,_dirty);
+                }
+                else if (_dirty)
                 { 
                     //The session attributes have changed, write to the db, ensuring
                     //http passivation/activation listeners called
@@ -429,6 +502,115 @@ public class JDBCSessionManager extends AbstractSessionManager
         return _saveIntervalSec;
     }
 
+    
+    /**
+     * Set the period in milliseconds between batched writes of changed sessions.
+     * 
+     * If the period is greater than 0, then sessions that are changed
+     * by a request (or whose access time is due to be saved) are queued 
+     * rather than written as the request exits the session. Each period,
+     * all queued sessions are written in JDBC batches using a single
+     * connection, so that multiple changes to a session are coalesced.
+     * Sessions whose attributes have not changed only have their access
+     * times written.
+     * 
+     * If the period is 0 (the default), sessions are written synchronously.
+     * 
+     * @param ms
+     */
+    public void setWriteBehindPeriod (long ms)
+    {
+        _writeBehindPeriodMs=ms<0?0:ms;
+        
+        synchronized (this)
+        {
+            if (_writeBehindTask!=null)
+                _writeBehindTask.cancel();
+            _writeBehindTask=null;
+            
+            if (isStarted() && _writeBehindPeriodMs>0)
+            {
+                if (_timer==null)
+                    _timer=new Timer("JDBCSessionWriteBehind-"+__id++, true);
+                _writeBehindTask = new TimerTask()
+                {
+                    @Override
+                    public void run()
+                    {
+                        writeSessions();
+                    }
+                };
+                _timer.schedule(_writeBehindTask,_writeBehindPeriodMs,_writeBehindPeriodMs);
+            }
+        }
+        
+        if (_writeBehindPeriodMs==0)
+            writeSessions();
+    }
+    
+    public long getWriteBehindPeriod ()
+    {
+        return _writeBehindPeriodMs;
+    }
+    
+    
+    /**
+     * Set the maximum time in milliseconds that a queued session may 
+     * wait to be written when write behind is enabled.
+     * 
+     * If a request exits a session that has been queued for longer than
+     * this, then the request thread writes all the queued sessions rather
+     * than waiting for the next batch. This bounds the staleness of the
+     * database if the write behind period is long or the writes fall behind.
+     * 
+     * @param ms the max staleness, or 0 for no limit other than the write behind period.
+     */
+    public void setMaxStaleness (long ms)
+    {
+        _maxStalenessMs=ms<0?0:ms;
+    }
+    
+    public long getMaxStaleness ()
+    {
+        return _maxStalenessMs;
+    }
+    
+    
+    /**
+     * @return the number of sessions queued to be written
+     */
+    public int getPendingWrites ()
+    {
+        return _pending.size();
+    }
+    
+    
+    /**
+     * @return the number of batches of queued sessions that have been written
+     */
+    public long getWriteBatches ()
+    {
+        return _batches.get();
+    }
+    
+    
+    /**
+     * @return the number of queued sessions written with their attributes
+     */
+    public long getBatchedUpdates ()
+    {
+        return _batchedUpdates.get();
+    }
+    
+    
+    /**
+     * @return the number of queued sessions written with only their access times
+     */
+    public long getBatchedTouches ()
+    {
+        return _batchedTouches.get();
+    }
+
    
     
     /**
@@ -578,6 +760,8 @@ public class JDBCSessionManager extends AbstractSessionManager
      
         _sessions = new ConcurrentHashMap();
         super.doStart();
+        
+        setWriteBehindPeriod(getWriteBehindPeriod());
     }
     
     
@@ -589,6 +773,19 @@ public class JDBCSessionManager extends AbstractSessionManager
     @Override
     public void doStop() throws Exception
     {
+        synchronized (this)
+        {
+            if (_writeBehindTask!=null)
+                _writeBehindTask.cancel();
+            _writeBehindTask=null;
+            if (_timer!=null)
+                _timer.cancel();
+            _timer=null;
+        }
+        
+        //write any sessions still queued before they are forgotten
+        writeSessions();
+        
         _sessions.clear();
         _sessions = null;
         
@@ -630,10 +827,10 @@ public class JDBCSessionManager extends AbstractSessionManager
      * Delete an existing session, both from the in-memory map and
      * the database.
      * 
-     * @see org.eclipse.jetty.server.session.AbstractSessionManager#removeSession(java.lang.String)
+     * @see org.eclipse.jetty.server.session.AbstractSessionManager#removeSessionIfPresent(java.lang.String)
      */
     @Override
-    protected void removeSession(String idInCluster)
+    protected boolean removeSessionIfPresent(String idInCluster)
     {
         Session session = null;
         synchronized (this)
@@ -643,12 +840,28 @@ public class JDBCSessionManager extends AbstractSessionManager
         try
         {
             if (session != null)
+            {
+                //don't write a session that is being deleted
+                _pending.remove(idInCluster,session);
                 deleteSession(session._data);
+            }
         }
         catch (Exception e)
         {
             Log.warn("Problem deleting session id="+idInCluster, e);
         }
+        return session!=null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * @see org.eclipse.jetty.server.session.AbstractSessionManager#removeSession(java.lang.String)
+     */
+    @Override
+    @Deprecated
+    protected void removeSession(String idInCluster)
+    {
+        removeSessionIfPresent(idInCluster);
     }
 
 
@@ -704,17 +917,7 @@ public class JDBCSessionManager extends AbstractSessionManager
     public void removeSession(AbstractSessionManager.Session session, boolean invalidate)
     {
         // Remove session from context and global maps
-        boolean removed = false;
-        
-        synchronized (this)
-        {
-            //take this session out of the map of sessions for this context
-            if (getSession(session.getClusterId()) != null)
-            {
-                removed = true;
-                removeSession(session.getClusterId());
-            }
-        }
+        boolean removed = removeSessionIfPresent(session.getClusterId());
 
         if (removed)
         {
@@ -808,6 +1011,18 @@ public class JDBCSessionManager extends AbstractSessionManager
 
         __updateSessionAccessTime = "update "+((JDBCSessionIdManager)_sessionIdManager)._sessionTable+
                                     " set lastNode = ?, accessTime = ?, lastAccessTime = ?, lastSavedTime = ?, expiryTime = ? where rowId = ?";
+
+        __insertAttribute = "insert into "+((JDBCSessionIdManager)_sessionIdManager)._sessionAttributeTable+
+                            " (rowId, attributeName, attributeValue) values (?, ?, ?)";
+
+        __deleteAttribute = "delete from "+((JDBCSessionIdManager)_sessionIdManager)._sessionAttributeTable+
+                            " where rowId = ? and attributeName = ?";
+
+        __deleteAttributes = "delete from "+((JDBCSessionIdManager)_sessionIdManager)._sessionAttributeTable+
+                             " where rowId = ?";
+
+        __selectAttributes = "select * from "+((JDBCSessionIdManager)_sessionIdManager)._sessionAttributeTable+
+                             " where rowId = ?";
     }
     
     /**
@@ -843,11 +1058,42 @@ public class JDBCSessionManager extends AbstractSessionManager
                data.setCanonicalContext(result.getString("contextPath"));
                data.setVirtualHost(result.getString("virtualHost"));
 
-               InputStream is = ((JDBCSessionIdManager)getIdManager())._dbAdaptor.getBlobInputStream(result, "map");
-               ClassLoadingObjectInputStream ois = new ClassLoadingObjectInputStream (is);
-               Object o = ois.readObject();
-               data.setAttributeMap((ConcurrentHashMap)o);
-               ois.close();
+               JDBCSessionIdManager.DatabaseAdaptor adaptor = ((JDBCSessionIdManager)getIdManager())._dbAdaptor;
+               InputStream is = adaptor.getBlobInputStream(result, "map");
+               DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+               ConcurrentHashMap map = new ConcurrentHashMap();
+               Map serialized = new HashMap();
+               in.mark(4);
+               if (in.readInt()==__attributesMagic)
+               {
+                   readAttributes(in, map, serialized);
+                   in.close();
+               }
+               else
+               {
+                   //map written as a single object by a previous version
+                   in.reset();
+                   ClassLoadingObjectInputStream ois = new ClassLoadingObjectInputStream (in);
+                   map.putAll((Map)ois.readObject());
+                   ois.close();
+               }
+               data._mapAttributes = !map.isEmpty();
+               
+               //the attributes of the session, one per row
+               statement.close();
+               statement = connection.prepareStatement(__selectAttributes);
+               statement.setString(1, data.getRowId());
+               result = statement.executeQuery();
+               while (result.next())
+               {
+                   String name = result.getString("attributeName");
+                   byte[] bytes = IO.readBytes(adaptor.getBlobInputStream(result, "attributeValue"));
+                   Object value = deserializeAttribute(bytes);
+                   map.put(name, value);
+                   serialized.put(name, new SerializedAttribute(value, bytes));
+               }
+               data.setAttributeMap(map);
+               data._serialized = serialized;
                
                if (Log.isDebugEnabled())
                    Log.debug("LOADED session "+data);
@@ -874,6 +1120,7 @@ public class JDBCSessionManager extends AbstractSessionManager
             return;
         
         //put into the database      
+        Map changed = saveChangedAttributes(data);
         Connection connection = getConnection();
         PreparedStatement statement = null;
         try
@@ -881,7 +1128,7 @@ public class JDBCSessionManager extends AbstractSessionManager
             String rowId = calculateRowId(data);
             
             long now = System.currentTimeMillis();
-            connection.setAutoCommit(true);
+            connection.setAutoCommit(false);
             statement = connection.prepareStatement(__insertSession);
             statement.setString(1, rowId); //rowId
             statement.setString(2, data.getId()); //session id
@@ -894,16 +1141,18 @@ public class JDBCSessionManager extends AbstractSessionManager
             statement.setLong(9, data.getCookieSet());//time cookie was set
             statement.setLong(10, now); //last saved time
             statement.setLong(11, data.getExpiryTime());
+            statement.setBinaryStream(12, new ByteArrayInputStream(__noAttributes), __noAttributes.length);//attributes are in their own table
+            statement.executeUpdate();
+            statement.close();
             
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeObject(data.getAttributeMap());
-            byte[] bytes = baos.toByteArray();
-            
-            ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-            statement.setBinaryStream(12, bais, bytes.length);//attribute map as blob
-            
+            //remove any attributes left by an earlier session with the same row id
+            statement = connection.prepareStatement(__deleteAttributes);
+            statement.setString(1, rowId);
             statement.executeUpdate();
+            statement.close();
+            
+            storeAttributes(connection, Collections.singletonList(rowId), Collections.singletonList(changed));
+            connection.commit();
             data.setRowId(rowId); //set it on the in-memory data as well as in db
             data.setLastSaved(now);
 
@@ -911,6 +1160,12 @@ public class JDBCSessionManager extends AbstractSessionManager
             if (Log.isDebugEnabled())
                 Log.debug("Stored session "+data);
         }   
+        catch (Exception e)
+        {
+            connection.rollback();
+            attributesNotStored(data, changed);
+            throw e;
+        }
         finally
         {
             if (connection!=null)
@@ -931,32 +1186,36 @@ public class JDBCSessionManager extends AbstractSessionManager
         if (data==null)
             return;
         
+        Map changed = saveChangedAttributes(data);
         Connection connection = getConnection();
         PreparedStatement statement = null;
         try
         {              
             long now = System.currentTimeMillis();
-            connection.setAutoCommit(true);
+            connection.setAutoCommit(false);
             statement = connection.prepareStatement(__updateSession);     
             statement.setString(1, getIdManager().getWorkerName());//my node id
             statement.setLong(2, data.getAccessed());//accessTime
             statement.setLong(3, data.getLastAccessed()); //lastAccessTime
             statement.setLong(4, now); //last saved time
             statement.setLong(5, data.getExpiryTime());
-            
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(baos);
-            oos.writeObject(data.getAttributeMap());
-            byte[] bytes = baos.toByteArray();
-            ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-            
-            statement.setBinaryStream(6, bais, bytes.length);//attribute map as blob 
+            statement.setBinaryStream(6, new ByteArrayInputStream(__noAttributes), __noAttributes.length);//attributes are in their own table 
             statement.setString(7, data.getRowId()); //rowId
             statement.executeUpdate();
+            statement.close();
+            
+            storeAttributes(connection, Collections.singletonList(data.getRowId()), Collections.singletonList(changed));
+            connection.commit();
             
             data.setLastSaved(now);
             if (Log.isDebugEnabled())
-                Log.debug("Updated session "+data);
+                Log.debug("Updated session "+data+" with "+changed.size()+" changed attributes");
+        }
+        catch (Exception e)
+        {
+            connection.rollback();
+            attributesNotStored(data, changed);
+            throw e;
         }
         finally
         {
@@ -1034,6 +1293,299 @@ public class JDBCSessionManager extends AbstractSessionManager
     
     
     
+    /**
+     * Queue a session to be written by the next batch.
+     * 
+     * If the session has already been queued for longer than the max
+     * staleness, then all the queued sessions are written now.
+     * 
+     * @param session
+     * @param attributes true if the session attributes have changed
+     */
+    protected void queueSession (Session session, boolean attributes)
+    {
+        boolean stale;
+        synchronized (session)
+        {
+            long now = System.currentTimeMillis();
+            if (attributes)
+                session._pendingAttributes=true;
+            if (session._pendingSince==0)
+                session._pendingSince=now;
+            stale = _maxStalenessMs>0 && (now - session._pendingSince) >= _maxStalenessMs;
+        }
+        
+        _pending.put(session.getClusterId(), session);
+        
+        if (stale)
+            writeSessions();
+    }
+    
+    
+    /**
+     * Write all queued sessions to the database.
+     * 
+     * Sessions with changed attributes are written in one JDBC batch and
+     * sessions that only need their access times saved are written in another,
+     * both using a single connection and transaction. If the write fails, the
+     * sessions are queued again to be retried by the next batch.
+     * 
+     * This may be called by the write behind timer, by a request thread that 
+     * finds a stale session and when the manager is stopped, so only one 
+     * thread at a time writes the queued sessions.
+     */
+    public void writeSessions ()
+    {
+        _writeLock.lock();
+        try
+        {
+            if (_pending.isEmpty())
+                return;
+
+            List updates = new ArrayList();
+            List attributes = new ArrayList();
+            List touches = new ArrayList();
+            Map sessions = _sessions;
+            for (Iterator iter = _pending.values().iterator(); iter.hasNext();)
+            {
+                Session session = (Session)iter.next();
+                iter.remove();
+
+                //skip sessions that have since been removed or reloaded
+                if (sessions==null || sessions.get(session.getClusterId())!=session)
+                    continue;
+
+                synchronized (session)
+                {
+                    if (session._pendingAttributes)
+                    {
+                        //passivate and serialize while holding the session lock, 
+                        //so that requests cannot change the attributes meanwhile
+                        session.willPassivate();
+                        try
+                        {
+                            attributes.add(session.saveChangedAttributes());
+                            updates.add(session);
+                        }
+                        catch (Exception e)
+                        {
+                            Log.warn("Problem serializing session id="+session.getId(), e);
+                        }
+                        finally
+                        {
+                            session.didActivate();
+                        }
+                    }
+                    else
+                        touches.add(session);
+                    session._pendingAttributes=false;
+                    session._pendingSince=0;
+                }
+            }
+
+            if (updates.isEmpty() && touches.isEmpty())
+                return;
+
+            try
+            {
+                writeBatch(updates, attributes, touches);
+                _batches.incrementAndGet();
+                _batchedUpdates.addAndGet(updates.size());
+                _batchedTouches.addAndGet(touches.size());
+            }
+            catch (Exception e)
+            {
+                Log.warn("Problem writing "+(updates.size()+touches.size())+" queued sessions", e);
+                for (int i=0;i<updates.size();i++)
+                {
+                    Session session = (Session)updates.get(i);
+                    session.setAttributesDirty(((Map)attributes.get(i)).keySet());
+                    queueSession(session,true);
+                }
+                for (int i=0;i<touches.size();i++)
+                    queueSession((Session)touches.get(i),false);
+            }
+        }
+        finally
+        {
+            _writeLock.unlock();
+        }
+    }
+    
+    
+    /**
+     * Write sessions to the database in JDBC batches.
+     * 
+     * @param updates sessions whose changed attributes and access times are written
+     * @param attributes the changed attributes of each of the updated sessions, as returned by
+     * {@link AbstractSessionManager.Session#saveChangedAttributes()}
+     * @param touches sessions whose access times only are written
+     * @throws Exception
+     */
+    protected void writeBatch (List updates, List attributes, List touches)
+    throws Exception
+    {
+        String nodeId = getIdManager().getWorkerName();
+        long now = System.currentTimeMillis();
+        Connection connection = getConnection();
+        PreparedStatement statement = null;
+        try
+        {
+            connection.setAutoCommit(false);
+            if (!updates.isEmpty())
+            {
+                List rowIds = new ArrayList();
+                statement = connection.prepareStatement(__updateSession);
+                for (int i=0;i<updates.size();i++)
+                {
+                    SessionData data = ((Session)updates.get(i))._data;
+                    statement.setString(1, nodeId);
+                    statement.setLong(2, data.getAccessed());
+                    statement.setLong(3, data.getLastAccessed());
+                    statement.setLong(4, now);
+                    statement.setLong(5, data.getExpiryTime());
+                    statement.setBinaryStream(6, new ByteArrayInputStream(__noAttributes), __noAttributes.length);
+                    statement.setString(7, data.getRowId());
+                    statement.addBatch();
+                    rowIds.add(data.getRowId());
+                }
+                statement.executeBatch();
+                statement.close();
+                
+                storeAttributes(connection, rowIds, attributes);
+            }
+            
+            if (!touches.isEmpty())
+            {
+                statement = connection.prepareStatement(__updateSessionAccessTime);
+                for (int i=0;i<touches.size();i++)
+                {
+                    SessionData data = ((Session)touches.get(i))._data;
+                    statement.setString(1, nodeId);
+                    statement.setLong(2, data.getAccessed());
+                    statement.setLong(3, data.getLastAccessed());
+                    statement.setLong(4, now);
+                    statement.setLong(5, data.getExpiryTime());
+                    statement.setString(6, data.getRowId());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                statement.close();
+            }
+            connection.commit();
+            
+            for (int i=0;i<updates.size();i++)
+                ((Session)updates.get(i))._data.setLastSaved(now);
+            for (int i=0;i<touches.size();i++)
+                ((Session)touches.get(i))._data.setLastSaved(now);
+            
+            if (Log.isDebugEnabled())
+                Log.debug("Wrote batch of "+updates.size()+" updated and "+touches.size()+" accessed sessions");
+        }
+        catch (Exception e)
+        {
+            connection.rollback();
+            throw e;
+        }
+        finally
+        {
+            if (connection!=null)
+                connection.close();
+        }
+    }
+    
+    
+    /**
+     * Write the changed attributes of sessions to the attribute table.
+     * 
+     * The row of each changed attribute is deleted, and a new row is inserted 
+     * for each attribute that has not been removed.
+     * 
+     * @param connection the connection, whose transaction the caller commits
+     * @param rowIds the row ids of the sessions
+     * @param attributes the changed attributes of each session, as returned by 
+     * {@link AbstractSessionManager.Session#saveChangedAttributes()}
+     * @throws SQLException
+     */
+    protected void storeAttributes (Connection connection, List rowIds, List attributes)
+    throws SQLException
+    {
+        PreparedStatement delete = connection.prepareStatement(__deleteAttribute);
+        PreparedStatement insert = connection.prepareStatement(__insertAttribute);
+        try
+        {
+            int deletes = 0;
+            int inserts = 0;
+            for (int i=0;i<rowIds.size();i++)
+            {
+                String rowId = (String)rowIds.get(i);
+                for (Iterator iter = ((Map)attributes.get(i)).entrySet().iterator(); iter.hasNext();)
+                {
+                    Map.Entry entry = (Map.Entry)iter.next();
+                    String name = (String)entry.getKey();
+                    byte[] bytes = (byte[])entry.getValue();
+                    
+                    delete.setString(1, rowId);
+                    delete.setString(2, name);
+                    delete.addBatch();
+                    deletes++;
+                    
+                    if (bytes!=null)
+                    {
+                        insert.setString(1, rowId);
+                        insert.setString(2, name);
+                        insert.setBinaryStream(3, new ByteArrayInputStream(bytes), bytes.length);
+                        insert.addBatch();
+                        inserts++;
+                    }
+                }
+            }
+            if (deletes>0)
+                delete.executeBatch();
+            if (inserts>0)
+                insert.executeBatch();
+        }
+        finally
+        {
+            delete.close();
+            insert.close();
+        }
+    }
+    
+    
+    /**
+     * Serialize the attributes of a session that have changed since
+     * the session was last written or loaded.
+     * 
+     * @param data
+     * @return the changed attributes
+     * @throws IOException
+     */
+    private Map saveChangedAttributes (SessionData data)
+    throws IOException
+    {
+        Session session = data._session;
+        if (session==null)
+            return Collections.EMPTY_MAP;
+        return session.saveChangedAttributes();
+    }
+    
+    
+    /**
+     * Mark changed attributes that could not be written as dirty again,
+     * so that they are written by the next update of the session.
+     * 
+     * @param data
+     * @param changed
+     */
+    private void attributesNotStored (SessionData data, Map changed)
+    {
+        Session session = data._session;
+        if (session!=null)
+            session.setAttributesDirty(changed.keySet());
+    }
+    
+    
     /**
      * Delete a session from the database. Should only be called
      * when the session has been invalidated.
@@ -1048,13 +1600,23 @@ public class JDBCSessionManager extends AbstractSessionManager
         PreparedStatement statement = null;
         try
         {
-            connection.setAutoCommit(true);
+            connection.setAutoCommit(false);
+            statement = connection.prepareStatement(__deleteAttributes);
+            statement.setString(1, data.getRowId());
+            statement.executeUpdate();
+            statement.close();
             statement = connection.prepareStatement(__deleteSession);
             statement.setString(1, data.getRowId());
             statement.executeUpdate();
+            connection.commit();
             if (Log.isDebugEnabled())
                 Log.debug("Deleted Session "+data);
         }
+        catch (Exception e)
+        {
+            connection.rollback();
+            throw e;
+        }
         finally
         {
             if (connection!=null)
@@ -1069,7 +1631,7 @@ public class JDBCSessionManager extends AbstractSessionManager
      * @return
      * @throws SQLException
      */
-    private Connection getConnection ()
+    protected Connection getConnection ()
     throws SQLException
     { 
         return ((JDBCSessionIdManager)getIdManager()).getConnection();
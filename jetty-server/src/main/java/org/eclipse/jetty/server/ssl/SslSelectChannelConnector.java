@@ -21,13 +21,16 @@ import java.security.KeyStore;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
@@ -39,7 +42,7 @@ import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.Buffers;
 import org.eclipse.jetty.io.Connection;
 import org.eclipse.jetty.io.EndPoint;
-import org.eclipse.jetty.io.ThreadLocalBuffers;
+import org.eclipse.jetty.io.PooledBuffers;
 import org.eclipse.jetty.io.bio.SocketEndPoint;
 import org.eclipse.jetty.io.nio.DirectNIOBuffer;
 import org.eclipse.jetty.io.nio.SelectChannelEndPoint;
@@ -48,12 +51,29 @@ import org.eclipse.jetty.io.nio.SelectorManager.SelectSet;
 import org.eclipse.jetty.server.HttpConnection;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.util.component.LifeCycle;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.util.statistic.HistogramStatistic;
+import org.eclipse.jetty.util.thread.ThreadPool;
 
 /* ------------------------------------------------------------ */
 /**
  * SslSelectChannelConnector.
+ * <p>
+ * The sessions of full handshakes are cached by the {@link SSLContext}, so that a 
+ * client may resume them with a cheaper abbreviated handshake. The size and timeout of
+ * the cache may be set with {@link #setSessionCacheSize(int)} and {@link #setSessionTimeout(int)}.
+ * The cache of the JSSE provider is local to the JVM, so that a client of a cluster behind 
+ * a load balancer that does not route TLS connections by session will often make full
+ * handshakes; a provider with a cache shared by the cluster may be configured with 
+ * {@link #setProvider(String)} or {@link #setSslContext(SSLContext)}.
+ * <p>
+ * The number and duration of full and resumed handshakes are counted while 
+ * {@link #setStatsOn(boolean) statistics are on}, and the delegated 
+ * tasks of initial handshakes may be run by a {@link #setHandshakeThreadPool(ThreadPool) 
+ * handshake thread pool}, so that the key exchange computations of many new connections
+ * do not delay requests on established connections.
  * 
  * @org.apache.xbean.XBean element="sslConnector" description="Creates an NIO ssl connector"
  *
@@ -87,8 +107,34 @@ public class SslSelectChannelConnector extends SelectChannelConnector implements
     private String _truststorePath;
     private String _truststoreType="JKS"; // type of the key store
     private SSLContext _context;
+    private int _sessionCacheSize=-1;
+    private int _sessionTimeout=-1;
+    private ThreadPool _handshakeThreadPool;
     Buffers _sslBuffers;
 
+    private final AtomicLong _handshakesFailed = new AtomicLong();
+    private final HistogramStatistic _fullHandshakeTimeStats = new HistogramStatistic();
+    private final HistogramStatistic _resumedHandshakeTimeStats = new HistogramStatistic();
+    
+    private final SslSelectChannelEndPoint.HandshakeListener _handshakeListener = new SslSelectChannelEndPoint.HandshakeListener()
+    {
+        public void handshakeCompleted(SslSelectChannelEndPoint endpoint, long duration, boolean resumed)
+        {
+            if (!getStatsOn())
+                return;
+            if (resumed)
+                _resumedHandshakeTimeStats.set(duration);
+            else
+                _fullHandshakeTimeStats.set(duration);
+        }
+
+        public void handshakeFailed(SslSelectChannelEndPoint endpoint, Throwable cause)
+        {
+            if (getStatsOn())
+                _handshakesFailed.incrementAndGet();
+        }
+    };
+
     /* ------------------------------------------------------------ */
     public SslSelectChannelConnector()
     {
@@ -468,6 +514,190 @@ public class SslSelectChannelConnector extends SelectChannelConnector implements
         return _context;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the maximum number of sessions cached by the SSL context, 0 for no limit, 
+     * or -1 for the default of the provider.
+     */
+    public int getSessionCacheSize()
+    {
+        return _sessionCacheSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param size the maximum number of sessions cached by the SSL context, 0 for no limit, 
+     * or -1 for the default of the provider.
+     */
+    public void setSessionCacheSize(int size)
+    {
+        _sessionCacheSize=size;
+        configureSessionContext();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the time in seconds that a cached session may be resumed, 0 for no limit,
+     * or -1 for the default of the provider.
+     */
+    public int getSessionTimeout()
+    {
+        return _sessionTimeout;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param seconds the time in seconds that a cached session may be resumed, 0 for no limit,
+     * or -1 for the default of the provider.
+     */
+    public void setSessionTimeout(int seconds)
+    {
+        _sessionTimeout=seconds;
+        configureSessionContext();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of sessions cached by the SSL context.
+     */
+    public int getSessionsCached()
+    {
+        SSLContext context=_context;
+        SSLSessionContext sessions=context==null?null:context.getServerSessionContext();
+        if (sessions==null)
+            return 0;
+        int count=0;
+        for (Enumeration<byte[]> ids=sessions.getIds();ids.hasMoreElements();ids.nextElement())
+            count++;
+        return count;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the thread pool that runs the delegated tasks of initial handshakes, or null
+     * if they are run by the threads handling the connections.
+     */
+    public ThreadPool getHandshakeThreadPool()
+    {
+        return _handshakeThreadPool;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param pool the thread pool that runs the delegated tasks of initial handshakes, or null
+     * if they are run by the threads handling the connections. If the pool is not the thread
+     * pool of the server, it is started and stopped with the connector.
+     */
+    public void setHandshakeThreadPool(ThreadPool pool)
+    {
+        _handshakeThreadPool=pool;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of full and resumed handshakes completed since statsReset() called.
+     */
+    public long getHandshakes()
+    {
+        return _fullHandshakeTimeStats.getCount()+_resumedHandshakeTimeStats.getCount();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of full handshakes completed since statsReset() called.
+     */
+    public long getFullHandshakes()
+    {
+        return _fullHandshakeTimeStats.getCount();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of handshakes that resumed a cached session since statsReset() called.
+     */
+    public long getResumedHandshakes()
+    {
+        return _resumedHandshakeTimeStats.getCount();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of handshakes that failed or were closed before completing
+     * since statsReset() called.
+     */
+    public long getFailedHandshakes()
+    {
+        return _handshakesFailed.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the mean time in ms of full handshakes since statsReset() called.
+     */
+    public double getFullHandshakeTimeMean()
+    {
+        return _fullHandshakeTimeStats.getMean();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the maximum time in ms of full handshakes since statsReset() called.
+     */
+    public long getFullHandshakeTimeMax()
+    {
+        return _fullHandshakeTimeStats.getMax();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the time in ms within which the given percentage of full handshakes
+     * completed since statsReset() called.
+     */
+    public long getFullHandshakeTimePercentile(double percentile)
+    {
+        return _fullHandshakeTimeStats.getPercentile(percentile);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the mean time in ms of resumed handshakes since statsReset() called.
+     */
+    public double getResumedHandshakeTimeMean()
+    {
+        return _resumedHandshakeTimeStats.getMean();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the maximum time in ms of resumed handshakes since statsReset() called.
+     */
+    public long getResumedHandshakeTimeMax()
+    {
+        return _resumedHandshakeTimeStats.getMax();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the time in ms within which the given percentage of resumed handshakes
+     * completed since statsReset() called.
+     */
+    public long getResumedHandshakeTimePercentile(double percentile)
+    {
+        return _resumedHandshakeTimeStats.getPercentile(percentile);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void statsReset()
+    {
+        super.statsReset();
+        _handshakesFailed.set(0);
+        _fullHandshakeTimeStats.reset();
+        _resumedHandshakeTimeStats.reset();
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * By default, we're confidential, given we speak SSL. But, if we've been
@@ -506,6 +736,8 @@ public class SslSelectChannelConnector extends SelectChannelConnector implements
     {
         SslSelectChannelEndPoint endp = new SslSelectChannelEndPoint(_sslBuffers,channel,selectSet,key,createSSLEngine(), SslSelectChannelConnector.this._maxIdleTime);
         endp.setAllowRenegotiate(_allowRenegotiate);
+        endp.setHandshakeListener(_handshakeListener);
+        endp.setHandshakeThreadPool(_handshakeThreadPool);
         return endp;
     }
 
@@ -587,16 +819,37 @@ public class SslSelectChannelConnector extends SelectChannelConnector implements
         return engine;
     }
    
+    /* ------------------------------------------------------------ */
+    /**
+     * Apply the session cache size and timeout to the SSL context, if it has been created.
+     */
+    private void configureSessionContext()
+    {
+        SSLContext context=_context;
+        SSLSessionContext sessions=context==null?null:context.getServerSessionContext();
+        if (sessions!=null)
+        {
+            if (_sessionCacheSize>=0)
+                sessions.setSessionCacheSize(_sessionCacheSize);
+            if (_sessionTimeout>=0)
+                sessions.setSessionTimeout(_sessionTimeout);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
     @Override
     protected void doStart() throws Exception
     {
     	if (_context == null)
            _context=createSSLContext();
+        configureSessionContext();
         
         SSLEngine engine=createSSLEngine();
         SSLSession ssl_session=engine.getSession();
         
-        ThreadLocalBuffers buffers = new ThreadLocalBuffers()
+        // The encrypted buffers are only held by connections while they have data, so 
+        // they are pooled for all threads, to be reused by any connection
+        PooledBuffers buffers = new PooledBuffers()
         {
             @Override
             protected Buffer newBuffer(int size)
@@ -616,7 +869,7 @@ public class SslSelectChannelConnector extends SelectChannelConnector implements
                 return true;
             }
         };
-        buffers.setBufferSize(ssl_session.getApplicationBufferSize());
+        buffers.setBufferSize(ssl_session.getPacketBufferSize());
         buffers.setHeaderSize(ssl_session.getApplicationBufferSize());
         _sslBuffers=buffers;
         
@@ -625,9 +878,31 @@ public class SslSelectChannelConnector extends SelectChannelConnector implements
         if (getRequestBufferSize()<ssl_session.getApplicationBufferSize())
             setRequestBufferSize(ssl_session.getApplicationBufferSize());
         
+        // The pool is started before connections are accepted, so it can run their handshakes
+        if (_handshakeThreadPool!=null)
+        {
+            if (_handshakeThreadPool!=getServer().getThreadPool() && _handshakeThreadPool instanceof LifeCycle)
+                ((LifeCycle)_handshakeThreadPool).start();
+            getServer().getContainer().update(this,null,_handshakeThreadPool,"handshakeThreadPool",true);
+        }
+
         super.doStart();
     }
 
+    /* ------------------------------------------------------------ */
+    @Override
+    protected void doStop() throws Exception
+    {
+        super.doStop();
+        
+        if (_handshakeThreadPool!=null)
+        {
+            if (_handshakeThreadPool!=getServer().getThreadPool() && _handshakeThreadPool instanceof LifeCycle)
+                ((LifeCycle)_handshakeThreadPool).stop();
+            getServer().getContainer().update(this,_handshakeThreadPool,null,"handshakeThreadPool",true);
+        }
+    }
+
     /* ------------------------------------------------------------ */
     protected SSLContext createSSLContext() throws Exception
     {
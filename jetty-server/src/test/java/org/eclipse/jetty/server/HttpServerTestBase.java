@@ -30,6 +30,8 @@ import java.net.Socket;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -492,6 +494,111 @@ public abstract class HttpServerTestBase extends HttpServerTestFixture
         }
     }
 
+    @Test
+    public void testPipelinedResponsesInOrder() throws Exception
+    {
+        configureServer(new AbstractHandler()
+        {
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+            {
+                baseRequest.setHandled(true);
+                response.setStatus(200);
+                response.getOutputStream().print("id="+request.getParameter("id")+"\n");
+            }
+        });
+
+        Socket client=newSocket(HOST,_connector.getLocalPort());
+        try
+        {
+            client.setSoTimeout(5000);
+            OutputStream os=client.getOutputStream();
+
+            int pipeline=20;
+            StringBuilder request=new StringBuilder();
+            for (int i=0;i<pipeline;i++)
+                request.append("GET /?id=").append(i).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(HOST).append("\r\n")
+                .append(i==pipeline-1?"Connection: close\r\n":"")
+                .append("\r\n");
+            os.write(request.toString().getBytes());
+            os.flush();
+
+            LineNumberReader in = new LineNumberReader(new InputStreamReader(client.getInputStream()));
+            int id=0;
+            String line=in.readLine();
+            while (line!=null)
+            {
+                if (line.startsWith("id="))
+                    assertEquals("id="+id++,line);
+                line=in.readLine();
+            }
+            assertEquals(pipeline,id);
+        }
+        finally
+        {
+            client.close();
+        }
+    }
+
+    @Test
+    public void testPipelinedResponseNotHeldByBlockingHandler() throws Exception
+    {
+        final CountDownLatch latch=new CountDownLatch(1);
+        configureServer(new AbstractHandler()
+        {
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+            {
+                baseRequest.setHandled(true);
+                response.setStatus(200);
+                // the second handler blocks until the first response has been received
+                if ("1".equals(request.getParameter("id")))
+                {
+                    try
+                    {
+                        latch.await(10,TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        throw new ServletException(e);
+                    }
+                }
+                response.getOutputStream().print("id="+request.getParameter("id")+"\n");
+            }
+        });
+
+        Socket client=newSocket(HOST,_connector.getLocalPort());
+        try
+        {
+            client.setSoTimeout(5000);
+            OutputStream os=client.getOutputStream();
+            os.write(("GET /?id=0 HTTP/1.1\r\n"+
+                    "Host: "+HOST+"\r\n"+
+                    "\r\n"+
+                    "GET /?id=1 HTTP/1.1\r\n"+
+                    "Host: "+HOST+"\r\n"+
+                    "Connection: close\r\n"+
+                    "\r\n").getBytes());
+            os.flush();
+
+            LineNumberReader in = new LineNumberReader(new InputStreamReader(client.getInputStream()));
+            String line=in.readLine();
+            while (line!=null && !line.startsWith("id="))
+                line=in.readLine();
+            assertEquals("id=0",line);
+            latch.countDown();
+
+            line=in.readLine();
+            while (line!=null && !line.startsWith("id="))
+                line=in.readLine();
+            assertEquals("id=1",line);
+        }
+        finally
+        {
+            latch.countDown();
+            client.close();
+        }
+    }
+
     @Test
     public void testRecycledWriters() throws Exception
     {
@@ -15,9 +15,13 @@ package org.eclipse.jetty.server;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
+import org.eclipse.jetty.http.HttpContent;
 import org.eclipse.jetty.http.MimeTypes;
 import org.eclipse.jetty.server.ResourceCache.Content;
+import org.eclipse.jetty.util.IO;
 import org.eclipse.jetty.util.resource.Resource;
 import org.eclipse.jetty.util.resource.ResourceFactory;
 import org.junit.After;
@@ -25,6 +29,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class ResourceCacheTest
@@ -176,4 +181,137 @@ public class ResourceCacheTest
         assertEquals(0,cache.getCachedSize());
         assertEquals(0,cache.getCachedFiles());
     }
+
+    @Test
+    public void testStatistics() throws Exception
+    {
+        cache.setMaxCacheSize(1000);
+        cache.setMaxCachedFileSize(100);
+
+        for (int i=1;i<=4;i++)
+            assertTrue(cache.lookup(names[i])!=null);
+        assertEquals(0,cache.getHits());
+        assertEquals(4,cache.getMisses());
+
+        // names[1] is recently used, so names[2] is evicted instead
+        assertTrue(cache.lookup(names[1])!=null);
+        assertTrue(cache.lookup(names[5])!=null);
+        assertEquals(1,cache.getEvictions());
+        assertEquals(4,cache.getCachedFiles());
+
+        assertTrue(cache.lookup(names[1])!=null);
+        assertEquals(2,cache.getHits());
+        assertEquals(5,cache.getMisses());
+
+        assertTrue(cache.lookup(names[2])!=null);
+        assertEquals(6,cache.getMisses());
+        assertEquals(2,cache.getEvictions());
+        assertEquals(0,cache.getRejections());
+
+        cache.statsReset();
+        assertEquals(0,cache.getHits());
+        assertEquals(0,cache.getMisses());
+        assertEquals(0,cache.getEvictions());
+    }
+
+    @Test
+    public void testTinyLFU() throws Exception
+    {
+        cache.setEvictionPolicy(new ResourceCache.TinyLFUEvictionPolicy(256));
+        cache.setMaxCacheSize(1000);
+        cache.setMaxCachedFileSize(100);
+        cache.setMaxCachedFiles(2);
+
+        for (int i=0;i<3;i++)
+        {
+            assertTrue(cache.lookup(names[1])!=null);
+            assertTrue(cache.lookup(names[2])!=null);
+        }
+        assertEquals(2,cache.getCachedFiles());
+
+        // Infrequently requested content does not displace the frequently requested content
+        assertTrue(cache.lookup(names[3])==null);
+        assertEquals(1,cache.getRejections());
+        assertEquals(0,cache.getEvictions());
+        assertEquals(2,cache.getCachedFiles());
+        assertEquals(30,cache.getCachedSize());
+
+        // Until it is requested more frequently
+        assertTrue(cache.lookup(names[3])==null);
+        assertTrue(cache.lookup(names[3])==null);
+        assertTrue(cache.lookup(names[3])!=null);
+        assertEquals(3,cache.getRejections());
+        assertEquals(1,cache.getEvictions());
+        assertEquals(2,cache.getCachedFiles());
+    }
+
+    @Test
+    public void testEncodedContent() throws Exception
+    {
+        cache.setCompressContent(true);
+        cache.setMaxCacheSize(1000);
+
+        Content content=cache.lookup(names[8]);
+
+        // Checking for a variant does not build it
+        assertTrue(content.hasEncodedContent("gzip"));
+        assertFalse(content.hasEncodedContent("compress"));
+        assertEquals(80,cache.getCachedSize());
+
+        HttpContent gzip=content.getEncodedContent("gzip");
+        assertTrue(gzip!=null);
+        assertTrue(gzip==content.getEncodedContent("gzip"));
+        assertEquals("gzip",gzip.getContentEncoding().toString());
+        assertTrue(gzip.getContentLength()<80);
+        assertEquals(80+gzip.getContentLength(),cache.getCachedSize());
+        assertEquals(80,IO.readBytes(new GZIPInputStream(gzip.getInputStream())).length);
+
+        HttpContent deflate=content.getEncodedContent("deflate");
+        assertTrue(deflate!=null);
+        assertEquals(80+gzip.getContentLength()+deflate.getContentLength(),cache.getCachedSize());
+        assertEquals(80,IO.readBytes(new InflaterInputStream(deflate.getInputStream())).length);
+
+        assertTrue(content.getEncodedContent("compress")==null);
+
+        cache.flushCache();
+        assertEquals(0,cache.getCachedSize());
+
+        // Variants count towards the limits of the cache
+        cache.setMaxCacheSize(95);
+        content=cache.lookup(names[8]);
+        assertEquals(80,cache.getCachedSize());
+        content.getEncodedContent("gzip");
+        assertEquals(1,cache.getEvictions());
+        assertEquals(0,cache.getCachedSize());
+    }
+
+    @Test
+    public void testPrecompressedContent() throws Exception
+    {
+        File gz=new File(files[5].getParentFile(),names[5]+".gz");
+        gz.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(gz);
+        out.write("precompressed".getBytes());
+        out.close();
+
+        try
+        {
+            Content content=cache.lookup(names[5]);
+            long size=cache.getCachedSize();
+            assertTrue(content.hasEncodedContent("gzip"));
+            assertFalse(content.hasEncodedContent("deflate"));
+            assertEquals(size,cache.getCachedSize());
+
+            HttpContent gzip=content.getEncodedContent("gzip");
+            assertTrue(gzip!=null);
+            assertEquals("precompressed",new String(IO.readBytes(gzip.getInputStream())));
+
+            // Only precompressed variants are available unless content is compressed
+            assertTrue(content.getEncodedContent("deflate")==null);
+        }
+        finally
+        {
+            gz.delete();
+        }
+    }
 }
@@ -0,0 +1,90 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.server;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.eclipse.jetty.io.nio.SelectorManager;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * HttpServer Tester for a connector with the accepting channel shared by all select sets.
+ */
+public class SharedAcceptorsServerTest extends HttpServerTestBase
+{
+    @BeforeClass
+    public static void init() throws Exception
+    {
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setAcceptors(4);
+        connector.setAcceptorsShared(true);
+        connector.setSpreadPolicy(SelectorManager.LEAST_LOADED);
+        startServer(connector);
+    }
+
+    @Test
+    public void testLeastLoaded() throws Exception
+    {
+        SelectChannelConnector connector = (SelectChannelConnector)_connector;
+        configureServer(new HelloWorldHandler());
+
+        // wait for connections of other tests to close
+        long end=System.currentTimeMillis()+10000;
+        while (connections(connector)>0 && System.currentTimeMillis()<end)
+            Thread.sleep(10);
+        assertEquals(0,connections(connector));
+
+        long accepted=connector.getAccepted();
+        Socket[] clients=new Socket[8];
+        for (int i=0;i<clients.length;i++)
+        {
+            clients[i]=newSocket(HOST,connector.getLocalPort());
+            OutputStream os=clients[i].getOutputStream();
+            os.write(("GET / HTTP/1.1\r\nHost: "+HOST+"\r\n\r\n").getBytes());
+            os.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(clients[i].getInputStream()));
+            assertTrue(in.readLine().startsWith("HTTP/1.1 200"));
+        }
+
+        try
+        {
+            assertEquals(accepted+clients.length,connector.getAccepted());
+            int[] sets=connector.getSelectSetConnections();
+            assertEquals(4,sets.length);
+            for (int c : sets)
+                assertEquals(2,c);
+        }
+        finally
+        {
+            for (Socket client : clients)
+                client.close();
+        }
+    }
+
+    private static int connections(SelectChannelConnector connector)
+    {
+        int connections=0;
+        for (int c : connector.getSelectSetConnections())
+            connections+=c;
+        return connections;
+    }
+}
@@ -327,6 +327,17 @@ public class StatisticsHandlerTest
         assertTrue(_statsHandler.getDispatchedTimeMean()+10<=_statsHandler.getDispatchedTimeTotal());
         assertTrue(_statsHandler.getDispatchedTimeMax()+10<=_statsHandler.getDispatchedTimeTotal());
 
+        // percentiles of a single request are its time
+        assertEquals(_statsHandler.getRequestTimeMax(),_statsHandler.getRequestTimeP50());
+        assertEquals(_statsHandler.getRequestTimeMax(),_statsHandler.getRequestTimeP999());
+        assertTrue(_statsHandler.getDispatchedTimeP50()<=_statsHandler.getDispatchedTimeMax());
+        assertEquals(_statsHandler.getDispatchedTimeMax(),_statsHandler.getDispatchedTimePercentile(100));
+
+        // suspended from the end of the first dispatch until resumed
+        assertTrue(_statsHandler.getSuspendTimeMax()>0);
+        assertEquals(_statsHandler.getSuspendTimeMax(),_statsHandler.getSuspendTimeTotal());
+        assertEquals(_statsHandler.getSuspendTimeMax(),_statsHandler.getSuspendTimeP99());
+        assertTrue(_statsHandler.getSuspendTimeMax()+_statsHandler.getDispatchedTimeTotal()<=_statsHandler.getRequestTimeTotal());
     }
 
     @Test
@@ -447,6 +458,9 @@ public class StatisticsHandlerTest
         assertTrue(_statsHandler.getDispatchedTimeMean()+10<=_statsHandler.getDispatchedTimeTotal());
         assertTrue(_statsHandler.getDispatchedTimeMax()+10<=_statsHandler.getDispatchedTimeTotal());
 
+        // suspended until expired
+        assertTrue(_statsHandler.getSuspendTimeMax()>=90);
+        assertEquals(_statsHandler.getSuspendTimeMax(),_statsHandler.getSuspendTimeP50());
     }
 
     @Test
@@ -555,6 +569,10 @@ public class StatisticsHandlerTest
         assertTrue(_statsHandler.getDispatchedTimeTotal()<_statsHandler.getRequestTimeTotal());
         assertEquals(_statsHandler.getDispatchedTimeTotal(),_statsHandler.getDispatchedTimeMax());
         assertEquals(_statsHandler.getDispatchedTimeTotal(),_statsHandler.getDispatchedTimeMean(), 0.01);
+
+        // suspended until completed
+        assertTrue(_statsHandler.getSuspendTimeTotal()>=10);
+        assertEquals(_statsHandler.getRequestTimeTotal(),_statsHandler.getDispatchedTimeTotal()+_statsHandler.getSuspendTimeTotal());
     }
 
 
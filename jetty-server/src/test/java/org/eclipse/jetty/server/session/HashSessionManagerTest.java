@@ -0,0 +1,238 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.server.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Map;
+
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.server.Request;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashSessionManagerTest
+{
+    private HashSessionManager _manager;
+
+    @Before
+    public void init() throws Exception
+    {
+        _manager = new HashSessionManager();
+        _manager.setIdManager(new HashSessionIdManager());
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _manager.stop();
+    }
+
+    @Test
+    public void testShards() throws Exception
+    {
+        _manager.setShards(5);
+        assertEquals(8,_manager.getShards());
+        _manager.start();
+
+        HttpSession[] sessions = new HttpSession[100];
+        for (int i=0;i<sessions.length;i++)
+            sessions[i]=_manager.newHttpSession(new Request());
+
+        int held=0;
+        for (int s : _manager.getShardSessions())
+            held+=s;
+        assertEquals(100,held);
+        assertEquals(100,_manager.getSessionMap().size());
+        assertEquals(8,_manager.getShardContention().length);
+
+        AbstractSessionManager.Session session=(AbstractSessionManager.Session)sessions[10];
+        assertTrue(_manager.getSession(session.getClusterId())==session);
+        session.invalidate();
+        assertTrue(_manager.getSession(session.getClusterId())==null);
+        assertEquals(99,_manager.getSessionMap().size());
+        assertEquals(99,_manager.getSessions());
+    }
+
+    @Test
+    public void testScavengeDueSessions() throws Exception
+    {
+        _manager.setMaxInactiveInterval(1);
+        _manager.setScavengePeriod(1);
+        _manager.start();
+
+        AbstractSessionManager.Session[] idle = new AbstractSessionManager.Session[10];
+        for (int i=0;i<idle.length;i++)
+            idle[i]=(AbstractSessionManager.Session)_manager.newHttpSession(new Request());
+
+        AbstractSessionManager.Session immortal=(AbstractSessionManager.Session)_manager.newHttpSession(new Request());
+        immortal.setMaxInactiveInterval(-1);
+
+        AbstractSessionManager.Session active=(AbstractSessionManager.Session)_manager.newHttpSession(new Request());
+
+        // wait for the idle sessions to be scavenged, keeping the active session accessed
+        long end=System.currentTimeMillis()+5000;
+        while (_manager.getSessions()>2 && System.currentTimeMillis()<end)
+        {
+            active.access(System.currentTimeMillis());
+            Thread.sleep(50);
+        }
+
+        for (AbstractSessionManager.Session session : idle)
+            assertTrue(_manager.getSession(session.getClusterId())==null);
+        assertTrue(_manager.getSession(immortal.getClusterId())==immortal);
+        assertTrue(_manager.getSession(active.getClusterId())==active);
+        assertEquals(2,_manager.getSessions());
+
+        // the idle sessions are visited once, the active session once a second and the immortal session never
+        assertTrue(_manager.getScavengeVisits()>=idle.length);
+        assertTrue(_manager.getScavengeVisits()<=idle.length+5);
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedSessionMap() throws Exception
+    {
+        _manager.start();
+
+        AbstractSessionManager.Session session=(AbstractSessionManager.Session)_manager.newHttpSession(new Request());
+        assertEquals(1,_manager._sessions.size());
+        assertTrue(_manager._sessions.get(session.getClusterId())==session);
+
+        assertTrue(_manager._sessions.remove(session.getClusterId())==session);
+        assertTrue(_manager.getSession(session.getClusterId())==null);
+        assertEquals(0,_manager._sessions.size());
+    }
+
+    @Test
+    public void testSaveChangedAttributes() throws Exception
+    {
+        _manager.start();
+        assertTrue(_manager.isReuseSerializedAttributes());
+
+        HashSessionManager.Session session=(HashSessionManager.Session)_manager.newHttpSession(new Request());
+        session.setAttribute("small","value");
+        session.setAttribute("large",new byte[64*1024]);
+        assertTrue(session.isAttributeDirty("large"));
+
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        session.save(out);
+        assertEquals(2,_manager.getAttributesSerialized());
+        assertFalse(session.isAttributeDirty("large"));
+
+        // only the attribute that was set is serialized again
+        session.setAttribute("small","changed");
+        assertTrue(session.isAttributeDirty("small"));
+        session.save(new ByteArrayOutputStream());
+        assertEquals(3,_manager.getAttributesSerialized());
+        assertEquals(1,_manager.getAttributesReused());
+
+        // restored attributes are not serialized again
+        _manager.statsReset();
+        HashSessionManager.Session restored=_manager.restoreSession(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("value",restored.getAttribute("small"));
+        assertEquals(64*1024,((byte[])restored.getAttribute("large")).length);
+        assertFalse(restored.isAttributeDirty("large"));
+        restored.save(new ByteArrayOutputStream());
+        assertEquals(0,_manager.getAttributesSerialized());
+        assertEquals(2,_manager.getAttributesReused());
+    }
+
+    @Test
+    public void testMutableAttributesSerializedWithoutReuse() throws Exception
+    {
+        _manager.setReuseSerializedAttributes(false);
+        _manager.start();
+
+        HashSessionManager.Session session=(HashSessionManager.Session)_manager.newHttpSession(new Request());
+        byte[] mutable=new byte[16];
+        session.setAttribute("immutable","value");
+        session.setAttribute("mutable",mutable);
+        session.save(new ByteArrayOutputStream());
+        assertEquals(2,_manager.getAttributesSerialized());
+        assertFalse(session.isAttributeDirty("immutable"));
+        assertTrue(session.isAttributeDirty("mutable"));
+
+        // a modification of a value that is not set again is still saved
+        mutable[0]=42;
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        session.save(out);
+        assertEquals(3,_manager.getAttributesSerialized());
+        assertEquals(1,_manager.getAttributesReused());
+        HashSessionManager.Session restored=_manager.restoreSession(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(42,((byte[])restored.getAttribute("mutable"))[0]);
+    }
+
+    @Test
+    public void testSaveOnlyDirtyAttributes() throws Exception
+    {
+        _manager.start();
+
+        HashSessionManager.Session session=(HashSessionManager.Session)_manager.newHttpSession(new Request());
+        session.setAttribute("a","1");
+        session.setAttribute("b",new ArrayList<String>());
+        Map changed=session.saveChangedAttributes();
+        assertEquals(2,changed.size());
+        assertTrue(changed.get("a") instanceof byte[]);
+        assertTrue(changed.get("b") instanceof byte[]);
+
+        // nothing has changed since the last save
+        assertTrue(session.saveChangedAttributes().isEmpty());
+        assertEquals(2,_manager.getAttributesSerialized());
+
+        session.setAttribute("a","2");
+        session.removeAttribute("b");
+        assertTrue(session.isAttributeDirty("b"));
+        changed=session.saveChangedAttributes();
+        assertEquals(2,changed.size());
+        assertEquals("2",AbstractSessionManager.deserializeAttribute((byte[])changed.get("a")));
+        assertTrue(changed.containsKey("b"));
+        assertTrue(changed.get("b")==null);
+        assertFalse(session.isAttributeDirty("b"));
+
+        // attributes that could not be stored may be marked dirty again
+        session.setAttributesDirty(changed.keySet());
+        assertEquals(2,session.saveChangedAttributes().size());
+        assertEquals(3,_manager.getAttributesSerialized());
+        assertEquals(1,_manager.getAttributesReused());
+    }
+
+    @Test
+    public void testSharedValuesRestoredAsCopies() throws Exception
+    {
+        _manager.start();
+
+        HashSessionManager.Session session=(HashSessionManager.Session)_manager.newHttpSession(new Request());
+        ArrayList<String> shared=new ArrayList<String>();
+        shared.add("value");
+        session.setAttribute("one",shared);
+        session.setAttribute("two",shared);
+
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        session.save(out);
+        HashSessionManager.Session restored=_manager.restoreSession(new ByteArrayInputStream(out.toByteArray()));
+
+        // each attribute is serialized on its own, so shared values are restored as equal copies
+        assertEquals(shared,restored.getAttribute("one"));
+        assertEquals(shared,restored.getAttribute("two"));
+        assertTrue(restored.getAttribute("one")!=restored.getAttribute("two"));
+    }
+}
@@ -0,0 +1,234 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.server.session;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JDBCSessionManagerTest
+{
+    private Server _server;
+    private TestManager _manager;
+
+    @Before
+    public void init() throws Exception
+    {
+        _server = new Server();
+        _manager = new TestManager();
+        _manager.setIdManager(new HashSessionIdManager());
+        _manager.setSaveInterval(0);
+        _manager.setWriteBehindPeriod(60000);
+        ContextHandler context = new ContextHandler(_server,"/test");
+        context.setHandler(new SessionHandler(_manager));
+        _server.start();
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _server.stop();
+    }
+
+    @Test
+    public void testQueueAndCoalesce() throws Exception
+    {
+        JDBCSessionManager.Session changed = newSession("changed");
+        JDBCSessionManager.Session accessed = newSession("accessed");
+
+        for (int i=0;i<3;i++)
+        {
+            changed.access(System.currentTimeMillis());
+            changed.setAttribute("name","value"+i);
+            changed.complete();
+
+            accessed.access(System.currentTimeMillis());
+            accessed.complete();
+        }
+        assertEquals(2,_manager.getPendingWrites());
+        assertEquals(0,_manager._batches.size());
+
+        _manager.writeSessions();
+        assertEquals(0,_manager.getPendingWrites());
+        assertEquals(1,_manager._batches.size());
+        Batch batch = _manager._batches.get(0);
+        assertEquals(1,batch._updates.size());
+        assertTrue(batch._updates.get(0)==changed);
+        assertTrue(batch._attributes.get(0) instanceof Map);
+        assertEquals(1,batch._touches.size());
+        assertTrue(batch._touches.get(0)==accessed);
+        assertEquals(1,_manager.getWriteBatches());
+        assertEquals(1,_manager.getBatchedUpdates());
+        assertEquals(1,_manager.getBatchedTouches());
+
+        // nothing is written when nothing is queued
+        _manager.writeSessions();
+        assertEquals(1,_manager._batches.size());
+    }
+
+    @Test
+    public void testStaleSessionIsFlushed() throws Exception
+    {
+        _manager.setMaxStaleness(100);
+        JDBCSessionManager.Session session = newSession("stale");
+
+        session.access(System.currentTimeMillis());
+        session.setAttribute("name","value");
+        session.complete();
+        assertEquals(1,_manager.getPendingWrites());
+        assertEquals(0,_manager._batches.size());
+
+        Thread.sleep(200);
+
+        // the request that finds the queued session stale writes the queue
+        session.access(System.currentTimeMillis());
+        session.complete();
+        assertEquals(0,_manager.getPendingWrites());
+        assertEquals(1,_manager._batches.size());
+        assertEquals(1,_manager._batches.get(0)._updates.size());
+    }
+
+    @Test
+    public void testFailedBatchIsRetried() throws Exception
+    {
+        JDBCSessionManager.Session session = newSession("retry");
+        session.access(System.currentTimeMillis());
+        session.setAttribute("name","value");
+        session.complete();
+
+        _manager._failures=1;
+        _manager.writeSessions();
+        assertEquals(1,_manager._batches.size());
+        assertEquals(0,_manager.getWriteBatches());
+        assertEquals(1,_manager.getPendingWrites());
+
+        // the retry still writes the changed attributes
+        _manager.writeSessions();
+        assertEquals(2,_manager._batches.size());
+        assertEquals(1,_manager._batches.get(1)._updates.size());
+        assertTrue(((Map)_manager._batches.get(1)._attributes.get(0)).containsKey("name"));
+        assertEquals(1,_manager.getWriteBatches());
+        assertEquals(0,_manager.getPendingWrites());
+    }
+
+    @Test
+    public void testOnlyChangedAttributesWritten() throws Exception
+    {
+        JDBCSessionManager.Session session = newSession("delta");
+        session.access(System.currentTimeMillis());
+        session.setAttribute("large",new byte[64*1024]);
+        session.setAttribute("small","value");
+        session.setAttribute("other","value");
+        session.complete();
+        _manager.writeSessions();
+        assertEquals(3,((Map)_manager._batches.get(0)._attributes.get(0)).size());
+
+        session.access(System.currentTimeMillis());
+        session.setAttribute("small","changed");
+        session.removeAttribute("other");
+        session.complete();
+        _manager.writeSessions();
+        Map changed = (Map)_manager._batches.get(1)._attributes.get(0);
+        assertEquals(2,changed.size());
+        assertTrue(changed.get("small") instanceof byte[]);
+        assertTrue(changed.containsKey("other"));
+        assertTrue(changed.get("other")==null);
+        assertEquals(4,_manager.getAttributesSerialized());
+    }
+
+    private JDBCSessionManager.Session newSession(String id)
+    {
+        JDBCSessionManager.Session session = _manager.new Session(_manager.new SessionData(id));
+        _manager.addSession(session,false);
+        return session;
+    }
+
+    private static class Batch
+    {
+        final List _updates;
+        final List _attributes;
+        final List _touches;
+
+        Batch(List updates, List attributes, List touches)
+        {
+            _updates=new ArrayList(updates);
+            _attributes=new ArrayList(attributes);
+            _touches=new ArrayList(touches);
+        }
+    }
+
+    private static class TestManager extends JDBCSessionManager
+    {
+        final List<Batch> _batches = new ArrayList<Batch>();
+        volatile int _failures;
+
+        @Override
+        protected void prepareTables()
+        {
+        }
+
+        @Override
+        protected Connection getConnection() throws SQLException
+        {
+            // A connection that accepts and ignores all statements
+            InvocationHandler handler = new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+                {
+                    if (method.getName().startsWith("prepare"))
+                        return Proxy.newProxyInstance(getClass().getClassLoader(),new Class[]{PreparedStatement.class},this);
+                    Class<?> type = method.getReturnType();
+                    if (type==Boolean.TYPE)
+                        return Boolean.FALSE;
+                    if (type==Integer.TYPE)
+                        return Integer.valueOf(0);
+                    if (type==int[].class)
+                        return new int[0];
+                    return null;
+                }
+            };
+            return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(),new Class[]{Connection.class},handler);
+        }
+
+        @Override
+        protected void writeBatch(List updates, List attributes, List touches) throws Exception
+        {
+            synchronized (_batches)
+            {
+                _batches.add(new Batch(updates,attributes,touches));
+            }
+            if (_failures>0)
+            {
+                _failures--;
+                throw new SQLException("test failure");
+            }
+            super.writeBatch(updates,attributes,touches);
+        }
+    }
+}
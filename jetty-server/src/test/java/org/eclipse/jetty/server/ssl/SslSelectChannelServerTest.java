@@ -12,23 +12,48 @@
 // ========================================================================
 
 package org.eclipse.jetty.server.ssl;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
 import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.io.PooledBuffers;
+import org.eclipse.jetty.io.nio.ChannelEndPoint;
+import org.eclipse.jetty.server.HttpConnection;
 import org.eclipse.jetty.server.HttpServerTestBase;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 /**
  * HttpServer Tester.
  */
 public class SslSelectChannelServerTest extends HttpServerTestBase
 {
     static SSLContext __sslContext;
+    static TrustManager[] __trustManagers;
     
     @Override
     protected Socket newSocket(String host, int port) throws Exception
@@ -37,9 +62,8 @@ public class SslSelectChannelServerTest extends HttpServerTestBase
     }
     
 
-    @BeforeClass
-    public static void init() throws Exception
-    {   
+    private static SslSelectChannelConnector newConnector()
+    {
         SslSelectChannelConnector connector = new SslSelectChannelConnector();
         String keystorePath = System.getProperty("basedir",".") + "/src/test/resources/keystore";
         connector.setKeystore(keystorePath);
@@ -47,6 +71,13 @@ public class SslSelectChannelServerTest extends HttpServerTestBase
         connector.setKeyPassword("keypwd");
         connector.setTruststore(keystorePath);
         connector.setTrustPassword("storepwd");
+        return connector;
+    }
+
+    @BeforeClass
+    public static void init() throws Exception
+    {   
+        SslSelectChannelConnector connector = newConnector();
         startServer(connector);
         
 
@@ -55,7 +86,8 @@ public class SslSelectChannelServerTest extends HttpServerTestBase
         TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
         trustManagerFactory.init(keystore);
         __sslContext = SSLContext.getInstance("SSL");
-        __sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+        __trustManagers = trustManagerFactory.getTrustManagers();
+        __sslContext.init(null, __trustManagers, null);
         
 
     }
@@ -66,5 +98,215 @@ public class SslSelectChannelServerTest extends HttpServerTestBase
     {
         // TODO this test uses URL, so noop for now
     }
-    
+
+    @Test
+    public void testHandshakeStatistics() throws Exception
+    {
+        configureServer(new HelloHandler());
+        SslSelectChannelConnector connector = (SslSelectChannelConnector)_connector;
+
+        // Handshakes are not counted while statistics are off
+        connector.setStatsOn(false);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, __trustManagers, null);
+        handshake(context, _connector.getLocalPort(), 1);
+        Thread.sleep(100);
+        assertEquals(0, connector.getHandshakes());
+
+        // A new client context has no sessions to resume
+        connector.setStatsOn(true);
+        context = SSLContext.getInstance("TLS");
+        context.init(null, __trustManagers, null);
+        handshake(context, _connector.getLocalPort(), 3);
+
+        for (int i = 0; i < 50 && connector.getHandshakes() < 3; i++)
+            Thread.sleep(100);
+        assertEquals(3, connector.getHandshakes());
+        assertEquals(1, connector.getFullHandshakes());
+        assertEquals(2, connector.getResumedHandshakes());
+        assertEquals(0, connector.getFailedHandshakes());
+        assertTrue(connector.getFullHandshakeTimePercentile(99) >= connector.getFullHandshakeTimeMean());
+        assertTrue(connector.getSessionsCached() > 0);
+    }
+
+    @Test
+    public void testHandshakeThreadPool() throws Exception
+    {
+        final AtomicInteger dispatched = new AtomicInteger();
+        QueuedThreadPool handshakeThreadPool = new QueuedThreadPool()
+        {
+            @Override
+            public boolean dispatch(Runnable job)
+            {
+                dispatched.incrementAndGet();
+                return super.dispatch(job);
+            }
+        };
+        handshakeThreadPool.setName("handshake");
+
+        // A server of its own, so that the other tests run their handshakes without the pool
+        Server server = new Server();
+        SslSelectChannelConnector connector = newConnector();
+        connector.setHandshakeThreadPool(handshakeThreadPool);
+        connector.setStatsOn(true);
+        server.addConnector(connector);
+        server.setHandler(new HelloHandler());
+        server.start();
+        try
+        {
+            // The pool is started before the connector accepts connections
+            assertTrue(handshakeThreadPool.isStarted());
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, __trustManagers, null);
+            handshake(context, connector.getLocalPort(), 2);
+
+            for (int i = 0; i < 50 && connector.getHandshakes() < 2; i++)
+                Thread.sleep(100);
+            assertEquals(2, connector.getHandshakes());
+            assertEquals(1, connector.getFullHandshakes());
+            assertTrue(dispatched.get() > 0);
+        }
+        finally
+        {
+            server.stop();
+        }
+        assertTrue(handshakeThreadPool.isStopped());
+    }
+
+    @Test
+    public void testTransferFrom() throws Exception
+    {
+        final File file = File.createTempFile("transfer", ".txt", new File(System.getProperty("basedir",".") + "/target"));
+        file.deleteOnExit();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            content.append(i % 10);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(content.toString().getBytes());
+        out.close();
+
+        // The file content is encrypted through a buffer rather than transferred to the channel
+        configureServer(new AbstractHandler()
+        {
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+            {
+                baseRequest.setHandled(true);
+                response.flushBuffer();
+                ChannelEndPoint endp = (ChannelEndPoint)HttpConnection.getCurrentConnection().getEndPoint();
+                assertFalse(endp.isTransferSupported());
+                FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+                try
+                {
+                    long position = 0;
+                    while (position < channel.size())
+                    {
+                        long len = endp.transferFrom(channel, position, channel.size() - position);
+                        if (len > 0)
+                            position += len;
+                        else
+                            endp.blockWritable(10000);
+                    }
+                }
+                finally
+                {
+                    channel.close();
+                }
+            }
+        });
+
+        Socket client = newSocket(HOST, _connector.getLocalPort());
+        try
+        {
+            OutputStream os = client.getOutputStream();
+            os.write("GET / HTTP/1.0\r\n\r\n".getBytes());
+            os.flush();
+
+            String response = IO.toString(client.getInputStream());
+            assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(response.endsWith("\r\n\r\n" + content));
+        }
+        finally
+        {
+            client.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testIdleConnectionsReturnBuffers() throws Exception
+    {
+        configureServer(new HelloHandler());
+        PooledBuffers buffers = (PooledBuffers)((SslSelectChannelConnector)_connector)._sslBuffers;
+
+        Socket[] clients = new Socket[10];
+        try
+        {
+            for (int i = 0; i < clients.length; i++)
+            {
+                clients[i] = newSocket(HOST,_connector.getLocalPort());
+                get(clients[i]);
+            }
+
+            // Every buffer that has been created and not discarded is returned to the pool
+            for (int i = 0; i < 50 && buffers.getBuffersHeld() != buffers.getMisses() - buffers.getDiscards(); i++)
+                Thread.sleep(100);
+            assertEquals(buffers.getMisses() - buffers.getDiscards(), buffers.getBuffersHeld());
+            assertTrue(buffers.getHits() > 0);
+        }
+        finally
+        {
+            for (Socket client : clients)
+                if (client != null)
+                    client.close();
+        }
+    }
+
+    /**
+     * Handshake and get a response on new connections.
+     */
+    private void handshake(SSLContext context, int port, int connections) throws Exception
+    {
+        for (int i = 0; i < connections; i++)
+        {
+            Socket client = context.getSocketFactory().createSocket(HOST,port);
+            try
+            {
+                get(client);
+            }
+            finally
+            {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Get a response, leaving the connection open.
+     */
+    private void get(Socket client) throws Exception
+    {
+        OutputStream os = client.getOutputStream();
+        os.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+        os.flush();
+
+        InputStream is = client.getInputStream();
+        StringBuilder response = new StringBuilder();
+        while (!response.toString().endsWith("Hello world\r\n"))
+        {
+            int b = is.read();
+            assertTrue(b >= 0);
+            response.append((char)b);
+        }
+        assertTrue(response.toString().startsWith("HTTP/1.1 200 OK"));
+    }
+
+    private static class HelloHandler extends AbstractHandler
+    {
+        public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException
+        {
+            baseRequest.setHandled(true);
+            response.getOutputStream().print("Hello world\r\n");
+        }
+    }
 }
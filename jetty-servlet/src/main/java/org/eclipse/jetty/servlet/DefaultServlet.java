@@ -13,11 +13,13 @@
 
 package org.eclipse.jetty.servlet;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
@@ -37,6 +39,7 @@ import org.eclipse.jetty.http.HttpMethods;
 import org.eclipse.jetty.http.MimeTypes;
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.View;
 import org.eclipse.jetty.io.WriterOutputStream;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Dispatcher;
@@ -47,6 +50,7 @@ import org.eclipse.jetty.server.Response;
 import org.eclipse.jetty.server.handler.ContextHandler;
 import org.eclipse.jetty.server.nio.NIOConnector;
 import org.eclipse.jetty.server.ssl.SslConnector;
+import org.eclipse.jetty.util.ByteArrayOutputStream2;
 import org.eclipse.jetty.util.IO;
 import org.eclipse.jetty.util.MultiPartOutputStream;
 import org.eclipse.jetty.util.URIUtil;
@@ -89,6 +93,10 @@ import org.eclipse.jetty.util.resource.ResourceFactory;
  *                    gzip content encoded if a matching resource is
  *                    found ending with ".gz"
  *
+ *  compress          If set to true and the resource cache is used, then cached static
+ *                    content is compressed once and served gzip or deflate content
+ *                    encoded to clients that accept it. Default is false.
+ *
  *  resourceBase      Set to replace the context resource base
  *
  *  resourceCache     If set, this is a context attribute name, which the servlet 
@@ -108,6 +116,10 @@ import org.eclipse.jetty.util.resource.ResourceFactory;
  *  maxCacheSize      The maximum total size of the cache or 0 for no cache.
  *  maxCachedFileSize The maximum size of a file to cache
  *  maxCachedFiles    The maximum number of files to cache
+ *  cacheEvictionPolicy
+ *                    "lru" (the default) to evict the approximately least recently
+ *                    used files, or "tinylfu" to also only cache files that are more
+ *                    frequently requested than the files they would evict.
  *
  *  useFileMappedBuffer
  *                    If set to true, it will use mapped file buffer to serve static content
@@ -137,6 +149,7 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
     private boolean _welcomeExactServlets=false;
     private boolean _redirectWelcome=false;
     private boolean _gzip=true;
+    private boolean _compress=false;
 
     private Resource _resourceBase;
     private ResourceCache _cache;
@@ -173,6 +186,7 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
         _dirAllowed=getInitBoolean("dirAllowed",_dirAllowed);
         _redirectWelcome=getInitBoolean("redirectWelcome",_redirectWelcome);
         _gzip=getInitBoolean("gzip",_gzip);
+        _compress=getInitBoolean("compress",_compress);
 
         if ("exact".equals(getInitParameter("welcomeServlets")))
         {
@@ -263,6 +277,13 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
                     _cache.setMaxCachedFileSize(max_cached_file_size);
                 if (max_cached_files>=-1)
                     _cache.setMaxCachedFiles(max_cached_files);
+                _cache.setCompressContent(_compress);
+
+                String policy=getInitParameter("cacheEvictionPolicy");
+                if ("tinylfu".equalsIgnoreCase(policy))
+                    _cache.setEvictionPolicy(new ResourceCache.TinyLFUEvictionPolicy(_cache.getMaxCachedFiles()));
+                else if (policy!=null && !"lru".equalsIgnoreCase(policy))
+                    throw new UnavailableException("Unknown cacheEvictionPolicy "+policy);
             }
         }
         catch (Exception e)
@@ -387,23 +408,49 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
         String pathInContext=URIUtil.addPaths(servletPath,pathInfo);
         boolean endsWithSlash=pathInContext.endsWith(URIUtil.SLASH);
 
-        // Can we gzip this request?
+        // Can we gzip or deflate this request?
         String pathInContextGz=null;
+        String encoding=null;
         boolean gzip=false;
-        if (!included.booleanValue() && _gzip && reqRanges==null && !endsWithSlash )
+        if (!included.booleanValue() && (_gzip || _compress && _cache!=null) && reqRanges==null && !endsWithSlash )
         {
             String accept=request.getHeader(HttpHeaders.ACCEPT_ENCODING);
             if (accept!=null && accept.indexOf("gzip")>=0)
-                gzip=true;
+            {
+                encoding=HttpHeaderValues.GZIP;
+                gzip=_gzip;
+            }
+            else if (accept!=null && accept.indexOf("deflate")>=0 && _compress && _cache!=null)
+                encoding="deflate";
         }
 
         // Find the resource and content
         Resource resource=null;
         HttpContent content=null;
+        boolean cached=false;
 
         try
         {
-            // Try gzipped content first
+            // Try an encoded variant of cached content first
+            if (encoding!=null && _cache!=null)
+            {
+                content=_cache.lookup(pathInContext);
+                if (content!=null)
+                {
+                    cached=true;
+                    gzip=false;
+                    resource=content.getResource();
+                    HttpContent encoded=content.getEncodedContent(encoding);
+                    if (encoded!=null)
+                        content=encoded;
+                    else
+                        encoding=null;
+                }
+                else if (!gzip)
+                    encoding=null;
+            }
+
+            // Try gzipped content 
             if (gzip)
             {
                 pathInContextGz=pathInContext+".gz";
@@ -431,12 +478,13 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
                             _cache.miss(pathInContextGz,_contextHandler.newResource(real_path));
                     }
                     gzip=false;
+                    encoding=null;
                     pathInContextGz=null;
                 }
             }
 
             // find resource
-            if (!gzip)
+            if (!gzip && !cached)
             {
                 if (_cache==null)
                     resource=getResource(pathInContext);
@@ -475,6 +523,8 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
 
                     if (included.booleanValue() || passConditionalHeaders(request,response, resource,content))
                     {
+                        if (encoding!=null || !included.booleanValue() && hasEncodedVariant(content))
+                            response.setHeader(HttpHeaders.VARY,HttpHeaders.ACCEPT_ENCODING);
                         if (gzip)
                         {
                             response.setHeader(HttpHeaders.CONTENT_ENCODING,"gzip");
@@ -563,6 +613,21 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
 
     }
 
+    /* ------------------------------------------------------------ */
+    /** Check if cached content has a gzip or deflate variant.
+     * Responses for such content vary on the Accept-Encoding header, even 
+     * when the identity encoding is sent.
+     */
+    private boolean hasEncodedVariant(HttpContent content)
+    {
+        if (!(content instanceof ResourceCache.Content))
+            return false;
+        ResourceCache.Content cached=(ResourceCache.Content)content;
+        if (_gzip && cached.hasEncodedContent(HttpHeaderValues.GZIP))
+            return true;
+        return _compress && (cached.hasEncodedContent(HttpHeaderValues.GZIP) || cached.hasEncodedContent("deflate"));
+    }
+
     /* ------------------------------------------------------------ */
     private boolean hasDefinedRange(Enumeration<String> reqRanges)
     {
@@ -791,7 +856,7 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
                         else
                         {
                             writeHeaders(response,content,content_length);
-                            resource.writeTo(out,0,content_length);
+                            writeTo(out,resource,0,content_length);
                         }
                     }
                 }
@@ -836,7 +901,7 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
                 response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
                 response.setHeader(HttpHeaders.CONTENT_RANGE,
                         singleSatisfiableRange.toHeaderRangeString(content_length));
-                resource.writeTo(out,singleSatisfiableRange.getFirst(content_length),singleLength);
+                writeTo(out,resource,singleSatisfiableRange.getFirst(content_length),singleLength);
                 return;
             }
 
@@ -846,7 +911,12 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
             //
             writeHeaders(response,content,-1);
             String mimetype=content.getContentType().toString();
-            MultiPartOutputStream multi = new MultiPartOutputStream(out);
+
+            // Cached content is gathered into the response without being copied
+            Buffer cached=(out instanceof HttpConnection.Output)?(direct?content.getDirectBuffer():content.getIndirectBuffer()):null;
+            ByteArrayOutputStream2 parts=cached==null?null:new ByteArrayOutputStream2();
+            List<Buffer> gathered=cached==null?null:new ArrayList<Buffer>();
+            MultiPartOutputStream multi = new MultiPartOutputStream(parts==null?out:parts);
             response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
 
             // If the request has a "Request-Range" header then we need to
@@ -859,7 +929,7 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
                 ctp = "multipart/byteranges; boundary=";
             response.setContentType(ctp+multi.getBoundary());
 
-            InputStream in=resource.getInputStream();
+            InputStream in=cached==null?resource.getInputStream():null;
             long pos=0;
 
             // calculate the content-length
@@ -887,7 +957,15 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
 
                 long start=ibr.getFirst(content_length);
                 long size=ibr.getSize(content_length);
-                if (in!=null)
+                if (cached!=null)
+                {
+                    // Handle cached content
+                    gathered.add(new ByteArrayBuffer(parts.toByteArray()));
+                    parts.reset();
+                    int index=cached.getIndex()+(int)start;
+                    gathered.add(new View(cached,-1,index,index+(int)size,Buffer.READONLY));
+                }
+                else if (in!=null)
                 {
                     // Handle non cached resource
                     if (start<pos)
@@ -912,10 +990,28 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
             if (in!=null)
                 in.close();
             multi.close();
+            if (cached!=null)
+            {
+                gathered.add(new ByteArrayBuffer(parts.toByteArray()));
+                ((HttpConnection.Output)out).write(gathered.toArray(new Buffer[gathered.size()]));
+            }
         }
         return;
     }
 
+    /* ------------------------------------------------------------ */
+    /** Write part of a resource to the response.
+     * If possible the content is transferred directly from the file to the connection
+     * (eg with sendfile), without being copied through buffers.
+     */
+    private void writeTo(OutputStream out, Resource resource, long start, long count)
+        throws IOException
+    {
+        File file=resource.getFile();
+        if (file==null || !(out instanceof HttpConnection.Output) || !((HttpConnection.Output)out).sendFile(file,start,count))
+            resource.writeTo(out,start,count);
+    }
+
     /* ------------------------------------------------------------ */
     protected void writeHeaders(HttpServletResponse response,HttpContent content,long count)
     throws IOException
@@ -928,6 +1024,9 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
             Response r=(Response)response;
             HttpFields fields = r.getHttpFields();
 
+            if (content.getContentEncoding()!=null)
+                fields.put(HttpHeaders.CONTENT_ENCODING_BUFFER,content.getContentEncoding());
+
             if (content.getLastModified()!=null)
                 fields.put(HttpHeaders.LAST_MODIFIED_BUFFER,content.getLastModified(),content.getResource().lastModified());
             else if (content.getResource()!=null)
@@ -944,6 +1043,9 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
         }
         else
         {
+            if (content.getContentEncoding()!=null)
+                response.setHeader(HttpHeaders.CONTENT_ENCODING,content.getContentEncoding().toString());
+
             long lml=content.getResource().lastModified();
             if (lml>=0)
                 response.setDateHeader(HttpHeaders.LAST_MODIFIED,lml);
@@ -1053,5 +1155,17 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
             _resource=null;
         }
 
+        /* ------------------------------------------------------------ */
+        public Buffer getContentEncoding()
+        {
+            return null;
+        }
+
+        /* ------------------------------------------------------------ */
+        public HttpContent getEncodedContent(String encoding)
+        {
+            return null;
+        }
+
     }
 }
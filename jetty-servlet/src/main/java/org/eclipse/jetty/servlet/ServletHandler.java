@@ -23,6 +23,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.jetty.server.DispatcherType;
 import javax.servlet.Filter;
@@ -38,6 +41,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.eclipse.jetty.continuation.ContinuationThrowable;
+import org.eclipse.jetty.http.CompiledPathMap;
 import org.eclipse.jetty.http.HttpException;
 import org.eclipse.jetty.http.PathMap;
 import org.eclipse.jetty.io.EofException;
@@ -73,7 +77,7 @@ public class ServletHandler extends ScopedHandler
 {
     /* ------------------------------------------------------------ */
     public static final String __DEFAULT_SERVLET="default";
-        
+
     /* ------------------------------------------------------------ */
     private ServletContextHandler _contextHandler;
     private ContextHandler.Context _servletContext;
@@ -93,8 +97,16 @@ public class ServletHandler extends ScopedHandler
     
     private final Map<String,ServletHolder> _servletNameMap=new HashMap<String,ServletHolder>();
     private PathMap _servletPathMap;
+    private volatile CompiledPathMap _servletPathMatcher;
     
+    /** @deprecated No longer used. The filter chains of paths are kept in bounded caches. */
+    @Deprecated
     protected ConcurrentHashMap<String,FilterChain> _chainCache[];
+    private volatile ChainCache<String>[] _pathChainCache; // by path in context (or servlet name) for each dispatch type
+    private volatile ChainCache<ChainKey> _sharedChainCache;
+    private final AtomicLong _chainCacheHits = new AtomicLong();
+    private final AtomicLong _chainCacheMisses = new AtomicLong();
+    private final AtomicLong _chainRebuilds = new AtomicLong();
 
 
     /* ------------------------------------------------------------ */
@@ -144,8 +156,14 @@ public class ServletHandler extends ScopedHandler
         updateNameMappings();
         updateMappings();
         
+        _chainCacheHits.set(0);
+        _chainCacheMisses.set(0);
+        _chainRebuilds.set(0);
         if(_filterChainsCached)
-            _chainCache= new ConcurrentHashMap[]{null,new ConcurrentHashMap(),new ConcurrentHashMap(),null,new ConcurrentHashMap(),null,null,null,new ConcurrentHashMap(),null,null,null,null,null,null,null,new ConcurrentHashMap()};
+        {
+            _pathChainCache= new ChainCache[]{null,new ChainCache<String>(),new ChainCache<String>(),null,new ChainCache<String>(),null,null,null,new ChainCache<String>(),null,null,null,null,null,null,null,new ChainCache<String>()};
+            _sharedChainCache=new ChainCache<ChainKey>();
+        }
 
         super.doStart();
         
@@ -181,7 +199,9 @@ public class ServletHandler extends ScopedHandler
         _filterNameMappings=null;
         
         _servletPathMap=null;
-        _chainCache=null;
+        _servletPathMatcher=null;
+        _pathChainCache=null;
+        _sharedChainCache=null;
     }
 
     /* ------------------------------------------------------------ */
@@ -224,9 +244,10 @@ public class ServletHandler extends ScopedHandler
      */
     public PathMap.Entry getHolderEntry(String pathInContext)
     {
-        if (_servletPathMap==null)
+        CompiledPathMap matcher=_servletPathMatcher;
+        if (matcher==null)
             return null;
-        return _servletPathMap.getMatch(pathInContext);
+        return matcher.getMatch(pathInContext);
     }
 
     /* ------------------------------------------------------------ */
@@ -560,23 +581,56 @@ public class ServletHandler extends ScopedHandler
         String key=pathInContext==null?servletHolder.getName():pathInContext;
         int dispatch = FilterMapping.dispatch(baseRequest.getDispatcherType());
         
-        if (_filterChainsCached && _chainCache!=null)
+        ChainCache<String>[] pathCaches=_filterChainsCached?_pathChainCache:null;
+        ChainCache<String> pathCache=pathCaches==null?null:pathCaches[dispatch];
+        if (pathCache!=null)
         {
-            FilterChain chain = (FilterChain)_chainCache[dispatch].get(key);
-            if (chain!=null)
-                return chain;
+            ChainEntry<String> entry = pathCache.get(key);
+            if (entry!=null)
+            {
+                _chainCacheHits.incrementAndGet();
+                return entry._chain;
+            }
+        }
+
+        // The chain depends only on the servlet, the dispatch type and which of the
+        // path mappings apply, so paths with the same chain share it. The chains
+        // are kept when the path of a chain is evicted, so that they are not rebuilt.
+        List<FilterMapping> pathMappings = pathInContext==null?null:_filterPathMappings;
+        long[] applies = null;
+        if (pathMappings!=null && pathMappings.size()>0)
+        {
+            applies = new long[(pathMappings.size()+63)>>6];
+            for (int i= 0; i < pathMappings.size(); i++)
+            {
+                if (pathMappings.get(i).appliesTo(pathInContext, dispatch))
+                    applies[i>>6]|=1L<<i;
+            }
+        }
+
+        ChainCache<ChainKey> cache = pathCache==null?null:_sharedChainCache;
+        ChainKey chainKey = null;
+        if (cache!=null)
+        {
+            chainKey = new ChainKey(servletHolder,dispatch,applies);
+            ChainEntry<ChainKey> entry = cache.get(chainKey);
+            if (entry!=null)
+            {
+                _chainCacheHits.incrementAndGet();
+                return pathCache.put(key,entry._chain);
+            }
+            _chainCacheMisses.incrementAndGet();
         }
         
         // Build list of filters
         Object filters= null;
         // Path filters
-        if (pathInContext!=null && _filterPathMappings!=null)
+        if (applies!=null)
         {
-            for (int i= 0; i < _filterPathMappings.size(); i++)
+            for (int i= 0; i < pathMappings.size(); i++)
             {
-                FilterMapping mapping = (FilterMapping)_filterPathMappings.get(i);
-                if (mapping.appliesTo(pathInContext, dispatch))
-                    filters= LazyList.add(filters, mapping.getFilterHolder());
+                if ((applies[i>>6]&(1L<<i))!=0)
+                    filters= LazyList.add(filters, pathMappings.get(i).getFilterHolder());
             }
         }
 
@@ -604,20 +658,19 @@ public class ServletHandler extends ScopedHandler
             }
         }
         
-        if (filters==null)
-            return null;
-        
         FilterChain chain = null;
-        if (_filterChainsCached)
+        if (filters!=null)
         {
-        	if (LazyList.size(filters) > 0)
-        		chain= new CachedChain(filters, servletHolder);
-        	if (_maxFilterChainsCacheSize>0 && _chainCache[dispatch].size()>_maxFilterChainsCacheSize)
-        		_chainCache[dispatch].clear();
-        	_chainCache[dispatch].put(key,chain);
+            _chainRebuilds.incrementAndGet();
+            if (_filterChainsCached)
+                chain= new CachedChain(filters, servletHolder);
+            else
+                chain = new Chain(baseRequest,filters, servletHolder);
         }
-        else if (LazyList.size(filters) > 0)
-            chain = new Chain(baseRequest,filters, servletHolder);
+        
+        // Cache the absence of a chain too, so that unfiltered servlets are not looked up again
+        if (cache!=null)
+            chain= pathCache.put(key,cache.put(chainKey,chain));
     
         return chain;
     }
@@ -1103,6 +1156,7 @@ public class ServletHandler extends ScopedHandler
         if (_servletMappings==null || _servletNameMap==null)
         {
             _servletPathMap=null;
+            _servletPathMatcher=null;
         }
         else
         {
@@ -1124,17 +1178,22 @@ public class ServletHandler extends ScopedHandler
             }
             
             _servletPathMap=pm;
+            _servletPathMatcher=new CompiledPathMap(pm);
         }
         
         // flush filter chain cache
-        if (_chainCache!=null)
+        ChainCache<String>[] pathCaches=_pathChainCache;
+        if (pathCaches!=null)
         {
-            for (int i=_chainCache.length;i-->0;)
+            for (int i=pathCaches.length;i-->0;)
             {
-                if (_chainCache[i]!=null)
-                    _chainCache[i].clear();
+                if (pathCaches[i]!=null)
+                    pathCaches[i].clear();
             }
         }
+        ChainCache<ChainKey> cache=_sharedChainCache;
+        if (cache!=null)
+            cache.clear();
 
         if (Log.isDebugEnabled()) 
         {
@@ -1297,6 +1356,192 @@ public class ServletHandler extends ScopedHandler
         }
     }  
     
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** The key of a cached filter chain: the servlet, the dispatch type and 
+     * the bits of the path mappings that apply.
+     */
+    private static class ChainKey
+    {
+        private final ServletHolder _servletHolder;
+        private final int _dispatch;
+        private final long[] _applies;
+        private final int _hash;
+
+        /* ------------------------------------------------------------ */
+        ChainKey(ServletHolder servletHolder, int dispatch, long[] applies)
+        {
+            _servletHolder=servletHolder;
+            _dispatch=dispatch;
+            _applies=applies;
+            _hash=(System.identityHashCode(servletHolder)*31+dispatch)*31+Arrays.hashCode(applies);
+        }
+
+        /* ------------------------------------------------------------ */
+        @Override
+        public int hashCode()
+        {
+            return _hash;
+        }
+
+        /* ------------------------------------------------------------ */
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof ChainKey))
+                return false;
+            ChainKey key=(ChainKey)o;
+            return key._servletHolder==_servletHolder && key._dispatch==_dispatch && Arrays.equals(key._applies,_applies);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class ChainEntry<K>
+    {
+        final K _key;
+        final FilterChain _chain;
+        volatile boolean _referenced;
+
+        ChainEntry(K key, FilterChain chain)
+        {
+            _key=key;
+            _chain=chain;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A bounded cache of filter chains, either by path or shared by the paths to which 
+     * the same filters apply.
+     * <p>
+     * The shared cache is consulted when the chain of a path is not in the cache of paths.
+     * A segmented LRU cache, approximated with the CLOCK algorithm so that a lookup
+     * only sets a flag. New chains are put on probation, and a chain that has been 
+     * used again by the time it would be evicted from probation is promoted to the 
+     * protected segment instead, so that a burst of chains that are used only once 
+     * does not evict the chains in regular use. The protected segment is limited to 
+     * 80% of the cache, and chains that are not used while protected are returned
+     * to probation.
+     */
+    private class ChainCache<K>
+    {
+        private final ConcurrentHashMap<K,ChainEntry<K>> _map = new ConcurrentHashMap<K,ChainEntry<K>>();
+        private final ConcurrentLinkedQueue<ChainEntry<K>> _probation = new ConcurrentLinkedQueue<ChainEntry<K>>();
+        private final ConcurrentLinkedQueue<ChainEntry<K>> _protected = new ConcurrentLinkedQueue<ChainEntry<K>>();
+        private final AtomicInteger _size = new AtomicInteger();
+        private final AtomicInteger _protectedSize = new AtomicInteger();
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return the cached entry, whose chain is null if no filters apply, or null if not cached.
+         */
+        ChainEntry<K> get(K key)
+        {
+            ChainEntry<K> entry=_map.get(key);
+            if (entry!=null)
+                entry._referenced=true;
+            return entry;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return the cached chain, which is the given chain unless another thread has cached one first.
+         */
+        FilterChain put(K key, FilterChain chain)
+        {
+            ChainEntry<K> entry=new ChainEntry<K>(key,chain);
+            ChainEntry<K> cached=_map.putIfAbsent(key,entry);
+            if (cached!=null)
+                return cached._chain;
+            _probation.add(entry);
+            int size=_size.incrementAndGet();
+
+            int max=_maxFilterChainsCacheSize;
+            while (max>0 && size>max && evict())
+                size=_size.get();
+            return chain;
+        }
+
+        /* ------------------------------------------------------------ */
+        int size()
+        {
+            return _size.get();
+        }
+
+        /* ------------------------------------------------------------ */
+        boolean contains(K key)
+        {
+            return _map.containsKey(key);
+        }
+
+        /* ------------------------------------------------------------ */
+        void clear()
+        {
+            _map.clear();
+            _probation.clear();
+            _protected.clear();
+            _size.set(0);
+            _protectedSize.set(0);
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * Evict the least recently used chain on probation.
+         * @return True if a chain was evicted
+         */
+        private boolean evict()
+        {
+            // Every chain is promoted or demoted a bounded number of times, 
+            // so this terminates even if chains are concurrently used.
+            int chances=2*_size.get()+1;
+            while (chances-->0)
+            {
+                ChainEntry<K> entry=_probation.poll();
+                if (entry==null)
+                {
+                    if (!demote())
+                        return false;
+                }
+                else if (entry._referenced)
+                {
+                    entry._referenced=false;
+                    _protected.add(entry);
+                    if (_protectedSize.incrementAndGet()>_maxFilterChainsCacheSize*4/5)
+                        demote();
+                }
+                else if (_map.remove(entry._key,entry))
+                {
+                    _size.decrementAndGet();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * Return the least recently used protected chain to probation.
+         * @return True if a chain was returned to probation
+         */
+        private boolean demote()
+        {
+            int chances=_protectedSize.get();
+            ChainEntry<K> entry=_protected.poll();
+            while (entry!=null && entry._referenced && chances-->0)
+            {
+                entry._referenced=false;
+                _protected.add(entry);
+                entry=_protected.poll();
+            }
+            if (entry==null)
+                return false;
+            _protectedSize.decrementAndGet();
+            _probation.add(entry);
+            return true;
+        }
+    }
+
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
     private class Chain implements FilterChain
@@ -1384,14 +1629,76 @@ public class ServletHandler extends ScopedHandler
     /* ------------------------------------------------------------ */
     /** Set the maximum filter chain cache size.
      * Filter chains are cached if {@link #isFilterChainsCached()} is true. If the max cache size
-     * is greater than zero, then the cache is flushed whenever it grows to be this size.
+     * is greater than zero, then the least recently used chains are evicted when the cache 
+     * grows beyond this size.
      * 
-     * @param maxFilterChainsCacheSize  the maximum number of entries in a filter chain cache.
+     * @param maxFilterChainsCacheSize  the maximum number of entries in the filter chain cache.
      */
     public void setMaxFilterChainsCacheSize(int maxFilterChainsCacheSize)
     {
         _maxFilterChainsCacheSize = maxFilterChainsCacheSize;
     }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of filter chains in the cache.
+     */
+    public int getFilterChainCacheSize()
+    {
+        ChainCache<ChainKey> cache=_sharedChainCache;
+        return cache==null?0:cache.size();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param type the dispatch type
+     * @return The number of paths whose filter chains are cached for the dispatch type.
+     */
+    int getPathChainCacheSize(DispatcherType type)
+    {
+        ChainCache<String>[] pathCaches=_pathChainCache;
+        return pathCaches==null?0:pathCaches[FilterMapping.dispatch(type)].size();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param pathInContext the path in context, or the servlet name
+     * @param type the dispatch type
+     * @return True if the filter chain of the path is cached for the dispatch type.
+     */
+    boolean isPathChainCached(String pathInContext, DispatcherType type)
+    {
+        ChainCache<String>[] pathCaches=_pathChainCache;
+        return pathCaches!=null && pathCaches[FilterMapping.dispatch(type)].contains(pathInContext);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of filter chains found in the cache since the handler was started.
+     */
+    public long getFilterChainCacheHits()
+    {
+        return _chainCacheHits.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of filter chains not found in the cache since the handler was started.
+     */
+    public long getFilterChainCacheMisses()
+    {
+        return _chainCacheMisses.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of filter chains built since the handler was started, because 
+     * they were not cached or because filter chains are not cached.
+     */
+    public long getFilterChainRebuilds()
+    {
+        return _chainRebuilds.get();
+    }
     
     /* ------------------------------------------------------------ */
     void destroyServlet(Servlet servlet)
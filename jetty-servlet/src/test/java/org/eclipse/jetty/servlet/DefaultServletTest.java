@@ -1,18 +1,32 @@
 package org.eclipse.jetty.servlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import junit.framework.AssertionFailedError;
+import org.eclipse.jetty.http.MimeTypes;
 import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.ResourceCache;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.util.IO;
 import org.eclipse.jetty.util.StringUtil;
+import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.util.resource.ResourceFactory;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class DefaultServletTest
@@ -20,6 +34,7 @@ public class DefaultServletTest
     private boolean _runningOnWindows;
     private Server server;
     private LocalConnector connector;
+    private SelectChannelConnector nioConnector;
     private ServletContextHandler context;
 
     @Before
@@ -39,6 +54,10 @@ public class DefaultServletTest
         server.setHandler(context);
         server.addConnector(connector);
 
+        nioConnector = new SelectChannelConnector();
+        nioConnector.setPort(0);
+        server.addConnector(nioConnector);
+
         server.start();
     }
 
@@ -498,6 +517,297 @@ public class DefaultServletTest
         assertTrue(body.endsWith(boundary+"--\r\n"));
     }
 
+    @Test
+    public void testFileTransfer() throws Exception
+    {
+        File testDir = new File("target/tests/" + DefaultServletTest.class.getSimpleName());
+        prepareEmptyTestDir(testDir);
+        File resBase = new File(testDir, "docroot");
+        assertTrue(resBase.mkdirs());
+        byte[] data = new byte[1024*1024];
+        for (int i=0;i<data.length;i++)
+            data[i]=(byte)('0'+i%10);
+        File file = new File(resBase, "data.txt");
+        FileOutputStream fout = new FileOutputStream(file);
+        fout.write(data);
+        fout.close();
+
+        ServletHolder defholder = context.addServlet(DefaultServlet.class,"/");
+        defholder.setInitParameter("acceptRanges","true");
+        defholder.setInitParameter("resourceBase",resBase.getAbsolutePath());
+
+        Socket socket = new Socket("localhost",nioConnector.getLocalPort());
+        try
+        {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            // the whole file, then a range of it on the same connection
+            out.write(("GET /context/data.txt HTTP/1.1\r\n"+
+                    "Host: localhost\r\n"+
+                    "\r\n").getBytes());
+            out.flush();
+            String head = readHead(in);
+            assertResponseContains("200 OK",head);
+            assertResponseContains("Content-Length: "+data.length,head);
+            assertArrayEquals(data,readBody(in,data.length));
+
+            out.write(("GET /context/data.txt HTTP/1.1\r\n"+
+                    "Host: localhost\r\n"+
+                    "Range: bytes=1000-1999\r\n"+
+                    "\r\n").getBytes());
+            out.flush();
+            head = readHead(in);
+            assertResponseContains("206 Partial",head);
+            assertResponseContains("Content-Length: 1000",head);
+            assertResponseContains("Content-Range: bytes 1000-1999/"+data.length,head);
+            byte[] range = readBody(in,1000);
+            for (int i=0;i<range.length;i++)
+                assertEquals(data[1000+i],range[i]);
+
+            out.write(("HEAD /context/data.txt HTTP/1.1\r\n"+
+                    "Host: localhost\r\n"+
+                    "Connection: close\r\n"+
+                    "\r\n").getBytes());
+            out.flush();
+            head = readHead(in);
+            assertResponseContains("200 OK",head);
+            assertEquals(-1,in.read());
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testCachedMultipartRanges() throws Exception
+    {
+        File testDir = new File("target/tests/" + DefaultServletTest.class.getSimpleName());
+        prepareEmptyTestDir(testDir);
+        File resBase = new File(testDir, "docroot");
+        assertTrue(resBase.mkdirs());
+        StringBuilder text = new StringBuilder();
+        for (int i=0;i<64*1024;i++)
+            text.append((char)('a'+i%26));
+        byte[] data = text.toString().getBytes("ISO-8859-1");
+        createFile(new File(resBase, "data.txt"),text.toString());
+
+        ServletHolder defholder = context.addServlet(DefaultServlet.class,"/");
+        defholder.setInitParameter("acceptRanges","true");
+        defholder.setInitParameter("resourceBase",resBase.getAbsolutePath());
+        defholder.setInitParameter("maxCachedFiles","10");
+
+        Socket socket = new Socket("localhost",nioConnector.getLocalPort());
+        try
+        {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            // the second request is served from the cache with the parts gathered
+            for (int r=0;r<2;r++)
+            {
+                out.write(("GET /context/data.txt HTTP/1.1\r\n"+
+                        "Host: localhost\r\n"+
+                        "Range: bytes=10-20009,30000-59999,65000-\r\n"+
+                        "\r\n").getBytes());
+                out.flush();
+                String head = readHead(in);
+                assertResponseContains("206 Partial",head);
+                String body = new String(readBody(in,getContentLength(head)),"ISO-8859-1");
+                String boundary = body.substring(0,body.indexOf("\r\n"));
+                assertTrue(body.endsWith(boundary+"--\r\n"));
+
+                int[][] ranges = {{10,20009},{30000,59999},{65000,data.length-1}};
+                int index=0;
+                for (int[] range : ranges)
+                {
+                    index=body.indexOf("Content-Range: bytes "+range[0]+"-"+range[1]+"/"+data.length,index);
+                    assertTrue(index>0);
+                    index=body.indexOf("\r\n\r\n",index)+4;
+                    assertEquals(text.substring(range[0],range[1]+1),body.substring(index,index+range[1]+1-range[0]));
+                }
+            }
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testCompressedContent() throws Exception
+    {
+        File testDir = new File("target/tests/" + DefaultServletTest.class.getSimpleName());
+        prepareEmptyTestDir(testDir);
+        File resBase = new File(testDir, "docroot");
+        assertTrue(resBase.mkdirs());
+        StringBuilder text = new StringBuilder();
+        for (int i=0;i<1000;i++)
+            text.append("line ").append(i).append('\n');
+        byte[] data = text.toString().getBytes("ISO-8859-1");
+        createFile(new File(resBase, "data.txt"),text.toString());
+
+        ServletHolder defholder = context.addServlet(DefaultServlet.class,"/");
+        defholder.setInitParameter("resourceBase",resBase.getAbsolutePath());
+        defholder.setInitParameter("maxCachedFiles","10");
+        defholder.setInitParameter("compress","true");
+
+        Socket socket = new Socket("localhost",nioConnector.getLocalPort());
+        try
+        {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            for (String encoding : new String[]{"gzip","deflate","gzip"})
+            {
+                out.write(("GET /context/data.txt HTTP/1.1\r\n"+
+                        "Host: localhost\r\n"+
+                        "Accept-Encoding: "+encoding+"\r\n"+
+                        "\r\n").getBytes());
+                out.flush();
+                String head = readHead(in);
+                assertResponseContains("200 OK",head);
+                assertResponseContains("Content-Encoding: "+encoding,head);
+                assertResponseContains("Vary: Accept-Encoding",head);
+                assertResponseContains("Content-Type: text/plain",head);
+                int length=getContentLength(head);
+                assertTrue(length<data.length);
+                InputStream body=new ByteArrayInputStream(readBody(in,length));
+                body="gzip".equals(encoding)?new GZIPInputStream(body):new InflaterInputStream(body);
+                assertArrayEquals(data,IO.readBytes(body));
+            }
+
+            out.write(("GET /context/data.txt HTTP/1.1\r\n"+
+                    "Host: localhost\r\n"+
+                    "Connection: close\r\n"+
+                    "\r\n").getBytes());
+            out.flush();
+            String head = readHead(in);
+            assertResponseContains("200 OK",head);
+            assertResponseNotContains("Content-Encoding",head);
+            assertResponseContains("Vary: Accept-Encoding",head);
+            assertEquals(data.length,getContentLength(head));
+            assertArrayEquals(data,readBody(in,data.length));
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testEncodedVariantOnlyBuiltWhenAccepted() throws Exception
+    {
+        File testDir = new File("target/tests/" + DefaultServletTest.class.getSimpleName());
+        prepareEmptyTestDir(testDir);
+        final File resBase = new File(testDir, "docroot");
+        assertTrue(resBase.mkdirs());
+        StringBuilder text = new StringBuilder();
+        for (int i=0;i<1000;i++)
+            text.append("line ").append(i).append('\n');
+        byte[] data = text.toString().getBytes("ISO-8859-1");
+        createFile(new File(resBase, "data.txt"),text.toString());
+
+        ResourceCache cache = new ResourceCache(new ResourceFactory()
+        {
+            public Resource getResource(String path)
+            {
+                try
+                {
+                    return Resource.newResource(new File(resBase,path).toURI());
+                }
+                catch(IOException e)
+                {
+                    return null;
+                }
+            }
+        },new MimeTypes(),false);
+        cache.setCompressContent(true);
+        context.setAttribute("testCache",cache);
+
+        ServletHolder defholder = context.addServlet(DefaultServlet.class,"/");
+        defholder.setInitParameter("resourceCache","testCache");
+        defholder.setInitParameter("compress","true");
+
+        Socket socket = new Socket("localhost",nioConnector.getLocalPort());
+        try
+        {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+
+            // A request that does not accept an encoding is told of the variant, but does not build it
+            out.write(("GET /context/data.txt HTTP/1.1\r\n"+
+                    "Host: localhost\r\n"+
+                    "\r\n").getBytes());
+            out.flush();
+            String head = readHead(in);
+            assertResponseContains("200 OK",head);
+            assertResponseNotContains("Content-Encoding",head);
+            assertResponseContains("Vary: Accept-Encoding",head);
+            assertArrayEquals(data,readBody(in,getContentLength(head)));
+            assertEquals(1,cache.getCachedFiles());
+            assertEquals(data.length,cache.getCachedSize());
+
+            out.write(("GET /context/data.txt HTTP/1.1\r\n"+
+                    "Host: localhost\r\n"+
+                    "Accept-Encoding: gzip\r\n"+
+                    "Connection: close\r\n"+
+                    "\r\n").getBytes());
+            out.flush();
+            head = readHead(in);
+            assertResponseContains("200 OK",head);
+            assertResponseContains("Content-Encoding: gzip",head);
+            int length=getContentLength(head);
+            readBody(in,length);
+            assertEquals(data.length+length,cache.getCachedSize());
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    private int getContentLength(String head)
+    {
+        int i=head.indexOf("Content-Length: ");
+        assertTrue(i>=0);
+        return Integer.parseInt(head.substring(i+16,head.indexOf('\r',i)));
+    }
+
+    private String readHead(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int state=0;
+        while (state<4)
+        {
+            int b=in.read();
+            if (b<0)
+                throw new IOException("EOF");
+            head.write(b);
+            state=(b==(state%2==0?'\r':'\n'))?state+1:(b=='\r'?1:0);
+        }
+        return head.toString("ISO-8859-1");
+    }
+
+    private byte[] readBody(InputStream in, int length) throws IOException
+    {
+        byte[] body = new byte[length];
+        int offset=0;
+        while (offset<length)
+        {
+            int len=in.read(body,offset,length-offset);
+            if (len<0)
+                throw new IOException("EOF");
+            offset+=len;
+        }
+        return body;
+    }
+
     private void createFile(File file, String str) throws IOException
     {
         FileOutputStream out = null;
@@ -0,0 +1,181 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+
+package org.eclipse.jetty.servlet;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.DispatcherType;
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ServletHandlerTest
+{
+    private Server _server;
+    private LocalConnector _connector;
+    private ServletHandler _handler;
+
+    @Before
+    public void init() throws Exception
+    {
+        _server = new Server();
+        _connector = new LocalConnector();
+        _server.addConnector(_connector);
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        _server.setHandler(context);
+        context.addServlet(NameServlet.class, "/*");
+        context.addFilter(HeaderFilter.class, "/filtered/*", EnumSet.of(DispatcherType.REQUEST));
+        context.addFilter(HeaderFilter.class, "*.txt", EnumSet.of(DispatcherType.REQUEST));
+        _handler = context.getServletHandler();
+        _handler.setMaxFilterChainsCacheSize(4);
+    }
+
+    @After
+    public void destroy() throws Exception
+    {
+        _server.stop();
+        _server.join();
+    }
+
+    @Test
+    public void testChainCachedBySpec() throws Exception
+    {
+        _server.start();
+
+        for (int i = 0; i < 100; i++)
+            assertEquals("1", get("/filtered/" + i));
+        assertEquals(1, _handler.getFilterChainCacheSize());
+        assertEquals(1, _handler.getFilterChainRebuilds());
+        assertEquals(99, _handler.getFilterChainCacheHits());
+        assertEquals(1, _handler.getFilterChainCacheMisses());
+
+        // paths to which other filters apply have other chains
+        assertEquals("2", get("/filtered/x.txt"));
+        assertEquals("1", get("/other/y.txt"));
+        assertEquals(3, _handler.getFilterChainCacheSize());
+        assertEquals(3, _handler.getFilterChainRebuilds());
+
+        // a path to which no filter applies is cached without a chain
+        assertEquals("0", get("/other/a"));
+        assertEquals("0", get("/other/b"));
+        assertEquals(4, _handler.getFilterChainCacheSize());
+        assertEquals(3, _handler.getFilterChainRebuilds());
+        assertEquals(100, _handler.getFilterChainCacheHits());
+
+        // a path seen before is found by the path alone
+        long misses = _handler.getFilterChainCacheMisses();
+        assertTrue(_handler.isPathChainCached("/other/y.txt", DispatcherType.REQUEST));
+        assertTrue(_handler.isPathChainCached("/other/a", DispatcherType.REQUEST));
+        assertEquals("1", get("/other/y.txt"));
+        assertEquals("0", get("/other/a"));
+        assertEquals(misses, _handler.getFilterChainCacheMisses());
+        assertEquals(102, _handler.getFilterChainCacheHits());
+    }
+
+    @Test
+    public void testPathCacheBounded() throws Exception
+    {
+        _server.start();
+
+        // a path in regular use stays cached while many paths are used once
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals("1", get("/filtered/hot"));
+            assertEquals("1", get("/filtered/" + i));
+            assertTrue(_handler.getPathChainCacheSize(DispatcherType.REQUEST) <= 4);
+        }
+        assertTrue(_handler.isPathChainCached("/filtered/hot", DispatcherType.REQUEST));
+        assertEquals(4, _handler.getPathChainCacheSize(DispatcherType.REQUEST));
+        assertEquals(1, _handler.getFilterChainRebuilds());
+    }
+
+    @Test
+    public void testChainCacheBounded() throws Exception
+    {
+        // a servlet per path, so that each path has a chain of its own
+        ServletContextHandler context = (ServletContextHandler)_server.getHandler();
+        for (int i = 0; i < 10; i++)
+            context.addServlet(NameServlet.class, "/filtered/" + i);
+        _server.start();
+
+        for (int j = 0; j < 3; j++)
+        {
+            // the chain of /filtered/0 is used often, so it is not evicted
+            for (int i = 1; i < 10; i++)
+            {
+                get("/filtered/0");
+                get("/filtered/" + i);
+                assertTrue(_handler.getFilterChainCacheSize() <= 4);
+            }
+        }
+        assertEquals(4, _handler.getFilterChainCacheSize());
+
+        long rebuilds = _handler.getFilterChainRebuilds();
+        get("/filtered/0");
+        assertEquals(rebuilds, _handler.getFilterChainRebuilds());
+    }
+
+    private String get(String uri) throws Exception
+    {
+        String response = _connector.getResponses("GET " + uri + " HTTP/1.0\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 200 OK"));
+        return response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+
+    public static class HeaderFilter implements Filter
+    {
+        public void init(FilterConfig filterConfig) throws ServletException
+        {
+        }
+
+        public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
+        {
+            Integer filtered = (Integer)request.getAttribute("filtered");
+            request.setAttribute("filtered", filtered == null ? 1 : filtered + 1);
+            chain.doFilter(request, response);
+        }
+
+        public void destroy()
+        {
+        }
+    }
+
+    public static class NameServlet extends HttpServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            Integer filtered = (Integer)request.getAttribute("filtered");
+            response.getWriter().print(filtered == null ? 0 : filtered);
+        }
+    }
+}
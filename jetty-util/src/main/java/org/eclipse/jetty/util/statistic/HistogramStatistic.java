@@ -0,0 +1,152 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at 
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses. 
+// ========================================================================
+
+
+package org.eclipse.jetty.util.statistic;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/* ------------------------------------------------------------ */
+/**
+ * HistogramStatistic
+ * <p>
+ * A {@link SampleStatistic} that also keeps a histogram of the samples, so that
+ * percentiles (eg the median or the 99th percentile) can be reported as well as
+ * the max, mean and standard deviation, which hide the tail of the distribution.
+ * <p>
+ * The histogram uses log-linear buckets: samples less than 64 are counted exactly, 
+ * and larger samples are counted in buckets that are no wider than 1/32 of their 
+ * value, so percentiles are accurate to about 3% with a fixed amount of memory.
+ * Samples greater than 2<sup>40</sup> are counted in the last bucket.
+ * <p>
+ * Samples are recorded without locks into one of a fixed number of stripes of 
+ * buckets, chosen by the recording thread, so that threads of a pool mostly 
+ * record into different stripes.  The stripes are merged when the percentiles 
+ * are read.
+ */
+public class HistogramStatistic extends SampleStatistic
+{
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1<<SUB_BUCKET_BITS;
+    private static final int MAX_SHIFT = 40-SUB_BUCKET_BITS;
+    private static final int BUCKETS = (MAX_SHIFT+2)*SUB_BUCKETS;
+    private static final int STRIPES;
+    static
+    {
+        int stripes=1;
+        while (stripes<Runtime.getRuntime().availableProcessors() && stripes<16)
+            stripes<<=1;
+        STRIPES=stripes;
+    }
+
+    private final AtomicLongArray[] _stripes = new AtomicLongArray[STRIPES];
+
+    /* ------------------------------------------------------------ */
+    public HistogramStatistic()
+    {
+        for (int i=0;i<_stripes.length;i++)
+            _stripes[i]=new AtomicLongArray(BUCKETS);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void reset()
+    {
+        super.reset();
+        for (AtomicLongArray stripe : _stripes)
+            for (int i=0;i<BUCKETS;i++)
+                stripe.set(i,0);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void set(final long sample)
+    {
+        super.set(sample);
+        _stripes[(int)Thread.currentThread().getId()&(STRIPES-1)].incrementAndGet(index(sample));
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param percentile the percentile, between 0 and 100 (eg 99.9)
+     * @return the value that the given percentage of the samples are less than or
+     * equal to, within the precision of the buckets, or 0 if there are no samples.
+     */
+    public long getPercentile(double percentile)
+    {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (AtomicLongArray stripe : _stripes)
+        {
+            for (int i=0;i<BUCKETS;i++)
+            {
+                long count=stripe.get(i);
+                counts[i]+=count;
+                total+=count;
+            }
+        }
+        if (total==0)
+            return 0;
+
+        long rank = (long)Math.ceil(Math.min(100,Math.max(0,percentile))*total/100);
+        if (rank<1)
+            rank=1;
+        long seen = 0;
+        for (int i=0;i<BUCKETS;i++)
+        {
+            seen+=counts[i];
+            if (seen>=rank)
+                return Math.min(highestValue(i),getMax());
+        }
+        return getMax();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the median of the samples
+     */
+    public long getMedian()
+    {
+        return getPercentile(50);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param sample the sample
+     * @return the index of the bucket that counts the sample
+     */
+    static int index(long sample)
+    {
+        if (sample<2*SUB_BUCKETS)
+            return sample<0?0:(int)sample;
+        int shift=63-Long.numberOfLeadingZeros(sample)-SUB_BUCKET_BITS;
+        if (shift>MAX_SHIFT)
+            return BUCKETS-1;
+        return (shift<<SUB_BUCKET_BITS)+(int)(sample>>>shift);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param index the index of a bucket
+     * @return the highest sample counted by the bucket
+     */
+    static long highestValue(int index)
+    {
+        if (index<2*SUB_BUCKETS)
+            return index;
+        int shift=(index>>SUB_BUCKET_BITS)-1;
+        long sub=index-(shift<<SUB_BUCKET_BITS);
+        return ((sub+1)<<shift)-1;
+    }
+}
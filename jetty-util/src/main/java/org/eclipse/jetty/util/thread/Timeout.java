@@ -24,10 +24,11 @@ import org.eclipse.jetty.util.log.Log;
  * <p>
  * The nested class Task should be extended by users of this class to obtain call back notification of 
  * expires. 
+ * @see TimingWheelTimeout
  */
 public class Timeout
 {
-    private Object _lock;
+    Object _lock;
     private long _duration;
     private volatile long _now=System.currentTimeMillis();
     private Task _head=new Task();
@@ -183,6 +184,20 @@ public class Timeout
     }
 
 
+    /* ------------------------------------------------------------ */
+    /** Cancel a task.
+     * Called by {@link Task#cancel()} to remove the task from this timeout.
+     * @param task
+     */
+    protected void cancel(Task task)
+    {
+        synchronized (_lock)
+        {
+            task.unlink();
+            task._timestamp=0;
+        }
+    }
+
     /* ------------------------------------------------------------ */
     public void cancelAll()
     {
@@ -278,7 +293,7 @@ public class Timeout
         }
 
         /* ------------------------------------------------------------ */
-        private void unlink()
+        void unlink()
         {
             _next._prev=_prev;
             _prev._next=_next;
@@ -287,7 +302,7 @@ public class Timeout
         }
 
         /* ------------------------------------------------------------ */
-        private void link(Task task)
+        void link(Task task)
         {
             Task next_next = _next;
             _next._prev=task;
@@ -336,13 +351,7 @@ public class Timeout
         {
             Timeout timeout = _timeout;
             if (timeout!=null)
-            {
-                synchronized (timeout._lock)
-                {
-                    unlink();
-                    _timestamp=0;
-                }
-            }
+                timeout.cancel(this);
         }
         
         /* ------------------------------------------------------------ */
@@ -0,0 +1,432 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.util.thread;
+
+import org.eclipse.jetty.util.log.Log;
+
+
+/* ------------------------------------------------------------ */
+/** Hierarchical timing wheel Timeout queue.
+ * <p>
+ * A {@link Timeout} that keeps scheduled tasks in a hierarchy of timing wheels
+ * rather than a sorted list, so that {@link #schedule(Task, long)} and
+ * {@link Task#cancel()} are O(1) regardless of the number of scheduled tasks.
+ * The first wheel has 256 slots of {@link #getTickMs()} each, and each of the 4
+ * higher wheels has 64 slots that each span a full revolution of the wheel below.
+ * Tasks are moved down the wheels as their expiry approaches.
+ * <p>
+ * Tasks never expire early, but may expire up to {@link #getTickMs()} late.
+ * Tasks that expire are expired in approximately, but not exactly, timestamp order.
+ */
+public class TimingWheelTimeout extends Timeout
+{
+    private static final int WHEEL0_BITS=8;
+    private static final int WHEEL0_SIZE=1<<WHEEL0_BITS;
+    private static final int WHEEL_BITS=6;
+    private static final int WHEEL_SIZE=1<<WHEEL_BITS;
+    private static final int WHEELS=5;
+
+    private final Task[][] _wheels=new Task[WHEELS][];
+    private final Task _ready=new Task();
+    private long _tickMs=1;
+    private long _tick;
+    private int _size;
+
+    /* ------------------------------------------------------------ */
+    public TimingWheelTimeout()
+    {
+        super();
+        init();
+    }
+
+    /* ------------------------------------------------------------ */
+    public TimingWheelTimeout(Object lock)
+    {
+        super(lock);
+        init();
+    }
+
+    /* ------------------------------------------------------------ */
+    private void init()
+    {
+        for (int w=0;w<WHEELS;w++)
+        {
+            _wheels[w]=new Task[w==0?WHEEL0_SIZE:WHEEL_SIZE];
+            for (int s=0;s<_wheels[w].length;s++)
+                _wheels[w][s]=new Task();
+        }
+        _tick=getExpiryTick()+1;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The granularity in ms of the timing wheel.
+     */
+    public long getTickMs()
+    {
+        return _tickMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param tickMs The granularity in ms of the timing wheel. Tasks may expire up to this period late.
+     * @throws IllegalStateException if tasks are scheduled.
+     */
+    public void setTickMs(long tickMs)
+    {
+        synchronized (_lock)
+        {
+            if (_size>0)
+                throw new IllegalStateException("scheduled");
+            if (tickMs<=0)
+                throw new IllegalArgumentException("tickMs");
+            _tickMs=tickMs;
+            _tick=getExpiryTick()+1;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The tick of the timestamp below which tasks have expired.
+     */
+    private long getExpiryTick()
+    {
+        return (getNow()-getDuration())/_tickMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get an expired tasks.
+     * This is called instead of {@link #tick()} to obtain the next
+     * expired Task, but without calling it's {@link Task#expire()} or
+     * {@link Task#expired()} methods.
+     *
+     * @return the next expired task or null.
+     */
+    @Override
+    public Task expired()
+    {
+        synchronized (_lock)
+        {
+            advance();
+            return nextReady();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void tick()
+    {
+        synchronized (_lock)
+        {
+            advance();
+        }
+
+        Task task=null;
+        while (true)
+        {
+            try
+            {
+                synchronized (_lock)
+                {
+                    task=nextReady();
+                    if (task==null)
+                        break;
+                    task.expire();
+                }
+
+                task.expired();
+            }
+            catch(Throwable th)
+            {
+                Log.warn(Log.EXCEPTION,th);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param task
+     * @param delay A delay in addition to the default duration of the timeout
+     */
+    @Override
+    public void schedule(Task task,long delay)
+    {
+        synchronized (_lock)
+        {
+            if (task._next!=task)
+            {
+                task.unlink();
+                if (task._timeout==this)
+                    _size--;
+            }
+            if (_size==0)
+                _tick=getExpiryTick()+1;
+
+            task._timeout=this;
+            task._expired=false;
+            task._delay=delay;
+            task._timestamp = getNow()+delay;
+
+            if (task._timestamp<=getNow()-getDuration())
+                _ready._prev.link(task);
+            else
+                insert(task);
+            _size++;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    protected void cancel(Task task)
+    {
+        synchronized (_lock)
+        {
+            if (task._next!=task)
+            {
+                task.unlink();
+                _size--;
+            }
+            task._timestamp=0;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void cancelAll()
+    {
+        synchronized (_lock)
+        {
+            for (int w=0;w<WHEELS;w++)
+                for (int s=0;s<_wheels[w].length;s++)
+                    _wheels[w][s]._next=_wheels[w][s]._prev=_wheels[w][s];
+            _ready._next=_ready._prev=_ready;
+            _size=0;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public boolean isEmpty()
+    {
+        synchronized (_lock)
+        {
+            return _size==0;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return A lower bound of the time in ms until the next task expires, 0 if a
+     * task has expired or -1 if no tasks are scheduled.
+     */
+    @Override
+    public long getTimeToNext()
+    {
+        synchronized (_lock)
+        {
+            if (_size==0)
+                return -1;
+            if (_ready._next!=_ready)
+                return 0;
+
+            long next=nextTick();
+            if (next==Long.MAX_VALUE)
+                return 0;
+            long to_next=next*_tickMs-(getNow()-getDuration());
+            return to_next<0?0:to_next;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Advance the wheels to the current expiry time, moving expired
+     * tasks to the ready list.
+     * Called while holding the lock.
+     */
+    private void advance()
+    {
+        long expiry_tick=getExpiryTick();
+
+        if (_size==0)
+        {
+            _tick=expiry_tick+1;
+            return;
+        }
+
+        while (_tick<=expiry_tick)
+        {
+            // skip ticks that have nothing to expire or cascade
+            long next=nextTick();
+            if (next>expiry_tick)
+            {
+                _tick=expiry_tick+1;
+                break;
+            }
+            _tick=next;
+
+            int index=(int)(_tick&(WHEEL0_SIZE-1));
+
+            // cascade higher wheels at the start of each revolution
+            if (index==0)
+            {
+                for (int w=1;w<WHEELS;w++)
+                {
+                    int shift=WHEEL0_BITS+(w-1)*WHEEL_BITS;
+                    int slot=(int)((_tick>>shift)&(WHEEL_SIZE-1));
+                    cascade(_wheels[w][slot]);
+                    if (slot!=0)
+                        break;
+                }
+            }
+
+            // expire or defer the tasks in this slot
+            Task head=_wheels[0][index];
+            long expiry=getNow()-getDuration();
+            _tick++;
+            while (head._next!=head)
+            {
+                Task task=head._next;
+                task.unlink();
+                if (task._timestamp<=expiry)
+                    _ready._prev.link(task);
+                else
+                    insert(task);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The next tick, not before the current tick, that has an occupied slot in the
+     * first wheel or that cascades an occupied slot of a higher wheel.
+     * Called while holding the lock.
+     */
+    private long nextTick()
+    {
+        long next=Long.MAX_VALUE;
+
+        // earliest occupied slot of the first wheel
+        Task[] wheel=_wheels[0];
+        for (int i=0;i<WHEEL0_SIZE;i++)
+        {
+            long tick=_tick+i;
+            Task head=wheel[(int)(tick&(WHEEL0_SIZE-1))];
+            if (head._next!=head)
+            {
+                next=tick;
+                break;
+            }
+        }
+
+        // earliest cascade of an occupied slot of the higher wheels
+        for (int w=1;w<WHEELS;w++)
+        {
+            int shift=WHEEL0_BITS+(w-1)*WHEEL_BITS;
+            long first=(_tick+(1L<<shift)-1)>>shift;
+            wheel=_wheels[w];
+            for (int i=0;i<WHEEL_SIZE;i++)
+            {
+                long cascade=(first+i)<<shift;
+                if (cascade>=next)
+                    break;
+                Task head=wheel[(int)((first+i)&(WHEEL_SIZE-1))];
+                if (head._next!=head)
+                {
+                    next=cascade;
+                    break;
+                }
+            }
+        }
+        return next;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Reinsert all tasks in a higher wheel slot.
+     * Called while holding the lock.
+     */
+    private void cascade(Task head)
+    {
+        while (head._next!=head)
+        {
+            Task task=head._next;
+            task.unlink();
+            insert(task);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Insert a task into the wheel slot for its timestamp.
+     * Called while holding the lock.
+     */
+    private void insert(Task task)
+    {
+        long tick=task._timestamp/_tickMs;
+        if (tick<_tick)
+            tick=_tick;
+        long delta=tick-_tick;
+
+        Task head;
+        if (delta<WHEEL0_SIZE)
+            head=_wheels[0][(int)(tick&(WHEEL0_SIZE-1))];
+        else
+        {
+            int w=1;
+            int shift=WHEEL0_BITS;
+            while (w<WHEELS-1 && delta>=(1L<<(shift+WHEEL_BITS)))
+            {
+                w++;
+                shift+=WHEEL_BITS;
+            }
+
+            // Beyond the last wheel, so park in its furthest slot and reinsert on cascade
+            if (delta>=(1L<<(shift+WHEEL_BITS)))
+                tick=_tick+(1L<<(shift+WHEEL_BITS))-1;
+            head=_wheels[w][(int)((tick>>shift)&(WHEEL_SIZE-1))];
+        }
+        head._prev.link(task);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the next ready task.
+     * Ready tasks that are no longer expired (because the duration has been
+     * increased) are returned to the wheel.
+     * Called while holding the lock.
+     */
+    private Task nextReady()
+    {
+        long expiry=getNow()-getDuration();
+        while (_ready._next!=_ready)
+        {
+            Task task=_ready._next;
+            task.unlink();
+            if (task._timestamp<=expiry)
+            {
+                _size--;
+                task._expired=true;
+                return task;
+            }
+            insert(task);
+        }
+        return null;
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public String toString()
+    {
+        synchronized (_lock)
+        {
+            return super.toString()+"{tick="+_tick+",size="+_size+"}";
+        }
+    }
+}
@@ -0,0 +1,108 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at 
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses. 
+// ========================================================================
+
+
+package org.eclipse.jetty.util.statistic;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramStatisticTest
+{
+    @Test
+    public void testBuckets()
+    {
+        long last=-1;
+        for (int index=0;index<1184;index++)
+        {
+            long highest=HistogramStatistic.highestValue(index);
+            assertTrue(highest>last);
+            assertEquals(index,HistogramStatistic.index(last+1));
+            assertEquals(index,HistogramStatistic.index(highest));
+            // buckets are no wider than 1/32 of their values
+            assertTrue(highest-last<=Math.max(1,highest/32));
+            last=highest;
+        }
+        assertEquals(1183,HistogramStatistic.index(Long.MAX_VALUE));
+        assertEquals(0,HistogramStatistic.index(-1));
+    }
+
+    @Test
+    public void testPercentiles()
+    {
+        HistogramStatistic stats = new HistogramStatistic();
+        assertEquals(0,stats.getPercentile(50));
+
+        for (int i=1;i<=10000;i++)
+            stats.set(i);
+        assertEquals(10000,stats.getCount());
+        assertEquals(10000,stats.getMax());
+        assertEquals(5000.5,stats.getMean(),0.01);
+
+        assertNear(5000,stats.getMedian());
+        assertNear(9000,stats.getPercentile(90));
+        assertNear(9900,stats.getPercentile(99));
+        assertNear(9990,stats.getPercentile(99.9));
+        assertEquals(10000,stats.getPercentile(100));
+        assertEquals(1,stats.getPercentile(0));
+
+        // a slow tail is seen by the percentiles but hidden by the mean
+        stats.reset();
+        for (int i=0;i<990;i++)
+            stats.set(10);
+        for (int i=0;i<10;i++)
+            stats.set(5000);
+        assertTrue(stats.getMean()<100);
+        assertEquals(10,stats.getPercentile(99));
+        assertNear(5000,stats.getPercentile(99.9));
+
+        stats.reset();
+        assertEquals(0,stats.getCount());
+        assertEquals(0,stats.getPercentile(99));
+    }
+
+    @Test
+    public void testConcurrent() throws Exception
+    {
+        final HistogramStatistic stats = new HistogramStatistic();
+        final int threads=8;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int t=0;t<threads;t++)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i=1;i<=1000;i++)
+                        stats.set(i);
+                    latch.countDown();
+                }
+            }.start();
+        }
+        latch.await();
+
+        assertEquals(threads*1000,stats.getCount());
+        assertNear(500,stats.getMedian());
+        assertEquals(1000,stats.getPercentile(100));
+    }
+
+    private void assertNear(long expected, long actual)
+    {
+        assertTrue("expected "+expected+" actual "+actual,actual>=expected && actual<=expected+expected/32);
+    }
+}
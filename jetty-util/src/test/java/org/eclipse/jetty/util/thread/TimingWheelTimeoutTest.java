@@ -0,0 +1,152 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at 
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses. 
+// ========================================================================
+
+package org.eclipse.jetty.util.thread;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Runs the {@link TimeoutTest} tests against a {@link TimingWheelTimeout}
+ */
+public class TimingWheelTimeoutTest extends TimeoutTest
+{
+    /* ------------------------------------------------------------ */
+    @Override
+    protected Timeout newTimeout(Object lock)
+    {
+        return new TimingWheelTimeout(lock);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Test
+    public void testLongDelays()
+    {
+        timeout.cancelAll();
+        timeout.setDuration(0);
+        timeout.setNow(10000);
+
+        long[] delays={1,255,256,300,16383,16384,20000,1000000,5000000,100000000L,10000000000L};
+        Timeout.Task[] tasks=new Timeout.Task[delays.length];
+        for (int i=0;i<delays.length;i++)
+        {
+            tasks[i]=new Timeout.Task();
+            timeout.schedule(tasks[i],delays[i]);
+        }
+
+        for (int i=0;i<delays.length;i++)
+        {
+            // Just before the expiry, none of the remaining tasks are expired
+            timeout.setNow(10000+delays[i]-1);
+            timeout.tick();
+            for (int j=0;j<delays.length;j++)
+                assertEquals("delay "+delays[i]+" task "+j,j<i,tasks[j].isExpired());
+
+            // At the expiry, only this task is expired
+            timeout.setNow(10000+delays[i]);
+            timeout.tick();
+            for (int j=0;j<delays.length;j++)
+                assertEquals("delay "+delays[i]+" task "+j,j<=i,tasks[j].isExpired());
+        }
+        assertTrue(timeout.isEmpty());
+    }
+
+    /* ------------------------------------------------------------ */
+    @Test
+    public void testExpiredOneAtATime()
+    {
+        timeout.cancelAll();
+        timeout.setDuration(100);
+        timeout.setNow(5000);
+
+        Timeout.Task task0=new Timeout.Task();
+        Timeout.Task task1=new Timeout.Task();
+        timeout.schedule(task0);
+        timeout.schedule(task1,50000);
+
+        timeout.setNow(5099);
+        assertNull(timeout.expired());
+        timeout.setNow(5100);
+        assertSame(task0,timeout.expired());
+        assertTrue(task0.isExpired());
+        assertNull(timeout.expired());
+        assertFalse(timeout.isEmpty());
+
+        timeout.setNow(55100);
+        assertSame(task1,timeout.expired());
+        assertTrue(timeout.isEmpty());
+    }
+
+    /* ------------------------------------------------------------ */
+    @Test
+    public void testTimeToNext()
+    {
+        timeout.cancelAll();
+        timeout.setDuration(200);
+        timeout.setNow(1000);
+        assertEquals(-1,timeout.getTimeToNext());
+
+        Timeout.Task task=new Timeout.Task();
+        timeout.schedule(task,30000);
+
+        // The time to next is a lower bound that is never later than the expiry
+        long now=1000;
+        while (!task.isExpired())
+        {
+            long next=timeout.getTimeToNext();
+            assertTrue(next>=0);
+            assertTrue(now+next<=1000+30000+200);
+            now+=next==0?1:next;
+            timeout.setNow(now);
+            timeout.tick();
+        }
+        assertEquals(1000+30000+200,now);
+        assertEquals(-1,timeout.getTimeToNext());
+    }
+
+    /* ------------------------------------------------------------ */
+    @Test
+    public void testCancelIsEmpty()
+    {
+        for (int i=0;i<tasks.length;i++)
+            tasks[i].cancel();
+        assertTrue(timeout.isEmpty());
+        assertEquals(-1,timeout.getTimeToNext());
+    }
+
+    /* ------------------------------------------------------------ */
+    @Test
+    public void testTickMs()
+    {
+        TimingWheelTimeout wheel=new TimingWheelTimeout();
+        wheel.setTickMs(100);
+        wheel.setNow(1000);
+        Timeout.Task task=new Timeout.Task();
+        wheel.schedule(task,250);
+
+        // Never early
+        wheel.setNow(1249);
+        wheel.tick();
+        assertFalse(task.isExpired());
+
+        // but may be up to a tick late
+        wheel.setNow(1350);
+        wheel.tick();
+        assertTrue(task.isExpired());
+    }
+}
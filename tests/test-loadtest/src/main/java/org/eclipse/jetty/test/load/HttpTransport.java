@@ -0,0 +1,97 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.test.load;
+
+import java.io.IOException;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.io.Buffer;
+
+/* ------------------------------------------------------------ */
+/**
+ * Send requests over the network with an {@link HttpClient}, which
+ * pools persistent connections to the server.
+ */
+public class HttpTransport implements Transport
+{
+    private final HttpClient _client;
+    private final Address _address;
+    private final String _uri;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param host the host of the server
+     * @param port the port of the server
+     * @param uri the URI to request
+     * @param connections the maximum number of connections to the server
+     */
+    public HttpTransport(String host, int port, String uri, int connections) throws Exception
+    {
+        _address=new Address(host,port);
+        _uri=uri;
+        _client=new HttpClient();
+        _client.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        _client.setMaxConnectionsPerAddress(connections);
+        _client.setTimeout(30000);
+        _client.start();
+    }
+
+    /* ------------------------------------------------------------ */
+    public Session open()
+    {
+        return new Session()
+        {
+            public void exchange() throws Exception
+            {
+                StatusExchange exchange=new StatusExchange();
+                exchange.setAddress(_address);
+                exchange.setURI(_uri);
+                _client.send(exchange);
+                int state=exchange.waitForDone();
+                if (state!=HttpExchange.STATUS_COMPLETED)
+                    throw new IOException("Exchange not completed: "+state);
+                if (exchange._status!=HttpStatus.OK_200)
+                    throw new IOException("Bad response: "+exchange._status);
+            }
+
+            public void close()
+            {
+            }
+        };
+    }
+
+    /* ------------------------------------------------------------ */
+    public void close() throws Exception
+    {
+        _client.stop();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * An exchange that discards the response content, keeping only the status.
+     */
+    private static class StatusExchange extends HttpExchange
+    {
+        private volatile int _status;
+
+        @Override
+        protected void onResponseStatus(Buffer version, int status, Buffer reason) throws IOException
+        {
+            _status=status;
+        }
+    }
+}
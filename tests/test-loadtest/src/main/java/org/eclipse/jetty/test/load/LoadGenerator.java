@@ -0,0 +1,350 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.test.load;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.statistic.HistogramStatistic;
+
+/* ------------------------------------------------------------ */
+/**
+ * Generate load on a server through a {@link Transport}.
+ * <p>
+ * In a closed loop, each user sends a request as soon as it has received
+ * the response to its previous request, after an optional think time, so
+ * the load adapts to the throughput of the server.
+ * <p>
+ * In an open loop, requests are sent at a fixed rate, whatever the
+ * throughput of the server, with at most one request per user outstanding.
+ * The latency of a request is measured from the time that it was due to be
+ * sent rather than the time that it was sent, so that the latency of
+ * requests that waited for a user is not hidden (coordinated omission).
+ */
+public class LoadGenerator
+{
+    private final Transport _transport;
+    private volatile HistogramStatistic _histogram;
+    private final AtomicLong _errors=new AtomicLong();
+    private final List<Transport.Session> _sessions=new ArrayList<Transport.Session>();
+    private int _users=10;
+    private int _rate;
+    private long _thinkTime;
+
+    /* ------------------------------------------------------------ */
+    public LoadGenerator(Transport transport)
+    {
+        _transport=transport;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getUsers()
+    {
+        return _users;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param users the number of concurrent users, each with its own session
+     */
+    public void setUsers(int users)
+    {
+        _users=users;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getRate()
+    {
+        return _rate;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param rate the rate of requests per second of an open loop, or 0 for a closed loop
+     */
+    public void setRate(int rate)
+    {
+        _rate=rate;
+    }
+
+    /* ------------------------------------------------------------ */
+    public long getThinkTime()
+    {
+        return _thinkTime;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param thinkTime the time in ms that a user of a closed loop waits between a response and its next request
+     */
+    public void setThinkTime(long thinkTime)
+    {
+        _thinkTime=thinkTime;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Run the load for a warmup period, which is not measured, and then for the measured period.
+     * @param warmup the warmup period in ms
+     * @param duration the measured period in ms
+     * @return the result of the measured period
+     */
+    public Result run(long warmup, long duration) throws Exception
+    {
+        // A new histogram for each run, so that it can be kept by the result
+        HistogramStatistic histogram=new HistogramStatistic();
+        _histogram=histogram;
+        _errors.set(0);
+
+        try
+        {
+            List<Transport.Session> sessions=new ArrayList<Transport.Session>();
+            for (int i=0;i<_users;i++)
+            {
+                Transport.Session session=_transport.open();
+                sessions.add(session);
+                synchronized (_sessions)
+                {
+                    _sessions.add(session);
+                }
+            }
+
+            long start=System.nanoTime();
+            long measure=start+TimeUnit.MILLISECONDS.toNanos(warmup);
+            long end=measure+TimeUnit.MILLISECONDS.toNanos(duration);
+
+            if (_rate>0)
+                runOpen(sessions,start,measure,end);
+            else
+                runClosed(sessions,measure,end);
+
+            long elapsed=System.nanoTime()-measure;
+            return new Result(histogram,_errors.get(),TimeUnit.NANOSECONDS.toMillis(elapsed));
+        }
+        finally
+        {
+            synchronized (_sessions)
+            {
+                for (Transport.Session session : _sessions)
+                    session.close();
+                _sessions.clear();
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private void runClosed(List<Transport.Session> sessions, final long measure, final long end) throws Exception
+    {
+        List<Thread> users=new ArrayList<Thread>();
+        for (final Transport.Session session : sessions)
+        {
+            Thread user=new Thread("user-"+users.size())
+            {
+                @Override
+                public void run()
+                {
+                    Transport.Session current=session;
+                    long now=System.nanoTime();
+                    while (now<end && current!=null)
+                    {
+                        current=exchange(current,now,now>=measure);
+                        try
+                        {
+                            if (_thinkTime>0)
+                                Thread.sleep(_thinkTime);
+                        }
+                        catch(InterruptedException e)
+                        {
+                            return;
+                        }
+                        now=System.nanoTime();
+                    }
+                }
+            };
+            users.add(user);
+            user.start();
+        }
+
+        for (Thread user : users)
+            user.join();
+    }
+
+    /* ------------------------------------------------------------ */
+    private void runOpen(List<Transport.Session> sessions, long start, long measure, long end) throws Exception
+    {
+        final BlockingQueue<Transport.Session> idle=new ArrayBlockingQueue<Transport.Session>(sessions.size(),false,sessions);
+        ExecutorService executor=Executors.newFixedThreadPool(sessions.size());
+        try
+        {
+            long period=TimeUnit.SECONDS.toNanos(1)/_rate;
+            for (long due=start;due<end;due+=period)
+            {
+                long wait=due-System.nanoTime();
+                if (wait>0)
+                    TimeUnit.NANOSECONDS.sleep(wait);
+
+                final long scheduled=due;
+                final boolean measured=due>=measure;
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            Transport.Session session=idle.take();
+                            session=exchange(session,scheduled,measured);
+                            if (session!=null)
+                                idle.put(session);
+                        }
+                        catch(InterruptedException e)
+                        {
+                            Log.ignore(e);
+                        }
+                    }
+                });
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+            executor.awaitTermination(60,TimeUnit.SECONDS);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Send a request and record its latency in microseconds.  A session that fails is replaced
+     * by a new session, as it may no longer be usable.
+     * @param session the session to send the request on
+     * @param due the time in ns from which the latency of the request is measured
+     * @param measured true if the request is in the measured period
+     * @return the session for the next request of the user, or null if no session could be opened
+     */
+    private Transport.Session exchange(Transport.Session session, long due, boolean measured)
+    {
+        try
+        {
+            session.exchange();
+            if (measured)
+                _histogram.set(TimeUnit.NANOSECONDS.toMicros(System.nanoTime()-due));
+            return session;
+        }
+        catch(Exception e)
+        {
+            if (measured)
+                _errors.incrementAndGet();
+            Log.debug(e);
+        }
+
+        synchronized (_sessions)
+        {
+            _sessions.remove(session);
+        }
+        session.close();
+        try
+        {
+            Transport.Session reopened=_transport.open();
+            synchronized (_sessions)
+            {
+                _sessions.add(reopened);
+            }
+            return reopened;
+        }
+        catch(Exception e)
+        {
+            Log.warn(e);
+            return null;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /**
+     * The throughput, errors and latencies of a measured period.
+     */
+    public static class Result
+    {
+        private final HistogramStatistic _histogram;
+        private final long _errors;
+        private final long _elapsed;
+
+        /* ------------------------------------------------------------ */
+        Result(HistogramStatistic histogram, long errors, long elapsed)
+        {
+            _histogram=histogram;
+            _errors=errors;
+            _elapsed=elapsed;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return the latencies of the requests in microseconds
+         */
+        public HistogramStatistic getHistogram()
+        {
+            return _histogram;
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getRequests()
+        {
+            return _histogram.getCount();
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getErrors()
+        {
+            return _errors;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return the elapsed time of the measured period in ms
+         */
+        public long getElapsed()
+        {
+            return _elapsed;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return the requests completed per second
+         */
+        public double getThroughput()
+        {
+            return _elapsed==0?0:getRequests()*1000.0/_elapsed;
+        }
+
+        /* ------------------------------------------------------------ */
+        public void print(PrintStream out)
+        {
+            out.printf("throughput: %.1f requests/s, %d requests, %d errors in %d ms%n",getThroughput(),getRequests(),_errors,_elapsed);
+            out.printf("latency ms: mean %.3f, 50%% %.3f, 90%% %.3f, 99%% %.3f, 99.9%% %.3f, max %.3f%n",
+                    _histogram.getMean()/1000,
+                    _histogram.getPercentile(50)/1000.0,
+                    _histogram.getPercentile(90)/1000.0,
+                    _histogram.getPercentile(99)/1000.0,
+                    _histogram.getPercentile(99.9)/1000.0,
+                    _histogram.getMax()/1000.0);
+        }
+    }
+}
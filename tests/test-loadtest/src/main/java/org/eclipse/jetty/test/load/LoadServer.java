@@ -0,0 +1,252 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.test.load;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.bio.SocketConnector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.websocket.WebSocket;
+import org.eclipse.jetty.websocket.WebSocketServlet;
+
+/* ------------------------------------------------------------ */
+/**
+ * A server with a target for each kind of handling that is load tested:
+ * <dl>
+ * <dt>/static/content.bin</dt><dd>a file served by the {@link DefaultServlet}</dd>
+ * <dt>/servlet</dt><dd>content written by a servlet</dd>
+ * <dt>/async</dt><dd>content written by a servlet after it has been suspended and resumed by another thread</dd>
+ * <dt>/ws</dt><dd>a websocket that echoes messages</dd>
+ * </dl>
+ * The server has a {@link LocalConnector}, and a network connector that is
+ * either a {@link SelectChannelConnector} or a {@link SocketConnector}.
+ */
+public class LoadServer
+{
+    public static final String[] TARGETS={"static","servlet","async","websocket"};
+
+    private final Server _server=new Server();
+    private final QueuedThreadPool _threadPool=new QueuedThreadPool();
+    private final LocalConnector _localConnector=new LocalConnector();
+    private final ScheduledExecutorService _scheduler=Executors.newSingleThreadScheduledExecutor();
+    private final String _connectorType;
+    private final int _contentSize;
+    private Connector _connector;
+    private File _resourceBase;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param connectorType the network connector: "nio" or "bio"
+     * @param threads the maximum number of threads of the server
+     * @param contentSize the size of the response content
+     */
+    public LoadServer(String connectorType, int threads, int contentSize)
+    {
+        _connectorType=connectorType;
+        _contentSize=contentSize;
+        _threadPool.setMaxThreads(threads);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void start() throws Exception
+    {
+        if ("bio".equals(_connectorType))
+            _connector=new SocketConnector();
+        else if ("nio".equals(_connectorType))
+            _connector=new SelectChannelConnector();
+        else
+            throw new IllegalArgumentException("Unknown connector "+_connectorType);
+        _connector.setPort(0);
+        _connector.setMaxIdleTime(30000);
+
+        _server.setThreadPool(_threadPool);
+        _server.addConnector(_connector);
+        _server.addConnector(_localConnector);
+
+        _resourceBase=File.createTempFile("loadtest",".dir");
+        _resourceBase.delete();
+        File dir=new File(_resourceBase,"static");
+        dir.mkdirs();
+        FileOutputStream out=new FileOutputStream(new File(dir,"content.bin"));
+        out.write(content(_contentSize));
+        out.close();
+
+        ServletContextHandler context=new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/");
+        context.setResourceBase(_resourceBase.getAbsolutePath());
+        context.addServlet(DefaultServlet.class,"/");
+        context.addServlet(new ServletHolder(new ContentServlet()),"/servlet");
+        context.addServlet(new ServletHolder(new AsyncServlet()),"/async");
+        context.addServlet(new ServletHolder(new EchoWebSocketServlet()),"/ws");
+        _server.setHandler(context);
+
+        _server.start();
+    }
+
+    /* ------------------------------------------------------------ */
+    public void stop() throws Exception
+    {
+        _server.stop();
+        _scheduler.shutdownNow();
+        IO.delete(_resourceBase);
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getPort()
+    {
+        return _connector.getLocalPort();
+    }
+
+    /* ------------------------------------------------------------ */
+    public LocalConnector getLocalConnector()
+    {
+        return _localConnector;
+    }
+
+    /* ------------------------------------------------------------ */
+    public QueuedThreadPool getThreadPool()
+    {
+        return _threadPool;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param target one of {@link #TARGETS}
+     * @return the URI of the target
+     */
+    public static String getURI(String target)
+    {
+        if ("static".equals(target))
+            return "/static/content.bin";
+        if ("servlet".equals(target))
+            return "/servlet";
+        if ("async".equals(target))
+            return "/async";
+        if ("websocket".equals(target))
+            return "/ws";
+        throw new IllegalArgumentException("Unknown target "+target);
+    }
+
+    /* ------------------------------------------------------------ */
+    private static byte[] content(int size)
+    {
+        byte[] content=new byte[size];
+        for (int i=0;i<size;i++)
+            content[i]=(byte)('a'+i%26);
+        return content;
+    }
+
+    /* ------------------------------------------------------------ */
+    private class ContentServlet extends HttpServlet
+    {
+        private final byte[] _content=content(_contentSize);
+
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            response.setContentType("application/octet-stream");
+            response.setContentLength(_content.length);
+            response.getOutputStream().write(_content);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private class AsyncServlet extends ContentServlet
+    {
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            final Continuation continuation=ContinuationSupport.getContinuation(request);
+            if (continuation.isInitial())
+            {
+                continuation.setTimeout(30000);
+                continuation.suspend();
+                _scheduler.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        continuation.resume();
+                    }
+                });
+            }
+            else
+                super.doGet(request,response);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private static class EchoWebSocketServlet extends WebSocketServlet
+    {
+        @Override
+        protected WebSocket doWebSocketConnect(HttpServletRequest request, String protocol)
+        {
+            return new WebSocket()
+            {
+                private Outbound _outbound;
+
+                public void onConnect(Outbound outbound)
+                {
+                    _outbound=outbound;
+                }
+
+                public void onMessage(byte frame, String data)
+                {
+                    try
+                    {
+                        _outbound.sendMessage(frame,data);
+                    }
+                    catch(IOException e)
+                    {
+                        _outbound.disconnect();
+                    }
+                }
+
+                public void onMessage(byte frame, byte[] data, int offset, int length)
+                {
+                    try
+                    {
+                        _outbound.sendMessage(frame,data,offset,length);
+                    }
+                    catch(IOException e)
+                    {
+                        _outbound.disconnect();
+                    }
+                }
+
+                public void onDisconnect()
+                {
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,147 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.test.load;
+
+import java.util.Arrays;
+
+/* ------------------------------------------------------------ */
+/**
+ * Run a load test against an embedded server and print the throughput and latency percentiles.
+ * <pre>
+ * LoadTest [-connector local|nio|bio] [-target static|servlet|async|websocket]
+ *          [-users n] [-rate n] [-think ms] [-warmup ms] [-duration ms]
+ *          [-threads n] [-size bytes]
+ * </pre>
+ * The local connector drives the server in process without the network, so it
+ * measures the cost of the HTTP handling alone, but it cannot drive the async
+ * or websocket targets, which need a real connection.
+ * A rate of 0 runs a closed loop, otherwise an open loop of that many requests per second.
+ */
+public class LoadTest
+{
+    /* ------------------------------------------------------------ */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length==0)
+        {
+            usage();
+            return;
+        }
+
+        String connector="nio";
+        String target="static";
+        int users=10;
+        int rate=0;
+        long think=0;
+        long warmup=5000;
+        long duration=10000;
+        int threads=200;
+        int size=1024;
+
+        for (int i=0;i<args.length;i++)
+        {
+            String arg=args[i];
+            if (i+1==args.length)
+            {
+                usage();
+                return;
+            }
+            String value=args[++i];
+            if ("-connector".equals(arg))
+                connector=value;
+            else if ("-target".equals(arg))
+                target=value;
+            else if ("-users".equals(arg))
+                users=Integer.parseInt(value);
+            else if ("-rate".equals(arg))
+                rate=Integer.parseInt(value);
+            else if ("-think".equals(arg))
+                think=Long.parseLong(value);
+            else if ("-warmup".equals(arg))
+                warmup=Long.parseLong(value);
+            else if ("-duration".equals(arg))
+                duration=Long.parseLong(value);
+            else if ("-threads".equals(arg))
+                threads=Integer.parseInt(value);
+            else if ("-size".equals(arg))
+                size=Integer.parseInt(value);
+            else
+            {
+                usage();
+                return;
+            }
+        }
+
+        if (!Arrays.asList(LoadServer.TARGETS).contains(target))
+            throw new IllegalArgumentException("Unknown target "+target);
+        boolean local="local".equals(connector);
+        if (local && ("async".equals(target) || "websocket".equals(target)))
+            throw new IllegalArgumentException("The local connector cannot drive the "+target+" target");
+
+        LoadServer server=new LoadServer(local?"nio":connector,threads,size);
+        server.start();
+        try
+        {
+            Transport transport=newTransport(server,local,target,users,size);
+            try
+            {
+                LoadGenerator generator=new LoadGenerator(transport);
+                generator.setUsers(users);
+                generator.setRate(rate);
+                generator.setThinkTime(think);
+
+                System.out.printf("%s %s: %d users, %s, %d ms warmup, %d ms%n",
+                        connector,target,users,rate>0?(rate+" requests/s"):"closed loop",warmup,duration);
+                LoadGenerator.Result result=generator.run(warmup,duration);
+                result.print(System.out);
+                System.out.printf("server threads: %d of %d%n",server.getThreadPool().getThreads(),threads);
+            }
+            finally
+            {
+                transport.close();
+            }
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param server the started server
+     * @param local true to drive the local connector of the server
+     * @param target one of {@link LoadServer#TARGETS}
+     * @param users the number of users, which is the number of connections to the server
+     * @param size the size of websocket messages
+     * @return a transport to the target of the server
+     */
+    public static Transport newTransport(LoadServer server, boolean local, String target, int users, int size) throws Exception
+    {
+        String uri=LoadServer.getURI(target);
+        if (local)
+            return new LocalTransport(server.getLocalConnector(),uri);
+        if ("websocket".equals(target))
+            return new WebSocketTransport("localhost",server.getPort(),uri,size);
+        return new HttpTransport("localhost",server.getPort(),uri,users);
+    }
+
+    /* ------------------------------------------------------------ */
+    private static void usage()
+    {
+        System.err.println("Usage: LoadTest [-connector local|nio|bio] [-target static|servlet|async|websocket]");
+        System.err.println("                [-users n] [-rate n] [-think ms] [-warmup ms] [-duration ms]");
+        System.err.println("                [-threads n] [-size bytes]");
+    }
+}
@@ -0,0 +1,63 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.test.load;
+
+import java.io.IOException;
+
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.server.LocalConnector;
+
+/* ------------------------------------------------------------ */
+/**
+ * Send requests through a {@link LocalConnector}, so that the server is
+ * loaded without the network or the selector.
+ * <p>
+ * Each request is handled on a new connection by a thread of the server,
+ * so asynchronous and websocket targets cannot be used.
+ */
+public class LocalTransport implements Transport
+{
+    private final LocalConnector _connector;
+    private final byte[] _request;
+
+    /* ------------------------------------------------------------ */
+    public LocalTransport(LocalConnector connector, String uri)
+    {
+        _connector=connector;
+        _request=("GET "+uri+" HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes();
+    }
+
+    /* ------------------------------------------------------------ */
+    public Session open()
+    {
+        return new Session()
+        {
+            public void exchange() throws Exception
+            {
+                ByteArrayBuffer response=_connector.getResponses(new ByteArrayBuffer(_request),false);
+                if (response==null || response.length()<12 || !response.toString("ISO-8859-1").startsWith("HTTP/1.1 200 "))
+                    throw new IOException("Bad response: "+response);
+            }
+
+            public void close()
+            {
+            }
+        };
+    }
+
+    /* ------------------------------------------------------------ */
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,47 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.test.load;
+
+/* ------------------------------------------------------------ */
+/**
+ * The way a {@link LoadGenerator} sends requests to the server.
+ */
+public interface Transport
+{
+    /* ------------------------------------------------------------ */
+    /**
+     * Open a session, which is used by one user of the load at a time.
+     * @return a new session
+     * @throws Exception if the session cannot be opened
+     */
+    Session open() throws Exception;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Release any resources held by the transport.
+     */
+    void close() throws Exception;
+
+    /* ------------------------------------------------------------ */
+    public interface Session
+    {
+        /**
+         * Send one request and wait for its response.
+         * @throws Exception if the request failed or the response was not the expected one
+         */
+        void exchange() throws Exception;
+
+        void close();
+    }
+}
@@ -0,0 +1,123 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.test.load;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.eclipse.jetty.util.log.Log;
+
+/* ------------------------------------------------------------ */
+/**
+ * Send messages on websocket connections, one connection per session,
+ * and wait for each message to be echoed.
+ */
+public class WebSocketTransport implements Transport
+{
+    private final String _host;
+    private final int _port;
+    private final String _uri;
+    private final byte[] _frame;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param host the host of the server
+     * @param port the port of the server
+     * @param uri the URI of the websocket
+     * @param size the size of the messages
+     */
+    public WebSocketTransport(String host, int port, String uri, int size)
+    {
+        _host=host;
+        _port=port;
+        _uri=uri;
+        _frame=new byte[size+2];
+        _frame[0]=0x00;
+        for (int i=1;i<=size;i++)
+            _frame[i]=(byte)('a'+i%26);
+        _frame[size+1]=(byte)0xFF;
+    }
+
+    /* ------------------------------------------------------------ */
+    public Session open() throws Exception
+    {
+        final Socket socket=new Socket(_host,_port);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(30000);
+        final OutputStream out=socket.getOutputStream();
+        final InputStream in=new BufferedInputStream(socket.getInputStream());
+
+        out.write(("GET "+_uri+" HTTP/1.1\r\n"+
+                "Host: "+_host+":"+_port+"\r\n"+
+                "Upgrade: WebSocket\r\n"+
+                "Connection: Upgrade\r\n"+
+                "Origin: http://"+_host+"\r\n"+
+                "\r\n").getBytes("ISO-8859-1"));
+        out.flush();
+
+        // Read the handshake response up to the blank line
+        StringBuilder response=new StringBuilder();
+        int state=0;
+        while (state<4)
+        {
+            int b=in.read();
+            if (b<0)
+                throw new IOException("Closed during handshake");
+            response.append((char)b);
+            state=(b==(state%2==0?'\r':'\n'))?state+1:(b=='\r'?1:0);
+        }
+        if (!response.toString().startsWith("HTTP/1.1 101 "))
+        {
+            socket.close();
+            throw new IOException("Bad handshake: "+response);
+        }
+
+        return new Session()
+        {
+            public void exchange() throws Exception
+            {
+                out.write(_frame);
+                out.flush();
+                for (int i=0;i<_frame.length;i++)
+                {
+                    int b=in.read();
+                    if (b<0)
+                        throw new IOException("Closed");
+                    if ((byte)b!=_frame[i])
+                        throw new IOException("Bad echo");
+                }
+            }
+
+            public void close()
+            {
+                try
+                {
+                    socket.close();
+                }
+                catch(IOException e)
+                {
+                    Log.ignore(e);
+                }
+            }
+        };
+    }
+
+    /* ------------------------------------------------------------ */
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,81 @@
+// ========================================================================
+// Copyright (c) 2010 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.eclipse.jetty.test.load;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoadGeneratorTest
+{
+    private static LoadServer server;
+
+    @BeforeClass
+    public static void startServer() throws Exception
+    {
+        server = new LoadServer("nio", 50, 4096);
+        server.start();
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception
+    {
+        server.stop();
+    }
+
+    @Test
+    public void testClosedLoop() throws Exception
+    {
+        for (String target : LoadServer.TARGETS)
+            assertLoad(LoadTest.newTransport(server, false, target, 4, 64), 0);
+    }
+
+    @Test
+    public void testOpenLoop() throws Exception
+    {
+        LoadGenerator.Result result = assertLoad(LoadTest.newTransport(server, false, "async", 4, 64), 200);
+        // the requests were sent at the rate
+        assertTrue(result.getRequests() > 50);
+        assertTrue(result.getRequests() <= 101);
+    }
+
+    @Test
+    public void testLocal() throws Exception
+    {
+        assertLoad(LoadTest.newTransport(server, true, "static", 4, 64), 0);
+        assertLoad(LoadTest.newTransport(server, true, "servlet", 4, 64), 0);
+    }
+
+    private LoadGenerator.Result assertLoad(Transport transport, int rate) throws Exception
+    {
+        try
+        {
+            LoadGenerator generator = new LoadGenerator(transport);
+            generator.setUsers(4);
+            generator.setRate(rate);
+            LoadGenerator.Result result = generator.run(200, 500);
+            assertEquals(0, result.getErrors());
+            assertTrue(result.getRequests() > 0);
+            assertTrue(result.getHistogram().getPercentile(50) > 0);
+            return result;
+        }
+        finally
+        {
+            transport.close();
+        }
+    }
+}